@@ -0,0 +1,38 @@
+package ford.james.motorola;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+public class BenchmarkUtils {
+
+	public static FileStorageProperties storageProperties(Path baseLocation) {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(baseLocation.toString());
+		fileStorageProperties.setRequestTimeout(15);
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		return fileStorageProperties;
+	}
+
+	public static void deleteRecursively(Path directory) throws IOException {
+		if (directory == null || !Files.exists(directory)) {
+			return;
+		}
+		Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
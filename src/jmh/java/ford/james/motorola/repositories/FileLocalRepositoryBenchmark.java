@@ -0,0 +1,153 @@
+package ford.james.motorola.repositories;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.Resource;
+
+import ford.james.motorola.BenchmarkUtils;
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.TransferUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Benchmarks for the hot paths of {@link FileLocalRepository}. Every state creates its own temporary storage
+ * directory so the benchmarks do not interfere with each other.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileLocalRepositoryBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class ListState {
+
+		@Param({"1000", "100000", "1000000"})
+		private int fileCount;
+
+		@Param({"true", "false"})
+		private boolean indexEnabled;
+
+		private Path directory;
+		private FileLocalRepository repository;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			directory = Files.createTempDirectory("jmh-list");
+			for (int i = 0; i < fileCount; i++) {
+				Files.createFile(directory.resolve("file" + i + ".txt"));
+			}
+			FileStorageProperties fileStorageProperties = BenchmarkUtils.storageProperties(directory);
+			fileStorageProperties.getIndex().setEnabled(indexEnabled);
+			repository = new FileLocalRepository(fileStorageProperties, new FileMetrics(new SimpleMeterRegistry()));
+			repository.initialiseIndex();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			repository.close();
+			BenchmarkUtils.deleteRecursively(directory);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ReadState {
+
+		@Param({"1024", "1048576", "104857600"})
+		private int fileSize;
+
+		private Path directory;
+		private FileLocalRepository repository;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			directory = Files.createTempDirectory("jmh-read");
+			byte[] content = new byte[fileSize];
+			new Random(42).nextBytes(content);
+			Files.write(directory.resolve("file.bin"), content);
+			repository = new FileLocalRepository(BenchmarkUtils.storageProperties(directory),
+					new FileMetrics(new SimpleMeterRegistry()));
+			repository.initialiseIndex();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			repository.close();
+			BenchmarkUtils.deleteRecursively(directory);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class WriteState {
+
+		@Param({"1024", "1048576", "104857600"})
+		private int fileSize;
+
+		private final AtomicLong counter = new AtomicLong();
+		private byte[] content;
+		private Path directory;
+		private FileLocalRepository repository;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			directory = Files.createTempDirectory("jmh-write");
+			content = new byte[fileSize];
+			new Random(42).nextBytes(content);
+			repository = new FileLocalRepository(BenchmarkUtils.storageProperties(directory),
+					new FileMetrics(new SimpleMeterRegistry()));
+			repository.initialiseIndex();
+		}
+
+		@TearDown(Level.Iteration)
+		public void clean() throws Exception {
+			for (String filename : Set.copyOf(repository.listFilenames())) {
+				repository.deleteFileFromStorage(filename);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			repository.close();
+			BenchmarkUtils.deleteRecursively(directory);
+		}
+	}
+
+	@Benchmark
+	public Set<String> listFilenames(ListState state) throws Exception {
+		return state.repository.listFilenames();
+	}
+
+	@Benchmark
+	public long getFileFromStorage(ReadState state) throws Exception {
+		Resource resource = state.repository.getFileFromStorage("file.bin");
+		return TransferUtils.transfer(resource, 0, resource.contentLength(), OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public boolean saveFileToStorage(WriteState state) throws Exception {
+		String filename = "file" + state.counter.incrementAndGet() + ".bin";
+		return state.repository.saveFileToStorage(filename, new ByteArrayInputStream(state.content));
+	}
+}
@@ -0,0 +1,75 @@
+package ford.james.motorola.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Measures the cost of {@code executeWithLock} when a single caller owns the file and when several threads contend
+ * on the same file.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LockManagerBenchmark {
+
+	@Param({"false", "true"})
+	private boolean isWrite;
+
+	private LockManagerImpl lockManager;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setRequestTimeout(15);
+		lockManager = new LockManagerImpl(fileStorageProperties, new FileMetrics(new SimpleMeterRegistry()));
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadKey {
+
+		private String filename;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			filename = "file" + Thread.currentThread().threadId() + ".txt";
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object uncontended() throws Exception {
+		return lockManager.executeWithLock("file.txt", isWrite, () -> Boolean.TRUE);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object contendedSameFile() throws Exception {
+		return lockManager.executeWithLock("file.txt", isWrite, () -> Boolean.TRUE);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object concurrentDifferentFiles(ThreadKey threadKey) throws Exception {
+		return lockManager.executeWithLock(threadKey.filename, isWrite, () -> Boolean.TRUE);
+	}
+}
@@ -0,0 +1,177 @@
+package ford.james.motorola.loadtest;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Starts the application on a random port against an empty temporary storage directory and drives a weighted mix of
+ * uploads, downloads, lists and deletes at it from many concurrent clients over real HTTP connections. Part of the
+ * requests are aimed at a handful of hot filenames so that the clients contend on the same file locks.
+ * <p>
+ * Latencies are only recorded once the warmup has passed, and the run fails if the 99th percentile of any operation,
+ * the overall throughput or the error rate breach the thresholds in {@link LoadTestSettings}.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"spring.security.user.name=" + FileLoadTest.USERNAME,
+		"spring.security.user.password=" + FileLoadTest.PASSWORD,
+		"storage.file.index.watch-enabled=false",
+		// Every rejected request is logged with its stack trace, which would be measured instead of the service
+		"logging.level.ford.james.motorola=OFF"
+})
+public class FileLoadTest {
+
+	static final String USERNAME = "loadtest";
+	static final String PASSWORD = "loadtest";
+
+	private static final Path STORAGE_DIRECTORY = createStorageDirectory();
+
+	@LocalServerPort
+	private int port;
+
+	private LoadTestSettings settings;
+	private HttpClient httpClient;
+	private URI baseUri;
+	private byte[] content;
+
+	@DynamicPropertySource
+	static void storageProperties(DynamicPropertyRegistry registry) {
+		registry.add("storage.file.base-location", STORAGE_DIRECTORY::toString);
+	}
+
+	@AfterAll
+	static void deleteStorageDirectory() throws IOException {
+		FileSystemUtils.deleteRecursively(STORAGE_DIRECTORY);
+	}
+
+	@BeforeEach
+	void before() throws Exception {
+		settings = LoadTestSettings.load();
+		httpClient = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofSeconds(5))
+				.build();
+		baseUri = URI.create("http://localhost:" + port + "/");
+		content = new byte[(int) settings.fileSize().toBytes()];
+		new Random(1).nextBytes(content);
+
+		for (int i = 0; i < settings.hotKeys(); i++) {
+			send(LoadOperation.UPLOAD, hotFilename(i));
+		}
+		for (int i = 0; i < settings.coldKeys(); i += 2) {
+			send(LoadOperation.UPLOAD, coldFilename(i));
+		}
+	}
+
+	@Test
+	void testLatencyAndThroughputWithinThresholds() throws Exception {
+		LatencyReport report = new LatencyReport();
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicBoolean recording = new AtomicBoolean(false);
+
+		try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < settings.clients(); i++) {
+				clients.submit(() -> runClient(report, running, recording));
+			}
+
+			TimeUnit.NANOSECONDS.sleep(settings.warmup().toNanos());
+			recording.set(true);
+			TimeUnit.NANOSECONDS.sleep(settings.duration().toNanos());
+			recording.set(false);
+			running.set(false);
+		}
+
+		System.out.printf("Load test of [%d] clients for [%s] after a warmup of [%s]%n", settings.clients(),
+				settings.duration(), settings.warmup());
+		report.print(System.out, settings.duration());
+		report.write(settings.reportDirectory());
+
+		List<String> breaches = report.findBreaches(settings);
+		assertTrue(breaches.isEmpty(), String.join(System.lineSeparator(), breaches));
+	}
+
+	private void runClient(LatencyReport report, AtomicBoolean running, AtomicBoolean recording) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (running.get()) {
+			LoadOperation operation = pickOperation(random);
+			String filename = random.nextDouble() < settings.hotKeyRatio()
+					? hotFilename(random.nextInt(settings.hotKeys()))
+					: coldFilename(random.nextInt(settings.coldKeys()));
+
+			long start = System.nanoTime();
+			boolean error;
+			try {
+				error = operation.isError(send(operation, filename));
+			} catch (IOException e) {
+				error = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (recording.get()) {
+				report.record(operation, System.nanoTime() - start, error);
+			}
+		}
+	}
+
+	private int send(LoadOperation operation, String filename) throws IOException, InterruptedException {
+		HttpRequest request = operation.request(baseUri, filename, content)
+				.header("Authorization", "Basic " + Base64.getEncoder()
+						.encodeToString((USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8)))
+				.timeout(Duration.ofSeconds(30))
+				.build();
+		return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	private LoadOperation pickOperation(Random random) {
+		int totalWeight = settings.mix().values().stream().mapToInt(Integer::intValue).sum();
+		int pick = random.nextInt(totalWeight);
+		for (LoadOperation operation : LoadOperation.values()) {
+			pick -= settings.mix().get(operation);
+			if (pick < 0) {
+				return operation;
+			}
+		}
+		throw new IllegalStateException("Operation mix has no weight");
+	}
+
+	private static String hotFilename(int index) {
+		return "hot" + index + ".bin";
+	}
+
+	private static String coldFilename(int index) {
+		return "cold" + index + ".bin";
+	}
+
+	private static Path createStorageDirectory() {
+		try {
+			return Files.createTempDirectory("file-load-test");
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to create the storage directory of the load test", e);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package ford.james.motorola.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latencies and failures of each operation of a load test, recorded into HdrHistograms so the tail percentiles are
+ * exact to three significant digits however many requests are made.
+ */
+class LatencyReport {
+
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final Map<LoadOperation, Histogram> histograms = new EnumMap<>(LoadOperation.class);
+	private final Map<LoadOperation, LongAdder> errors = new EnumMap<>(LoadOperation.class);
+
+	LatencyReport() {
+		for (LoadOperation operation : LoadOperation.values()) {
+			histograms.put(operation, new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3));
+			errors.put(operation, new LongAdder());
+		}
+	}
+
+	void record(LoadOperation operation, long nanos, boolean error) {
+		histograms.get(operation).recordValue(Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+		if (error) {
+			errors.get(operation).increment();
+		}
+	}
+
+	long totalCount() {
+		return histograms.values().stream().mapToLong(Histogram::getTotalCount).sum();
+	}
+
+	long totalErrors() {
+		return errors.values().stream().mapToLong(LongAdder::sum).sum();
+	}
+
+	/**
+	 * Checks the recorded run against the thresholds of the settings.
+	 *
+	 * @return a description of each threshold that was breached, empty if the run passed
+	 */
+	List<String> findBreaches(LoadTestSettings settings) {
+		List<String> breaches = new ArrayList<>();
+		histograms.forEach((operation, histogram) -> {
+			if (histogram.getTotalCount() == 0) {
+				return;
+			}
+			Duration p99 = Duration.ofNanos(histogram.getValueAtPercentile(99));
+			Duration maxP99 = settings.maxP99().get(operation);
+			if (p99.compareTo(maxP99) > 0) {
+				breaches.add(String.format("p99 of %s was %.2fms, above the threshold of %.2fms", operation.key(),
+						toMillis(p99.toNanos()), toMillis(maxP99.toNanos())));
+			}
+		});
+
+		double throughput = totalCount() / toSeconds(settings.duration());
+		if (throughput < settings.minThroughput()) {
+			breaches.add(String.format("Throughput was %.1f requests/s, below the threshold of %.1f requests/s",
+					throughput, settings.minThroughput()));
+		}
+
+		double errorRate = totalCount() == 0 ? 0 : (double) totalErrors() / totalCount();
+		if (errorRate > settings.maxErrorRate()) {
+			breaches.add(String.format("Error rate was %.4f, above the threshold of %.4f", errorRate,
+					settings.maxErrorRate()));
+		}
+		return breaches;
+	}
+
+	void print(PrintStream out, Duration duration) {
+		out.printf("%-10s %10s %10s %12s %10s %10s %10s %10s%n", "operation", "requests", "errors", "requests/s",
+				"p50 ms", "p99 ms", "p99.9 ms", "max ms");
+		histograms.forEach((operation, histogram) -> out.printf("%-10s %10d %10d %12.1f %10.2f %10.2f %10.2f %10.2f%n",
+				operation.key(), histogram.getTotalCount(), errors.get(operation).sum(),
+				histogram.getTotalCount() / toSeconds(duration),
+				toMillis(histogram.getValueAtPercentile(50)), toMillis(histogram.getValueAtPercentile(99)),
+				toMillis(histogram.getValueAtPercentile(99.9)), toMillis(histogram.getMaxValue())));
+	}
+
+	/**
+	 * Writes the full percentile distribution of each operation in the {@code .hgrm} format, which can be plotted
+	 * with the HdrHistogram plotter.
+	 */
+	void write(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		for (Map.Entry<LoadOperation, Histogram> entry : histograms.entrySet()) {
+			try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(entry.getKey().key() + ".hgrm")))) {
+				entry.getValue().outputPercentileDistribution(out, 1_000_000.0);
+			}
+		}
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+	private static double toSeconds(Duration duration) {
+		return duration.toNanos() / 1_000_000_000.0;
+	}
+}
@@ -0,0 +1,61 @@
+package ford.james.motorola.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.Locale;
+
+/**
+ * The requests the load test drives, each mapped to the endpoint it exercises.
+ */
+enum LoadOperation {
+
+	UPLOAD {
+		@Override
+		HttpRequest.Builder request(URI baseUri, String filename, byte[] content) {
+			return HttpRequest.newBuilder(baseUri.resolve("files/" + filename))
+					.header("Content-Type", "application/octet-stream")
+					.PUT(HttpRequest.BodyPublishers.ofByteArray(content));
+		}
+	},
+	DOWNLOAD {
+		@Override
+		HttpRequest.Builder request(URI baseUri, String filename, byte[] content) {
+			return HttpRequest.newBuilder(baseUri.resolve("files/download/" + filename)).GET();
+		}
+	},
+	LIST {
+		@Override
+		HttpRequest.Builder request(URI baseUri, String filename, byte[] content) {
+			return HttpRequest.newBuilder(baseUri.resolve("files/list")).GET();
+		}
+	},
+	DELETE {
+		@Override
+		HttpRequest.Builder request(URI baseUri, String filename, byte[] content) {
+			return HttpRequest.newBuilder(baseUri.resolve("files/delete/" + filename)).DELETE();
+		}
+	};
+
+	abstract HttpRequest.Builder request(URI baseUri, String filename, byte[] content);
+
+	/**
+	 * A {@code 404} from a download or delete and a {@code 409} from an upload are the expected outcome of clients
+	 * racing on the same files, so only other failures count as errors.
+	 *
+	 * @return whether the status is an error
+	 */
+	boolean isError(int status) {
+		if (status >= 200 && status < 300) {
+			return false;
+		}
+		return switch (this) {
+			case UPLOAD -> status != 409;
+			case DOWNLOAD, DELETE -> status != 404;
+			case LIST -> true;
+		};
+	}
+
+	String key() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+}
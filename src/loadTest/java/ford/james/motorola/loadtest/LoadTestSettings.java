@@ -0,0 +1,77 @@
+package ford.james.motorola.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Settings of a load test run. Defaults are read from {@code loadtest.properties} and each can be overridden with a
+ * system property of the same name, which the {@code loadTest} Gradle task passes on from {@code -PloadTest.*}.
+ *
+ * @param clients the number of concurrent clients
+ * @param warmup how long to drive load before recording starts
+ * @param duration how long to record for
+ * @param mix the relative weight of each operation
+ * @param hotKeys the number of filenames most of the contention is on
+ * @param hotKeyRatio the fraction of requests that go to a hot filename
+ * @param coldKeys the number of other filenames
+ * @param fileSize the size of each uploaded file
+ * @param maxP99 the highest acceptable 99th percentile latency of each operation
+ * @param minThroughput the lowest acceptable number of requests per second across all operations
+ * @param maxErrorRate the highest acceptable fraction of requests that fail
+ * @param reportDirectory where the latency distribution of each operation is written
+ */
+record LoadTestSettings(int clients, Duration warmup, Duration duration, Map<LoadOperation, Integer> mix,
+		int hotKeys, double hotKeyRatio, int coldKeys, DataSize fileSize, Map<LoadOperation, Duration> maxP99,
+		double minThroughput, double maxErrorRate, Path reportDirectory) {
+
+	private static final String PREFIX = "loadTest.";
+
+	static LoadTestSettings load() throws IOException {
+		Properties properties = new Properties();
+		try (InputStream inputStream = LoadTestSettings.class.getResourceAsStream("/loadtest.properties")) {
+			if (inputStream != null) {
+				properties.load(inputStream);
+			}
+		}
+		System.getProperties().stringPropertyNames().stream()
+				.filter(name -> name.startsWith(PREFIX))
+				.forEach(name -> properties.setProperty(name, System.getProperty(name)));
+
+		Map<LoadOperation, Integer> mix = new EnumMap<>(LoadOperation.class);
+		Map<LoadOperation, Duration> maxP99 = new EnumMap<>(LoadOperation.class);
+		for (LoadOperation operation : LoadOperation.values()) {
+			mix.put(operation, Integer.parseInt(get(properties, "mix." + operation.key())));
+			maxP99.put(operation, DurationStyle.detectAndParse(get(properties, "p99." + operation.key())));
+		}
+
+		return new LoadTestSettings(
+				Integer.parseInt(get(properties, "clients")),
+				DurationStyle.detectAndParse(get(properties, "warmup")),
+				DurationStyle.detectAndParse(get(properties, "duration")),
+				mix,
+				Integer.parseInt(get(properties, "hotKeys")),
+				Double.parseDouble(get(properties, "hotKeyRatio")),
+				Integer.parseInt(get(properties, "coldKeys")),
+				DataSize.parse(get(properties, "fileSize")),
+				maxP99,
+				Double.parseDouble(get(properties, "minThroughput")),
+				Double.parseDouble(get(properties, "maxErrorRate")),
+				Path.of(get(properties, "reportDirectory")));
+	}
+
+	private static String get(Properties properties, String name) {
+		String value = properties.getProperty(PREFIX + name);
+		if (value == null) {
+			throw new IllegalStateException("Load test setting [" + PREFIX + name + "] is not set");
+		}
+		return value.trim();
+	}
+}
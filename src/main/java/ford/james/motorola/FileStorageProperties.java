@@ -1,7 +1,13 @@
 package ford.james.motorola;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 
 @Configuration
 @ConfigurationProperties("storage.file")
@@ -9,6 +15,25 @@ public class FileStorageProperties {
 
 	private String baseLocation;
 	private long requestTimeout;
+	private String repository = "local";
+	private int uploadBufferSize = 64 * 1024;
+	private int uploadBufferPoolSize = 64;
+	private final Index index = new Index();
+	private final Cache cache = new Cache();
+	private final ContentAddressable contentAddressable = new ContentAddressable();
+	private final Batch batch = new Batch();
+	private final Sharding sharding = new Sharding();
+	private final Compression compression = new Compression();
+	private final UploadSession uploadSession = new UploadSession();
+	private final Mmap mmap = new Mmap();
+	private final Reaper reaper = new Reaper();
+	private final Admission admission = new Admission();
+	private final Journal journal = new Journal();
+	private final Pack pack = new Pack();
+	private final Replication replication = new Replication();
+	private final ProcessLock processLock = new ProcessLock();
+	private final S3 s3 = new S3();
+	private final Tiering tiering = new Tiering();
 
 	public String getBaseLocation() {
 		return baseLocation;
@@ -25,4 +50,1043 @@ public class FileStorageProperties {
 	public void setRequestTimeout(long requestTimeout) {
 		this.requestTimeout = requestTimeout;
 	}
+
+	/**
+	 * @return the name of the {@code FileRepository} implementation to store files with
+	 */
+	public String getRepository() {
+		return repository;
+	}
+
+	public void setRepository(String repository) {
+		this.repository = repository;
+	}
+
+	public int getUploadBufferSize() {
+		return uploadBufferSize;
+	}
+
+	public void setUploadBufferSize(int uploadBufferSize) {
+		this.uploadBufferSize = uploadBufferSize;
+	}
+
+	public int getUploadBufferPoolSize() {
+		return uploadBufferPoolSize;
+	}
+
+	public void setUploadBufferPoolSize(int uploadBufferPoolSize) {
+		this.uploadBufferPoolSize = uploadBufferPoolSize;
+	}
+
+	public Index getIndex() {
+		return index;
+	}
+
+	public Cache getCache() {
+		return cache;
+	}
+
+	public ContentAddressable getContentAddressable() {
+		return contentAddressable;
+	}
+
+	public Batch getBatch() {
+		return batch;
+	}
+
+	public Sharding getSharding() {
+		return sharding;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public UploadSession getUploadSession() {
+		return uploadSession;
+	}
+
+	public Mmap getMmap() {
+		return mmap;
+	}
+
+	public Reaper getReaper() {
+		return reaper;
+	}
+
+	public Admission getAdmission() {
+		return admission;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	public Pack getPack() {
+		return pack;
+	}
+
+	public Replication getReplication() {
+		return replication;
+	}
+
+	public ProcessLock getProcessLock() {
+		return processLock;
+	}
+
+	public S3 getS3() {
+		return s3;
+	}
+
+	public Tiering getTiering() {
+		return tiering;
+	}
+
+	/**
+	 * Settings for the in-memory index of stored files.
+	 */
+	public static class Index {
+
+		private boolean enabled = true;
+		private boolean watchEnabled = true;
+		private Duration reconcileInterval = Duration.ofMinutes(5);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public boolean isWatchEnabled() {
+			return watchEnabled;
+		}
+
+		public void setWatchEnabled(boolean watchEnabled) {
+			this.watchEnabled = watchEnabled;
+		}
+
+		public Duration getReconcileInterval() {
+			return reconcileInterval;
+		}
+
+		public void setReconcileInterval(Duration reconcileInterval) {
+			this.reconcileInterval = reconcileInterval;
+		}
+	}
+
+	/**
+	 * Settings for the in-memory cache of small, frequently downloaded files.
+	 */
+	public static class Cache {
+
+		private boolean enabled = false;
+		private DataSize maxSize = DataSize.ofMegabytes(64);
+		private DataSize maxFileSize = DataSize.ofMegabytes(1);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public DataSize getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(DataSize maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public DataSize getMaxFileSize() {
+			return maxFileSize;
+		}
+
+		public void setMaxFileSize(DataSize maxFileSize) {
+			this.maxFileSize = maxFileSize;
+		}
+	}
+
+	/**
+	 * Settings for the content addressable, deduplicating repository.
+	 */
+	public static class ContentAddressable {
+
+		private DataSize memoryThreshold = DataSize.ofMegabytes(1);
+		private Duration gcInterval = Duration.ofMinutes(10);
+
+		public DataSize getMemoryThreshold() {
+			return memoryThreshold;
+		}
+
+		public void setMemoryThreshold(DataSize memoryThreshold) {
+			this.memoryThreshold = memoryThreshold;
+		}
+
+		public Duration getGcInterval() {
+			return gcInterval;
+		}
+
+		public void setGcInterval(Duration gcInterval) {
+			this.gcInterval = gcInterval;
+		}
+	}
+
+	/**
+	 * Settings for the batch upload and delete endpoints.
+	 */
+	public static class Batch {
+
+		private int parallelism = 8;
+		private int maxItems = 1000;
+
+		public int getParallelism() {
+			return parallelism;
+		}
+
+		public void setParallelism(int parallelism) {
+			this.parallelism = parallelism;
+		}
+
+		public int getMaxItems() {
+			return maxItems;
+		}
+
+		public void setMaxItems(int maxItems) {
+			this.maxItems = maxItems;
+		}
+	}
+
+	/**
+	 * Settings for the hash-sharded directory layout of the local repository.
+	 */
+	public static class Sharding {
+
+		private boolean enabled = false;
+		private int depth = 2;
+		private int width = 2;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public void setDepth(int depth) {
+			this.depth = depth;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public void setWidth(int width) {
+			this.width = width;
+		}
+	}
+
+	/**
+	 * Settings for compressing files at rest in the local repository.
+	 */
+	public static class Compression {
+
+		private boolean enabled = false;
+		private int level = 6;
+		private DataSize minSize = DataSize.ofKilobytes(1);
+		private double maxRatio = 0.9;
+		private Set<String> excludedExtensions = Set.of("gz", "tgz", "zip", "jar", "7z", "bz2", "xz", "zst", "jpg",
+				"jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "mov", "avi", "pdf", "docx", "xlsx", "pptx");
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public void setLevel(int level) {
+			this.level = level;
+		}
+
+		public DataSize getMinSize() {
+			return minSize;
+		}
+
+		public void setMinSize(DataSize minSize) {
+			this.minSize = minSize;
+		}
+
+		/**
+		 * @return the highest compressed to original size ratio of a sample of the file for the file to be compressed
+		 */
+		public double getMaxRatio() {
+			return maxRatio;
+		}
+
+		public void setMaxRatio(double maxRatio) {
+			this.maxRatio = maxRatio;
+		}
+
+		public Set<String> getExcludedExtensions() {
+			return excludedExtensions;
+		}
+
+		public void setExcludedExtensions(Set<String> excludedExtensions) {
+			this.excludedExtensions = excludedExtensions;
+		}
+	}
+
+	/**
+	 * Settings for resumable, chunked upload sessions.
+	 */
+	public static class UploadSession {
+
+		private Duration expiry = Duration.ofHours(1);
+		private Duration cleanupInterval = Duration.ofMinutes(1);
+		private DataSize maxChunkSize = DataSize.ofMegabytes(64);
+		private int maxSessions = 1000;
+
+		/**
+		 * @return how long a session may go without receiving a chunk before it is abandoned
+		 */
+		public Duration getExpiry() {
+			return expiry;
+		}
+
+		public void setExpiry(Duration expiry) {
+			this.expiry = expiry;
+		}
+
+		public Duration getCleanupInterval() {
+			return cleanupInterval;
+		}
+
+		public void setCleanupInterval(Duration cleanupInterval) {
+			this.cleanupInterval = cleanupInterval;
+		}
+
+		public DataSize getMaxChunkSize() {
+			return maxChunkSize;
+		}
+
+		public void setMaxChunkSize(DataSize maxChunkSize) {
+			this.maxChunkSize = maxChunkSize;
+		}
+
+		public int getMaxSessions() {
+			return maxSessions;
+		}
+
+		public void setMaxSessions(int maxSessions) {
+			this.maxSessions = maxSessions;
+		}
+	}
+
+	/**
+	 * Settings for serving large files of the local repository from memory mappings.
+	 */
+	public static class Mmap {
+
+		private boolean enabled = false;
+		private DataSize maxMappedSize = DataSize.ofGigabytes(1);
+		private DataSize minFileSize = DataSize.ofMegabytes(16);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * @return the total size of the files that may be mapped at once
+		 */
+		public DataSize getMaxMappedSize() {
+			return maxMappedSize;
+		}
+
+		public void setMaxMappedSize(DataSize maxMappedSize) {
+			this.maxMappedSize = maxMappedSize;
+		}
+
+		/**
+		 * @return the size below which files are read normally, as mapping them costs more than it saves
+		 */
+		public DataSize getMinFileSize() {
+			return minFileSize;
+		}
+
+		public void setMinFileSize(DataSize minFileSize) {
+			this.minFileSize = minFileSize;
+		}
+	}
+
+	/**
+	 * Settings for deleting files in the background.
+	 */
+	public static class Reaper {
+
+		private boolean enabled = false;
+		private Duration interval = Duration.ofSeconds(1);
+		private DataSize bytesPerSecond = DataSize.ofMegabytes(64);
+		private String journal;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public Duration getInterval() {
+			return interval;
+		}
+
+		public void setInterval(Duration interval) {
+			this.interval = interval;
+		}
+
+		/**
+		 * @return the number of bytes of deleted files that may be reclaimed per second
+		 */
+		public DataSize getBytesPerSecond() {
+			return bytesPerSecond;
+		}
+
+		public void setBytesPerSecond(DataSize bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * @return the file tombstones are recorded in, by default a sibling of the storage directory
+		 */
+		public String getJournal() {
+			return journal;
+		}
+
+		public void setJournal(String journal) {
+			this.journal = journal;
+		}
+	}
+
+	/**
+	 * Settings for limiting the number of requests working on files at once.
+	 */
+	public static class Admission {
+
+		private boolean enabled = false;
+		private int maxConcurrent = 256;
+		private int maxQueued = 1024;
+		private int maxConcurrentPerFile = 16;
+		private int maxQueuedPerFile = 32;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getMaxConcurrent() {
+			return maxConcurrent;
+		}
+
+		public void setMaxConcurrent(int maxConcurrent) {
+			this.maxConcurrent = maxConcurrent;
+		}
+
+		/**
+		 * @return the number of requests that may wait across all files before further requests are rejected
+		 */
+		public int getMaxQueued() {
+			return maxQueued;
+		}
+
+		public void setMaxQueued(int maxQueued) {
+			this.maxQueued = maxQueued;
+		}
+
+		public int getMaxConcurrentPerFile() {
+			return maxConcurrentPerFile;
+		}
+
+		public void setMaxConcurrentPerFile(int maxConcurrentPerFile) {
+			this.maxConcurrentPerFile = maxConcurrentPerFile;
+		}
+
+		/**
+		 * @return the number of requests that may wait for a single file before further requests for it are rejected
+		 */
+		public int getMaxQueuedPerFile() {
+			return maxQueuedPerFile;
+		}
+
+		public void setMaxQueuedPerFile(int maxQueuedPerFile) {
+			this.maxQueuedPerFile = maxQueuedPerFile;
+		}
+	}
+
+	/**
+	 * Settings for the write-ahead journal the file index is restored from on startup.
+	 */
+	public static class Journal {
+
+		private boolean enabled = false;
+		private String directory;
+		private Duration snapshotInterval = Duration.ofMinutes(1);
+		private int snapshotRecords = 10_000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * @return the directory the journal and its snapshots are kept in, by default a sibling of the storage directory
+		 */
+		public String getDirectory() {
+			return directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		public Duration getSnapshotInterval() {
+			return snapshotInterval;
+		}
+
+		public void setSnapshotInterval(Duration snapshotInterval) {
+			this.snapshotInterval = snapshotInterval;
+		}
+
+		/**
+		 * @return the number of records the journal must have grown by for a snapshot to be taken
+		 */
+		public int getSnapshotRecords() {
+			return snapshotRecords;
+		}
+
+		public void setSnapshotRecords(int snapshotRecords) {
+			this.snapshotRecords = snapshotRecords;
+		}
+	}
+
+	/**
+	 * Settings for the repository that packs small files into segment files.
+	 */
+	public static class Pack {
+
+		private String directory;
+		private DataSize maxFileSize = DataSize.ofKilobytes(16);
+		private DataSize segmentSize = DataSize.ofMegabytes(256);
+		private Duration compactionInterval = Duration.ofMinutes(5);
+		private double compactionThreshold = 0.5;
+
+		/**
+		 * @return the directory the segments are kept in, by default a sibling of the storage directory
+		 */
+		public String getDirectory() {
+			return directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * @return the size up to which files are packed, larger files are stored in the storage directory
+		 */
+		public DataSize getMaxFileSize() {
+			return maxFileSize;
+		}
+
+		public void setMaxFileSize(DataSize maxFileSize) {
+			this.maxFileSize = maxFileSize;
+		}
+
+		public DataSize getSegmentSize() {
+			return segmentSize;
+		}
+
+		public void setSegmentSize(DataSize segmentSize) {
+			this.segmentSize = segmentSize;
+		}
+
+		public Duration getCompactionInterval() {
+			return compactionInterval;
+		}
+
+		public void setCompactionInterval(Duration compactionInterval) {
+			this.compactionInterval = compactionInterval;
+		}
+
+		/**
+		 * @return the share of a segment that must be deleted or overwritten records for it to be compacted
+		 */
+		public double getCompactionThreshold() {
+			return compactionThreshold;
+		}
+
+		public void setCompactionThreshold(double compactionThreshold) {
+			this.compactionThreshold = compactionThreshold;
+		}
+	}
+
+	public static class Replication {
+
+		private List<String> peers = new ArrayList<>();
+		private int writeQuorum = 2;
+		private String username;
+		private String password;
+		private Duration connectTimeout = Duration.ofSeconds(2);
+		private Duration requestTimeout = Duration.ofSeconds(30);
+		private Duration lookupTimeout = Duration.ofSeconds(1);
+		private Duration antiEntropyInterval = Duration.ofMinutes(1);
+		private Duration tombstoneRetention = Duration.ofDays(7);
+		private String tombstones;
+
+		/**
+		 * @return the base URLs of the other instances holding a replica of every file
+		 */
+		public List<String> getPeers() {
+			return peers;
+		}
+
+		public void setPeers(List<String> peers) {
+			this.peers = peers;
+		}
+
+		/**
+		 * @return the number of instances, including this one, that must store a file or delete it before the save or
+		 * delete succeeds
+		 */
+		public int getWriteQuorum() {
+			return writeQuorum;
+		}
+
+		public void setWriteQuorum(int writeQuorum) {
+			this.writeQuorum = writeQuorum;
+		}
+
+		/**
+		 * @return the user to authenticate to the peers as, or {@code null} to send no credentials
+		 */
+		public String getUsername() {
+			return username;
+		}
+
+		public void setUsername(String username) {
+			this.username = username;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public void setPassword(String password) {
+			this.password = password;
+		}
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		/**
+		 * @return how long to wait for a peer to answer a request that carries no file content, requests that do are
+		 * given as long as the transfer takes
+		 */
+		public Duration getRequestTimeout() {
+			return requestTimeout;
+		}
+
+		public void setRequestTimeout(Duration requestTimeout) {
+			this.requestTimeout = requestTimeout;
+		}
+
+		/**
+		 * @return how long a read waits for a peer to say whether it holds a file this instance does not have
+		 */
+		public Duration getLookupTimeout() {
+			return lookupTimeout;
+		}
+
+		public void setLookupTimeout(Duration lookupTimeout) {
+			this.lookupTimeout = lookupTimeout;
+		}
+
+		public Duration getAntiEntropyInterval() {
+			return antiEntropyInterval;
+		}
+
+		public void setAntiEntropyInterval(Duration antiEntropyInterval) {
+			this.antiEntropyInterval = antiEntropyInterval;
+		}
+
+		/**
+		 * @return how long a delete is remembered for, a peer that is unreachable for longer may bring the file back
+		 */
+		public Duration getTombstoneRetention() {
+			return tombstoneRetention;
+		}
+
+		public void setTombstoneRetention(Duration tombstoneRetention) {
+			this.tombstoneRetention = tombstoneRetention;
+		}
+
+		/**
+		 * @return the file deletes are recorded in, by default a sibling of the storage directory
+		 */
+		public String getTombstones() {
+			return tombstones;
+		}
+
+		public void setTombstones(String tombstones) {
+			this.tombstones = tombstones;
+		}
+	}
+
+	/**
+	 * Settings for the locks that exclude the other processes using the same storage directory.
+	 */
+	public static class ProcessLock {
+
+		private boolean enabled = false;
+		private String file;
+		private Duration retainFor = Duration.ofMillis(20);
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * @return the file the locks are taken on, by default a sibling of the storage directory
+		 */
+		public String getFile() {
+			return file;
+		}
+
+		public void setFile(String file) {
+			this.file = file;
+		}
+
+		/**
+		 * @return how long a lock no longer in use is kept by this process before it is released to the others, so a
+		 * file that is requested again straight away does not have to be locked again
+		 */
+		public Duration getRetainFor() {
+			return retainFor;
+		}
+
+		public void setRetainFor(Duration retainFor) {
+			this.retainFor = retainFor;
+		}
+	}
+
+	/**
+	 * Settings for storing files as objects in an S3 compatible bucket.
+	 */
+	public static class S3 {
+
+		private String endpoint = "https://s3.us-east-1.amazonaws.com";
+		private String region = "us-east-1";
+		private String bucket;
+		private String prefix = "";
+		private String accessKey;
+		private String secretKey;
+		private boolean pathStyleAccess = true;
+		private DataSize partSize = DataSize.ofMegabytes(8);
+		private int uploadConcurrency = 4;
+		private int maxBufferedParts = 16;
+		private int listPageSize = 1000;
+		private Duration connectTimeout = Duration.ofSeconds(2);
+		private Duration requestTimeout = Duration.ofSeconds(30);
+		private Duration cacheTtl = Duration.ZERO;
+		private long cacheMaxEntries = 100_000;
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		public void setEndpoint(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		public String getRegion() {
+			return region;
+		}
+
+		public void setRegion(String region) {
+			this.region = region;
+		}
+
+		public String getBucket() {
+			return bucket;
+		}
+
+		public void setBucket(String bucket) {
+			this.bucket = bucket;
+		}
+
+		/**
+		 * @return the prefix of the key of every stored file, such as {@code files/}
+		 */
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public void setPrefix(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public String getAccessKey() {
+			return accessKey;
+		}
+
+		public void setAccessKey(String accessKey) {
+			this.accessKey = accessKey;
+		}
+
+		public String getSecretKey() {
+			return secretKey;
+		}
+
+		public void setSecretKey(String secretKey) {
+			this.secretKey = secretKey;
+		}
+
+		/**
+		 * @return whether the bucket is addressed in the path of the endpoint rather than as a subdomain of it
+		 */
+		public boolean isPathStyleAccess() {
+			return pathStyleAccess;
+		}
+
+		public void setPathStyleAccess(boolean pathStyleAccess) {
+			this.pathStyleAccess = pathStyleAccess;
+		}
+
+		/**
+		 * @return the size of each part of a multipart upload, which S3 requires to be at least 5MB, files no larger
+		 * are uploaded in a single request
+		 */
+		public DataSize getPartSize() {
+			return partSize;
+		}
+
+		public void setPartSize(DataSize partSize) {
+			this.partSize = partSize;
+		}
+
+		/**
+		 * @return the number of parts of one file that are uploaded at once
+		 */
+		public int getUploadConcurrency() {
+			return uploadConcurrency;
+		}
+
+		public void setUploadConcurrency(int uploadConcurrency) {
+			this.uploadConcurrency = uploadConcurrency;
+		}
+
+		/**
+		 * @return the number of part buffers all uploads together may hold, which bounds their memory to this many
+		 * times the part size
+		 */
+		public int getMaxBufferedParts() {
+			return maxBufferedParts;
+		}
+
+		public void setMaxBufferedParts(int maxBufferedParts) {
+			this.maxBufferedParts = maxBufferedParts;
+		}
+
+		public int getListPageSize() {
+			return listPageSize;
+		}
+
+		public void setListPageSize(int listPageSize) {
+			this.listPageSize = listPageSize;
+		}
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		/**
+		 * @return how long to wait for a request that carries no file content, requests that do are given as long as
+		 * the transfer takes
+		 */
+		public Duration getRequestTimeout() {
+			return requestTimeout;
+		}
+
+		public void setRequestTimeout(Duration requestTimeout) {
+			this.requestTimeout = requestTimeout;
+		}
+
+		/**
+		 * @return how long the listing and the metadata of objects are cached for, or zero to always ask the bucket
+		 */
+		public Duration getCacheTtl() {
+			return cacheTtl;
+		}
+
+		public void setCacheTtl(Duration cacheTtl) {
+			this.cacheTtl = cacheTtl;
+		}
+
+		public long getCacheMaxEntries() {
+			return cacheMaxEntries;
+		}
+
+		public void setCacheMaxEntries(long cacheMaxEntries) {
+			this.cacheMaxEntries = cacheMaxEntries;
+		}
+	}
+
+	/**
+	 * Settings for the repository that moves rarely read files from the storage directory to a cold tier.
+	 */
+	public static class Tiering {
+
+		private String coldLocation;
+		private boolean coldCompressed = false;
+		private Duration migrationInterval = Duration.ofMinutes(10);
+		private Duration agingInterval = Duration.ofHours(6);
+		private int promoteThreshold = 4;
+		private int demoteThreshold = 1;
+		private Duration minHotAge = Duration.ofDays(3);
+		private int maxMigrationsPerRun = 100;
+		private int sketchWidth = 65536;
+
+		/**
+		 * @return the directory of the cold tier, by default a sibling of the storage directory
+		 */
+		public String getColdLocation() {
+			return coldLocation;
+		}
+
+		public void setColdLocation(String coldLocation) {
+			this.coldLocation = coldLocation;
+		}
+
+		/**
+		 * @return whether files are gzip compressed when they are moved to the cold tier, following the settings of
+		 * {@code storage.file.compression} other than whether it is enabled
+		 */
+		public boolean isColdCompressed() {
+			return coldCompressed;
+		}
+
+		public void setColdCompressed(boolean coldCompressed) {
+			this.coldCompressed = coldCompressed;
+		}
+
+		public Duration getMigrationInterval() {
+			return migrationInterval;
+		}
+
+		public void setMigrationInterval(Duration migrationInterval) {
+			this.migrationInterval = migrationInterval;
+		}
+
+		/**
+		 * @return how often the read counts are halved, so that reads count for less the older they are
+		 */
+		public Duration getAgingInterval() {
+			return agingInterval;
+		}
+
+		public void setAgingInterval(Duration agingInterval) {
+			this.agingInterval = agingInterval;
+		}
+
+		/**
+		 * @return the read count at which a cold file is moved back to the storage directory
+		 */
+		public int getPromoteThreshold() {
+			return promoteThreshold;
+		}
+
+		public void setPromoteThreshold(int promoteThreshold) {
+			this.promoteThreshold = promoteThreshold;
+		}
+
+		/**
+		 * @return the read count below which a hot file is moved to the cold tier
+		 */
+		public int getDemoteThreshold() {
+			return demoteThreshold;
+		}
+
+		public void setDemoteThreshold(int demoteThreshold) {
+			this.demoteThreshold = demoteThreshold;
+		}
+
+		/**
+		 * @return how long a file stays in the storage directory after it was saved, however rarely it is read
+		 */
+		public Duration getMinHotAge() {
+			return minHotAge;
+		}
+
+		public void setMinHotAge(Duration minHotAge) {
+			this.minHotAge = minHotAge;
+		}
+
+		/**
+		 * @return the most files promoted, and the most files demoted, by each run of the migration
+		 */
+		public int getMaxMigrationsPerRun() {
+			return maxMigrationsPerRun;
+		}
+
+		public void setMaxMigrationsPerRun(int maxMigrationsPerRun) {
+			this.maxMigrationsPerRun = maxMigrationsPerRun;
+		}
+
+		/**
+		 * @return the number of counters in each row of the read count sketch, rounded up to a power of two
+		 */
+		public int getSketchWidth() {
+			return sketchWidth;
+		}
+
+		public void setSketchWidth(int sketchWidth) {
+			this.sketchWidth = sketchWidth;
+		}
+	}
 }
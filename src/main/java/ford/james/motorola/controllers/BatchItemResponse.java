@@ -0,0 +1,27 @@
+package ford.james.motorola.controllers;
+
+import org.springframework.http.HttpStatus;
+
+import ford.james.motorola.services.BatchItemResult;
+
+/**
+ * The status of a single item of a batch request.
+ *
+ * @param filename the name of the file the item was for
+ * @param status the HTTP status the item would have had as a single request
+ * @param message the reason the item failed, or {@code null} if it succeeded
+ */
+public record BatchItemResponse(String filename, int status, String message) {
+
+	static BatchItemResponse from(BatchItemResult result) {
+		if (result.isSuccess()) {
+			return new BatchItemResponse(result.filename(), HttpStatus.OK.value(), null);
+		}
+		return from(result.filename(), result.error());
+	}
+
+	static BatchItemResponse from(String filename, Exception error) {
+		return new BatchItemResponse(filename, ControllerExceptionHandler.resolveStatus(error).value(),
+				error.getMessage());
+	}
+}
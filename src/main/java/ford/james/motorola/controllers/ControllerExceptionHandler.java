@@ -7,6 +7,8 @@ import java.nio.file.NoSuchFileException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -14,12 +16,16 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 import org.springframework.web.context.request.WebRequest;
 
+import ford.james.motorola.exceptions.AdmissionRejectedException;
+import ford.james.motorola.exceptions.IncompleteUploadException;
 import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.exceptions.QuorumNotReachedException;
 
 /**
  * Exception handler for all Controllers to return correct responses and status codes to the caller.
  */
 @RestControllerAdvice
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class ControllerExceptionHandler {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ControllerExceptionHandler.class);
@@ -34,6 +40,11 @@ public class ControllerExceptionHandler {
 		return generateResponseAndLog(HttpStatus.NOT_FOUND, e, webRequest);
 	}
 
+	@ExceptionHandler(NoSuchFileException.class)
+	public ResponseEntity<String> handleNoSuchFileException(WebRequest webRequest, NoSuchFileException e) {
+		return generateResponseAndLog(HttpStatus.NOT_FOUND, e, webRequest);
+	}
+
 	@ExceptionHandler(LockTimeoutException.class)
 	public ResponseEntity<String> handleLockTimeoutException(WebRequest webRequest, LockTimeoutException e) {
 		return generateResponseAndLog(HttpStatus.REQUEST_TIMEOUT, e, webRequest);
@@ -44,11 +55,61 @@ public class ControllerExceptionHandler {
 		return generateResponseAndLog(HttpStatus.CONFLICT, e, webRequest);
 	}
 
+	@ExceptionHandler(IncompleteUploadException.class)
+	public ResponseEntity<String> handleIncompleteUploadException(WebRequest webRequest, IncompleteUploadException e) {
+		return generateResponseAndLog(HttpStatus.CONFLICT, e, webRequest);
+	}
+
+	/**
+	 * Rejections are expected under load, so they are logged without a stack trace and tell the caller when to retry.
+	 */
+	@ExceptionHandler(AdmissionRejectedException.class)
+	public ResponseEntity<String> handleAdmissionRejectedException(WebRequest webRequest,
+			AdmissionRejectedException e) {
+		String message = String.format("Error handling request [%s]. Error message: [%s]",
+				webRequest.getDescription(false), e.getMessage());
+
+		LOGGER.warn(message);
+
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+				.header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfter().toSeconds()))
+				.contentType(MediaType.TEXT_PLAIN)
+				.body(message);
+	}
+
+	@ExceptionHandler(QuorumNotReachedException.class)
+	public ResponseEntity<String> handleQuorumNotReachedException(WebRequest webRequest, QuorumNotReachedException e) {
+		return generateResponseAndLog(HttpStatus.SERVICE_UNAVAILABLE, e, webRequest);
+	}
+
 	@ExceptionHandler(Throwable.class)
 	public ResponseEntity<String> handleExceptions(WebRequest webRequest, Exception e) {
 		return generateResponseAndLog(HttpStatus.INTERNAL_SERVER_ERROR, e, webRequest);
 	}
 
+	/**
+	 * Resolves the status for an exception that is reported as part of a response rather than thrown, such as the
+	 * failed items of a batch. Matches the status returned by the handlers above.
+	 */
+	static HttpStatus resolveStatus(Exception e) {
+		if (e instanceof IllegalArgumentException) {
+			return HttpStatus.BAD_REQUEST;
+		}
+		if (e instanceof FileNotFoundException || e instanceof NoSuchFileException) {
+			return HttpStatus.NOT_FOUND;
+		}
+		if (e instanceof LockTimeoutException) {
+			return HttpStatus.REQUEST_TIMEOUT;
+		}
+		if (e instanceof FileAlreadyExistsException || e instanceof IncompleteUploadException) {
+			return HttpStatus.CONFLICT;
+		}
+		if (e instanceof AdmissionRejectedException || e instanceof QuorumNotReachedException) {
+			return HttpStatus.SERVICE_UNAVAILABLE;
+		}
+		return HttpStatus.INTERNAL_SERVER_ERROR;
+	}
+
 	private ResponseEntity<String> generateResponseAndLog(HttpStatus status, Exception e, WebRequest webRequest) {
 		String message = String.format("Error handling request [%s]. Error message: [%s]",
 				webRequest.getDescription(false), e.getMessage());
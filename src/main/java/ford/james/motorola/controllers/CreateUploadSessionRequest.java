@@ -0,0 +1,11 @@
+package ford.james.motorola.controllers;
+
+/**
+ * Request body to start an upload session.
+ *
+ * @param filename the name to save the file under
+ * @param size the total size of the file in bytes
+ * @param chunkSize the size of the chunks the file will be sent in
+ */
+public record CreateUploadSessionRequest(String filename, long size, long chunkSize) {
+}
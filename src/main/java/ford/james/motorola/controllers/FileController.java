@@ -1,58 +1,110 @@
 package ford.james.motorola.controllers;
 
+import static ford.james.motorola.controllers.FileRequestSupport.acceptsGzip;
+import static ford.james.motorola.controllers.FileRequestSupport.buildContentDisposition;
+import static ford.james.motorola.controllers.FileRequestSupport.buildContentRange;
+import static ford.james.motorola.controllers.FileRequestSupport.buildETag;
+import static ford.james.motorola.controllers.FileRequestSupport.isNotModified;
+import static ford.james.motorola.controllers.FileRequestSupport.resolveRegions;
+import static ford.james.motorola.controllers.FileRequestSupport.toGzipETag;
+import static ford.james.motorola.controllers.FileRequestSupport.validateFilename;
+
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
 import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.CompressedResource;
+import ford.james.motorola.services.BatchItemResult;
+import ford.james.motorola.services.FileBatchService;
 import ford.james.motorola.services.FileService;
+import ford.james.motorola.services.UploadSessionService;
+import ford.james.motorola.services.UploadSessionStatus;
+import ford.james.motorola.utils.TransferUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 @RestController
 @RequestMapping("files")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class FileController {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileController.class.getName());
-	private static final String FILENAME_REGEX = "[^a-zA-Z0-9._]+";
 
 	private final FileService fileService;
+	private final FileBatchService fileBatchService;
+	private final UploadSessionService uploadSessionService;
+	private final FileMetrics fileMetrics;
 
-	public FileController(FileService fileService) {
+	public FileController(FileService fileService, FileBatchService fileBatchService,
+			UploadSessionService uploadSessionService, FileMetrics fileMetrics) {
 		this.fileService = fileService;
+		this.fileBatchService = fileBatchService;
+		this.uploadSessionService = uploadSessionService;
+		this.fileMetrics = fileMetrics;
 	}
 
+	/**
+	 * Streams the file to the caller while the read lock for the file is held. Supports {@code Range} and
+	 * {@code If-Range} requests so that clients can resume a download or fetch parts of a file in parallel.
+	 * <p>
+	 * Every response carries an {@code ETag} built from the digest stored when the file was saved and a
+	 * {@code Last-Modified} date. {@code If-None-Match} and {@code If-Modified-Since} are checked against the
+	 * metadata alone, so a 304 response never opens the file.
+	 */
 	@GetMapping("download/{filename}")
-	public ResponseEntity<Resource> getFile(@PathVariable String filename)
-			throws Exception {
+	public void getFile(@PathVariable String filename, @RequestHeader HttpHeaders requestHeaders,
+			HttpServletResponse response) throws Exception {
 
 		LOGGER.info("Downloading file [{}}]", filename);
 
 		validateFilename(filename);
 
-		Resource resource = fileService.getFile(filename);
+		fileMetrics.transferStarted();
+		try {
+			fileService.readFile(filename, (metadata, resource) -> {
+				String eTag = buildETag(metadata);
+				response.setHeader(HttpHeaders.ETAG, eTag);
+				if (metadata.lastModified() > 0) {
+					response.setDateHeader(HttpHeaders.LAST_MODIFIED, metadata.lastModified());
+				}
 
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentLength(resource.contentLength());
-		headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-		headers.setContentDispositionFormData("attachment", filename);
-
-		return ResponseEntity.ok()
-				.headers(headers)
-				.contentLength(resource.contentLength())
-				.contentType(MediaType.APPLICATION_OCTET_STREAM)
-				.body(resource);
+				if (isNotModified(requestHeaders, metadata, eTag)) {
+					response.setStatus(HttpStatus.NOT_MODIFIED.value());
+					return;
+				}
+				writeResource(filename, resource.apply(), eTag, metadata.lastModified(), requestHeaders, response);
+			});
+		} finally {
+			fileMetrics.transferFinished();
+		}
 	}
 
 	@GetMapping("list")
@@ -65,10 +117,32 @@ public class FileController {
 	public void uploadFile(MultipartFile file) throws Exception {
 		LOGGER.info("Uploading file [{}}]", file.getOriginalFilename());
 		validateFilename(file.getOriginalFilename());
-		fileService.saveFile(file);
+		fileMetrics.transferStarted();
+		try {
+			fileService.saveFile(file);
+		} finally {
+			fileMetrics.transferFinished();
+		}
 		LOGGER.info("Successfully uploaded file [{}}]", file.getOriginalFilename());
 	}
 
+	/**
+	 * Streams the raw request body straight into storage, avoiding the spooling done by the container for multipart
+	 * requests and the multipart size limits.
+	 */
+	@PutMapping(value = "{filename}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public void uploadFileStream(@PathVariable String filename, HttpServletRequest request) throws Exception {
+		LOGGER.info("Uploading file stream [{}]", filename);
+		validateFilename(filename);
+		fileMetrics.transferStarted();
+		try {
+			fileService.saveFile(filename, request.getInputStream());
+		} finally {
+			fileMetrics.transferFinished();
+		}
+		LOGGER.info("Successfully uploaded file stream [{}]", filename);
+	}
+
 	@DeleteMapping("delete/{filename}")
 	public void removeFile(@PathVariable String filename) throws Exception {
 		LOGGER.info("Deleting file [{}}]", filename);
@@ -78,17 +152,178 @@ public class FileController {
 	}
 
 	/**
-	 * Checks that the filename contains only alphanumeric characters and if it does not then throws an
-	 * {@code IllegalArgumentException}
-	 *
-	 * @param filename the name of the file to validate
+	 * Uploads every file part named {@code files} in parallel. Each file gets its own status in the response, so an
+	 * invalid or existing file does not stop the others being uploaded.
+	 */
+	@PostMapping("batch/upload")
+	public List<BatchItemResponse> uploadFiles(@RequestParam("files") List<MultipartFile> files) throws Exception {
+		LOGGER.info("Uploading batch of [{}] files", files.size());
+
+		List<BatchItemResponse> responses = new ArrayList<>();
+		List<MultipartFile> validFiles = new ArrayList<>();
+		for (MultipartFile file : files) {
+			try {
+				validateFilename(file.getOriginalFilename());
+				validFiles.add(file);
+			} catch (IllegalArgumentException e) {
+				responses.add(BatchItemResponse.from(file.getOriginalFilename(), e));
+			}
+		}
+
+		return toBatchResponse(responses, fileBatchService.saveFiles(validFiles));
+	}
+
+	/**
+	 * Deletes every file in the request body in parallel, returning the status of each file.
+	 */
+	@PostMapping("batch/delete")
+	public List<BatchItemResponse> removeFiles(@RequestBody List<String> filenames) throws Exception {
+		LOGGER.info("Deleting batch of [{}] files", filenames.size());
+
+		List<BatchItemResponse> responses = new ArrayList<>();
+		List<String> validFilenames = new ArrayList<>();
+		for (String filename : filenames) {
+			try {
+				validateFilename(filename);
+				validFilenames.add(filename);
+			} catch (IllegalArgumentException e) {
+				responses.add(BatchItemResponse.from(filename, e));
+			}
+		}
+
+		return toBatchResponse(responses, fileBatchService.deleteFiles(validFilenames));
+	}
+
+	/**
+	 * Starts a resumable upload of a large file. The file is then sent in numbered chunks of the requested size and
+	 * saved when the session is committed.
+	 */
+	@PostMapping("sessions")
+	@ResponseStatus(HttpStatus.CREATED)
+	public UploadSessionStatus createUploadSession(@RequestBody CreateUploadSessionRequest request) throws Exception {
+		LOGGER.info("Creating upload session for file [{}]", request.filename());
+		validateFilename(request.filename());
+		return uploadSessionService.createSession(request.filename(), request.size(), request.chunkSize());
+	}
+
+	/**
+	 * Reports which chunks are still missing, so an interrupted upload can be resumed.
+	 */
+	@GetMapping("sessions/{sessionId}")
+	public UploadSessionStatus getUploadSession(@PathVariable String sessionId) throws Exception {
+		return uploadSessionService.getSession(sessionId);
+	}
+
+	/**
+	 * Stores one chunk of an upload session. Chunks can be sent in parallel and in any order, and a failed chunk can
+	 * simply be sent again.
 	 */
-	private void validateFilename(String filename) {
-		String newFilename = filename.replaceAll(FILENAME_REGEX, "");
-		if (!filename.equals(newFilename)) {
-			throw new IllegalArgumentException(String.format("Filename of %s was not a valid name", filename));
+	@PutMapping(value = "sessions/{sessionId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public void uploadChunk(@PathVariable String sessionId, @PathVariable int index, HttpServletRequest request)
+			throws Exception {
+		LOGGER.debug("Uploading chunk [{}] of upload session [{}]", index, sessionId);
+		fileMetrics.transferStarted();
+		try {
+			uploadSessionService.writeChunk(sessionId, index, request.getInputStream());
+		} finally {
+			fileMetrics.transferFinished();
+		}
+	}
+
+	@PostMapping("sessions/{sessionId}/commit")
+	public void commitUploadSession(@PathVariable String sessionId) throws Exception {
+		LOGGER.info("Committing upload session [{}]", sessionId);
+		uploadSessionService.commit(sessionId);
+		LOGGER.info("Successfully committed upload session [{}]", sessionId);
+	}
+
+	@DeleteMapping("sessions/{sessionId}")
+	public void abortUploadSession(@PathVariable String sessionId) throws Exception {
+		LOGGER.info("Aborting upload session [{}]", sessionId);
+		uploadSessionService.abort(sessionId);
+	}
+
+	private List<BatchItemResponse> toBatchResponse(List<BatchItemResponse> responses, List<BatchItemResult> results) {
+		results.stream()
+				.map(BatchItemResponse::from)
+				.forEach(responses::add);
+		responses.sort(Comparator.comparing(BatchItemResponse::filename, Comparator.nullsFirst(Comparator.naturalOrder())));
+		return responses;
+	}
+
+	private void writeResource(String filename, Resource resource, String eTag, long lastModified,
+			HttpHeaders requestHeaders, HttpServletResponse response) throws IOException {
+
+		long contentLength = resource.contentLength();
+
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, buildContentDisposition(filename));
+
+		if (resource instanceof CompressedResource compressedResource) {
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			if (!requestHeaders.containsKey(HttpHeaders.RANGE) && acceptsGzip(requestHeaders)) {
+				response.setHeader(HttpHeaders.ETAG, toGzipETag(eTag));
+				writeCompressed(compressedResource, response);
+				return;
+			}
+		}
+
+		List<ResourceRegion> regions;
+		try {
+			regions = resolveRegions(resource, requestHeaders, eTag, lastModified);
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn("Requested range [{}] cannot be satisfied for file [{}]",
+					requestHeaders.getFirst(HttpHeaders.RANGE), filename);
+			response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + contentLength);
+			return;
+		}
+
+		if (regions.isEmpty()) {
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+			response.setContentLengthLong(contentLength);
+			fileMetrics.recordRead(() -> TransferUtils.transfer(resource, 0, contentLength, response.getOutputStream()));
+			return;
 		}
+
+		response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+
+		if (regions.size() == 1) {
+			ResourceRegion region = regions.get(0);
+			response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+			response.setContentLengthLong(region.getCount());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, buildContentRange(region, contentLength));
+			fileMetrics.recordRead(() -> TransferUtils.transfer(resource, region.getPosition(), region.getCount(),
+					response.getOutputStream()));
+			return;
+		}
+
+		String boundary = UUID.randomUUID().toString();
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		OutputStream outputStream = response.getOutputStream();
+		for (ResourceRegion region : regions) {
+			String partHeaders = "\r\n--" + boundary + "\r\n"
+					+ HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+					+ HttpHeaders.CONTENT_RANGE + ": " + buildContentRange(region, contentLength) + "\r\n\r\n";
+			outputStream.write(partHeaders.getBytes(StandardCharsets.US_ASCII));
+			fileMetrics.recordRead(() -> TransferUtils.transfer(resource, region.getPosition(), region.getCount(), outputStream));
+		}
+		outputStream.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
 	}
 
+	/**
+	 * Sends a file that is stored compressed as it is, leaving the client to inflate it. Range requests are always
+	 * served from the inflated content instead, as ranges of the compressed bytes are of no use to clients.
+	 */
+	private void writeCompressed(CompressedResource resource, HttpServletResponse response) throws IOException {
+		Resource compressed = resource.getCompressed();
+		long contentLength = compressed.contentLength();
 
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+		response.setContentLengthLong(contentLength);
+		fileMetrics.recordRead(() -> TransferUtils.transfer(compressed, 0, contentLength, response.getOutputStream()));
+	}
 }
@@ -0,0 +1,149 @@
+package ford.james.motorola.controllers;
+
+import java.util.List;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+
+import ford.james.motorola.repositories.FileMetadata;
+
+/**
+ * Request validation and HTTP validator handling shared by the servlet and reactive file controllers, so both stacks
+ * answer conditional and range requests in exactly the same way.
+ */
+final class FileRequestSupport {
+
+	private static final String FILENAME_REGEX = "[^a-zA-Z0-9._]+";
+
+	private FileRequestSupport() {
+	}
+
+	/**
+	 * Checks that the filename contains only alphanumeric characters and if it does not then throws an
+	 * {@code IllegalArgumentException}
+	 *
+	 * @param filename the name of the file to validate
+	 */
+	static void validateFilename(String filename) {
+		if (filename == null || filename.isEmpty()) {
+			throw new IllegalArgumentException("A filename must be provided");
+		}
+		String newFilename = filename.replaceAll(FILENAME_REGEX, "");
+		if (!filename.equals(newFilename)) {
+			throw new IllegalArgumentException(String.format("Filename of %s was not a valid name", filename));
+		}
+	}
+
+	static boolean acceptsGzip(HttpHeaders requestHeaders) {
+		for (String acceptEncoding : requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+			for (String coding : acceptEncoding.split(",")) {
+				String[] parameters = coding.split(";");
+				String name = parameters[0].trim();
+				if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip") || name.equals("*")) {
+					return parameters.length < 2 || !parameters[1].trim().matches("[qQ]\\s*=\\s*0(\\.0*)?");
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Resolves the regions of the resource requested by the {@code Range} header. An empty list means the whole
+	 * resource should be returned, either because no range was requested or because the {@code If-Range} validator
+	 * no longer matches the stored file.
+	 *
+	 * @throws IllegalArgumentException if the requested ranges cannot be satisfied
+	 */
+	static List<ResourceRegion> resolveRegions(Resource resource, HttpHeaders requestHeaders, String eTag,
+			long lastModified) {
+		if (!requestHeaders.containsKey(HttpHeaders.RANGE) || !isIfRangeSatisfied(requestHeaders, eTag, lastModified)) {
+			return List.of();
+		}
+		List<HttpRange> ranges = requestHeaders.getRange();
+		if (ranges.isEmpty()) {
+			return List.of();
+		}
+		return HttpRange.toResourceRegions(ranges, resource);
+	}
+
+	/**
+	 * An entity tag in {@code If-Range} must match strongly, so a weak tag never satisfies it.
+	 */
+	private static boolean isIfRangeSatisfied(HttpHeaders requestHeaders, String eTag, long lastModified) {
+		String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return !eTag.startsWith("W/") && ifRange.equals(eTag);
+		}
+		if (lastModified <= 0) {
+			return false;
+		}
+		try {
+			return requestHeaders.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks the request validators against the metadata of the file. {@code If-None-Match} takes precedence over
+	 * {@code If-Modified-Since} and is compared weakly, so the tags of both the plain and the gzip encoded content
+	 * match.
+	 */
+	static boolean isNotModified(HttpHeaders requestHeaders, FileMetadata metadata, String eTag) {
+		List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+		if (!ifNoneMatch.isEmpty()) {
+			String opaqueTag = toOpaqueTag(eTag);
+			String gzipOpaqueTag = toOpaqueTag(toGzipETag(eTag));
+			return ifNoneMatch.stream()
+					.map(String::trim)
+					.anyMatch(tag -> tag.equals("*") || toOpaqueTag(tag).equals(opaqueTag)
+							|| toOpaqueTag(tag).equals(gzipOpaqueTag));
+		}
+
+		try {
+			long ifModifiedSince = requestHeaders.getIfModifiedSince();
+			return ifModifiedSince >= 0 && metadata.lastModified() > 0
+					&& metadata.lastModified() / 1000 <= ifModifiedSince / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Builds a strong entity tag from the digest of the content. Files saved without a digest get a weak tag built
+	 * from their size and last modified time instead, so their content never has to be hashed on a read.
+	 */
+	static String buildETag(FileMetadata metadata) {
+		if (metadata.digest() != null) {
+			return "\"" + metadata.digest() + "\"";
+		}
+		return "W/\"" + Long.toHexString(metadata.size()) + "-" + Long.toHexString(metadata.lastModified()) + "\"";
+	}
+
+	/**
+	 * @return the entity tag of the gzip encoded content, which must differ from the tag of the plain content
+	 */
+	static String toGzipETag(String eTag) {
+		return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+	}
+
+	private static String toOpaqueTag(String eTag) {
+		return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+	}
+
+	static String buildContentRange(ResourceRegion region, long contentLength) {
+		long end = region.getPosition() + region.getCount() - 1;
+		return "bytes " + region.getPosition() + "-" + end + "/" + contentLength;
+	}
+
+	static String buildContentDisposition(String filename) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentDispositionFormData("attachment", filename);
+		return headers.getFirst(HttpHeaders.CONTENT_DISPOSITION);
+	}
+}
@@ -0,0 +1,56 @@
+package ford.james.motorola.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.server.ResponseStatusException;
+
+import ford.james.motorola.exceptions.AdmissionRejectedException;
+
+/**
+ * Exception handler for the reactive controllers, returning the same status codes and messages as
+ * {@link ControllerExceptionHandler}. Errors raised by WebFlux itself, such as an unsupported media type, keep the
+ * status they were raised with.
+ */
+@RestControllerAdvice
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveControllerExceptionHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveControllerExceptionHandler.class);
+
+	@ExceptionHandler(Throwable.class)
+	public ResponseEntity<String> handleExceptions(ServerHttpRequest request, Throwable e) {
+		HttpStatusCode status;
+		if (e instanceof ResponseStatusException responseStatusException) {
+			status = responseStatusException.getStatusCode();
+		} else if (e instanceof Exception exception) {
+			status = ControllerExceptionHandler.resolveStatus(exception);
+		} else {
+			status = HttpStatusCode.valueOf(500);
+		}
+
+		String message = String.format("Error handling request [uri=%s]. Error message: [%s]",
+				request.getPath().value(), e.getMessage());
+
+		if (e instanceof AdmissionRejectedException rejection) {
+			LOGGER.warn(message);
+			return ResponseEntity.status(status)
+					.header(HttpHeaders.RETRY_AFTER, Long.toString(rejection.getRetryAfter().toSeconds()))
+					.contentType(MediaType.TEXT_PLAIN)
+					.body(message);
+		}
+
+		LOGGER.error(message, e);
+
+		return ResponseEntity.status(status)
+				.contentType(MediaType.TEXT_PLAIN)
+				.body(message);
+	}
+}
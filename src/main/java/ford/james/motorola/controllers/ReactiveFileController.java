@@ -0,0 +1,353 @@
+package ford.james.motorola.controllers;
+
+import static ford.james.motorola.controllers.FileRequestSupport.acceptsGzip;
+import static ford.james.motorola.controllers.FileRequestSupport.buildContentDisposition;
+import static ford.james.motorola.controllers.FileRequestSupport.buildContentRange;
+import static ford.james.motorola.controllers.FileRequestSupport.buildETag;
+import static ford.james.motorola.controllers.FileRequestSupport.isNotModified;
+import static ford.james.motorola.controllers.FileRequestSupport.resolveRegions;
+import static ford.james.motorola.controllers.FileRequestSupport.toGzipETag;
+import static ford.james.motorola.controllers.FileRequestSupport.validateFilename;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.CompressedResource;
+import ford.james.motorola.services.BatchItemResult;
+import ford.james.motorola.services.ReactiveFileBatchService;
+import ford.james.motorola.services.ReactiveFileService;
+import ford.james.motorola.services.UploadSessionService;
+import ford.james.motorola.services.UploadSessionStatus;
+import ford.james.motorola.utils.TransferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * WebFlux version of {@link FileController} with the same paths, headers and status codes. Transfers are streamed
+ * as buffers with backpressure, so a slow client costs a subscription rather than a thread.
+ * <p>
+ * Upload sessions are served by the blocking {@link UploadSessionService} on the bounded elastic scheduler, as their
+ * chunks are written with positional writes to a {@code FileChannel}.
+ */
+@RestController
+@RequestMapping("files")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileController {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveFileController.class.getName());
+
+	/**
+	 * Number of buffers requested ahead when a chunk is read as a stream for an upload session.
+	 */
+	private static final int CHUNK_DEMAND = 16;
+
+	private final ReactiveFileService fileService;
+	private final ReactiveFileBatchService fileBatchService;
+	private final UploadSessionService uploadSessionService;
+	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+
+	public ReactiveFileController(ReactiveFileService fileService, ReactiveFileBatchService fileBatchService,
+			UploadSessionService uploadSessionService, FileStorageProperties fileStorageProperties,
+			FileMetrics fileMetrics) {
+		this.fileService = fileService;
+		this.fileBatchService = fileBatchService;
+		this.uploadSessionService = uploadSessionService;
+		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+	}
+
+	/**
+	 * Streams the file to the caller while the read lock for the file is held, with the same support for
+	 * {@code Range}, {@code If-Range} and conditional requests as {@link FileController#getFile}.
+	 */
+	@GetMapping("download/{filename}")
+	public Mono<Void> getFile(@PathVariable String filename, ServerHttpRequest request, ServerHttpResponse response) {
+
+		LOGGER.info("Downloading file [{}]", filename);
+
+		validateFilename(filename);
+
+		HttpHeaders requestHeaders = request.getHeaders();
+		return transfer(fileService.readFile(filename, (metadata, resource) -> {
+			String eTag = buildETag(metadata);
+			response.getHeaders().set(HttpHeaders.ETAG, eTag);
+			if (metadata.lastModified() > 0) {
+				response.getHeaders().setLastModified(metadata.lastModified());
+			}
+
+			if (isNotModified(requestHeaders, metadata, eTag)) {
+				response.setStatusCode(HttpStatus.NOT_MODIFIED);
+				return response.setComplete();
+			}
+			return resource.flatMap(stored -> {
+				try {
+					return writeResource(filename, stored, eTag, metadata.lastModified(), requestHeaders, response);
+				} catch (IOException e) {
+					return Mono.error(e);
+				}
+			});
+		}));
+	}
+
+	@GetMapping("list")
+	public Mono<Set<String>> listFiles() {
+		LOGGER.info("Listing available files");
+		return fileService.listFilenames();
+	}
+
+	@PostMapping("upload")
+	public Mono<Void> uploadFile(@RequestPart("file") FilePart file) {
+		LOGGER.info("Uploading file [{}]", file.filename());
+		validateFilename(file.filename());
+		return transfer(fileService.saveFile(file.filename(), file.content()))
+				.doOnSuccess(ignored -> LOGGER.info("Successfully uploaded file [{}]", file.filename()));
+	}
+
+	/**
+	 * Streams the raw request body straight into storage as it arrives.
+	 */
+	@PutMapping(value = "{filename}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public Mono<Void> uploadFileStream(@PathVariable String filename, ServerHttpRequest request) {
+		LOGGER.info("Uploading file stream [{}]", filename);
+		validateFilename(filename);
+		return transfer(fileService.saveFile(filename, request.getBody()))
+				.doOnSuccess(ignored -> LOGGER.info("Successfully uploaded file stream [{}]", filename));
+	}
+
+	@DeleteMapping("delete/{filename}")
+	public Mono<Void> removeFile(@PathVariable String filename) {
+		LOGGER.info("Deleting file [{}]", filename);
+		validateFilename(filename);
+		return fileService.deleteFile(filename)
+				.doOnSuccess(ignored -> LOGGER.info("Successfully deleted file [{}]", filename));
+	}
+
+	/**
+	 * Uploads every file part named {@code files}. Each file gets its own status in the response, so an invalid or
+	 * existing file does not stop the others being uploaded.
+	 */
+	@PostMapping("batch/upload")
+	public Mono<List<BatchItemResponse>> uploadFiles(@RequestPart("files") Flux<FilePart> files) {
+		return files.collectList().flatMap(parts -> {
+			LOGGER.info("Uploading batch of [{}] files", parts.size());
+
+			List<BatchItemResponse> responses = new ArrayList<>();
+			List<FilePart> validFiles = new ArrayList<>();
+			for (FilePart file : parts) {
+				try {
+					validateFilename(file.filename());
+					validFiles.add(file);
+				} catch (IllegalArgumentException e) {
+					responses.add(BatchItemResponse.from(file.filename(), e));
+				}
+			}
+
+			return fileBatchService.saveFiles(validFiles).map(results -> toBatchResponse(responses, results));
+		});
+	}
+
+	/**
+	 * Deletes every file in the request body, returning the status of each file.
+	 */
+	@PostMapping("batch/delete")
+	public Mono<List<BatchItemResponse>> removeFiles(@RequestBody List<String> filenames) {
+		LOGGER.info("Deleting batch of [{}] files", filenames.size());
+
+		List<BatchItemResponse> responses = new ArrayList<>();
+		List<String> validFilenames = new ArrayList<>();
+		for (String filename : filenames) {
+			try {
+				validateFilename(filename);
+				validFilenames.add(filename);
+			} catch (IllegalArgumentException e) {
+				responses.add(BatchItemResponse.from(filename, e));
+			}
+		}
+
+		return fileBatchService.deleteFiles(validFilenames).map(results -> toBatchResponse(responses, results));
+	}
+
+	@PostMapping("sessions")
+	@ResponseStatus(HttpStatus.CREATED)
+	public Mono<UploadSessionStatus> createUploadSession(@RequestBody CreateUploadSessionRequest request) {
+		LOGGER.info("Creating upload session for file [{}]", request.filename());
+		validateFilename(request.filename());
+		return callBlocking(
+				() -> uploadSessionService.createSession(request.filename(), request.size(), request.chunkSize()));
+	}
+
+	@GetMapping("sessions/{sessionId}")
+	public Mono<UploadSessionStatus> getUploadSession(@PathVariable String sessionId) {
+		return callBlocking(() -> uploadSessionService.getSession(sessionId));
+	}
+
+	@PutMapping(value = "sessions/{sessionId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public Mono<Void> uploadChunk(@PathVariable String sessionId, @PathVariable int index, ServerHttpRequest request) {
+		LOGGER.debug("Uploading chunk [{}] of upload session [{}]", index, sessionId);
+		return transfer(callBlocking(() -> {
+			try (InputStream inputStream = DataBufferUtils.subscriberInputStream(request.getBody(), CHUNK_DEMAND)) {
+				uploadSessionService.writeChunk(sessionId, index, inputStream);
+			}
+			return null;
+		}));
+	}
+
+	@PostMapping("sessions/{sessionId}/commit")
+	public Mono<Void> commitUploadSession(@PathVariable String sessionId) {
+		LOGGER.info("Committing upload session [{}]", sessionId);
+		return this.<Void>callBlocking(() -> {
+			uploadSessionService.commit(sessionId);
+			return null;
+		}).doOnSuccess(ignored -> LOGGER.info("Successfully committed upload session [{}]", sessionId));
+	}
+
+	@DeleteMapping("sessions/{sessionId}")
+	public Mono<Void> abortUploadSession(@PathVariable String sessionId) {
+		LOGGER.info("Aborting upload session [{}]", sessionId);
+		return callBlocking(() -> {
+			uploadSessionService.abort(sessionId);
+			return null;
+		});
+	}
+
+	private <R> Mono<R> callBlocking(Callable<R> callable) {
+		return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+	}
+
+	/**
+	 * Counts the publisher as an active transfer from subscription until it terminates or is cancelled.
+	 */
+	private <R> Mono<R> transfer(Mono<R> mono) {
+		return Mono.defer(() -> {
+			fileMetrics.transferStarted();
+			return mono.doFinally(signal -> fileMetrics.transferFinished());
+		});
+	}
+
+	private List<BatchItemResponse> toBatchResponse(List<BatchItemResponse> responses, List<BatchItemResult> results) {
+		results.stream()
+				.map(BatchItemResponse::from)
+				.forEach(responses::add);
+		responses.sort(Comparator.comparing(BatchItemResponse::filename, Comparator.nullsFirst(Comparator.naturalOrder())));
+		return responses;
+	}
+
+	private Mono<Void> writeResource(String filename, Resource resource, String eTag, long lastModified,
+			HttpHeaders requestHeaders, ServerHttpResponse response) throws IOException {
+
+		long contentLength = resource.contentLength();
+		HttpHeaders headers = response.getHeaders();
+
+		headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+		headers.set(HttpHeaders.CONTENT_DISPOSITION, buildContentDisposition(filename));
+
+		if (resource instanceof CompressedResource compressedResource) {
+			headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			if (!requestHeaders.containsKey(HttpHeaders.RANGE) && acceptsGzip(requestHeaders)) {
+				Resource compressed = compressedResource.getCompressed();
+				headers.set(HttpHeaders.ETAG, toGzipETag(eTag));
+				headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+				response.setStatusCode(HttpStatus.OK);
+				return writeRegion(compressed, 0, compressed.contentLength(), response);
+			}
+		}
+
+		List<ResourceRegion> regions;
+		try {
+			regions = resolveRegions(resource, requestHeaders, eTag, lastModified);
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn("Requested range [{}] cannot be satisfied for file [{}]",
+					requestHeaders.getFirst(HttpHeaders.RANGE), filename);
+			response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+			headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + contentLength);
+			return response.setComplete();
+		}
+
+		if (regions.isEmpty()) {
+			response.setStatusCode(HttpStatus.OK);
+			return writeRegion(resource, 0, contentLength, response);
+		}
+
+		response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+
+		if (regions.size() == 1) {
+			ResourceRegion region = regions.get(0);
+			headers.set(HttpHeaders.CONTENT_RANGE, buildContentRange(region, contentLength));
+			return writeRegion(resource, region.getPosition(), region.getCount(), response);
+		}
+
+		String boundary = UUID.randomUUID().toString();
+		headers.set(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+		Flux<DataBuffer> body = Flux.fromIterable(regions).concatMap(region -> {
+			String partHeaders = "\r\n--" + boundary + "\r\n"
+					+ HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+					+ HttpHeaders.CONTENT_RANGE + ": " + buildContentRange(region, contentLength) + "\r\n\r\n";
+			return Flux.concat(Mono.fromSupplier(() -> toBuffer(partHeaders, response)),
+					read(resource, region.getPosition(), region.getCount(), response));
+		}).concatWith(Mono.fromSupplier(() -> toBuffer("\r\n--" + boundary + "--\r\n", response)));
+		return response.writeWith(body);
+	}
+
+	/**
+	 * Writes part of the resource as the whole body. File backed resources are sent with zero-copy when the server
+	 * supports it, anything else is streamed through buffers.
+	 */
+	private Mono<Void> writeRegion(Resource resource, long position, long count, ServerHttpResponse response)
+			throws IOException {
+		response.getHeaders().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+		response.getHeaders().setContentLength(count);
+
+		if (resource.isFile() && response instanceof ZeroCopyHttpOutputMessage zeroCopyResponse) {
+			return fileMetrics.recordRepositoryOperation("read",
+					zeroCopyResponse.writeWith(resource.getFile().toPath(), position, count))
+					.doOnSuccess(ignored -> fileMetrics.recordBytesRead(count));
+		}
+		return response.writeWith(read(resource, position, count, response));
+	}
+
+	private Flux<DataBuffer> read(Resource resource, long position, long count, ServerHttpResponse response) {
+		return fileMetrics.recordRepositoryOperation("read", TransferUtils.read(resource, position, count,
+				response.bufferFactory(), fileStorageProperties.getUploadBufferSize()))
+				.doOnNext(buffer -> fileMetrics.recordBytesRead(buffer.readableByteCount()));
+	}
+
+	private DataBuffer toBuffer(String value, ServerHttpResponse response) {
+		return response.bufferFactory().wrap(value.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,28 @@
+package ford.james.motorola.controllers;
+
+import static org.springframework.security.config.Customizer.withDefaults;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
+import org.springframework.security.config.web.server.ServerHttpSecurity;
+import org.springframework.security.web.server.SecurityWebFilterChain;
+
+/**
+ * The reactive equivalent of {@link WebSecurityConfiguration}.
+ */
+@Configuration
+@EnableWebFluxSecurity
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveWebSecurityConfiguration {
+
+	@Bean
+	public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http) {
+		http.csrf(ServerHttpSecurity.CsrfSpec::disable)
+				.cors(ServerHttpSecurity.CorsSpec::disable)
+				.httpBasic(withDefaults());
+		return http.build();
+	}
+
+}
@@ -0,0 +1,123 @@
+package ford.james.motorola.controllers;
+
+import static ford.james.motorola.controllers.FileRequestSupport.validateFilename;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.FileReplicatedRepository;
+import ford.james.motorola.repositories.ReplicaEntry;
+import ford.james.motorola.services.FileReplicaService;
+import ford.james.motorola.utils.TransferUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * API the instances of a replicated deployment use to copy saves and deletes to each other and to compare their
+ * files. Every request works on the files stored by this instance alone and is never passed on to the other replicas.
+ * Changes and reads of a single file go through the {@link FileReplicaService}, under the lock of the file.
+ */
+@RestController
+@RequestMapping("replica")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "replicated")
+public class ReplicaController {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaController.class);
+
+	private final FileReplicatedRepository fileReplicatedRepository;
+	private final FileReplicaService fileReplicaService;
+	private final FileMetrics fileMetrics;
+
+	public ReplicaController(FileReplicatedRepository fileReplicatedRepository, FileReplicaService fileReplicaService,
+			FileMetrics fileMetrics) {
+		this.fileReplicatedRepository = fileReplicatedRepository;
+		this.fileReplicaService = fileReplicaService;
+		this.fileMetrics = fileMetrics;
+	}
+
+	/**
+	 * Reports the load of this instance on every response, which the other replicas use to pick where to read from.
+	 */
+	@ModelAttribute
+	void reportLoad(HttpServletResponse response) {
+		response.setHeader(FileReplicatedRepository.LOAD_HEADER, Integer.toString(fileMetrics.getActiveTransfers()));
+	}
+
+	@PutMapping(value = "files/{filename}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public void saveReplica(@PathVariable String filename,
+			@RequestHeader(FileReplicatedRepository.TIMESTAMP_HEADER) long timestamp, HttpServletRequest request)
+			throws Exception {
+		LOGGER.debug("Saving replica of file [{}]", filename);
+		validateFilename(filename);
+		fileMetrics.transferStarted();
+		try {
+			fileReplicaService.applySave(filename, timestamp, request.getInputStream());
+		} finally {
+			fileMetrics.transferFinished();
+		}
+	}
+
+	@DeleteMapping("files/{filename}")
+	public void deleteReplica(@PathVariable String filename,
+			@RequestHeader(FileReplicatedRepository.TIMESTAMP_HEADER) long deletedAt) throws Exception {
+		LOGGER.debug("Deleting replica of file [{}]", filename);
+		validateFilename(filename);
+		fileReplicaService.applyDelete(filename, deletedAt);
+	}
+
+	@GetMapping("files/{filename}")
+	public void getReplica(@PathVariable String filename, HttpServletResponse response) throws Exception {
+		validateFilename(filename);
+		fileReplicaService.readReplica(filename, resource -> {
+			long contentLength = resource.contentLength();
+
+			response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+			response.setContentLengthLong(contentLength);
+			fileMetrics.transferStarted();
+			try {
+				fileMetrics.recordRead(() -> TransferUtils.transfer(resource, 0, contentLength,
+						response.getOutputStream()));
+			} finally {
+				fileMetrics.transferFinished();
+			}
+		});
+	}
+
+	/**
+	 * Returns the stored file or its tombstone, so the caller can tell a file deleted here from one never seen. An
+	 * unknown file is answered without logging an error, as the other replicas look up every file they are asked to
+	 * create.
+	 */
+	@GetMapping("files/{filename}/metadata")
+	public ResponseEntity<ReplicaEntry> getReplicaEntry(@PathVariable String filename) throws Exception {
+		validateFilename(filename);
+		ReplicaEntry entry = fileReplicaService.getReplicaEntry(filename);
+		return entry != null ? ResponseEntity.ok(entry) : ResponseEntity.notFound().build();
+	}
+
+	@GetMapping("buckets")
+	public List<String> getBucketHashes() throws Exception {
+		return fileReplicatedRepository.getBucketHashes();
+	}
+
+	@GetMapping("buckets/{bucket}")
+	public List<ReplicaEntry> getBucket(@PathVariable int bucket) throws Exception {
+		return fileReplicatedRepository.getBucket(bucket);
+	}
+}
@@ -0,0 +1,37 @@
+package ford.james.motorola.controllers;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import ford.james.motorola.services.ShardMigrationService;
+import ford.james.motorola.services.ShardMigrationStatus;
+
+/**
+ * Actuator endpoint to start the shard migration with {@code POST /actuator/shardmigration} and follow its progress
+ * with {@code GET /actuator/shardmigration}.
+ */
+@Component
+@Endpoint(id = "shardmigration")
+@ConditionalOnProperty(prefix = "storage.file.sharding", name = "enabled", havingValue = "true")
+public class ShardMigrationEndpoint {
+
+	private final ShardMigrationService shardMigrationService;
+
+	public ShardMigrationEndpoint(ShardMigrationService shardMigrationService) {
+		this.shardMigrationService = shardMigrationService;
+	}
+
+	@ReadOperation
+	public ShardMigrationStatus status() {
+		return shardMigrationService.getStatus();
+	}
+
+	@WriteOperation
+	public ShardMigrationStatus start() {
+		shardMigrationService.start();
+		return shardMigrationService.getStatus();
+	}
+}
@@ -0,0 +1,25 @@
+package ford.james.motorola.exceptions;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a request is turned away because too many requests are already in progress or waiting, either for the
+ * whole service or for the same file.
+ */
+public class AdmissionRejectedException extends Exception {
+
+	private final Duration retryAfter;
+
+	public AdmissionRejectedException(String message, Duration retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return how long the caller should wait before retrying
+	 */
+	public Duration getRetryAfter() {
+		return retryAfter;
+	}
+
+}
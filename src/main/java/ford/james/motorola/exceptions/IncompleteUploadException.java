@@ -0,0 +1,13 @@
+package ford.james.motorola.exceptions;
+
+public class IncompleteUploadException extends Exception {
+
+	public IncompleteUploadException() {
+		super();
+	}
+
+	public IncompleteUploadException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,15 @@
+package ford.james.motorola.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when fewer replicas than the write quorum acknowledged a save or delete, so the change cannot be relied upon
+ * to survive the loss of a replica.
+ */
+public class QuorumNotReachedException extends IOException {
+
+	public QuorumNotReachedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,19 @@
+package ford.james.motorola.functions;
+
+import java.io.IOException;
+
+import org.springframework.core.io.Resource;
+
+import ford.james.motorola.repositories.FileMetadata;
+
+/**
+ * Callback used to read a file while its lock is held. The metadata is looked up up front, while the content is only
+ * located when the callback asks for it, so a request that can be answered from the metadata alone never touches the
+ * stored content.
+ */
+@FunctionalInterface
+public interface FileReadFunction {
+
+	void apply(FileMetadata metadata, RepositoryOperation<Resource, IOException> resource) throws Exception;
+
+}
@@ -0,0 +1,12 @@
+package ford.james.motorola.functions;
+
+/**
+ * Runs a function while holding the lock for a file, so code outside of the services can make changes under the same
+ * locks as the file services.
+ */
+@FunctionalInterface
+public interface LockExecutor {
+
+	<R> R executeWithLock(String filename, boolean isWrite, LockFunction<R> function) throws Exception;
+
+}
@@ -0,0 +1,18 @@
+package ford.james.motorola.functions;
+
+import org.springframework.core.io.Resource;
+
+import ford.james.motorola.repositories.FileMetadata;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of {@link FileReadFunction}. The lock for the file is held until the returned publisher
+ * terminates, so the content cannot be modified or deleted while it is being written to the caller. The content is
+ * only located when the callback subscribes to it.
+ */
+@FunctionalInterface
+public interface ReactiveFileReadFunction {
+
+	Mono<Void> apply(FileMetadata metadata, Mono<Resource> resource);
+
+}
@@ -0,0 +1,8 @@
+package ford.james.motorola.functions;
+
+@FunctionalInterface
+public interface RepositoryOperation<R, E extends Exception> {
+
+	R apply() throws E;
+
+}
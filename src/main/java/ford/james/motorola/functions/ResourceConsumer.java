@@ -0,0 +1,14 @@
+package ford.james.motorola.functions;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * Callback used to consume a stored {@code Resource} while the lock for the file is still held, so the
+ * content cannot be modified or removed while it is being written to the caller.
+ */
+@FunctionalInterface
+public interface ResourceConsumer {
+
+	void accept(Resource resource) throws Exception;
+
+}
@@ -0,0 +1,226 @@
+package ford.james.motorola.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.stereotype.Component;
+
+import ford.james.motorola.functions.RepositoryOperation;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Records the metrics of the file service. Every meter is registered once up front or on first use and then reused,
+ * so recording a value is a lock free update that is cheap enough to leave on in production.
+ */
+@Component
+public class FileMetrics {
+
+	private static final String LOCK_WAIT = "file.lock.wait";
+	private static final String LOCK_HOLD = "file.lock.hold";
+	private static final String LOCK_TIMEOUTS = "file.lock.timeouts";
+	private static final String REPOSITORY_OPERATION = "file.repository.operation";
+	private static final String BYTES = "file.transfer.bytes";
+	private static final String ACTIVE_TRANSFERS = "file.transfer.active";
+	private static final String COMPRESSION_RATIO = "file.compression.ratio";
+	private static final String COMPRESSION_SAVED = "file.compression.saved";
+	private static final String ADMISSION_REJECTIONS = "file.admission.rejections";
+
+	private final MeterRegistry meterRegistry;
+
+	private final Timer readLockWait;
+	private final Timer writeLockWait;
+	private final Timer readLockHold;
+	private final Timer writeLockHold;
+	private final Counter readLockTimeouts;
+	private final Counter writeLockTimeouts;
+	private final Counter bytesRead;
+	private final Counter bytesWritten;
+	private final DistributionSummary compressionRatio;
+	private final Counter compressionSaved;
+	private final Counter globalAdmissionRejections;
+	private final Counter fileAdmissionRejections;
+	private final AtomicInteger activeTransfers = new AtomicInteger();
+	private final Map<String, Timer> repositoryTimers = new ConcurrentHashMap<>();
+
+	public FileMetrics(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		this.readLockWait = lockTimer(LOCK_WAIT, "Time spent waiting to obtain a file lock", false);
+		this.writeLockWait = lockTimer(LOCK_WAIT, "Time spent waiting to obtain a file lock", true);
+		this.readLockHold = lockTimer(LOCK_HOLD, "Time a file lock was held for", false);
+		this.writeLockHold = lockTimer(LOCK_HOLD, "Time a file lock was held for", true);
+		this.readLockTimeouts = lockTimeoutCounter(false);
+		this.writeLockTimeouts = lockTimeoutCounter(true);
+		this.bytesRead = Counter.builder(BYTES)
+				.description("Bytes transferred to and from storage")
+				.baseUnit("bytes")
+				.tag("direction", "read")
+				.register(meterRegistry);
+		this.bytesWritten = Counter.builder(BYTES)
+				.description("Bytes transferred to and from storage")
+				.baseUnit("bytes")
+				.tag("direction", "write")
+				.register(meterRegistry);
+		Gauge.builder(ACTIVE_TRANSFERS, activeTransfers, AtomicInteger::get)
+				.description("Uploads and downloads currently in progress")
+				.register(meterRegistry);
+		this.compressionRatio = DistributionSummary.builder(COMPRESSION_RATIO)
+				.description("Original size divided by stored size of each file compressed at rest")
+				.publishPercentiles(0.5, 0.99)
+				.register(meterRegistry);
+		this.compressionSaved = Counter.builder(COMPRESSION_SAVED)
+				.description("Bytes of storage saved by compressing files at rest")
+				.baseUnit("bytes")
+				.register(meterRegistry);
+		this.globalAdmissionRejections = admissionRejectionCounter(true);
+		this.fileAdmissionRejections = admissionRejectionCounter(false);
+	}
+
+	public void recordLockWait(boolean isWrite, long nanos) {
+		(isWrite ? writeLockWait : readLockWait).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordLockHold(boolean isWrite, long nanos) {
+		(isWrite ? writeLockHold : readLockHold).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordLockTimeout(boolean isWrite) {
+		(isWrite ? writeLockTimeouts : readLockTimeouts).increment();
+	}
+
+	/**
+	 * Runs a repository operation and records how long it took, tagged with the operation name and whether it
+	 * succeeded.
+	 */
+	public <R, E extends Exception> R recordRepositoryOperation(String operation, RepositoryOperation<R, E> function)
+			throws E {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			R result = function.apply();
+			success = true;
+			return result;
+		} finally {
+			repositoryTimer(operation, success).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Records how long a non-blocking repository operation took from subscription until it completed or failed. An
+	 * operation that is cancelled is not recorded.
+	 */
+	public <R> Mono<R> recordRepositoryOperation(String operation, Mono<R> mono) {
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			return mono
+					.doOnSuccess(result -> repositoryTimer(operation, true)
+							.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+					.doOnError(e -> repositoryTimer(operation, false)
+							.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+		});
+	}
+
+	/**
+	 * Records how long a non-blocking repository operation that emits many values took from subscription until it
+	 * completed or failed. An operation that is cancelled is not recorded.
+	 */
+	public <R> Flux<R> recordRepositoryOperation(String operation, Flux<R> flux) {
+		return Flux.defer(() -> {
+			long start = System.nanoTime();
+			return flux
+					.doOnComplete(() -> repositoryTimer(operation, true)
+							.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+					.doOnError(e -> repositoryTimer(operation, false)
+							.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+		});
+	}
+
+	/**
+	 * Runs a transfer of stored content to a client, recording it as the {@code read} repository operation and
+	 * counting the bytes read. Content is read as fast as the client accepts it, so slow clients make reads slower.
+	 *
+	 * @return the number of bytes transferred
+	 */
+	public long recordRead(RepositoryOperation<Long, IOException> transfer) throws IOException {
+		long bytes = recordRepositoryOperation("read", transfer);
+		recordBytesRead(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param global whether the request was rejected because of the global limit rather than the limit of its file
+	 */
+	public void recordAdmissionRejection(boolean global) {
+		(global ? globalAdmissionRejections : fileAdmissionRejections).increment();
+	}
+
+	public void recordBytesRead(long bytes) {
+		bytesRead.increment(bytes);
+	}
+
+	public void recordBytesWritten(long bytes) {
+		bytesWritten.increment(bytes);
+	}
+
+	public void recordCompression(long originalBytes, long storedBytes) {
+		if (storedBytes > 0) {
+			compressionRatio.record((double) originalBytes / storedBytes);
+		}
+		compressionSaved.increment(Math.max(0, originalBytes - storedBytes));
+	}
+
+	public void transferStarted() {
+		activeTransfers.incrementAndGet();
+	}
+
+	public void transferFinished() {
+		activeTransfers.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of uploads and downloads currently in progress
+	 */
+	public int getActiveTransfers() {
+		return activeTransfers.get();
+	}
+
+	private Timer repositoryTimer(String operation, boolean success) {
+		String outcome = success ? "success" : "failure";
+		return repositoryTimers.computeIfAbsent(operation + "." + outcome, key -> Timer.builder(REPOSITORY_OPERATION)
+				.description("Time taken by a storage repository operation")
+				.tag("operation", operation)
+				.tag("outcome", outcome)
+				.publishPercentiles(0.5, 0.99)
+				.register(meterRegistry));
+	}
+
+	private Timer lockTimer(String name, String description, boolean isWrite) {
+		return Timer.builder(name)
+				.description(description)
+				.tag("mode", isWrite ? "write" : "read")
+				.publishPercentiles(0.5, 0.99)
+				.register(meterRegistry);
+	}
+
+	private Counter admissionRejectionCounter(boolean global) {
+		return Counter.builder(ADMISSION_REJECTIONS)
+				.description("Requests rejected because too many requests were waiting")
+				.tag("scope", global ? "global" : "file")
+				.register(meterRegistry);
+	}
+
+	private Counter lockTimeoutCounter(boolean isWrite) {
+		return Counter.builder(LOCK_TIMEOUTS)
+				.description("File lock requests that timed out")
+				.tag("mode", isWrite ? "write" : "read")
+				.register(meterRegistry);
+	}
+}
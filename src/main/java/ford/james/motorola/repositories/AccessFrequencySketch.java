@@ -0,0 +1,122 @@
+package ford.james.motorola.repositories;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how often each file has been read with a count-min sketch of 4 bit counters, so the read counts of any
+ * number of files fit in a fixed amount of memory: a width of 65536 takes 128 KiB. Each file is counted in one counter
+ * of each of {@value #DEPTH} rows and its count is the smallest of them, which is never lower than the number of reads
+ * but may be higher when files share counters. Counters saturate at {@value #MAX_COUNT}.
+ * <p>
+ * Counts are aged by halving every counter, so reads count for less the older they are. Besides the ageing asked for
+ * by the owner, the sketch ages itself once ten times its width reads have been counted since the last ageing, which
+ * keeps the counters from filling up under heavy load. Counting is lock free.
+ */
+final class AccessFrequencySketch {
+
+	static final int MAX_COUNT = 15;
+
+	private static final int DEPTH = 4;
+	private static final int COUNTERS_PER_WORD = Long.SIZE / 4;
+	private static final int MIN_WIDTH = COUNTERS_PER_WORD;
+	private static final int MAX_WIDTH = 1 << 24;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+	/**
+	 * Clears the bit shifted into each counter from the counter above it when the word is shifted right.
+	 */
+	private static final long HALVE_MASK = 0x7777_7777_7777_7777L;
+
+	private final AtomicLongArray table;
+	private final int width;
+	private final int sampleSize;
+	private final AtomicInteger additions = new AtomicInteger();
+
+	/**
+	 * @param width the number of counters in each row, rounded up to a power of two
+	 */
+	AccessFrequencySketch(int width) {
+		if (width < 1) {
+			throw new IllegalArgumentException("The sketch width [" + width + "] must be positive");
+		}
+		int capped = Math.min(width, MAX_WIDTH);
+		this.width = Math.max(MIN_WIDTH, Integer.highestOneBit(capped - 1) << 1);
+		this.sampleSize = 10 * this.width;
+		this.table = new AtomicLongArray(DEPTH * this.width / COUNTERS_PER_WORD);
+	}
+
+	/**
+	 * Counts a read of the file, ageing the sketch if enough reads have been counted since it was last aged.
+	 */
+	void increment(String filename) {
+		int hash = spread(filename.hashCode());
+		boolean added = false;
+		for (int row = 0; row < DEPTH; row++) {
+			added |= incrementAt(indexOf(hash, row));
+		}
+		if (added && additions.incrementAndGet() == sampleSize) {
+			age();
+		}
+	}
+
+	/**
+	 * @return the estimated number of reads of the file, at most {@value #MAX_COUNT}
+	 */
+	int frequency(String filename) {
+		int hash = spread(filename.hashCode());
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < DEPTH; row++) {
+			int index = indexOf(hash, row);
+			frequency = Math.min(frequency, (int) (table.get(index / COUNTERS_PER_WORD) >>> shiftOf(index)) & 0xF);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halves every counter. Reads counted while the sketch is being aged may or may not be halved.
+	 */
+	synchronized void age() {
+		for (int i = 0; i < table.length(); i++) {
+			table.getAndUpdate(i, word -> (word >>> 1) & HALVE_MASK);
+		}
+		additions.updateAndGet(count -> count / 2);
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return whether the counter was incremented, which it is not once it is saturated
+	 */
+	private boolean incrementAt(int index) {
+		int word = index / COUNTERS_PER_WORD;
+		int shift = shiftOf(index);
+		while (true) {
+			long value = table.get(word);
+			if (((value >>> shift) & 0xF) == MAX_COUNT) {
+				return false;
+			}
+			if (table.compareAndSet(word, value, value + (1L << shift))) {
+				return true;
+			}
+		}
+	}
+
+	private int indexOf(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return row * width + ((int) h & (width - 1));
+	}
+
+	private static int shiftOf(int index) {
+		return (index % COUNTERS_PER_WORD) * 4;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		return hash ^ (hash >>> 16);
+	}
+}
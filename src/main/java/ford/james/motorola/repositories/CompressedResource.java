@@ -0,0 +1,69 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * A file that is stored gzip compressed. Reading the resource inflates the content, so it can be used like any other
+ * resource, while {@link #getCompressed()} gives access to the stored bytes for callers that can pass them on
+ * without inflating them.
+ */
+public class CompressedResource extends AbstractResource {
+
+	private final String filename;
+	private final Path path;
+	private final long contentLength;
+
+	public CompressedResource(String filename, Path path, long contentLength) {
+		this.filename = filename;
+		this.path = path;
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * @return the gzip compressed bytes as stored
+	 */
+	public Resource getCompressed() {
+		return new FileSystemResource(path);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new GZIPInputStream(Files.newInputStream(path), 8192);
+	}
+
+	@Override
+	public boolean exists() {
+		return Files.exists(path);
+	}
+
+	/**
+	 * @return the uncompressed length of the content
+	 */
+	@Override
+	public long contentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public long lastModified() throws IOException {
+		return Files.getLastModifiedTime(path).toMillis();
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public String getDescription() {
+		return "compressed file [" + path + "]";
+	}
+}
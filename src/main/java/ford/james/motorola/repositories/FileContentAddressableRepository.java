@@ -0,0 +1,339 @@
+package ford.james.motorola.repositories;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.multipart.MultipartFile;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.utils.BufferPool;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * {@link FileRepository} that stores each distinct content once, named by its SHA-256 digest, and maps filenames to
+ * digests. The layout under the base location is:
+ * <ul>
+ *     <li>{@code blobs/ab/abcdef...} the content, fanned out by the first two characters of the digest</li>
+ *     <li>{@code refs/<filename>} a small file holding the digest the filename points at</li>
+ *     <li>{@code tmp/} uploads that are still being written</li>
+ * </ul>
+ * Blobs are reference counted in memory. A blob that is no longer referenced is removed by a background job rather
+ * than on delete, so a concurrent upload of the same content can still reuse it.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "content-addressable")
+public class FileContentAddressableRepository implements FileRepository {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileContentAddressableRepository.class);
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final int BLOB_LOCK_STRIPES = 64;
+
+	private final FileStorageProperties fileStorageProperties;
+	private final BufferPool bufferPool;
+	private final Path blobsPath;
+	private final Path refsPath;
+	private final Path tmpPath;
+
+	private final ConcurrentMap<String, String> filenameDigests = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Integer> blobReferences = new ConcurrentHashMap<>();
+	private final Set<String> unreferencedBlobs = ConcurrentHashMap.newKeySet();
+	private final Lock[] blobLocks = new Lock[BLOB_LOCK_STRIPES];
+
+	public FileContentAddressableRepository(FileStorageProperties fileStorageProperties) {
+		this.fileStorageProperties = fileStorageProperties;
+		this.bufferPool = new BufferPool(fileStorageProperties.getUploadBufferSize(),
+				fileStorageProperties.getUploadBufferPoolSize());
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation());
+		this.blobsPath = basePath.resolve("blobs");
+		this.refsPath = basePath.resolve("refs");
+		this.tmpPath = basePath.resolve("tmp");
+		for (int i = 0; i < BLOB_LOCK_STRIPES; i++) {
+			blobLocks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Loads the filename to digest mapping from the refs directory, rebuilds the reference counts and marks any blob
+	 * left behind by an interrupted upload or delete for garbage collection.
+	 */
+	@PostConstruct
+	public void initialise() throws IOException {
+		Files.createDirectories(blobsPath);
+		Files.createDirectories(refsPath);
+		Files.createDirectories(tmpPath);
+
+		try (Stream<Path> temporaryFiles = Files.list(tmpPath)) {
+			for (Path temporaryFile : temporaryFiles.toList()) {
+				Files.deleteIfExists(temporaryFile);
+			}
+		}
+
+		try (Stream<Path> refs = Files.list(refsPath)) {
+			for (Path ref : refs.filter(Files::isRegularFile).toList()) {
+				String filename = ref.getFileName().toString();
+				if (FileLocalRepository.isTempFile(filename)) {
+					Files.deleteIfExists(ref);
+					continue;
+				}
+				String digest = Files.readString(ref, StandardCharsets.US_ASCII).trim();
+				filenameDigests.put(filename, digest);
+				blobReferences.merge(digest, 1, Integer::sum);
+			}
+		}
+
+		Files.walkFileTree(blobsPath, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				String digest = file.getFileName().toString();
+				if (!blobReferences.containsKey(digest)) {
+					blobReferences.put(digest, 0);
+					unreferencedBlobs.add(digest);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		LOGGER.info("Loaded [{}] files backed by [{}] blobs, [{}] blobs are unreferenced", filenameDigests.size(),
+				blobReferences.size(), unreferencedBlobs.size());
+	}
+
+	@Override
+	public Set<String> listFilenames() {
+		return Collections.unmodifiableSet(filenameDigests.keySet());
+	}
+
+	@Override
+	public boolean saveFileToStorage(MultipartFile file) throws IOException {
+		try (InputStream inputStream = file.getInputStream()) {
+			return saveFileToStorage(file.getOriginalFilename(), inputStream);
+		}
+	}
+
+	/**
+	 * Hashes the content while it is read. Content up to the memory threshold is held on the heap, so a duplicate of a
+	 * small file is never written to disk at all. Larger content is spooled to a temporary file which is discarded if
+	 * the blob already exists.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException {
+		MessageDigest messageDigest = newMessageDigest();
+		long memoryThreshold = fileStorageProperties.getContentAddressable().getMemoryThreshold().toBytes();
+		ByteArrayOutputStream memoryContent = new ByteArrayOutputStream();
+		Path temporaryFile = null;
+		OutputStream fileContent = null;
+		byte[] buffer = bufferPool.acquire();
+
+		try {
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				messageDigest.update(buffer, 0, read);
+				if (fileContent == null && memoryContent.size() + read > memoryThreshold) {
+					temporaryFile = Files.createTempFile(tmpPath, FileLocalRepository.TEMP_FILE_PREFIX,
+							FileLocalRepository.TEMP_FILE_SUFFIX);
+					fileContent = Files.newOutputStream(temporaryFile, StandardOpenOption.WRITE);
+					memoryContent.writeTo(fileContent);
+					memoryContent = null;
+				}
+				(fileContent != null ? fileContent : memoryContent).write(buffer, 0, read);
+			}
+			if (fileContent != null) {
+				fileContent.close();
+			}
+
+			String digest = HexFormat.of().formatHex(messageDigest.digest());
+			storeBlob(digest, memoryContent, temporaryFile);
+			writeRef(filename, digest);
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("Unable to save file [{}]", filename, e);
+			throw e;
+		} finally {
+			bufferPool.release(buffer);
+			if (fileContent != null) {
+				fileContent.close();
+			}
+			if (temporaryFile != null) {
+				Files.deleteIfExists(temporaryFile);
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteFileFromStorage(String filename) throws IOException {
+		String digest = filenameDigests.get(filename);
+		if (digest == null) {
+			throw new NoSuchFileException(filename);
+		}
+
+		try {
+			Files.delete(refsPath.resolve(filename));
+		} catch (IOException e) {
+			LOGGER.error("Unable to delete the reference for file [{}]", filename, e);
+			throw e;
+		}
+		filenameDigests.remove(filename);
+		releaseBlob(digest);
+		return true;
+	}
+
+	@Override
+	public Resource getFileFromStorage(String filename) throws IOException {
+		String digest = filenameDigests.get(filename);
+		if (digest == null) {
+			throw new NoSuchFileException(filename);
+		}
+		return new FileSystemResource(buildBlobPath(digest));
+	}
+
+	/**
+	 * The digest is the name of the blob, so it is always known without reading the content. The last modified time
+	 * is that of the reference, which changes whenever the filename is pointed at new content.
+	 */
+	@Override
+	public FileMetadata getFileMetadata(String filename) throws IOException {
+		String digest = filenameDigests.get(filename);
+		if (digest == null) {
+			throw new NoSuchFileException(filename);
+		}
+		return new FileMetadata(filename, Files.size(buildBlobPath(digest)),
+				Files.getLastModifiedTime(refsPath.resolve(filename)).toMillis(), digest);
+	}
+
+	@Override
+	public boolean fileExists(String filename) {
+		return filenameDigests.containsKey(filename);
+	}
+
+	/**
+	 * Removes the blobs that have no filename pointing at them. The blob lock is held while each blob is checked and
+	 * deleted, so an upload cannot start referencing a blob as it is being removed.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.content-addressable.gc-interval:PT10M}")
+	public void collectGarbage() {
+		int collected = 0;
+		for (String digest : Set.copyOf(unreferencedBlobs)) {
+			Lock lock = getBlobLock(digest);
+			lock.lock();
+			try {
+				if (blobReferences.getOrDefault(digest, 0) == 0) {
+					Files.deleteIfExists(buildBlobPath(digest));
+					blobReferences.remove(digest);
+					collected++;
+				}
+				unreferencedBlobs.remove(digest);
+			} catch (IOException e) {
+				LOGGER.warn("Unable to remove unreferenced blob [{}]", digest, e);
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (collected > 0) {
+			LOGGER.info("Removed [{}] unreferenced blobs", collected);
+		}
+	}
+
+	private void storeBlob(String digest, ByteArrayOutputStream memoryContent, Path temporaryFile) throws IOException {
+		Path blobPath = buildBlobPath(digest);
+		Lock lock = getBlobLock(digest);
+		lock.lock();
+		try {
+			if (Files.exists(blobPath)) {
+				LOGGER.debug("Content [{}] is already stored, skipping the write", digest);
+			} else {
+				Files.createDirectories(blobPath.getParent());
+				if (temporaryFile == null) {
+					temporaryFile = Files.createTempFile(tmpPath, FileLocalRepository.TEMP_FILE_PREFIX,
+							FileLocalRepository.TEMP_FILE_SUFFIX);
+					try (OutputStream outputStream = Files.newOutputStream(temporaryFile, StandardOpenOption.WRITE)) {
+						memoryContent.writeTo(outputStream);
+					}
+				}
+				Files.move(temporaryFile, blobPath, StandardCopyOption.ATOMIC_MOVE);
+			}
+			blobReferences.merge(digest, 1, Integer::sum);
+			unreferencedBlobs.remove(digest);
+		} finally {
+			lock.unlock();
+			if (temporaryFile != null) {
+				Files.deleteIfExists(temporaryFile);
+			}
+		}
+	}
+
+	private void releaseBlob(String digest) {
+		Lock lock = getBlobLock(digest);
+		lock.lock();
+		try {
+			if (blobReferences.merge(digest, -1, Integer::sum) <= 0) {
+				blobReferences.put(digest, 0);
+				unreferencedBlobs.add(digest);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void writeRef(String filename, String digest) throws IOException {
+		Path temporaryRef = Files.createTempFile(refsPath, FileLocalRepository.TEMP_FILE_PREFIX,
+				FileLocalRepository.TEMP_FILE_SUFFIX);
+		try {
+			Files.writeString(temporaryRef, digest, StandardCharsets.US_ASCII);
+			Files.move(temporaryRef, refsPath.resolve(filename), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temporaryRef);
+			releaseBlob(digest);
+			throw e;
+		}
+
+		String previousDigest = filenameDigests.put(filename, digest);
+		if (previousDigest != null) {
+			releaseBlob(previousDigest);
+		}
+	}
+
+	private Path buildBlobPath(String digest) {
+		return blobsPath.resolve(digest.substring(0, 2)).resolve(digest);
+	}
+
+	private Lock getBlobLock(String digest) {
+		return blobLocks[Math.floorMod(digest.hashCode(), BLOB_LOCK_STRIPES)];
+	}
+
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package ford.james.motorola.repositories;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread safe in-memory index of the files held in storage, allowing the filenames to be listed and looked up
+ * without touching the file system.
+ */
+public class FileIndex {
+
+	private final ConcurrentMap<String, FileMetadata> entries = new ConcurrentHashMap<>();
+
+	public void put(FileMetadata fileMetadata) {
+		entries.put(fileMetadata.filename(), fileMetadata);
+	}
+
+	public void remove(String filename) {
+		entries.remove(filename);
+	}
+
+	public FileMetadata get(String filename) {
+		return entries.get(filename);
+	}
+
+	public boolean contains(String filename) {
+		return entries.containsKey(filename);
+	}
+
+	/**
+	 * @return a read only, weakly consistent view of the indexed filenames
+	 */
+	public Set<String> filenames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Compares the index against a fresh scan of the storage and returns the filenames that differ, either because
+	 * they are missing from one side or because their size or last modified time no longer match.
+	 *
+	 * @param scanned the metadata found by scanning the storage, keyed by filename
+	 * @return the filenames whose index entry has drifted from the storage
+	 */
+	public Set<String> findDrift(Map<String, FileMetadata> scanned) {
+		Set<String> drifted = new HashSet<>();
+		for (String filename : entries.keySet()) {
+			if (!scanned.containsKey(filename)) {
+				drifted.add(filename);
+			}
+		}
+		scanned.forEach((filename, fileMetadata) -> {
+			if (!fileMetadata.isSameVersion(entries.get(filename))) {
+				drifted.add(filename);
+			}
+		});
+		return drifted;
+	}
+}
@@ -0,0 +1,154 @@
+package ford.james.motorola.repositories;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the storage directory for changes made outside of the application and reports the affected filenames,
+ * so that the {@link FileIndex} can be kept current. If the watch service drops events the overflow callback is
+ * called so that the whole index can be reconciled instead.
+ * <p>
+ * With a sharded layout the shard directories are watched too, down to the given depth, including those created
+ * after the watcher started. The files already in a new directory are reported once it is watched, as they may have
+ * been written before it was. A directory that cannot be watched, for example because the limit of watches set by
+ * the operating system has been reached, is left to the periodic reconcile.
+ */
+class FileIndexWatcher implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileIndexWatcher.class);
+
+	private final int depth;
+	private final Consumer<String> changeListener;
+	private final Runnable overflowListener;
+	private final WatchService watchService;
+	private final Thread thread;
+
+	/**
+	 * The number of levels below the storage directory of each watched directory.
+	 */
+	private final Map<WatchKey, Integer> levels = new ConcurrentHashMap<>();
+	private volatile boolean unwatchedReported;
+
+	/**
+	 * @param depth the number of levels of directories below the storage directory to watch, zero for a flat layout
+	 */
+	FileIndexWatcher(Path directory, int depth, Consumer<String> changeListener, Runnable overflowListener)
+			throws IOException {
+		this.depth = depth;
+		this.changeListener = changeListener;
+		this.overflowListener = overflowListener;
+		this.watchService = directory.getFileSystem().newWatchService();
+		levels.put(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), 0);
+		if (depth > 0) {
+			registerSubdirectories(directory, 0, false);
+		}
+		this.thread = Thread.ofPlatform()
+				.name("file-index-watcher")
+				.daemon()
+				.unstarted(this::watch);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	private void watch() {
+		while (!Thread.currentThread().isInterrupted()) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			int level = levels.getOrDefault(key, 0);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				try {
+					if (event.kind() == OVERFLOW) {
+						LOGGER.warn("File watcher overflowed, reconciling the whole index");
+						overflowListener.run();
+						continue;
+					}
+
+					Path path = ((Path) key.watchable()).resolve((Path) event.context());
+					if (event.kind() == ENTRY_CREATE && level < depth && Files.isDirectory(path)) {
+						register(path, level + 1, true);
+					} else {
+						changeListener.accept(path.getFileName().toString());
+					}
+				} catch (RuntimeException e) {
+					LOGGER.warn("Unable to process file watch event [{}]", event.kind(), e);
+				}
+			}
+
+			if (!key.reset()) {
+				levels.remove(key);
+				if (level == 0) {
+					LOGGER.warn("Storage directory is no longer accessible, stopping the file watcher");
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Watches a directory at the given level and the directories below it.
+	 *
+	 * @param report whether to report the files already in the directory
+	 */
+	private void register(Path directory, int level, boolean report) {
+		try {
+			levels.put(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), level);
+			if (level < depth) {
+				registerSubdirectories(directory, level, report);
+			} else if (report) {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+					stream.forEach(file -> changeListener.accept(file.getFileName().toString()));
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Closing, nothing is watched any more
+		} catch (IOException e) {
+			if (!unwatchedReported) {
+				unwatchedReported = true;
+				LOGGER.warn("Unable to watch [{}], changes in it and in other directories that cannot be watched are only"
+						+ " found by the periodic reconcile", directory, e);
+			}
+		}
+	}
+
+	private void registerSubdirectories(Path directory, int level, boolean report) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+			for (Path subdirectory : stream) {
+				register(subdirectory, level + 1, report);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		thread.interrupt();
+		watchService.close();
+	}
+}
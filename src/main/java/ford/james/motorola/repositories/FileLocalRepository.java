@@ -1,40 +1,283 @@
 package ford.james.motorola.repositories;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.BufferPool;
+import ford.james.motorola.utils.GzipUtils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 @Repository
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "local", matchIfMissing = true)
 public class FileLocalRepository implements FileRepository {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileLocalRepository.class.getName());
 
+	/**
+	 * Prefix of the temporary files uploads are written to before being published. It contains a character that the
+	 * filename validation rejects, so a temporary file can never clash with a real file.
+	 */
+	static final String TEMP_FILE_PREFIX = ".upload-";
+	static final String TEMP_FILE_SUFFIX = ".part";
+
+	/**
+	 * Suffix of files stored gzip compressed. Like the temporary file prefix it cannot appear in a valid filename.
+	 */
+	static final String COMPRESSED_FILE_SUFFIX = "-gz";
+
+	/**
+	 * Name of the user defined file attribute the content digest is stored in, so it travels with the file when it is
+	 * renamed or migrated.
+	 */
+	static final String DIGEST_ATTRIBUTE = "motorola.sha256";
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * Digest indexed for a file found to have none stored, so a file without one is not looked up again on every read.
+	 */
+	private static final String NO_DIGEST = "";
+
 	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+	private final BufferPool bufferPool;
+	private final FileIndex fileIndex;
+	private final ShardedLayout shardedLayout;
+	private final MappedFilePool mappedFilePool;
+
+	private FileIndexWatcher fileIndexWatcher;
+	private MutationJournal mutationJournal;
+
+	/**
+	 * Whether files may still be stored directly in the storage directory, which is the case when sharding has been
+	 * enabled on an existing directory and the migration has not finished yet.
+	 */
+	private volatile boolean flatFilesRemaining;
 
-	public FileLocalRepository(FileStorageProperties fileStorageProperties) {
+	public FileLocalRepository(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
 		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+		this.bufferPool = new BufferPool(fileStorageProperties.getUploadBufferSize(),
+				fileStorageProperties.getUploadBufferPoolSize());
+		this.fileIndex = new FileIndex();
+		this.shardedLayout = fileStorageProperties.getSharding().isEnabled()
+				? new ShardedLayout(Paths.get(fileStorageProperties.getBaseLocation()),
+						fileStorageProperties.getSharding().getDepth(), fileStorageProperties.getSharding().getWidth())
+				: null;
+		this.mappedFilePool = fileStorageProperties.getMmap().isEnabled()
+				? new MappedFilePool(fileStorageProperties.getMmap())
+				: null;
+	}
+
+	/**
+	 * Builds the in-memory index from a single scan of the storage directory, or from the journal when it is enabled,
+	 * and starts watching the directory for changes made outside of the application.
+	 * <p>
+	 * When sharding is enabled, lookups fall back to the flat layout for as long as unmigrated files remain.
+	 */
+	@PostConstruct
+	public void initialiseIndex() throws IOException {
+		if (isSharded() && detectFlatFiles()) {
+			LOGGER.warn("Storage location [{}] contains files in the flat layout, run the shard migration to move them",
+					fileStorageProperties.getBaseLocation());
+		}
+
+		if (!isIndexEnabled()) {
+			if (fileStorageProperties.getJournal().isEnabled()) {
+				LOGGER.warn("The journal only records the file index, it is not used as the index is disabled");
+			}
+			return;
+		}
+
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation());
+		if (!Files.isDirectory(basePath)) {
+			LOGGER.warn("Storage location [{}] does not exist, the file index will start empty", basePath);
+			return;
+		}
+
+		if (fileStorageProperties.getJournal().isEnabled()) {
+			recoverIndex();
+		} else {
+			scanStorage().values().forEach(fileIndex::put);
+		}
+		LOGGER.info("Indexed [{}] files in [{}]", fileIndex.size(), basePath);
+
+		if (fileStorageProperties.getIndex().isWatchEnabled()) {
+			fileIndexWatcher = new FileIndexWatcher(basePath, isSharded() ? shardedLayout.getDepth() : 0,
+					filename -> refreshIndex(toFilename(filename)), this::reconcileIndex);
+			fileIndexWatcher.start();
+		}
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		if (fileIndexWatcher != null) {
+			fileIndexWatcher.close();
+		}
+		if (mutationJournal != null) {
+			mutationJournal.close();
+		}
+	}
+
+	/**
+	 * Restores the index from the journal and then rolls back or finishes the saves and deletes that were interrupted
+	 * when the application last stopped. The storage directory is only scanned if there is no journal yet or it cannot
+	 * be read, in which case a new journal is started from the scan.
+	 * <p>
+	 * The journal cannot know about files that were changed while the application was stopped, so a restored index is
+	 * reconciled once in the background straight away rather than only after the first reconcile interval.
+	 */
+	private void recoverIndex() throws IOException {
+		MutationJournal journal = new MutationJournal(getJournalPath());
+		MutationJournal.Recovery recovery;
+		try {
+			recovery = journal.open();
+		} catch (IOException e) {
+			LOGGER.error("Unable to replay the journal in [{}], rebuilding it from the storage directory",
+					getJournalPath(), e);
+			recovery = null;
+		}
+
+		if (recovery == null) {
+			Map<String, FileMetadata> scanned = scanStorage();
+			scanned.values().forEach(fileIndex::put);
+			journal.reset(scanned.values());
+			mutationJournal = journal;
+			return;
+		}
+
+		recovery.files().values().forEach(fileIndex::put);
+		mutationJournal = journal;
+
+		for (MutationJournal.PendingSave pendingSave : recovery.pendingSaves()) {
+			Path tempPath = Paths.get(pendingSave.tempFile());
+			if (Files.exists(tempPath) || pendingSave.filename() == null) {
+				// Never published, only remove the file if it was created for the save
+				if (pendingSave.staged()) {
+					Files.deleteIfExists(tempPath);
+				}
+				journal.discarded(tempPath);
+				LOGGER.info("Rolled back interrupted save to [{}]", tempPath);
+			} else {
+				refreshIndex(pendingSave.filename());
+				journal.saved(tempPath);
+				LOGGER.info("Finished interrupted save of [{}]", pendingSave.filename());
+			}
+		}
+		for (String filename : recovery.pendingDeletes()) {
+			StoredFile storedFile = locateFile(filename);
+			if (storedFile != null) {
+				Files.delete(storedFile.path());
+			}
+			unindex(filename);
+			LOGGER.info("Finished interrupted delete of [{}]", filename);
+		}
+
+		Thread.ofPlatform().daemon().name("journal-reconcile").start(this::reconcileIndex);
+	}
+
+	/**
+	 * Starts a new generation of the journal with a snapshot of the index once enough has been recorded, so the
+	 * journal replayed on startup stays short.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.journal.snapshot-interval:PT1M}",
+			initialDelayString = "${storage.file.journal.snapshot-interval:PT1M}")
+	public void snapshotJournal() {
+		if (mutationJournal == null) {
+			return;
+		}
+
+		try {
+			mutationJournal.snapshotIfDue(fileStorageProperties.getJournal().getSnapshotRecords());
+		} catch (IOException e) {
+			LOGGER.error("Unable to write a snapshot of the journal in [{}]", getJournalPath(), e);
+		}
+	}
+
+	/**
+	 * Rescans the storage directory and corrects any entries of the index that have drifted from the files on disk.
+	 * Drifted entries are re-checked individually so that a file saved or deleted during the scan is not undone.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.index.reconcile-interval:PT5M}",
+			initialDelayString = "${storage.file.index.reconcile-interval:PT5M}")
+	public void reconcileIndex() {
+		if (!isIndexEnabled()) {
+			return;
+		}
+
+		try {
+			Set<String> drifted = fileIndex.findDrift(scanStorage());
+			drifted.forEach(this::refreshIndex);
+			if (!drifted.isEmpty()) {
+				LOGGER.info("Reconciled [{}] drifted entries in the file index", drifted.size());
+			}
+		} catch (IOException e) {
+			LOGGER.error("Unable to reconcile the file index for [{}]", fileStorageProperties.getBaseLocation(), e);
+		}
 	}
 
 	@Override
 	public Set<String> listFilenames() throws IOException {
+		if (isIndexEnabled()) {
+			return fileIndex.filenames();
+		}
+
+		if (isSharded()) {
+			try {
+				return scanStorage().keySet();
+			} catch (IOException e) {
+				LOGGER.error("Unexpected error while reading filenames in {}", fileStorageProperties.getBaseLocation(), e);
+				throw e;
+			}
+		}
+
 		try (Stream<Path> stream = Files.list(Paths.get(fileStorageProperties.getBaseLocation()))) {
 			return stream
 					.filter(file -> !Files.isDirectory(file))
 					.map(Path::getFileName)
 					.map(Path::toString)
+					.filter(filename -> !isTempFile(filename))
+					.map(FileLocalRepository::toFilename)
 					.collect(Collectors.toSet());
 		} catch (IOException e) {
 			LOGGER.error("Unexpected error while reading filenames in {}", fileStorageProperties.getBaseLocation(), e);
@@ -42,15 +285,125 @@ public class FileLocalRepository implements FileRepository {
 		}
 	}
 
+	/**
+	 * Copies the content of the part through the same path as a streamed upload, so it is hashed while it is copied
+	 * rather than read back from disk afterwards.
+	 */
 	@Override
 	public boolean saveFileToStorage(MultipartFile file) throws IOException {
-		Path path = buildFilePath(file);
+		try (InputStream inputStream = file.getInputStream()) {
+			return saveFileToStorage(file.getOriginalFilename(), inputStream);
+		}
+	}
+
+	/**
+	 * Copies the stream into a temporary file in the storage directory through a pooled buffer and then publishes it
+	 * with an atomic rename, so a partially written file is never visible under its real name.
+	 * <p>
+	 * When compression is enabled the first buffer of the stream is used to decide whether the file is worth
+	 * compressing, and eligible files are stored gzip compressed.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException {
+		Path path = buildFilePath(filename);
+		Path tempPath = createTempFile();
+		byte[] buffer = bufferPool.acquire();
+		DigestInputStream digestInputStream = new DigestInputStream(inputStream, newMessageDigest());
 		try {
-			file.transferTo(path);
+			int buffered = digestInputStream.readNBytes(buffer, 0, buffer.length);
+			if (shouldCompress(filename, buffer, buffered)) {
+				path = toCompressedPath(path);
+				long length = GzipUtils.compress(tempPath, buffer, buffered, digestInputStream,
+						fileStorageProperties.getCompression().getLevel());
+				fileMetrics.recordCompression(length, Files.size(tempPath));
+			} else {
+				try (OutputStream outputStream = Files.newOutputStream(tempPath, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					outputStream.write(buffer, 0, buffered);
+					int read;
+					while ((read = digestInputStream.read(buffer)) != -1) {
+						outputStream.write(buffer, 0, read);
+					}
+				}
+			}
+			String digest = HexFormat.of().formatHex(digestInputStream.getMessageDigest().digest());
+			writeDigest(tempPath, digest);
+			commitSave(filename, tempPath, path, digest);
 			return true;
 		} catch (IOException ex) {
 			LOGGER.error("Unable to save file in location [{}]", path, ex);
+			discardTempFile(tempPath);
 			throw ex;
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * Publishes the staged file with an atomic rename, so it must be on the same file system as the storage
+	 * directory. Staged files are not compressed, as they are usually too large to be worth rewriting.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile) throws IOException {
+		return saveFileToStorage(filename, stagedFile, digestFile(stagedFile));
+	}
+
+	/**
+	 * Publishes a staged file whose digest was computed while it was being written, so it is not read again.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile, String digest) throws IOException {
+		Path path = buildFilePath(filename);
+		try {
+			writeDigest(stagedFile, digest);
+			commitSave(filename, stagedFile, path, digest);
+			return true;
+		} catch (IOException ex) {
+			LOGGER.error("Unable to save file in location [{}]", path, ex);
+			if (mutationJournal != null) {
+				mutationJournal.discarded(stagedFile);
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Publishes the file and indexes it. With the journal enabled the save is recorded before the file is published
+	 * and acknowledged once it is indexed, so it is either rolled back or finished if the application stops part way.
+	 */
+	private void commitSave(String filename, Path tempPath, Path path, String digest) throws IOException {
+		if (mutationJournal != null) {
+			mutationJournal.saving(tempPath, filename);
+		}
+		publish(filename, tempPath, path);
+		refreshIndex(filename, digest);
+		if (mutationJournal != null) {
+			mutationJournal.saved(tempPath);
+		}
+	}
+
+	/**
+	 * Sets the last modified time of a stored file, so that every replica of a replicated file carries the time it was
+	 * saved at rather than the time the replica received it.
+	 */
+	void setLastModified(String filename, long lastModified) throws IOException {
+		StoredFile storedFile = locateFile(filename);
+		if (storedFile == null) {
+			throw new NoSuchFileException(buildFilePath(filename).toString());
+		}
+		unmap(filename);
+		Files.setLastModifiedTime(storedFile.path(), FileTime.fromMillis(lastModified));
+		FileMetadata indexed = isIndexEnabled() ? fileIndex.get(filename) : null;
+		refreshIndex(filename, indexed != null ? indexed.digest() : null);
+	}
+
+	/**
+	 * Removes the temporary file of a save that failed.
+	 */
+	void discardTempFile(Path tempPath) throws IOException {
+		Files.deleteIfExists(tempPath);
+		if (mutationJournal != null) {
+			mutationJournal.discarded(tempPath);
 		}
 	}
 
@@ -60,7 +413,24 @@ public class FileLocalRepository implements FileRepository {
 		Path filePath = buildFilePath(filename);
 
 		try {
-			Files.delete(filePath);
+			StoredFile storedFile = locateFile(filename);
+			if (storedFile == null) {
+				throw new NoSuchFileException(filePath.toString());
+			}
+			filePath = storedFile.path();
+			if (mutationJournal != null) {
+				mutationJournal.deleting(filename);
+			}
+			unmap(filename);
+			try {
+				Files.delete(filePath);
+			} catch (IOException e) {
+				if (mutationJournal != null) {
+					mutationJournal.deleteCancelled(filename);
+				}
+				throw e;
+			}
+			unindex(filename);
 			return true;
 		} catch (IOException e) {
 			LOGGER.error("Unable to delete file in location [{}]", filePath, e);
@@ -68,24 +438,394 @@ public class FileLocalRepository implements FileRepository {
 		}
 	}
 
+	/**
+	 * Returns a {@code Resource} backed by the file on disk. Nothing is read until the caller opens the resource,
+	 * which allows the content to be streamed rather than loaded onto the heap. Compressed files are returned as a
+	 * {@link CompressedResource}. When memory mapping is enabled, large files are returned as a {@link MappedResource}
+	 * that reads from a pooled mapping of the file.
+	 */
 	@Override
-	public ByteArrayResource getFileFromStorage(String filename) throws IOException {
+	public Resource getFileFromStorage(String filename) throws IOException {
 
-		Path path = buildFilePath(filename);
+		StoredFile storedFile = locateFile(filename);
 
-		return new ByteArrayResource(Files.readAllBytes(path));
+		if (storedFile == null) {
+			unindex(filename);
+			throw new NoSuchFileException(buildFilePath(filename).toString());
+		}
+
+		if (storedFile.compressed()) {
+			return new CompressedResource(filename, storedFile.path(),
+					GzipUtils.readUncompressedLength(storedFile.path()));
+		}
+		if (mappedFilePool != null) {
+			MappedResource mappedResource = mappedFilePool.get(filename, storedFile.path(), storedFile.attributes());
+			if (mappedResource != null) {
+				return mappedResource;
+			}
+		}
+		return new FileSystemResource(storedFile.path());
 	}
 
+	/**
+	 * Answers from the index when the file is indexed. The digest is read from the file attributes the first time it
+	 * is asked for and kept in the index from then on, as is the absence of one, so the content is never read to
+	 * answer and the attributes are read at most once per version of the file.
+	 */
+	@Override
+	public FileMetadata getFileMetadata(String filename) throws IOException {
+		FileMetadata fileMetadata = isIndexEnabled() ? fileIndex.get(filename) : null;
+		if (fileMetadata != null && fileMetadata.digest() != null) {
+			return NO_DIGEST.equals(fileMetadata.digest()) ? fileMetadata.withDigest(null) : fileMetadata;
+		}
+
+		StoredFile storedFile = locateFile(filename);
+		if (storedFile == null) {
+			unindex(filename);
+			throw new NoSuchFileException(buildFilePath(filename).toString());
+		}
+
+		fileMetadata = toFileMetadata(filename, storedFile.attributes()).withDigest(readDigest(storedFile.path()));
+		if (isIndexEnabled()) {
+			index(fileMetadata.digest() != null ? fileMetadata : fileMetadata.withDigest(NO_DIGEST));
+		}
+		return fileMetadata;
+	}
+
+	/**
+	 * Answers from the index when the file is indexed. A miss is verified against the disk, so a file copied into the
+	 * storage directory is visible before the watcher has reported it.
+	 */
 	@Override
 	public boolean fileExists(String filename) {
-		return Files.exists(buildFilePath(filename));
+		if (!isIndexEnabled()) {
+			try {
+				return locateFile(filename) != null;
+			} catch (IOException e) {
+				LOGGER.warn("Unable to read the attributes of file [{}]", filename, e);
+				return false;
+			}
+		}
+		return fileIndex.contains(filename) || refreshIndex(filename);
+	}
+
+	/**
+	 * Updates the index entry for a single file from the disk.
+	 *
+	 * @return whether the file exists
+	 */
+	private boolean refreshIndex(String filename) {
+		return refreshIndex(filename, null);
+	}
+
+	private boolean refreshIndex(String filename, String digest) {
+		if (!isIndexEnabled() || isTempFile(filename)) {
+			return false;
+		}
+
+		try {
+			StoredFile storedFile = locateFile(filename);
+			if (storedFile != null) {
+				index(toFileMetadata(filename, storedFile.attributes()).withDigest(digest));
+				return true;
+			}
+			LOGGER.debug("File [{}] no longer exists, removing it from the index", filename);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to read the attributes of file [{}]", filename, e);
+		}
+		unindex(filename);
+		return false;
+	}
+
+	/**
+	 * Updates the index, and the journal when it is enabled. Failing to record the change is not fatal, as the entry
+	 * is corrected by the next reconcile after a restart.
+	 */
+	private void index(FileMetadata fileMetadata) {
+		fileIndex.put(fileMetadata);
+		if (mutationJournal != null) {
+			try {
+				mutationJournal.put(fileMetadata);
+			} catch (IOException e) {
+				LOGGER.error("Unable to record file [{}] in the journal", fileMetadata.filename(), e);
+			}
+		}
+	}
+
+	private void unindex(String filename) {
+		fileIndex.remove(filename);
+		if (mutationJournal != null) {
+			try {
+				mutationJournal.removed(filename);
+			} catch (IOException e) {
+				LOGGER.error("Unable to record the removal of file [{}] in the journal", filename, e);
+			}
+		}
+	}
+
+	/**
+	 * Lists the files stored directly in the storage directory rather than in a shard.
+	 */
+	public List<String> findFlatFilenames() throws IOException {
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation());
+		if (!Files.isDirectory(basePath)) {
+			return List.of();
+		}
+
+		try (Stream<Path> stream = Files.list(basePath)) {
+			return stream
+					.filter(Files::isRegularFile)
+					.map(Path::getFileName)
+					.map(Path::toString)
+					.filter(filename -> !isTempFile(filename))
+					.map(FileLocalRepository::toFilename)
+					.toList();
+		}
+	}
+
+	/**
+	 * Moves a file from the flat layout into its shard with an atomic rename, so it is never missing from both. The
+	 * caller must hold the write lock of the file.
+	 *
+	 * @return whether the file was moved, {@code false} if it was not in the flat layout
+	 */
+	public boolean migrateFile(String filename) throws IOException {
+		if (!isSharded()) {
+			throw new IllegalStateException("Sharding is not enabled for [" + fileStorageProperties.getBaseLocation() + "]");
+		}
+
+		StoredFile storedFile = locateFile(buildFlatFilePath(filename));
+		if (storedFile == null) {
+			return false;
+		}
+
+		Path shardedPath = shardedLayout.resolve(filename);
+		publish(filename, storedFile.path(), storedFile.compressed() ? toCompressedPath(shardedPath) : shardedPath);
+		refreshIndex(filename);
+		return true;
+	}
+
+	/**
+	 * Checks whether any file is still stored in the flat layout. Once none are, lookups stop falling back to it.
+	 *
+	 * @return whether flat files remain
+	 */
+	public boolean detectFlatFiles() throws IOException {
+		flatFilesRemaining = !findFlatFilenames().isEmpty();
+		return flatFilesRemaining;
+	}
+
+	public boolean isSharded() {
+		return shardedLayout != null;
+	}
+
+	private Map<String, FileMetadata> scanStorage() throws IOException {
+		Map<String, FileMetadata> scanned = new HashMap<>();
+		int maxDepth = isSharded() ? shardedLayout.getMaxDepth() : 1;
+		Files.walkFileTree(Paths.get(fileStorageProperties.getBaseLocation()), EnumSet.noneOf(FileVisitOption.class),
+				maxDepth, new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						String storedName = file.getFileName().toString();
+						if (attributes.isRegularFile() && !isTempFile(storedName)) {
+							String filename = toFilename(storedName);
+							scanned.put(filename, toFileMetadata(filename, attributes));
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+		return scanned;
+	}
+
+	private FileMetadata toFileMetadata(String filename, BasicFileAttributes attributes) {
+		return new FileMetadata(filename, attributes.size(), attributes.lastModifiedTime().toMillis());
+	}
+
+	private String digestFile(Path path) throws IOException {
+		MessageDigest messageDigest = newMessageDigest();
+		byte[] buffer = bufferPool.acquire();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			while (channel.read(byteBuffer) != -1) {
+				messageDigest.update(buffer, 0, byteBuffer.position());
+				byteBuffer.clear();
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		return HexFormat.of().formatHex(messageDigest.digest());
+	}
+
+	private void writeDigest(Path path, String digest) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+		if (view == null) {
+			return;
+		}
+		try {
+			view.write(DIGEST_ATTRIBUTE, StandardCharsets.US_ASCII.encode(digest));
+		} catch (IOException | UnsupportedOperationException e) {
+			LOGGER.debug("Unable to store the digest of [{}] in its attributes", path, e);
+		}
+	}
+
+	/**
+	 * @return the digest stored in the attributes of the file, or {@code null} if it has none
+	 */
+	private String readDigest(Path path) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+		if (view == null) {
+			return null;
+		}
+		try {
+			ByteBuffer digest = ByteBuffer.allocate(view.size(DIGEST_ATTRIBUTE));
+			view.read(DIGEST_ATTRIBUTE, digest);
+			return StandardCharsets.US_ASCII.decode(digest.flip()).toString();
+		} catch (IOException | UnsupportedOperationException e) {
+			LOGGER.debug("File [{}] has no stored digest", path);
+			return null;
+		}
+	}
+
+	static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+		}
+	}
+
+	private Path getJournalPath() {
+		String directory = fileStorageProperties.getJournal().getDirectory();
+		if (directory != null && !directory.isBlank()) {
+			return Paths.get(directory);
+		}
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation()).toAbsolutePath();
+		return basePath.resolveSibling(basePath.getFileName() + ".journal");
+	}
+
+	private boolean isIndexEnabled() {
+		return fileStorageProperties.getIndex().isEnabled();
+	}
+
+	boolean isCompressionEnabled() {
+		return fileStorageProperties.getCompression().isEnabled();
+	}
+
+	/**
+	 * Decides whether a file should be stored compressed from its extension and from how well the first buffer of
+	 * its content compresses, so content that is already compressed is stored as it is.
+	 */
+	private boolean shouldCompress(String filename, byte[] sample, int length) {
+		FileStorageProperties.Compression compression = fileStorageProperties.getCompression();
+		if (!compression.isEnabled() || length < compression.getMinSize().toBytes()) {
+			return false;
+		}
+
+		String extension = StringUtils.getFilenameExtension(filename);
+		if (extension != null && compression.getExcludedExtensions().contains(extension.toLowerCase(Locale.ROOT))) {
+			return false;
+		}
+
+		return GzipUtils.estimateRatio(sample, length) <= compression.getMaxRatio();
+	}
+
+	Path createTempFile() throws IOException {
+		Path tempPath = Files.createTempFile(Paths.get(fileStorageProperties.getBaseLocation()), TEMP_FILE_PREFIX,
+				TEMP_FILE_SUFFIX);
+		if (mutationJournal != null) {
+			try {
+				mutationJournal.staged(tempPath);
+			} catch (IOException e) {
+				Files.deleteIfExists(tempPath);
+				throw e;
+			}
+		}
+		return tempPath;
 	}
 
-	private Path buildFilePath(MultipartFile file) {
-		return buildFilePath(file.getOriginalFilename());
+	/**
+	 * Moves the temporary file over the stored file. Any mapping of the stored file is released first, which is safe
+	 * as the caller holds the write lock of the file.
+	 */
+	private void publish(String filename, Path tempPath, Path path) throws IOException {
+		unmap(filename);
+		if (isSharded()) {
+			Files.createDirectories(path.getParent());
+		}
+		Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
 	}
 
+	private void unmap(String filename) {
+		if (mappedFilePool != null) {
+			mappedFilePool.invalidate(filename);
+		}
+	}
+
+	static boolean isTempFile(String filename) {
+		return filename.startsWith(TEMP_FILE_PREFIX);
+	}
+
+	/**
+	 * @return the filename of the file stored under the given name on disk
+	 */
+	static String toFilename(String storedName) {
+		return storedName.endsWith(COMPRESSED_FILE_SUFFIX)
+				? storedName.substring(0, storedName.length() - COMPRESSED_FILE_SUFFIX.length())
+				: storedName;
+	}
+
+	private static Path toCompressedPath(Path path) {
+		return path.resolveSibling(path.getFileName() + COMPRESSED_FILE_SUFFIX);
+	}
+
+	/**
+	 * @return the path a new file is written to
+	 */
 	private Path buildFilePath(String filename) {
+		return isSharded() ? shardedLayout.resolve(filename) : buildFlatFilePath(filename);
+	}
+
+	/**
+	 * Finds where an existing file is stored, which may be compressed, and may be in the flat layout if it has not
+	 * been migrated into its shard yet.
+	 *
+	 * @return the stored file, or {@code null} if the file does not exist
+	 */
+	private StoredFile locateFile(String filename) throws IOException {
+		StoredFile storedFile = locateFile(buildFilePath(filename));
+		if (storedFile == null && flatFilesRemaining) {
+			storedFile = locateFile(buildFlatFilePath(filename));
+		}
+		return storedFile;
+	}
+
+	private StoredFile locateFile(Path path) throws IOException {
+		BasicFileAttributes attributes = readRegularFileAttributes(path);
+		if (attributes != null) {
+			return new StoredFile(path, attributes, false);
+		}
+
+		Path compressedPath = toCompressedPath(path);
+		attributes = readRegularFileAttributes(compressedPath);
+		return attributes != null ? new StoredFile(compressedPath, attributes, true) : null;
+	}
+
+	private BasicFileAttributes readRegularFileAttributes(Path path) throws IOException {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return attributes.isRegularFile() ? attributes : null;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private Path buildFlatFilePath(String filename) {
 		return Path.of(fileStorageProperties.getBaseLocation() + "/" + filename);
 	}
+
+	/**
+	 * The location and attributes of a file on disk.
+	 */
+	private record StoredFile(Path path, BasicFileAttributes attributes, boolean compressed) {
+	}
 }
@@ -0,0 +1,29 @@
+package ford.james.motorola.repositories;
+
+/**
+ * The metadata held in memory for a stored file.
+ *
+ * @param filename the name the file is stored under
+ * @param size the size of the file in bytes
+ * @param lastModified the last modified time of the file in milliseconds since the epoch
+ * @param digest the hex encoded SHA-256 digest of the content computed when the file was saved, or {@code null} if
+ * it is not known
+ */
+public record FileMetadata(String filename, long size, long lastModified, String digest) {
+
+	public FileMetadata(String filename, long size, long lastModified) {
+		this(filename, size, lastModified, null);
+	}
+
+	public FileMetadata withDigest(String digest) {
+		return new FileMetadata(filename, size, lastModified, digest);
+	}
+
+	/**
+	 * @return whether both describe the same version of the file on disk, ignoring whether the digest is known
+	 */
+	public boolean isSameVersion(FileMetadata other) {
+		return other != null && filename.equals(other.filename) && size == other.size
+				&& lastModified == other.lastModified;
+	}
+}
@@ -0,0 +1,951 @@
+package ford.james.motorola.repositories;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.multipart.MultipartFile;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * {@link FileRepository} that appends small files into large segment files rather than storing each in a file of its
+ * own, so millions of small files cost a handful of inodes. Files larger than {@code storage.file.pack.max-file-size}
+ * are stored by a {@link FileLocalRepository} in the storage directory as usual. The layout of the pack directory is:
+ * <ul>
+ *     <li>{@code segment-<id>.pack} segments of checksummed records, appended to in order of their id</li>
+ *     <li>{@code index.dat} the location of every packed file as of when it was written, with the length of each
+ *     segment it covers</li>
+ * </ul>
+ * On startup the index is loaded and only the records appended after it was written are scanned, falling back to
+ * scanning every segment if the index is missing or does not match the segments. A delete appends a tombstone, and
+ * segments that are mostly deleted or overwritten records are compacted in the background by copying their live
+ * records to the end of the newest segment.
+ * <p>
+ * Reads are positional reads from channels that stay open for the life of the segment, and return the content on the
+ * heap as packed files are small.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "pack")
+public class FilePackRepository implements FileRepository, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FilePackRepository.class);
+
+	static final int SEGMENT_MAGIC = 0x4D50414B;
+	static final int INDEX_MAGIC = 0x4D504958;
+	static final short VERSION = 1;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final String INDEX_FILE = "index.dat";
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private static final int SEGMENT_HEADER_LENGTH = Integer.BYTES + Short.BYTES + Long.BYTES;
+	/**
+	 * Checksum, type, filename length, last modified time and content length.
+	 */
+	private static final int RECORD_HEADER_LENGTH = Integer.BYTES + Byte.BYTES + Short.BYTES + Long.BYTES + Integer.BYTES;
+	private static final int DIGEST_LENGTH = 32;
+	private static final int MAX_FILENAME_LENGTH = 4096;
+	private static final int MAX_READ_ATTEMPTS = 3;
+
+	private final FileStorageProperties fileStorageProperties;
+	private final FileLocalRepository largeFiles;
+	private final Path packPath;
+
+	private final ConcurrentMap<String, PackEntry> entries = new ConcurrentHashMap<>();
+	private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Held while appending to the active segment and updating the entries that point into it, so the order of the
+	 * records matches the order the entries were changed in.
+	 */
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final Object indexMonitor = new Object();
+	private volatile Segment activeSegment;
+	private volatile boolean indexDirty;
+
+	public FilePackRepository(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
+		this.fileStorageProperties = fileStorageProperties;
+		this.largeFiles = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		this.packPath = getPackPath();
+	}
+
+	/**
+	 * Restores the entries from the index and the records appended after it, and opens the newest segment for
+	 * appending.
+	 */
+	@PostConstruct
+	public void initialise() throws IOException {
+		Files.createDirectories(Paths.get(fileStorageProperties.getBaseLocation()));
+		largeFiles.initialiseIndex();
+		Files.createDirectories(packPath);
+
+		for (long id : listSegmentIds()) {
+			segments.put(id, new Segment(id, segmentPath(id)));
+		}
+
+		int scanned;
+		if (loadIndex()) {
+			scanned = 0;
+			for (Segment segment : segments.values()) {
+				scanned += recoverSegment(segment, Math.max(segment.length, SEGMENT_HEADER_LENGTH));
+			}
+		} else {
+			entries.clear();
+			scanned = 0;
+			for (Segment segment : segments.values()) {
+				segment.garbageBytes.set(0);
+				scanned += recoverSegment(segment, SEGMENT_HEADER_LENGTH);
+			}
+		}
+
+		Segment newest = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		activeSegment = newest != null && newest.length < getSegmentSize() ? newest : createSegment();
+		if (scanned > 0) {
+			indexDirty = true;
+			persistIndex();
+		}
+		LOGGER.info("Loaded [{}] packed files from [{}] segments in [{}], scanning [{}] records", entries.size(),
+				segments.size(), packPath, scanned);
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		try {
+			persistIndex();
+		} finally {
+			for (Segment segment : segments.values()) {
+				segment.retire();
+			}
+			largeFiles.close();
+		}
+	}
+
+	/**
+	 * The repository of large files is not a bean, so its scheduled jobs are run from here.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.journal.snapshot-interval:PT1M}",
+			initialDelayString = "${storage.file.journal.snapshot-interval:PT1M}")
+	public void snapshotJournal() {
+		largeFiles.snapshotJournal();
+	}
+
+	@Scheduled(fixedDelayString = "${storage.file.index.reconcile-interval:PT5M}",
+			initialDelayString = "${storage.file.index.reconcile-interval:PT5M}")
+	public void reconcileIndex() {
+		largeFiles.reconcileIndex();
+	}
+
+	@Override
+	public Set<String> listFilenames() throws IOException {
+		Set<String> filenames = new HashSet<>(largeFiles.listFilenames());
+		filenames.addAll(entries.keySet());
+		return filenames;
+	}
+
+	@Override
+	public boolean saveFileToStorage(MultipartFile file) throws IOException {
+		String filename = file.getOriginalFilename();
+		if (file.getSize() <= getMaxFileSize()) {
+			byte[] content = file.getBytes();
+			return savePacked(filename, content, content.length);
+		}
+		largeFiles.saveFileToStorage(file);
+		return removePacked(filename);
+	}
+
+	/**
+	 * Reads up to the size threshold from the stream to decide where the file belongs. Larger files are handed to the
+	 * local repository with what was read pushed back onto the stream.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException {
+		int maxFileSize = getMaxFileSize();
+		PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, maxFileSize + 1);
+		byte[] content = new byte[maxFileSize + 1];
+		int length = pushbackInputStream.readNBytes(content, 0, content.length);
+		if (length <= maxFileSize) {
+			return savePacked(filename, content, length);
+		}
+
+		pushbackInputStream.unread(content, 0, length);
+		largeFiles.saveFileToStorage(filename, pushbackInputStream);
+		return removePacked(filename);
+	}
+
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile) throws IOException {
+		if (Files.size(stagedFile) <= getMaxFileSize()) {
+			byte[] content = Files.readAllBytes(stagedFile);
+			savePacked(filename, content, content.length);
+			Files.delete(stagedFile);
+			return true;
+		}
+		largeFiles.saveFileToStorage(filename, stagedFile);
+		return removePacked(filename);
+	}
+
+	/**
+	 * Small files are packed from their content, so the digest is only passed on for large files.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile, String digest) throws IOException {
+		if (Files.size(stagedFile) <= getMaxFileSize()) {
+			return saveFileToStorage(filename, stagedFile);
+		}
+		largeFiles.saveFileToStorage(filename, stagedFile, digest);
+		return removePacked(filename);
+	}
+
+	@Override
+	public boolean deleteFileFromStorage(String filename) throws IOException {
+		if (!entries.containsKey(filename)) {
+			return largeFiles.deleteFileFromStorage(filename);
+		}
+		if (!removePacked(filename)) {
+			throw new NoSuchFileException(filename);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a packed file with a single positional read. If the segment is compacted away during the read, the read
+	 * is retried from where the file was moved to.
+	 */
+	@Override
+	public Resource getFileFromStorage(String filename) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			PackEntry entry = entries.get(filename);
+			if (entry == null) {
+				return largeFiles.getFileFromStorage(filename);
+			}
+
+			Segment segment = segments.get(entry.segmentId());
+			try {
+				if (segment == null) {
+					throw new ClosedChannelException();
+				}
+				byte[] content = new byte[entry.length()];
+				segment.read(ByteBuffer.wrap(content), entry.contentOffset());
+				return new PackedResource(content, entry.lastModified());
+			} catch (ClosedChannelException e) {
+				if (attempt >= MAX_READ_ATTEMPTS) {
+					throw e;
+				}
+				LOGGER.debug("Segment of file [{}] was compacted during the read, retrying", filename);
+			}
+		}
+	}
+
+	@Override
+	public FileMetadata getFileMetadata(String filename) throws IOException {
+		PackEntry entry = entries.get(filename);
+		if (entry == null) {
+			return largeFiles.getFileMetadata(filename);
+		}
+		return new FileMetadata(filename, entry.length(), entry.lastModified(), entry.digest());
+	}
+
+	@Override
+	public boolean fileExists(String filename) {
+		return entries.containsKey(filename) || largeFiles.fileExists(filename);
+	}
+
+	/**
+	 * Compacts every segment but the active one whose share of dead records has reached the threshold, then writes
+	 * the index if anything changed since it was last written.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.pack.compaction-interval:PT5M}",
+			initialDelayString = "${storage.file.pack.compaction-interval:PT5M}")
+	public void compact() {
+		double threshold = fileStorageProperties.getPack().getCompactionThreshold();
+		for (Segment segment : List.copyOf(segments.values())) {
+			if (segment == activeSegment || segment.getGarbageRatio() < threshold) {
+				continue;
+			}
+			try {
+				compactSegment(segment);
+			} catch (IOException e) {
+				LOGGER.warn("Unable to compact segment [{}]", segment.path, e);
+			}
+		}
+
+		try {
+			persistIndex();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write the pack index in [{}]", packPath, e);
+		}
+	}
+
+	/**
+	 * Copies the records of the segment that are still live to the active segment and deletes the segment. Tombstones
+	 * are copied too while an older segment could still hold the record they delete.
+	 */
+	private void compactSegment(Segment segment) throws IOException {
+		boolean olderSegments = segments.firstKey() < segment.id;
+		int copied = 0;
+		try (DataInputStream in = openSegment(segment, SEGMENT_HEADER_LENGTH)) {
+			long offset = SEGMENT_HEADER_LENGTH;
+			PackRecord record;
+			while (offset < segment.length && (record = readRecord(in, offset)) != null) {
+				if (copyIfLive(segment, record, olderSegments)) {
+					copied++;
+				}
+				offset += record.bytes().length;
+			}
+		}
+
+		appendLock.lock();
+		try {
+			activeSegment.force();
+			segments.remove(segment.id);
+			indexDirty = true;
+		} finally {
+			appendLock.unlock();
+		}
+		persistIndex();
+		segment.retire();
+		Files.deleteIfExists(segment.path);
+		LOGGER.info("Compacted segment [{}], copying [{}] live records", segment.path, copied);
+	}
+
+	private boolean copyIfLive(Segment segment, PackRecord record, boolean olderSegments) throws IOException {
+		appendLock.lock();
+		try {
+			PackEntry entry = entries.get(record.filename());
+			if (record.type() == PUT) {
+				if (entry == null || entry.segmentId() != segment.id || entry.recordOffset() != record.offset()) {
+					return false;
+				}
+				entries.put(record.filename(), append(record));
+				return true;
+			}
+			if (entry != null || !olderSegments) {
+				return false;
+			}
+			append(record);
+			activeSegment.garbageBytes.addAndGet(record.bytes().length);
+			return true;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	private boolean savePacked(String filename, byte[] content, int length) throws IOException {
+		String digest = HexFormat.of().formatHex(digest(content, length));
+		PackRecord record = encode(PUT, filename, System.currentTimeMillis(), content, length, digest);
+		appendLock.lock();
+		try {
+			PackEntry previous = entries.put(filename, append(record));
+			if (previous != null) {
+				markGarbage(previous);
+			}
+		} finally {
+			appendLock.unlock();
+		}
+
+		if (largeFiles.fileExists(filename)) {
+			largeFiles.deleteFileFromStorage(filename);
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a tombstone for the file if it is packed.
+	 *
+	 * @return whether the file was packed
+	 */
+	private boolean removePacked(String filename) throws IOException {
+		if (!entries.containsKey(filename)) {
+			return true;
+		}
+
+		PackRecord tombstone = encode(DELETE, filename, System.currentTimeMillis(), new byte[0], 0, null);
+		appendLock.lock();
+		try {
+			PackEntry previous = entries.get(filename);
+			if (previous == null) {
+				return false;
+			}
+			append(tombstone);
+			entries.remove(filename);
+			markGarbage(previous);
+			activeSegment.garbageBytes.addAndGet(tombstone.bytes().length);
+			return true;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the record to the active segment, starting a new segment first if it is full. Must be called with the
+	 * append lock held.
+	 *
+	 * @return the entry locating the record
+	 */
+	private PackEntry append(PackRecord record) throws IOException {
+		Segment segment = activeSegment;
+		if (segment.length > SEGMENT_HEADER_LENGTH && segment.length + record.bytes().length > getSegmentSize()) {
+			segment.seal();
+			segment = createSegment();
+			activeSegment = segment;
+		}
+
+		long offset = segment.length;
+		segment.write(ByteBuffer.wrap(record.bytes()), offset);
+		segment.length = offset + record.bytes().length;
+		indexDirty = true;
+		return new PackEntry(segment.id, offset, record.bytes().length, record.contentLength(), record.lastModified(),
+				record.digest());
+	}
+
+	private void markGarbage(PackEntry entry) {
+		Segment segment = segments.get(entry.segmentId());
+		if (segment != null) {
+			segment.garbageBytes.addAndGet(entry.recordLength());
+		}
+	}
+
+	/**
+	 * Applies the records of the segment from the given offset. The segment is truncated at a record that is torn or
+	 * corrupt, which can only be the last record written before the application stopped.
+	 *
+	 * @return the number of records applied
+	 */
+	private int recoverSegment(Segment segment, long from) throws IOException {
+		long fileLength = Files.size(segment.path);
+		if (fileLength < SEGMENT_HEADER_LENGTH) {
+			LOGGER.warn("Removing segment [{}] whose header was never written", segment.path);
+			segments.remove(segment.id);
+			Files.delete(segment.path);
+			return 0;
+		}
+		long offset = from;
+		int records = 0;
+		try (DataInputStream in = openSegment(segment, from)) {
+			PackRecord record;
+			while ((record = readRecord(in, offset)) != null) {
+				PackEntry entry = new PackEntry(segment.id, offset, record.bytes().length, record.contentLength(),
+						record.lastModified(), record.digest());
+				PackEntry previous = record.type() == PUT
+						? entries.put(record.filename(), entry)
+						: entries.remove(record.filename());
+				if (previous != null) {
+					markGarbage(previous);
+				}
+				if (record.type() == DELETE) {
+					segment.garbageBytes.addAndGet(record.bytes().length);
+				}
+				offset += record.bytes().length;
+				records++;
+			}
+		} catch (EOFException | CorruptRecordException e) {
+			LOGGER.warn("Truncating segment [{}] at [{}] bytes after an incomplete record", segment.path, offset);
+		}
+
+		segment.length = offset;
+		if (fileLength > offset) {
+			segment.truncate(offset);
+		}
+		return records;
+	}
+
+	private DataInputStream openSegment(Segment segment, long from) throws IOException {
+		InputStream inputStream = Files.newInputStream(segment.path);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+			readHeader(in, SEGMENT_MAGIC, segment.path);
+			in.skipNBytes(from - SEGMENT_HEADER_LENGTH);
+			return in;
+		} catch (IOException e) {
+			inputStream.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the record at the current position, or {@code null} at the end of the segment
+	 */
+	private static PackRecord readRecord(DataInputStream in, long offset) throws IOException {
+		int first = in.read();
+		if (first == -1) {
+			return null;
+		}
+		int checksum = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		byte type = in.readByte();
+		int filenameLength = in.readUnsignedShort();
+		long lastModified = in.readLong();
+		int contentLength = in.readInt();
+		if ((type != PUT && type != DELETE) || filenameLength == 0 || filenameLength > MAX_FILENAME_LENGTH
+				|| contentLength < 0 || (type == DELETE && contentLength != 0)) {
+			throw new CorruptRecordException("Invalid record header");
+		}
+
+		int bodyLength = filenameLength + (type == PUT ? DIGEST_LENGTH + contentLength : 0);
+		byte[] bytes = new byte[RECORD_HEADER_LENGTH + bodyLength];
+		ByteBuffer.wrap(bytes)
+				.putInt(checksum)
+				.put(type)
+				.putShort((short) filenameLength)
+				.putLong(lastModified)
+				.putInt(contentLength);
+		in.readFully(bytes, RECORD_HEADER_LENGTH, bodyLength);
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, Integer.BYTES, bytes.length - Integer.BYTES);
+		if ((int) crc.getValue() != checksum) {
+			throw new CorruptRecordException("Record checksum does not match");
+		}
+
+		String filename = new String(bytes, RECORD_HEADER_LENGTH, filenameLength, StandardCharsets.UTF_8);
+		String digest = type == PUT
+				? HexFormat.of().formatHex(bytes, RECORD_HEADER_LENGTH + filenameLength,
+						RECORD_HEADER_LENGTH + filenameLength + DIGEST_LENGTH)
+				: null;
+		return new PackRecord(type, filename, lastModified, contentLength, digest, offset, bytes);
+	}
+
+	private static PackRecord encode(byte type, String filename, long lastModified, byte[] content, int length,
+			String digest) {
+		byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+		if (filenameBytes.length > MAX_FILENAME_LENGTH) {
+			throw new IllegalArgumentException("Filename [" + filename + "] is too long to be packed");
+		}
+
+		int bodyLength = filenameBytes.length + (type == PUT ? DIGEST_LENGTH + length : 0);
+		byte[] bytes = new byte[RECORD_HEADER_LENGTH + bodyLength];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes)
+				.putInt(0)
+				.put(type)
+				.putShort((short) filenameBytes.length)
+				.putLong(lastModified)
+				.putInt(type == PUT ? length : 0)
+				.put(filenameBytes);
+		if (type == PUT) {
+			buffer.put(HexFormat.of().parseHex(digest)).put(content, 0, length);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, Integer.BYTES, bytes.length - Integer.BYTES);
+		ByteBuffer.wrap(bytes).putInt((int) crc.getValue());
+		return new PackRecord(type, filename, lastModified, type == PUT ? length : 0, digest, -1, bytes);
+	}
+
+	private Segment createSegment() throws IOException {
+		long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Path path = segmentPath(id);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH)
+					.putInt(SEGMENT_MAGIC)
+					.putShort(VERSION)
+					.putLong(id)
+					.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			channel.force(true);
+		}
+
+		Segment segment = new Segment(id, path);
+		segment.length = SEGMENT_HEADER_LENGTH;
+		segments.put(id, segment);
+		LOGGER.debug("Started segment [{}]", path);
+		return segment;
+	}
+
+	/**
+	 * Loads the entries and the length of each segment as they were when the index was written. The index is only
+	 * used if it covers exactly the segments older than the newest one it knows of and none of them has shrunk.
+	 *
+	 * @return whether the index was loaded
+	 */
+	private boolean loadIndex() {
+		Path indexPath = packPath.resolve(INDEX_FILE);
+		if (!Files.exists(indexPath)) {
+			return false;
+		}
+
+		CRC32 crc = new CRC32();
+		Map<String, PackEntry> loadedEntries = new HashMap<>();
+		Map<Long, long[]> loadedSegments = new HashMap<>();
+		try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(indexPath))) {
+			DataInputStream in = new DataInputStream(new CheckedInputStream(inputStream, crc));
+			readHeader(in, INDEX_MAGIC, indexPath);
+			int segmentCount = in.readInt();
+			for (int i = 0; i < segmentCount; i++) {
+				loadedSegments.put(in.readLong(), new long[] { in.readLong(), in.readLong() });
+			}
+			int entryCount = in.readInt();
+			for (int i = 0; i < entryCount; i++) {
+				String filename = in.readUTF();
+				loadedEntries.put(filename, new PackEntry(in.readLong(), in.readLong(), in.readInt(), in.readInt(),
+						in.readLong(), in.readUTF()));
+			}
+			int expected = (int) crc.getValue();
+			if (new DataInputStream(inputStream).readInt() != expected) {
+				throw new IOException("Index checksum does not match");
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to read the pack index [{}], scanning every segment", indexPath, e);
+			return false;
+		}
+
+		long newestIndexed = loadedSegments.keySet().stream().mapToLong(Long::longValue).max().orElse(0);
+		for (Segment segment : segments.values()) {
+			long[] indexed = loadedSegments.remove(segment.id);
+			if (indexed == null && segment.id <= newestIndexed) {
+				LOGGER.warn("Pack index does not cover segment [{}], scanning every segment", segment.path);
+				return false;
+			}
+			try {
+				if (indexed != null && Files.size(segment.path) < indexed[0]) {
+					LOGGER.warn("Segment [{}] is shorter than in the pack index, scanning every segment", segment.path);
+					return false;
+				}
+			} catch (IOException e) {
+				return false;
+			}
+			segment.length = indexed != null ? indexed[0] : SEGMENT_HEADER_LENGTH;
+			segment.garbageBytes.set(indexed != null ? indexed[1] : 0);
+		}
+		if (!loadedSegments.isEmpty()) {
+			LOGGER.warn("Segments {} of the pack index are missing, scanning every segment", loadedSegments.keySet());
+			return false;
+		}
+
+		entries.putAll(loadedEntries);
+		return true;
+	}
+
+	/**
+	 * Writes the entries and the length of every segment to a temporary file that replaces the index once it is on
+	 * disk. The segments are forced first, so the index never refers to records that could still be lost.
+	 */
+	private void persistIndex() throws IOException {
+		synchronized (indexMonitor) {
+			if (!indexDirty) {
+				return;
+			}
+
+			List<Segment> indexedSegments;
+			List<Map.Entry<String, PackEntry>> indexedEntries;
+			appendLock.lock();
+			try {
+				indexDirty = false;
+				if (activeSegment != null) {
+					activeSegment.force();
+				}
+				indexedSegments = new ArrayList<>(segments.values());
+				indexedEntries = new ArrayList<>(entries.entrySet());
+			} finally {
+				appendLock.unlock();
+			}
+
+			try {
+				writeIndex(indexedSegments, indexedEntries);
+			} catch (IOException e) {
+				indexDirty = true;
+				throw e;
+			}
+		}
+	}
+
+	private void writeIndex(List<Segment> indexedSegments, List<Map.Entry<String, PackEntry>> indexedEntries)
+			throws IOException {
+		Path indexPath = packPath.resolve(INDEX_FILE);
+		Path tempPath = packPath.resolve(INDEX_FILE + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(bytes), crc));
+			out.writeInt(INDEX_MAGIC);
+			out.writeShort(VERSION);
+			out.writeLong(0);
+			out.writeInt(indexedSegments.size());
+			for (Segment segment : indexedSegments) {
+				out.writeLong(segment.id);
+				out.writeLong(segment.length);
+				out.writeLong(segment.garbageBytes.get());
+			}
+			out.writeInt(indexedEntries.size());
+			for (Map.Entry<String, PackEntry> indexed : indexedEntries) {
+				PackEntry entry = indexed.getValue();
+				out.writeUTF(indexed.getKey());
+				out.writeLong(entry.segmentId());
+				out.writeLong(entry.recordOffset());
+				out.writeInt(entry.recordLength());
+				out.writeInt(entry.length());
+				out.writeLong(entry.lastModified());
+				out.writeUTF(entry.digest());
+			}
+			out.flush();
+			new DataOutputStream(bytes).writeInt((int) crc.getValue());
+
+			Channels.newOutputStream(channel).write(bytes.toByteArray());
+			channel.force(true);
+		}
+		Files.move(tempPath, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void readHeader(DataInputStream in, int magic, Path path) throws IOException {
+		if (in.readInt() != magic) {
+			throw new IOException("File [" + path + "] is not a pack file");
+		}
+		short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("File [" + path + "] has unsupported version [" + version + "]");
+		}
+		in.readLong();
+	}
+
+	private List<Long> listSegmentIds() throws IOException {
+		try (Stream<Path> stream = Files.list(packPath)) {
+			return stream
+					.map(path -> path.getFileName().toString())
+					.filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+					.map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length())))
+					.sorted()
+					.toList();
+		}
+	}
+
+	private Path segmentPath(long id) {
+		return packPath.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private Path getPackPath() {
+		String directory = fileStorageProperties.getPack().getDirectory();
+		if (directory != null && !directory.isBlank()) {
+			return Paths.get(directory);
+		}
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation()).toAbsolutePath();
+		return basePath.resolveSibling(basePath.getFileName() + ".packs");
+	}
+
+	private int getMaxFileSize() {
+		return (int) Math.min(fileStorageProperties.getPack().getMaxFileSize().toBytes(), Integer.MAX_VALUE - 1);
+	}
+
+	private long getSegmentSize() {
+		return fileStorageProperties.getPack().getSegmentSize().toBytes();
+	}
+
+	private static byte[] digest(byte[] content, int length) {
+		MessageDigest messageDigest = FileLocalRepository.newMessageDigest();
+		messageDigest.update(content, 0, length);
+		return messageDigest.digest();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public int getPackedFileCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the bytes of deleted or overwritten records that compaction has yet to reclaim
+	 */
+	public long getGarbageBytes() {
+		return segments.values().stream().mapToLong(segment -> segment.garbageBytes.get()).sum();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("file.pack.segments", this, FilePackRepository::getSegmentCount)
+				.description("Segment files holding packed files")
+				.register(registry);
+		Gauge.builder("file.pack.files", this, FilePackRepository::getPackedFileCount)
+				.description("Files stored in segments")
+				.register(registry);
+		Gauge.builder("file.pack.garbage", this, FilePackRepository::getGarbageBytes)
+				.description("Bytes of deleted or overwritten records waiting to be compacted")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+
+	/**
+	 * The location of a packed file.
+	 *
+	 * @param segmentId the segment holding the record
+	 * @param recordOffset the offset of the record in the segment
+	 * @param recordLength the length of the whole record
+	 * @param length the length of the content
+	 */
+	private record PackEntry(long segmentId, long recordOffset, int recordLength, int length, long lastModified,
+			String digest) {
+
+		long contentOffset() {
+			return recordOffset + recordLength - length;
+		}
+	}
+
+	private record PackRecord(byte type, String filename, long lastModified, int contentLength, String digest,
+			long offset, byte[] bytes) {
+	}
+
+	/**
+	 * A segment file. Its channel is shared by every read and write, and is reopened if a thread that was interrupted
+	 * while using it closed it.
+	 */
+	private static final class Segment {
+
+		private final long id;
+		private final Path path;
+		private final AtomicLong garbageBytes = new AtomicLong();
+		private volatile FileChannel channel;
+		private volatile boolean retired;
+
+		/**
+		 * The length of the valid records, which is where the next record is written. Only written with the append
+		 * lock held.
+		 */
+		private volatile long length;
+
+		private Segment(long id, Path path) {
+			this.id = id;
+			this.path = path;
+		}
+
+		private FileChannel channel() throws IOException {
+			FileChannel current = channel;
+			if (current != null && current.isOpen()) {
+				return current;
+			}
+			synchronized (this) {
+				if (retired) {
+					throw new ClosedChannelException();
+				}
+				if (channel == null || !channel.isOpen()) {
+					channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				return channel;
+			}
+		}
+
+		private void read(ByteBuffer buffer, long position) throws IOException {
+			FileChannel current = channel();
+			while (buffer.hasRemaining()) {
+				if (current.read(buffer, position + buffer.position()) == -1) {
+					throw new EOFException("Segment [" + path + "] ends before position [" + position + "]");
+				}
+			}
+		}
+
+		private void write(ByteBuffer buffer, long position) throws IOException {
+			FileChannel current = channel();
+			while (buffer.hasRemaining()) {
+				current.write(buffer, position + buffer.position());
+			}
+		}
+
+		private void force() throws IOException {
+			channel().force(false);
+		}
+
+		private void truncate(long size) throws IOException {
+			channel().truncate(size);
+		}
+
+		/**
+		 * Forces the segment and cuts off anything a failed write left past its last record, once nothing more will
+		 * be appended to it.
+		 */
+		private void seal() throws IOException {
+			FileChannel current = channel();
+			current.truncate(length);
+			current.force(true);
+		}
+
+		private double getGarbageRatio() {
+			long records = length - SEGMENT_HEADER_LENGTH;
+			return records <= 0 ? 0 : (double) garbageBytes.get() / records;
+		}
+
+		private synchronized void retire() throws IOException {
+			retired = true;
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * The content of a packed file, read onto the heap, with the time it was saved.
+	 */
+	private static final class PackedResource extends ByteArrayResource {
+
+		private final long lastModified;
+
+		private PackedResource(byte[] byteArray, long lastModified) {
+			super(byteArray);
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public long lastModified() {
+			return lastModified;
+		}
+	}
+
+	private static final class CorruptRecordException extends IOException {
+
+		private CorruptRecordException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,719 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.exceptions.QuorumNotReachedException;
+import ford.james.motorola.functions.LockExecutor;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * {@link FileRepository} that keeps a copy of every file on this instance and on each instance in
+ * {@code storage.file.replication.peers}, so losing an instance loses no files and reads can be spread over them.
+ * Every instance runs with the same peers, less itself, and any of them accepts saves and deletes.
+ * <p>
+ * A save is stored locally and then sent to every peer in parallel, succeeding once {@code write-quorum} instances,
+ * including this one, have stored it. Reads are served by a single replica: this instance if it has the file and is
+ * no busier than the least loaded peer, otherwise the least loaded peer. Every copy of a file carries the time it was
+ * saved at, and deletes leave a tombstone with the time they were made at, so conflicting changes are settled by the
+ * latest one winning.
+ * <p>
+ * Replicas that missed a change, because they were unreachable or the write returned once the quorum was reached, are
+ * brought up to date by anti-entropy. Every {@code anti-entropy-interval} this instance compares a hash of each of
+ * {@value #BUCKETS} buckets of its files with each peer, and for the buckets that differ pulls the newer files and
+ * applies the newer deletes.
+ * <p>
+ * The changes received from other replicas and made by anti-entropy are applied through
+ * {@link ford.james.motorola.services.FileReplicaService}, which holds the write lock of the file around them.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "replicated")
+public class FileReplicatedRepository implements FileRepository, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileReplicatedRepository.class);
+
+	/**
+	 * Header carrying the time a replicated save or delete was made at on the instance that accepted it.
+	 */
+	public static final String TIMESTAMP_HEADER = "X-Replica-Timestamp";
+
+	/**
+	 * Header in which every replica response reports the number of transfers in progress on the instance.
+	 */
+	public static final String LOAD_HEADER = "X-Replica-Load";
+
+	static final int BUCKETS = 256;
+	private static final int BUCKET_HASH_BYTES = 8;
+
+	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+	private final FileLocalRepository localRepository;
+	private final List<ReplicaPeer> peers;
+	private final ReplicaTombstones tombstones;
+	private final AtomicLong repairCount = new AtomicLong();
+	private final AtomicLong quorumFailureCount = new AtomicLong();
+
+	public FileReplicatedRepository(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
+		FileStorageProperties.Replication replication = fileStorageProperties.getReplication();
+		int replicas = replication.getPeers().size() + 1;
+		if (replication.getWriteQuorum() < 1 || replication.getWriteQuorum() > replicas) {
+			throw new IllegalArgumentException("The write quorum of [" + replication.getWriteQuorum()
+					+ "] must be between 1 and the number of replicas [" + replicas + "]");
+		}
+
+		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+		this.localRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		this.tombstones = new ReplicaTombstones(getTombstonesPath());
+
+		HttpClient httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(replication.getConnectTimeout())
+				.build();
+		String authorization = replication.getUsername() != null
+				? "Basic " + Base64.getEncoder().encodeToString(
+						(replication.getUsername() + ":" + replication.getPassword()).getBytes(StandardCharsets.UTF_8))
+				: null;
+		ObjectMapper objectMapper = new ObjectMapper();
+		this.peers = replication.getPeers().stream()
+				.map(peer -> new ReplicaPeer(peer, httpClient, authorization, replication.getRequestTimeout(),
+						replication.getLookupTimeout(), objectMapper))
+				.toList();
+	}
+
+	@PostConstruct
+	public void initialise() throws IOException {
+		Files.createDirectories(Paths.get(fileStorageProperties.getBaseLocation()));
+		localRepository.initialiseIndex();
+		tombstones.open(getTombstoneCutoff());
+		LOGGER.info("Replicating to peers {} with a write quorum of [{}], remembering [{}] deletes", peers,
+				fileStorageProperties.getReplication().getWriteQuorum(), tombstones.size());
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		try {
+			tombstones.close();
+		} finally {
+			localRepository.close();
+		}
+	}
+
+	/**
+	 * Runs the journal snapshots and index reconciles of the local copies, as the local repository is not a bean.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.journal.snapshot-interval:PT1M}",
+			initialDelayString = "${storage.file.journal.snapshot-interval:PT1M}")
+	public void snapshotJournal() {
+		localRepository.snapshotJournal();
+	}
+
+	@Scheduled(fixedDelayString = "${storage.file.index.reconcile-interval:PT5M}",
+			initialDelayString = "${storage.file.index.reconcile-interval:PT5M}")
+	public void reconcileIndex() {
+		localRepository.reconcileIndex();
+	}
+
+	/**
+	 * Lists the files stored on this instance, which lacks the files whose save it has not received yet.
+	 */
+	@Override
+	public Set<String> listFilenames() throws IOException {
+		return localRepository.listFilenames();
+	}
+
+	@Override
+	public boolean saveFileToStorage(MultipartFile file) throws IOException {
+		long timestamp = System.currentTimeMillis();
+		localRepository.saveFileToStorage(file);
+		return replicateSave(file.getOriginalFilename(), timestamp);
+	}
+
+	@Override
+	public boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException {
+		long timestamp = System.currentTimeMillis();
+		localRepository.saveFileToStorage(filename, inputStream);
+		return replicateSave(filename, timestamp);
+	}
+
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile) throws IOException {
+		long timestamp = System.currentTimeMillis();
+		localRepository.saveFileToStorage(filename, stagedFile);
+		return replicateSave(filename, timestamp);
+	}
+
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile, String digest) throws IOException {
+		long timestamp = System.currentTimeMillis();
+		localRepository.saveFileToStorage(filename, stagedFile, digest);
+		return replicateSave(filename, timestamp);
+	}
+
+	/**
+	 * Records a tombstone and deletes the file from every replica, succeeding once the quorum has deleted it. A delete
+	 * that misses the quorum may still reach the other replicas through anti-entropy.
+	 */
+	@Override
+	public boolean deleteFileFromStorage(String filename) throws IOException {
+		long deletedAt = System.currentTimeMillis();
+		tombstones.add(filename, deletedAt);
+		deleteLocally(filename);
+
+		int acknowledged = awaitQuorum("delete", filename,
+				peers.stream().map(peer -> peer.delete(filename, deletedAt)).toList());
+		if (acknowledged < getWriteQuorum()) {
+			quorumFailureCount.incrementAndGet();
+			throw new QuorumNotReachedException("The file [" + filename + "] was only deleted by [" + acknowledged
+					+ "] of the [" + getWriteQuorum() + "] replicas required");
+		}
+		return true;
+	}
+
+	@Override
+	public Resource getFileFromStorage(String filename) throws IOException {
+		ReplicaPeer peer = leastLoadedPeer();
+		if (localRepository.fileExists(filename)) {
+			Resource localResource = localRepository.getFileFromStorage(filename);
+			if (peer == null || peer.getLoad() >= getLocalLoad()) {
+				return localResource;
+			}
+			return new ReplicaResource(peer, filename, localResource.contentLength(), localResource);
+		}
+
+		for (ReplicaPeer candidate : peersByLoad()) {
+			ReplicaEntry entry = findEntry(candidate, filename);
+			if (entry != null && !entry.deleted()) {
+				return new ReplicaResource(candidate, filename, entry.size(), null);
+			}
+		}
+		throw new NoSuchFileException(filename);
+	}
+
+	@Override
+	public FileMetadata getFileMetadata(String filename) throws IOException {
+		if (localRepository.fileExists(filename)) {
+			try {
+				return localRepository.getFileMetadata(filename);
+			} catch (NoSuchFileException e) {
+				LOGGER.debug("File [{}] was deleted locally while reading its metadata", filename);
+			}
+		}
+
+		ReplicaEntry entry = findRemoteEntry(filename);
+		if (entry == null) {
+			throw new NoSuchFileException(filename);
+		}
+		return new FileMetadata(filename, entry.size(), entry.lastModified(), entry.digest());
+	}
+
+	/**
+	 * Answers from this instance alone, so a file saved through another instance that has not reached this one yet is
+	 * reported missing. Reads still find such a file, as {@link #getFileMetadata} and {@link #getFileFromStorage} fall
+	 * back to the peers.
+	 */
+	@Override
+	public boolean fileExists(String filename) {
+		return localRepository.fileExists(filename);
+	}
+
+	/**
+	 * Stores a file saved through another instance, unless this instance has since seen it deleted.
+	 *
+	 * @param timestamp the time the file was saved at
+	 * @return whether the file was stored
+	 */
+	public boolean applySave(String filename, long timestamp, InputStream inputStream) throws IOException {
+		Long deletedAt = tombstones.get(filename);
+		if (deletedAt != null && deletedAt >= timestamp) {
+			LOGGER.debug("Ignoring save of file [{}] from [{}] as it was deleted at [{}]", filename, timestamp,
+					deletedAt);
+			return false;
+		}
+		localRepository.saveFileToStorage(filename, inputStream);
+		localRepository.setLastModified(filename, timestamp);
+		return true;
+	}
+
+	/**
+	 * Applies a delete made through another instance, keeping the file if it was saved after the delete.
+	 *
+	 * @param deletedAt the time the file was deleted at
+	 */
+	public void applyDelete(String filename, long deletedAt) throws IOException {
+		tombstones.add(filename, deletedAt);
+		ReplicaEntry entry = getReplicaEntry(filename);
+		if (entry != null && !entry.deleted() && entry.lastModified() <= deletedAt) {
+			deleteLocally(filename);
+		}
+	}
+
+	/**
+	 * @return the file stored on this instance
+	 * @throws NoSuchFileException if this instance does not store the file
+	 */
+	public Resource getReplicaResource(String filename) throws IOException {
+		return localRepository.getFileFromStorage(filename);
+	}
+
+	/**
+	 * @return the file stored on this instance or its tombstone, or {@code null} if this instance knows nothing of it
+	 */
+	public ReplicaEntry getReplicaEntry(String filename) throws IOException {
+		if (localRepository.fileExists(filename)) {
+			try {
+				return ReplicaEntry.stored(localRepository.getFileMetadata(filename));
+			} catch (NoSuchFileException e) {
+				LOGGER.debug("File [{}] was deleted locally while reading its metadata", filename);
+			}
+		}
+		Long deletedAt = tombstones.get(filename);
+		return deletedAt != null ? ReplicaEntry.tombstone(filename, deletedAt) : null;
+	}
+
+	/**
+	 * Hashes the name and content digest of the files stored on this instance in each bucket. Tombstones are left out,
+	 * as two replicas that store the same files agree whatever deletes they remember.
+	 *
+	 * @return the hex encoded hash of each bucket
+	 */
+	public List<String> getBucketHashes() throws IOException {
+		MessageDigest[] digests = new MessageDigest[BUCKETS];
+		for (String filename : new TreeSet<>(localRepository.listFilenames())) {
+			FileMetadata metadata;
+			try {
+				metadata = localRepository.getFileMetadata(filename);
+			} catch (NoSuchFileException e) {
+				continue;
+			}
+			int bucket = bucketOf(filename);
+			if (digests[bucket] == null) {
+				digests[bucket] = FileLocalRepository.newMessageDigest();
+			}
+			digests[bucket].update((filename + "\n" + ReplicaEntry.stored(metadata).fingerprint() + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+
+		List<String> hashes = new ArrayList<>(BUCKETS);
+		for (MessageDigest digest : digests) {
+			hashes.add(digest != null ? HexFormat.of().formatHex(digest.digest(), 0, BUCKET_HASH_BYTES) : "");
+		}
+		return hashes;
+	}
+
+	/**
+	 * @return the files stored on this instance and the tombstones in the bucket, ordered by filename
+	 */
+	public List<ReplicaEntry> getBucket(int bucket) throws IOException {
+		if (bucket < 0 || bucket >= BUCKETS) {
+			throw new IllegalArgumentException("Bucket [" + bucket + "] must be between 0 and " + (BUCKETS - 1));
+		}
+
+		Map<String, ReplicaEntry> entries = new TreeMap<>();
+		for (String filename : localRepository.listFilenames()) {
+			if (bucketOf(filename) == bucket) {
+				try {
+					entries.put(filename, ReplicaEntry.stored(localRepository.getFileMetadata(filename)));
+				} catch (NoSuchFileException e) {
+					LOGGER.debug("File [{}] was deleted while listing bucket [{}]", filename, bucket);
+				}
+			}
+		}
+		tombstones.snapshot().forEach((filename, deletedAt) -> {
+			if (bucketOf(filename) == bucket) {
+				entries.putIfAbsent(filename, ReplicaEntry.tombstone(filename, deletedAt));
+			}
+		});
+		return List.copyOf(entries.values());
+	}
+
+	/**
+	 * Brings this instance up to date with every peer, pulling the files it is missing or holds an older copy of and
+	 * applying the deletes it missed. Only the buckets whose hash differs from the peer's are compared file by file.
+	 * Each file is repaired under its write lock, taken through the executor, and files whose lock could not be
+	 * obtained in time are left for the next run.
+	 */
+	public void repair(LockExecutor lockExecutor) {
+		try {
+			tombstones.prune(getTombstoneCutoff());
+		} catch (IOException e) {
+			LOGGER.warn("Unable to prune the tombstones in [{}]", getTombstonesPath(), e);
+		}
+
+		for (ReplicaPeer peer : peers) {
+			try {
+				int repaired = repairFrom(peer, lockExecutor);
+				if (repaired > 0) {
+					LOGGER.info("Repaired [{}] files from peer [{}]", repaired, peer);
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Unable to repair from peer [{}]: {}", peer, e.getMessage());
+			}
+		}
+	}
+
+	private int repairFrom(ReplicaPeer peer, LockExecutor lockExecutor) throws Exception {
+		List<String> peerHashes = peer.getBucketHashes();
+		List<String> localHashes = getBucketHashes();
+		int repaired = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			if (localHashes.get(bucket).equals(peerHashes.get(bucket))) {
+				continue;
+			}
+
+			Map<String, ReplicaEntry> localEntries = new TreeMap<>();
+			getBucket(bucket).forEach(entry -> localEntries.put(entry.filename(), entry));
+			for (ReplicaEntry peerEntry : peer.getBucket(bucket)) {
+				if (!needsRepair(peerEntry, localEntries.get(peerEntry.filename()))) {
+					continue;
+				}
+				try {
+					if (repair(peer, peerEntry, lockExecutor)) {
+						repaired++;
+						repairCount.incrementAndGet();
+					}
+				} catch (LockTimeoutException e) {
+					LOGGER.debug("File [{}] is in use, it will be repaired by the next run", peerEntry.filename());
+				}
+			}
+		}
+		return repaired;
+	}
+
+	/**
+	 * Compares the entries again under the write lock, as the local file may have changed since its bucket was listed.
+	 *
+	 * @return whether this instance was changed to match the peer
+	 */
+	private boolean repair(ReplicaPeer peer, ReplicaEntry peerEntry, LockExecutor lockExecutor) throws Exception {
+		String filename = peerEntry.filename();
+		return lockExecutor.executeWithLock(filename, true, () -> {
+			if (!needsRepair(peerEntry, getReplicaEntry(filename))) {
+				return false;
+			}
+			if (peerEntry.deleted()) {
+				LOGGER.debug("Deleting file [{}] deleted on peer [{}]", filename, peer);
+				applyDelete(filename, peerEntry.lastModified());
+				return true;
+			}
+
+			LOGGER.debug("Copying file [{}] from peer [{}]", filename, peer);
+			try (InputStream inputStream = peer.open(filename)) {
+				return applySave(filename, peerEntry.lastModified(), inputStream);
+			} catch (NoSuchFileException e) {
+				LOGGER.debug("File [{}] was deleted on peer [{}] before it was copied", filename, peer);
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * @return whether the local file or tombstone is older than the entry of the peer
+	 */
+	private static boolean needsRepair(ReplicaEntry peerEntry, ReplicaEntry localEntry) {
+		if (peerEntry.deleted()) {
+			return localEntry != null && !localEntry.deleted() && localEntry.lastModified() <= peerEntry.lastModified();
+		}
+		return localEntry == null || isNewer(peerEntry, localEntry);
+	}
+
+	/**
+	 * Compares a stored file on a peer with the local file or tombstone. Copies saved at the same time with different
+	 * content are ordered by their fingerprint, so every replica settles on the same one.
+	 */
+	private static boolean isNewer(ReplicaEntry peerEntry, ReplicaEntry localEntry) {
+		if (localEntry.deleted()) {
+			return peerEntry.lastModified() > localEntry.lastModified();
+		}
+		if (peerEntry.fingerprint().equals(localEntry.fingerprint())) {
+			return false;
+		}
+		if (peerEntry.lastModified() != localEntry.lastModified()) {
+			return peerEntry.lastModified() > localEntry.lastModified();
+		}
+		return peerEntry.fingerprint().compareTo(localEntry.fingerprint()) > 0;
+	}
+
+	/**
+	 * Sends the file just saved locally to every peer and stamps it with the time of the save. If the quorum is not
+	 * reached the save is undone everywhere, so a failed save can be retried.
+	 */
+	private boolean replicateSave(String filename, long timestamp) throws IOException {
+		localRepository.setLastModified(filename, timestamp);
+		Resource resource = localRepository.getFileFromStorage(filename);
+		long length = resource.contentLength();
+
+		int acknowledged = awaitQuorum("save", filename, peers.stream()
+				.map(peer -> peer.save(filename, timestamp, length, () -> openContent(resource)))
+				.toList());
+		if (acknowledged >= getWriteQuorum()) {
+			return true;
+		}
+
+		quorumFailureCount.incrementAndGet();
+		long deletedAt = Math.max(System.currentTimeMillis(), timestamp + 1);
+		tombstones.add(filename, deletedAt);
+		deleteLocally(filename);
+		peers.forEach(peer -> peer.delete(filename, deletedAt).exceptionally(e -> {
+			LOGGER.debug("Unable to undo save of file [{}] on peer [{}]", filename, peer, e);
+			return null;
+		}));
+		throw new QuorumNotReachedException("The file [" + filename + "] was only saved by [" + acknowledged
+				+ "] of the [" + getWriteQuorum() + "] replicas required");
+	}
+
+	/**
+	 * Waits until enough peers have acknowledged the change for the quorum to be reached, or so many have failed that
+	 * it cannot be. The remaining requests carry on in the background.
+	 *
+	 * @return the number of replicas that had acknowledged the change, including this one
+	 */
+	private int awaitQuorum(String operation, String filename, List<CompletableFuture<Void>> requests)
+			throws IOException {
+		int required = getWriteQuorum() - 1;
+		int tolerated = requests.size() - required;
+		AtomicInteger acknowledged = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		CompletableFuture<Void> decided = new CompletableFuture<>();
+		if (required <= 0) {
+			decided.complete(null);
+		}
+
+		for (int i = 0; i < requests.size(); i++) {
+			ReplicaPeer peer = peers.get(i);
+			requests.get(i).whenComplete((result, e) -> {
+				if (e == null) {
+					if (acknowledged.incrementAndGet() >= required) {
+						decided.complete(null);
+					}
+					return;
+				}
+				LOGGER.warn("Unable to {} file [{}] on peer [{}]: {}", operation, filename, peer,
+						ReplicaPeer.unwrap(e).getMessage());
+				if (failed.incrementAndGet() > tolerated) {
+					decided.complete(null);
+				}
+			});
+		}
+
+		try {
+			decided.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the " + operation + " of [" + filename
+					+ "] to reach the quorum");
+		} catch (ExecutionException e) {
+			throw ReplicaPeer.unwrap(e);
+		}
+		return acknowledged.get() + 1;
+	}
+
+	/**
+	 * @return the matching entry from the first peer that knows the file, asking every peer at once, or {@code null}
+	 * if none stores it or it was deleted after the peer stored it
+	 */
+	private ReplicaEntry findRemoteEntry(String filename) throws IOException {
+		List<CompletableFuture<ReplicaEntry>> requests = peers.stream()
+				.map(peer -> peer.getEntry(filename).exceptionally(e -> {
+					LOGGER.debug("Unable to look up file [{}] on peer [{}]", filename, peer, e);
+					return null;
+				}))
+				.toList();
+		Long deletedAt = tombstones.get(filename);
+		ReplicaEntry latest = null;
+		for (CompletableFuture<ReplicaEntry> request : requests) {
+			ReplicaEntry entry = join(request, filename);
+			if (entry != null && (latest == null || entry.lastModified() > latest.lastModified())) {
+				latest = entry;
+			}
+		}
+		if (latest == null || latest.deleted() || (deletedAt != null && deletedAt >= latest.lastModified())) {
+			return null;
+		}
+		return latest;
+	}
+
+	private ReplicaEntry findEntry(ReplicaPeer peer, String filename) throws IOException {
+		return join(peer.getEntry(filename).exceptionally(e -> {
+			LOGGER.debug("Unable to look up file [{}] on peer [{}]", filename, peer, e);
+			return null;
+		}), filename);
+	}
+
+	private static <T> T join(CompletableFuture<T> future, String filename) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while looking up file [" + filename + "]");
+		} catch (ExecutionException e) {
+			throw ReplicaPeer.unwrap(e);
+		}
+	}
+
+	private boolean deleteLocally(String filename) throws IOException {
+		try {
+			return localRepository.deleteFileFromStorage(filename);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	private ReplicaPeer leastLoadedPeer() {
+		return peers.stream().min(Comparator.comparingInt(ReplicaPeer::getLoad)).orElse(null);
+	}
+
+	private List<ReplicaPeer> peersByLoad() {
+		return peers.stream().sorted(Comparator.comparingInt(ReplicaPeer::getLoad)).toList();
+	}
+
+	/**
+	 * @return the transfers in progress on this instance, less the one asking
+	 */
+	private int getLocalLoad() {
+		return Math.max(fileMetrics.getActiveTransfers() - 1, 0);
+	}
+
+	private static InputStream openContent(Resource resource) {
+		try {
+			return resource.getInputStream();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static int bucketOf(String filename) {
+		return Math.floorMod(filename.hashCode(), BUCKETS);
+	}
+
+	private int getWriteQuorum() {
+		return fileStorageProperties.getReplication().getWriteQuorum();
+	}
+
+	private long getTombstoneCutoff() {
+		return System.currentTimeMillis() - fileStorageProperties.getReplication().getTombstoneRetention().toMillis();
+	}
+
+	private Path getTombstonesPath() {
+		String path = fileStorageProperties.getReplication().getTombstones();
+		if (path != null && !path.isBlank()) {
+			return Paths.get(path);
+		}
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation()).toAbsolutePath();
+		return basePath.resolveSibling(basePath.getFileName() + ".replica-tombstones");
+	}
+
+	public long getRepairCount() {
+		return repairCount.get();
+	}
+
+	public int getTombstoneCount() {
+		return tombstones.size();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("file.replication.tombstones", this, FileReplicatedRepository::getTombstoneCount)
+				.description("Deletes remembered so that anti-entropy does not bring the files back")
+				.register(registry);
+		FunctionCounter.builder("file.replication.repairs", repairCount, AtomicLong::get)
+				.description("Files copied or deleted by anti-entropy to match a peer")
+				.register(registry);
+		FunctionCounter.builder("file.replication.quorum.failures", quorumFailureCount, AtomicLong::get)
+				.description("Saves and deletes that were not acknowledged by the write quorum")
+				.register(registry);
+	}
+
+	/**
+	 * A file read from a peer. Each call to {@link #getInputStream()} makes a new request, falling back to the local
+	 * copy if there is one and the peer cannot be read from.
+	 */
+	private static class ReplicaResource extends AbstractResource {
+
+		private final ReplicaPeer peer;
+		private final String filename;
+		private final long contentLength;
+		private final Resource fallback;
+
+		private ReplicaResource(ReplicaPeer peer, String filename, long contentLength, Resource fallback) {
+			this.peer = peer;
+			this.filename = filename;
+			this.contentLength = contentLength;
+			this.fallback = fallback;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			try {
+				return peer.open(filename);
+			} catch (IOException e) {
+				if (fallback == null) {
+					throw e;
+				}
+				LOGGER.debug("Unable to read file [{}] from peer [{}], reading the local copy", filename, peer, e);
+				return fallback.getInputStream();
+			}
+		}
+
+		@Override
+		public boolean exists() {
+			return true;
+		}
+
+		@Override
+		public long contentLength() {
+			return contentLength;
+		}
+
+		@Override
+		public String getFilename() {
+			return filename;
+		}
+
+		@Override
+		public String getDescription() {
+			return "File [" + filename + "] on replica [" + peer + "]";
+		}
+	}
+}
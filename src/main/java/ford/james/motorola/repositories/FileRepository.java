@@ -1,6 +1,8 @@
 package ford.james.motorola.repositories;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Set;
 
@@ -14,9 +16,40 @@ public interface FileRepository {
 
 	boolean saveFileToStorage(MultipartFile file) throws IOException;
 
+	/**
+	 * Saves the content of the stream under the given filename. The stream is read until it is exhausted and is not
+	 * closed by the repository.
+	 */
+	boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException;
+
+	/**
+	 * Saves a complete file that has been staged on the local disk under the given filename. The staged file belongs
+	 * to the repository afterwards, which may move it into place rather than copy it.
+	 */
+	default boolean saveFileToStorage(String filename, Path stagedFile) throws IOException {
+		try (InputStream inputStream = Files.newInputStream(stagedFile)) {
+			return saveFileToStorage(filename, inputStream);
+		}
+	}
+
+	/**
+	 * Saves a staged file whose SHA-256 digest, as a hex string, has already been computed by the caller, so
+	 * repositories that store the digest do not have to read the file again while the write lock is held.
+	 */
+	default boolean saveFileToStorage(String filename, Path stagedFile, String digest) throws IOException {
+		return saveFileToStorage(filename, stagedFile);
+	}
+
 	boolean deleteFileFromStorage(String filename) throws IOException;
 
 	Resource getFileFromStorage(String filename) throws IOException;
 
+	/**
+	 * Returns the size, last modified time and content digest of the file without reading its content.
+	 *
+	 * @throws java.nio.file.NoSuchFileException if the file does not exist
+	 */
+	FileMetadata getFileMetadata(String filename) throws IOException;
+
 	boolean fileExists(String filename);
 }
@@ -0,0 +1,486 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.utils.BufferPool;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * {@link FileRepository} that stores each file as an object in an S3 compatible bucket, under the configured prefix.
+ * <p>
+ * A file that fits in one part is uploaded in a single request. Larger files are uploaded in parts, several at once,
+ * while the next part is read from the stream, so at most {@code storage.file.s3.upload-concurrency} parts of a file
+ * are ever held in memory. The start of every file is read into a small buffer first, so only files larger than that
+ * take a part buffer, and all uploads together hold at most {@code storage.file.s3.max-buffered-parts} part buffers,
+ * waiting for one to be released beyond that. S3 limits an upload to {@value #MAX_PARTS} parts, so a file can be at
+ * most that many times {@code storage.file.s3.part-size}. A failed upload is aborted, which leaves any previous version
+ * of the file in place. Downloads stream only the requested range straight from the bucket.
+ * <p>
+ * The listing is read a page at a time, and both the listing and the metadata of objects may be cached for
+ * {@code storage.file.s3.cache-ttl}. Changes made through this repository update the cache straight away, changes made
+ * by other writers are seen once the cache expires.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "s3")
+public class FileS3Repository implements FileRepository, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileS3Repository.class);
+
+	/**
+	 * Smallest part S3 accepts for any part of a multipart upload but the last.
+	 */
+	static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	/**
+	 * Largest number of parts S3 accepts for a multipart upload.
+	 */
+	static final int MAX_PARTS = 10_000;
+
+	/**
+	 * Bytes read before a part buffer is taken, so a small file is uploaded without one.
+	 */
+	private static final int HEAD_SIZE = 64 * 1024;
+
+	private final FileStorageProperties.S3 s3;
+	private final int maxParts;
+	private final S3Client s3Client;
+	private final BufferPool partBuffers;
+	private final Semaphore partBufferPermits;
+	private final int headSize;
+	private final Cache<String, S3Client.S3Object> objectCache;
+	private final AtomicInteger partsInFlight = new AtomicInteger();
+	private final AtomicLong multipartUploadCount = new AtomicLong();
+	private final AtomicLong abortedUploadCount = new AtomicLong();
+
+	private volatile Listing listing;
+
+	@Autowired
+	public FileS3Repository(FileStorageProperties fileStorageProperties) {
+		this(fileStorageProperties, MIN_PART_SIZE, MAX_PARTS);
+	}
+
+	/**
+	 * @param minPartSize the smallest part size accepted, lowered by tests that run against a fake bucket
+	 * @param maxParts the largest number of parts in an upload, lowered by tests that run against a fake bucket
+	 */
+	FileS3Repository(FileStorageProperties fileStorageProperties, long minPartSize, int maxParts) {
+		FileStorageProperties.S3 s3 = fileStorageProperties.getS3();
+		if (s3.getBucket() == null || s3.getBucket().isBlank()) {
+			throw new IllegalArgumentException("The bucket to store files in must be set");
+		}
+		long partSize = s3.getPartSize().toBytes();
+		if (partSize < minPartSize || partSize > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("The part size of [" + s3.getPartSize() + "] must be at least ["
+					+ minPartSize + "] bytes and fit in a byte array");
+		}
+		if (s3.getUploadConcurrency() < 1) {
+			throw new IllegalArgumentException("The upload concurrency of [" + s3.getUploadConcurrency()
+					+ "] must be at least 1");
+		}
+		if (s3.getMaxBufferedParts() < 1) {
+			throw new IllegalArgumentException("The maximum of [" + s3.getMaxBufferedParts()
+					+ "] buffered parts must be at least 1");
+		}
+
+		this.s3 = s3;
+		this.maxParts = maxParts;
+		this.s3Client = new S3Client(s3, HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(s3.getConnectTimeout())
+				.build());
+		this.partBuffers = new BufferPool((int) partSize, s3.getMaxBufferedParts());
+		this.partBufferPermits = new Semaphore(s3.getMaxBufferedParts(), true);
+		this.headSize = (int) Math.min(HEAD_SIZE, partSize);
+		this.objectCache = isCacheEnabled()
+				? Caffeine.newBuilder()
+						.expireAfterWrite(s3.getCacheTtl())
+						.maximumSize(s3.getCacheMaxEntries())
+						.build()
+				: null;
+		LOGGER.info("Storing files in bucket [{}] under prefix [{}] of [{}]", s3.getBucket(), s3.getPrefix(),
+				s3.getEndpoint());
+	}
+
+	/**
+	 * Lists the objects under the prefix page by page, or answers from the cached listing while it is fresh.
+	 */
+	@Override
+	public Set<String> listFilenames() throws IOException {
+		Listing cached = listing;
+		if (cached != null && System.nanoTime() - cached.listedAt() < s3.getCacheTtl().toNanos()) {
+			return new HashSet<>(cached.filenames());
+		}
+
+		String prefix = s3.getPrefix();
+		Set<String> filenames = ConcurrentHashMap.newKeySet();
+		String continuationToken = null;
+		do {
+			S3Client.ListPage page = s3Client.listObjects(prefix, continuationToken, s3.getListPageSize());
+			page.keys().forEach(key -> filenames.add(key.substring(prefix.length())));
+			continuationToken = page.nextContinuationToken();
+		} while (continuationToken != null);
+
+		if (isCacheEnabled()) {
+			listing = new Listing(filenames, System.nanoTime());
+		}
+		return new HashSet<>(filenames);
+	}
+
+	@Override
+	public boolean saveFileToStorage(MultipartFile file) throws IOException {
+		checkSize(file.getOriginalFilename(), file.getSize());
+		try (InputStream inputStream = file.getInputStream()) {
+			return saveFileToStorage(file.getOriginalFilename(), inputStream);
+		}
+	}
+
+	/**
+	 * Refuses a file too large to upload before any of it is sent.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile) throws IOException {
+		checkSize(filename, Files.size(stagedFile));
+		return FileRepository.super.saveFileToStorage(filename, stagedFile);
+	}
+
+	/**
+	 * Reads the start of the file and then the rest of the first part to decide how to upload the file. A file that
+	 * ends within the first part is uploaded in one request together with its digest, and anything longer is uploaded
+	 * in parts.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException {
+		String key = toKey(filename);
+		MessageDigest messageDigest = FileLocalRepository.newMessageDigest();
+		DigestInputStream digestInputStream = new DigestInputStream(inputStream, messageDigest);
+
+		byte[] head = digestInputStream.readNBytes(headSize);
+		if (head.length < headSize) {
+			s3Client.putObject(key, HttpRequest.BodyPublishers.ofByteArray(head),
+					HexFormat.of().formatHex(messageDigest.digest()));
+			saved(filename, key);
+			return true;
+		}
+
+		byte[] firstPart = acquirePartBuffer();
+		int length;
+		try {
+			System.arraycopy(head, 0, firstPart, 0, head.length);
+			length = head.length
+					+ digestInputStream.readNBytes(firstPart, head.length, firstPart.length - head.length);
+		} catch (IOException e) {
+			releasePartBuffer(firstPart);
+			throw e;
+		}
+
+		if (length < firstPart.length) {
+			try {
+				s3Client.putObject(key, HttpRequest.BodyPublishers.ofByteArray(firstPart, 0, length),
+						HexFormat.of().formatHex(messageDigest.digest()));
+			} finally {
+				releasePartBuffer(firstPart);
+			}
+		} else {
+			digestInputStream.on(false);
+			uploadInParts(key, firstPart, digestInputStream);
+		}
+
+		saved(filename, key);
+		return true;
+	}
+
+	@Override
+	public boolean deleteFileFromStorage(String filename) throws IOException {
+		s3Client.deleteObject(toKey(filename));
+		if (objectCache != null) {
+			objectCache.invalidate(filename);
+		}
+		Listing cached = listing;
+		if (cached != null) {
+			cached.filenames().remove(filename);
+		}
+		return true;
+	}
+
+	@Override
+	public Resource getFileFromStorage(String filename) throws IOException {
+		return new S3ObjectResource(filename, s3Client, getObject(filename));
+	}
+
+	/**
+	 * Answers from the headers of the object. Files uploaded in parts have no digest, as it is only known once the
+	 * last part has been sent.
+	 */
+	@Override
+	public FileMetadata getFileMetadata(String filename) throws IOException {
+		S3Client.S3Object object = getObject(filename);
+		return new FileMetadata(filename, object.size(), object.lastModified(), object.digest());
+	}
+
+	@Override
+	public boolean fileExists(String filename) {
+		try {
+			return findObject(filename) != null;
+		} catch (IOException e) {
+			LOGGER.warn("Cannot check whether file [{}] exists", filename, e);
+			return false;
+		}
+	}
+
+	public int getPartsInFlight() {
+		return partsInFlight.get();
+	}
+
+	public long getMultipartUploadCount() {
+		return multipartUploadCount.get();
+	}
+
+	public long getAbortedUploadCount() {
+		return abortedUploadCount.get();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("file.s3.parts.in.flight", this, FileS3Repository::getPartsInFlight)
+				.description("Parts of multipart uploads currently being sent")
+				.register(registry);
+		FunctionCounter.builder("file.s3.multipart.uploads", multipartUploadCount, AtomicLong::get)
+				.description("Files uploaded in parts")
+				.register(registry);
+		FunctionCounter.builder("file.s3.multipart.aborts", abortedUploadCount, AtomicLong::get)
+				.description("Multipart uploads aborted after a failure")
+				.register(registry);
+	}
+
+	/**
+	 * Uploads the first part and the rest of the stream in parts. A permit is taken for every part before its buffer
+	 * is filled and given back once it has been sent, so reading runs ahead of the uploads by no more than the upload
+	 * concurrency. The length of the stream is not known up front, so a stream that runs past the last part allowed
+	 * aborts the upload.
+	 */
+	private void uploadInParts(String key, byte[] firstPart, InputStream inputStream) throws IOException {
+		String uploadId;
+		try {
+			uploadId = s3Client.createMultipartUpload(key);
+		} catch (IOException | RuntimeException e) {
+			releasePartBuffer(firstPart);
+			throw e;
+		}
+		multipartUploadCount.incrementAndGet();
+
+		Semaphore permits = new Semaphore(s3.getUploadConcurrency() - 1);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<CompletableFuture<String>> partETags = new ArrayList<>();
+		try {
+			byte[] part = firstPart;
+			int length = firstPart.length;
+			for (int partNumber = 1; length > 0; partNumber++) {
+				byte[] buffer = part;
+				partsInFlight.incrementAndGet();
+				partETags.add(s3Client
+						.uploadPart(key, uploadId, partNumber,
+								HttpRequest.BodyPublishers.ofByteArray(buffer, 0, length))
+						.whenComplete((eTag, e) -> {
+							releasePartBuffer(buffer);
+							partsInFlight.decrementAndGet();
+							if (e != null) {
+								failure.compareAndSet(null, e);
+							}
+							permits.release();
+						}));
+
+				acquire(permits);
+				if (failure.get() != null) {
+					permits.release();
+					throw S3Client.unwrap(failure.get());
+				}
+				try {
+					part = acquirePartBuffer();
+				} catch (InterruptedIOException e) {
+					permits.release();
+					throw e;
+				}
+				try {
+					length = inputStream.readNBytes(part, 0, part.length);
+				} catch (IOException e) {
+					releasePartBuffer(part);
+					permits.release();
+					throw e;
+				}
+				if (length == 0) {
+					releasePartBuffer(part);
+					permits.release();
+				} else if (partNumber >= maxParts) {
+					releasePartBuffer(part);
+					permits.release();
+					throw new IllegalArgumentException("The object [" + key + "] is larger than the ["
+							+ getMaxFileSize() + "] bytes that fit in [" + maxParts
+							+ "] parts, increase the part size to store it");
+				}
+			}
+
+			List<String> eTags = new ArrayList<>(partETags.size());
+			for (CompletableFuture<String> partETag : partETags) {
+				eTags.add(await(partETag));
+			}
+			s3Client.completeMultipartUpload(key, uploadId, eTags);
+		} catch (IOException | RuntimeException e) {
+			abort(key, uploadId, partETags);
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the parts still being sent, so none is stored after the upload is aborted, and then aborts it.
+	 */
+	private void abort(String key, String uploadId, List<CompletableFuture<String>> partETags) {
+		abortedUploadCount.incrementAndGet();
+		for (CompletableFuture<String> partETag : partETags) {
+			try {
+				partETag.join();
+			} catch (CompletionException e) {
+				// Already reported by the first part to fail
+			}
+		}
+		try {
+			s3Client.abortMultipartUpload(key, uploadId);
+		} catch (IOException e) {
+			LOGGER.warn("Cannot abort upload [{}] of [{}], its parts are kept until the bucket expires them",
+					uploadId, key, e);
+		}
+	}
+
+	private S3Client.S3Object getObject(String filename) throws IOException {
+		S3Client.S3Object object = findObject(filename);
+		if (object == null) {
+			throw new NoSuchFileException(toKey(filename));
+		}
+		return object;
+	}
+
+	/**
+	 * @return the object of the file, from the cache when it is enabled, or {@code null} if there is none
+	 */
+	private S3Client.S3Object findObject(String filename) throws IOException {
+		if (objectCache != null) {
+			S3Client.S3Object cached = objectCache.getIfPresent(filename);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		S3Client.S3Object object = s3Client.headObject(toKey(filename));
+		if (object != null && objectCache != null) {
+			objectCache.put(filename, object);
+		}
+		return object;
+	}
+
+	/**
+	 * Drops the cached object of a saved file, whose new entity tag is only known by asking the bucket, and adds the
+	 * file to the cached listing.
+	 */
+	private void saved(String filename, String key) {
+		LOGGER.debug("Stored file [{}] as [{}]", filename, key);
+		if (objectCache != null) {
+			objectCache.invalidate(filename);
+		}
+		Listing cached = listing;
+		if (cached != null) {
+			cached.filenames().add(filename);
+		}
+	}
+
+	private void checkSize(String filename, long size) {
+		if (size > getMaxFileSize()) {
+			throw new IllegalArgumentException("The file [" + filename + "] of [" + size + "] bytes is larger than "
+					+ "the [" + getMaxFileSize() + "] bytes that fit in [" + maxParts + "] parts, increase the part "
+					+ "size to store it");
+		}
+	}
+
+	private long getMaxFileSize() {
+		return s3.getPartSize().toBytes() * maxParts;
+	}
+
+	private boolean isCacheEnabled() {
+		return s3.getCacheTtl().isPositive();
+	}
+
+	private String toKey(String filename) {
+		return s3.getPrefix() + filename;
+	}
+
+	/**
+	 * Takes a part buffer, waiting while all uploads together already hold {@code storage.file.s3.max-buffered-parts}.
+	 * Every buffer held is either being filled from a stream or being sent, so one is always released in time.
+	 */
+	private byte[] acquirePartBuffer() throws InterruptedIOException {
+		acquire(partBufferPermits);
+		return partBuffers.acquire();
+	}
+
+	private void releasePartBuffer(byte[] buffer) {
+		partBuffers.release(buffer);
+		partBufferPermits.release();
+	}
+
+	private static void acquire(Semaphore permits) throws InterruptedIOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a part to be uploaded");
+		}
+	}
+
+	private static String await(CompletableFuture<String> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw S3Client.unwrap(e);
+		}
+	}
+
+	/**
+	 * @param filenames the files listed, kept up to date with the changes made through this repository
+	 * @param listedAt when the bucket was listed, from {@link System#nanoTime()}
+	 */
+	private record Listing(Set<String> filenames, long listedAt) {
+	}
+}
@@ -0,0 +1,416 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.multipart.MultipartFile;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * {@link FileRepository} that keeps the files being read in the storage directory, the hot tier, and moves the files
+ * that are rarely read to the cold tier in {@code storage.file.tiering.cold-location}, which can be on cheaper and
+ * slower storage and can store them gzip compressed. Both tiers are stored by a {@link FileLocalRepository}.
+ * <p>
+ * Saves always go to the hot tier, while reads and deletes find a file in whichever tier holds it, so the tiers are
+ * invisible to the file services. Every read is counted in an {@link AccessFrequencySketch} whose counts are halved
+ * every {@code aging-interval}. A background migration moves hot files saved more than {@code min-hot-age} ago and
+ * read fewer than {@code demote-threshold} times to the cold tier, and moves cold files read
+ * {@code promote-threshold} times back, each under the write lock of the file.
+ * <p>
+ * Read counts are not kept across a restart, so no file is demoted until reads have been counted for a whole aging
+ * interval.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "tiered")
+public class FileTieredRepository implements FileRepository, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileTieredRepository.class);
+
+	private final FileStorageProperties fileStorageProperties;
+	private final FileLocalRepository hotRepository;
+	private final FileLocalRepository coldRepository;
+	private final AccessFrequencySketch sketch;
+
+	private final AtomicLong hotReadCount = new AtomicLong();
+	private final AtomicLong coldReadCount = new AtomicLong();
+	private final AtomicLong demotionCount = new AtomicLong();
+	private final AtomicLong promotionCount = new AtomicLong();
+
+	/**
+	 * Whether the read counts have been aged since startup, and so cover a whole aging interval.
+	 */
+	private volatile boolean countedForInterval;
+
+	public FileTieredRepository(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
+		FileStorageProperties.Tiering tiering = fileStorageProperties.getTiering();
+		if (tiering.getDemoteThreshold() >= tiering.getPromoteThreshold()) {
+			throw new IllegalArgumentException("The demote threshold [" + tiering.getDemoteThreshold()
+					+ "] must be lower than the promote threshold [" + tiering.getPromoteThreshold() + "]");
+		}
+		if (tiering.getPromoteThreshold() > AccessFrequencySketch.MAX_COUNT) {
+			throw new IllegalArgumentException("The promote threshold [" + tiering.getPromoteThreshold()
+					+ "] must be at most " + AccessFrequencySketch.MAX_COUNT);
+		}
+
+		this.fileStorageProperties = fileStorageProperties;
+		this.hotRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		this.coldRepository = new FileLocalRepository(buildColdProperties(fileStorageProperties), fileMetrics);
+		this.sketch = new AccessFrequencySketch(tiering.getSketchWidth());
+	}
+
+	@PostConstruct
+	public void initialise() throws IOException {
+		Files.createDirectories(Paths.get(fileStorageProperties.getBaseLocation()));
+		Files.createDirectories(getColdPath());
+		hotRepository.initialiseIndex();
+		coldRepository.initialiseIndex();
+		LOGGER.info("Tiering files between [{}] and [{}]", fileStorageProperties.getBaseLocation(), getColdPath());
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		try {
+			coldRepository.close();
+		} finally {
+			hotRepository.close();
+		}
+	}
+
+	/**
+	 * Neither tier is a bean, so their journal snapshots and index reconciles are scheduled here.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.journal.snapshot-interval:PT1M}",
+			initialDelayString = "${storage.file.journal.snapshot-interval:PT1M}")
+	public void snapshotJournal() {
+		hotRepository.snapshotJournal();
+		coldRepository.snapshotJournal();
+	}
+
+	@Scheduled(fixedDelayString = "${storage.file.index.reconcile-interval:PT5M}",
+			initialDelayString = "${storage.file.index.reconcile-interval:PT5M}")
+	public void reconcileIndex() {
+		hotRepository.reconcileIndex();
+		coldRepository.reconcileIndex();
+	}
+
+	@Override
+	public Set<String> listFilenames() throws IOException {
+		Set<String> filenames = new HashSet<>(hotRepository.listFilenames());
+		filenames.addAll(coldRepository.listFilenames());
+		return filenames;
+	}
+
+	@Override
+	public boolean saveFileToStorage(MultipartFile file) throws IOException {
+		hotRepository.saveFileToStorage(file);
+		removeColdCopy(file.getOriginalFilename());
+		return true;
+	}
+
+	@Override
+	public boolean saveFileToStorage(String filename, InputStream inputStream) throws IOException {
+		hotRepository.saveFileToStorage(filename, inputStream);
+		removeColdCopy(filename);
+		return true;
+	}
+
+	/**
+	 * Publishes the staged file in the hot tier, so it must be on the same file system as the storage directory.
+	 */
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile) throws IOException {
+		hotRepository.saveFileToStorage(filename, stagedFile);
+		removeColdCopy(filename);
+		return true;
+	}
+
+	@Override
+	public boolean saveFileToStorage(String filename, Path stagedFile, String digest) throws IOException {
+		hotRepository.saveFileToStorage(filename, stagedFile, digest);
+		removeColdCopy(filename);
+		return true;
+	}
+
+	@Override
+	public boolean deleteFileFromStorage(String filename) throws IOException {
+		boolean deleted = false;
+		if (hotRepository.fileExists(filename)) {
+			deleted = hotRepository.deleteFileFromStorage(filename);
+		}
+		if (coldRepository.fileExists(filename)) {
+			deleted = coldRepository.deleteFileFromStorage(filename) || deleted;
+		}
+		if (!deleted) {
+			throw new NoSuchFileException(filename);
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the read and returns the file from the hot tier, or from the cold tier if it has been demoted.
+	 */
+	@Override
+	public Resource getFileFromStorage(String filename) throws IOException {
+		sketch.increment(filename);
+		if (hotRepository.fileExists(filename)) {
+			hotReadCount.incrementAndGet();
+			return hotRepository.getFileFromStorage(filename);
+		}
+		Resource resource = coldRepository.getFileFromStorage(filename);
+		coldReadCount.incrementAndGet();
+		return resource;
+	}
+
+	@Override
+	public FileMetadata getFileMetadata(String filename) throws IOException {
+		return hotRepository.fileExists(filename)
+				? hotRepository.getFileMetadata(filename)
+				: coldRepository.getFileMetadata(filename);
+	}
+
+	@Override
+	public boolean fileExists(String filename) {
+		return hotRepository.fileExists(filename) || coldRepository.fileExists(filename);
+	}
+
+	/**
+	 * Halves the read counts, so reads count for less the older they are.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.tiering.aging-interval:PT6H}",
+			initialDelayString = "${storage.file.tiering.aging-interval:PT6H}")
+	public void ageReadCounts() {
+		sketch.age();
+		countedForInterval = true;
+	}
+
+	/**
+	 * @return up to the given number of hot files that are due to be moved to the cold tier, none until reads have
+	 * been counted for a whole aging interval
+	 */
+	public List<String> findDemotionCandidates(int limit) throws IOException {
+		List<String> candidates = new ArrayList<>();
+		if (!countedForInterval) {
+			return candidates;
+		}
+
+		for (String filename : hotRepository.listFilenames()) {
+			if (candidates.size() >= limit) {
+				break;
+			}
+			if (sketch.frequency(filename) >= getTiering().getDemoteThreshold()) {
+				continue;
+			}
+			try {
+				if (isPastMinHotAge(hotRepository.getFileMetadata(filename))) {
+					candidates.add(filename);
+				}
+			} catch (NoSuchFileException e) {
+				LOGGER.debug("File [{}] was deleted while looking for files to demote", filename);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return up to the given number of cold files that are due to be moved back to the hot tier
+	 */
+	public List<String> findPromotionCandidates(int limit) throws IOException {
+		List<String> candidates = new ArrayList<>();
+		for (String filename : coldRepository.listFilenames()) {
+			if (candidates.size() >= limit) {
+				break;
+			}
+			if (sketch.frequency(filename) >= getTiering().getPromoteThreshold()) {
+				candidates.add(filename);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Moves the file to the cold tier if it is still due to be, keeping its last modified time and digest. The copy is
+	 * complete before the hot file is deleted, so a failure part way leaves the file in the hot tier. The caller must
+	 * hold the write lock of the file.
+	 *
+	 * @return whether the file was moved
+	 */
+	public boolean demote(String filename) throws IOException {
+		if (!hotRepository.fileExists(filename)) {
+			return false;
+		}
+		FileMetadata metadata = hotRepository.getFileMetadata(filename);
+		if (sketch.frequency(filename) >= getTiering().getDemoteThreshold() || !isPastMinHotAge(metadata)) {
+			return false;
+		}
+
+		move(filename, metadata, hotRepository, coldRepository);
+		demotionCount.incrementAndGet();
+		LOGGER.debug("Demoted file [{}] to the cold tier", filename);
+		return true;
+	}
+
+	/**
+	 * Moves the file back to the hot tier if it is still due to be, keeping its last modified time and digest. The
+	 * caller must hold the write lock of the file.
+	 *
+	 * @return whether the file was moved
+	 */
+	public boolean promote(String filename) throws IOException {
+		if (!coldRepository.fileExists(filename) || sketch.frequency(filename) < getTiering().getPromoteThreshold()) {
+			return false;
+		}
+
+		if (hotRepository.fileExists(filename)) {
+			// Left behind by a move that was interrupted, the hot copy is the same or newer
+			removeColdCopy(filename);
+			return false;
+		}
+		move(filename, coldRepository.getFileMetadata(filename), coldRepository, hotRepository);
+		promotionCount.incrementAndGet();
+		LOGGER.debug("Promoted file [{}] to the hot tier", filename);
+		return true;
+	}
+
+	public long getDemotionCount() {
+		return demotionCount.get();
+	}
+
+	public long getPromotionCount() {
+		return promotionCount.get();
+	}
+
+	public int getColdFileCount() throws IOException {
+		return coldRepository.listFilenames().size();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("file.tiering.reads", hotReadCount, AtomicLong::get)
+				.description("Files read from each tier")
+				.tag("tier", "hot")
+				.register(registry);
+		FunctionCounter.builder("file.tiering.reads", coldReadCount, AtomicLong::get)
+				.description("Files read from each tier")
+				.tag("tier", "cold")
+				.register(registry);
+		FunctionCounter.builder("file.tiering.migrations", demotionCount, AtomicLong::get)
+				.description("Files moved between the tiers")
+				.tag("direction", "demote")
+				.register(registry);
+		FunctionCounter.builder("file.tiering.migrations", promotionCount, AtomicLong::get)
+				.description("Files moved between the tiers")
+				.tag("direction", "promote")
+				.register(registry);
+		Gauge.builder("file.tiering.cold.files", this, FileTieredRepository::countColdFiles)
+				.description("Files stored in the cold tier")
+				.register(registry);
+	}
+
+	/**
+	 * Copies the file to the other tier, restores its last modified time and then deletes the original. The digest is
+	 * computed again from the copied content, which is the original content whether or not either tier compresses it.
+	 */
+	private static void move(String filename, FileMetadata metadata, FileLocalRepository from, FileLocalRepository to)
+			throws IOException {
+		try (InputStream inputStream = from.getFileFromStorage(filename).getInputStream()) {
+			to.saveFileToStorage(filename, inputStream);
+		}
+		to.setLastModified(filename, metadata.lastModified());
+		from.deleteFileFromStorage(filename);
+	}
+
+	private void removeColdCopy(String filename) throws IOException {
+		if (!coldRepository.fileExists(filename)) {
+			return;
+		}
+		try {
+			coldRepository.deleteFileFromStorage(filename);
+		} catch (NoSuchFileException e) {
+			LOGGER.debug("Cold copy of file [{}] was already removed", filename);
+		}
+	}
+
+	private boolean isPastMinHotAge(FileMetadata metadata) {
+		return System.currentTimeMillis() - metadata.lastModified() >= getTiering().getMinHotAge().toMillis();
+	}
+
+	private double countColdFiles() {
+		try {
+			return getColdFileCount();
+		} catch (IOException e) {
+			return Double.NaN;
+		}
+	}
+
+	private FileStorageProperties.Tiering getTiering() {
+		return fileStorageProperties.getTiering();
+	}
+
+	private Path getColdPath() {
+		return Paths.get(getColdLocation(fileStorageProperties));
+	}
+
+	private static String getColdLocation(FileStorageProperties fileStorageProperties) {
+		String coldLocation = fileStorageProperties.getTiering().getColdLocation();
+		if (coldLocation != null && !coldLocation.isBlank()) {
+			return coldLocation;
+		}
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation()).toAbsolutePath();
+		return basePath.resolveSibling(basePath.getFileName() + ".cold").toString();
+	}
+
+	/**
+	 * Settings of the cold tier, which are those of the storage directory but for its location and compression. Memory
+	 * mapping is left off as cold files are rarely read, and the journal, when enabled, is kept next to the cold tier.
+	 */
+	private static FileStorageProperties buildColdProperties(FileStorageProperties fileStorageProperties) {
+		FileStorageProperties cold = new FileStorageProperties();
+		cold.setBaseLocation(getColdLocation(fileStorageProperties));
+		cold.setUploadBufferSize(fileStorageProperties.getUploadBufferSize());
+		cold.setUploadBufferPoolSize(fileStorageProperties.getUploadBufferPoolSize());
+
+		FileStorageProperties.Index index = fileStorageProperties.getIndex();
+		cold.getIndex().setEnabled(index.isEnabled());
+		cold.getIndex().setWatchEnabled(index.isWatchEnabled());
+		cold.getIndex().setReconcileInterval(index.getReconcileInterval());
+
+		FileStorageProperties.Sharding sharding = fileStorageProperties.getSharding();
+		cold.getSharding().setEnabled(sharding.isEnabled());
+		cold.getSharding().setDepth(sharding.getDepth());
+		cold.getSharding().setWidth(sharding.getWidth());
+
+		FileStorageProperties.Compression compression = fileStorageProperties.getCompression();
+		cold.getCompression().setEnabled(fileStorageProperties.getTiering().isColdCompressed());
+		cold.getCompression().setLevel(compression.getLevel());
+		cold.getCompression().setMinSize(compression.getMinSize());
+		cold.getCompression().setMaxRatio(compression.getMaxRatio());
+		cold.getCompression().setExcludedExtensions(compression.getExcludedExtensions());
+
+		cold.getJournal().setEnabled(fileStorageProperties.getJournal().isEnabled());
+		cold.getJournal().setSnapshotRecords(fileStorageProperties.getJournal().getSnapshotRecords());
+		return cold;
+	}
+}
@@ -0,0 +1,148 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ford.james.motorola.FileStorageProperties;
+
+/**
+ * Bounded pool of read-only memory mappings of large files, weighed by the number of bytes mapped. Eviction uses
+ * Caffeine's W-TinyLFU policy, so the mappings that stay are those of the files that are read most often.
+ * <p>
+ * A mapping that is evicted for space, or replaced because the file changed on disk, may still be in use by a download
+ * holding the read lock of the file, so it is left for the garbage collector to unmap. A mapping that is invalidated
+ * under the write lock of the file, before the file is deleted or overwritten, cannot be in use and is unmapped
+ * straight away, which also releases the file on platforms that refuse to delete a mapped file.
+ */
+class MappedFilePool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedFilePool.class);
+
+	private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+	private final Cache<String, MappedFile> mappings;
+	private final long minFileSize;
+	private final long maxMappedSize;
+
+	MappedFilePool(FileStorageProperties.Mmap mmapProperties) {
+		this.minFileSize = mmapProperties.getMinFileSize().toBytes();
+		this.maxMappedSize = mmapProperties.getMaxMappedSize().toBytes();
+		this.mappings = Caffeine.newBuilder()
+				.maximumWeight(maxMappedSize)
+				.<String, MappedFile>weigher((filename, mappedFile) -> mappedFile.buffer().capacity())
+				.executor(Runnable::run)
+				.build();
+	}
+
+	/**
+	 * Returns a resource reading from the mapping of the file, mapping it first if it is not mapped yet or has changed
+	 * since it was mapped.
+	 *
+	 * @return the mapped resource, or {@code null} if the file is too small or too large to be mapped
+	 */
+	MappedResource get(String filename, Path path, BasicFileAttributes attributes) throws IOException {
+		long size = attributes.size();
+		if (size < minFileSize || size > maxMappedSize || size > Integer.MAX_VALUE) {
+			return null;
+		}
+
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		try {
+			MappedFile mappedFile = mappings.asMap().compute(filename,
+					(key, existing) -> existing != null && existing.matches(path, size, lastModified)
+							? existing
+							: map(filename, path, size, lastModified));
+			return new MappedResource(filename, mappedFile.buffer(), lastModified);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Removes and unmaps the mapping of the file. The caller must hold the write lock of the file.
+	 */
+	void invalidate(String filename) {
+		MappedFile mappedFile = mappings.asMap().remove(filename);
+		if (mappedFile != null) {
+			unmap(mappedFile.buffer());
+			LOGGER.debug("Unmapped file [{}]", filename);
+		}
+	}
+
+	/**
+	 * @return the number of bytes currently mapped by the pool
+	 */
+	long getMappedSize() {
+		return mappings.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+	}
+
+	int size() {
+		return mappings.asMap().size();
+	}
+
+	private static MappedFile map(String filename, Path path, long size, long lastModified) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			LOGGER.debug("Mapped file [{}] of [{}] bytes", filename, size);
+			return new MappedFile(path, size, lastModified, buffer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void unmap(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invokeExact(buffer);
+		} catch (Throwable e) {
+			LOGGER.debug("Unable to unmap buffer, it will be unmapped when it is garbage collected", e);
+		}
+	}
+
+	/**
+	 * Java 21 has no supported way to unmap a {@code MappedByteBuffer} without the preview foreign memory API, so the
+	 * cleaner is invoked through {@code sun.misc.Unsafe}. Mappings are left to the garbage collector if it is missing.
+	 */
+	private static MethodHandle findInvokeCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafe.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.info("Memory mappings cannot be released explicitly and will be released by the garbage collector");
+			return null;
+		}
+	}
+
+	/**
+	 * A mapping of a file together with the attributes it was mapped with, so a file that has been changed outside of
+	 * the application is mapped again.
+	 */
+	private record MappedFile(Path path, long size, long lastModified, MappedByteBuffer buffer) {
+
+		boolean matches(Path path, long size, long lastModified) {
+			return this.path.equals(path) && this.size == size && this.lastModified == lastModified;
+		}
+	}
+}
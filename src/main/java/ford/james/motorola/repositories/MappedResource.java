@@ -0,0 +1,95 @@
+package ford.james.motorola.repositories;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.springframework.core.io.AbstractResource;
+
+/**
+ * A file served from a read-only memory mapping. Ranges are sliced straight out of the mapping, so a download does not
+ * open, seek or read the file. The mapping is owned by the {@link MappedFilePool}, which may unmap it once the write
+ * lock of the file is held, so the resource must only be read under the read lock of the file.
+ */
+public class MappedResource extends AbstractResource {
+
+	private final String filename;
+	private final ByteBuffer buffer;
+	private final long lastModified;
+
+	MappedResource(String filename, ByteBuffer buffer, long lastModified) {
+		this.filename = filename;
+		this.buffer = buffer;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @param position the offset of the first byte
+	 * @param count the number of bytes, which is reduced to what remains of the file
+	 * @return a view of the bytes in the mapping, which shares the mapped memory rather than copying it
+	 */
+	public ByteBuffer slice(long position, long count) {
+		int length = (int) Math.max(0, Math.min(count, buffer.capacity() - position));
+		return buffer.slice((int) position, length);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		ByteBuffer content = buffer.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return content.hasRemaining() ? content.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) {
+				if (length == 0) {
+					return 0;
+				}
+				if (!content.hasRemaining()) {
+					return -1;
+				}
+				int read = Math.min(length, content.remaining());
+				content.get(bytes, offset, read);
+				return read;
+			}
+
+			@Override
+			public long skip(long n) {
+				int skipped = (int) Math.max(0, Math.min(n, content.remaining()));
+				content.position(content.position() + skipped);
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return content.remaining();
+			}
+		};
+	}
+
+	@Override
+	public boolean exists() {
+		return true;
+	}
+
+	@Override
+	public long contentLength() {
+		return buffer.capacity();
+	}
+
+	@Override
+	public long lastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public String getDescription() {
+		return "memory mapped file [" + filename + "]";
+	}
+}
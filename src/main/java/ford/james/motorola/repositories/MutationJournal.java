@@ -0,0 +1,698 @@
+package ford.james.motorola.repositories;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of the changes made to the stored files, from which the {@link FileIndex} is restored on startup
+ * instead of scanning the storage directory. Saves and deletes are recorded as they start and as they finish, so a
+ * save or delete that was interrupted by a crash can be rolled back or finished on the next startup.
+ * <p>
+ * The journal is a sequence of generations in its own directory. Each generation is a journal file of length prefixed
+ * records, each with a CRC32 checksum, and may have a snapshot of the metadata of every file as it was when the
+ * generation started. Taking a snapshot starts a new generation, after which the older generations are deleted.
+ * Recovery reads the latest snapshot and replays the journals from its generation on. A record torn by a crash at the
+ * end of the latest journal is truncated.
+ * <p>
+ * Only the records that acknowledge a change are forced to disk. Threads waiting to force the journal share a single
+ * force, so concurrent saves and deletes are batched into as few forces as the disk allows.
+ */
+class MutationJournal implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MutationJournal.class);
+
+	static final int JOURNAL_MAGIC = 0x4D4A4E4C;
+	static final int SNAPSHOT_MAGIC = 0x4D534E50;
+	static final short VERSION = 1;
+
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String JOURNAL_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Longer records can only come from a corrupt length, so replay stops at them rather than allocating the length.
+	 */
+	private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+	private static final byte STAGED = 1;
+	private static final byte SAVING = 2;
+	private static final byte FINISHED = 3;
+	private static final byte DELETING = 4;
+	private static final byte PUT = 5;
+	private static final byte REMOVED = 6;
+	private static final byte DELETE_CANCELLED = 7;
+
+	private final Path directory;
+
+	/**
+	 * Held while forcing the journal, so threads that arrive during a force wait for it and then find their records
+	 * were forced by the next one. Acquired before the monitor.
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final Object snapshotMonitor = new Object();
+
+	private final Map<String, FileMetadata> files = new HashMap<>();
+	private final Map<String, PendingSave> pendingSaves = new LinkedHashMap<>();
+	private final Set<String> pendingDeletes = new LinkedHashSet<>();
+	private FileChannel channel;
+	private long generation;
+	private long writtenSequence;
+	private int recordsSinceSnapshot;
+
+	private volatile long syncedSequence;
+	private volatile long syncCount;
+
+	MutationJournal(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Restores the state recorded by the journal and opens it for appending.
+	 *
+	 * @return the recovered state, or {@code null} if there is no journal yet
+	 * @throws IOException if the journal cannot be read, including when it was written by an unsupported version
+	 */
+	Recovery open() throws IOException {
+		synchronized (snapshotMonitor) {
+			syncLock.lock();
+			try {
+				synchronized (this) {
+					return replay();
+				}
+			} finally {
+				syncLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Discards the journal and starts a new one whose snapshot holds the given files, for when there was no journal or
+	 * it could not be read.
+	 */
+	void reset(Collection<FileMetadata> state) throws IOException {
+		synchronized (snapshotMonitor) {
+			syncLock.lock();
+			try {
+				synchronized (this) {
+					closeChannel();
+					clearState();
+					state.forEach(fileMetadata -> files.put(fileMetadata.filename(), fileMetadata));
+
+					Files.createDirectories(directory);
+					generation = Math.max(lastGeneration(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX),
+							lastGeneration(JOURNAL_PREFIX, JOURNAL_SUFFIX)) + 1;
+					Files.deleteIfExists(journalPath(generation));
+					channel = createJournal(generation);
+					writeSnapshot(generation, state);
+					deleteGenerationsBefore(generation);
+				}
+			} finally {
+				syncLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Records that a temporary file was created for a save, so it is removed if the save never finishes.
+	 */
+	void staged(Path tempFile) throws IOException {
+		append(encode(STAGED, key(tempFile)));
+	}
+
+	/**
+	 * Records that the file is about to be published under its name.
+	 */
+	void saving(Path tempFile, String filename) throws IOException {
+		append(encode(SAVING, key(tempFile), filename));
+	}
+
+	/**
+	 * Records that the save finished and forces the journal, so the save survives a crash once this returns.
+	 */
+	void saved(Path tempFile) throws IOException {
+		sync(append(encode(FINISHED, key(tempFile))));
+	}
+
+	/**
+	 * Records that the temporary file of a failed save was removed.
+	 */
+	void discarded(Path tempFile) throws IOException {
+		append(encode(FINISHED, key(tempFile)));
+	}
+
+	/**
+	 * Records that the file is about to be deleted and forces the journal, so the delete is finished on recovery if
+	 * the application stops part way through it.
+	 */
+	void deleting(String filename) throws IOException {
+		sync(append(encode(DELETING, filename)));
+	}
+
+	void deleteCancelled(String filename) throws IOException {
+		append(encode(DELETE_CANCELLED, filename));
+	}
+
+	/**
+	 * Records the current metadata of a file, unless it is already recorded.
+	 */
+	void put(FileMetadata fileMetadata) throws IOException {
+		synchronized (this) {
+			if (fileMetadata.equals(files.get(fileMetadata.filename()))) {
+				return;
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PUT);
+		writeMetadata(out, fileMetadata);
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Records that a file no longer exists, unless it is already recorded as missing.
+	 */
+	void removed(String filename) throws IOException {
+		synchronized (this) {
+			if (!files.containsKey(filename) && !pendingDeletes.contains(filename)) {
+				return;
+			}
+		}
+		append(encode(REMOVED, filename));
+	}
+
+	/**
+	 * Starts a new generation with a snapshot of the current state and deletes the older generations, if enough
+	 * records have been appended since the last snapshot. Appends only wait while the new journal is opened, not
+	 * while the snapshot is written.
+	 *
+	 * @return whether a snapshot was taken
+	 */
+	boolean snapshotIfDue(int minRecords) throws IOException {
+		synchronized (snapshotMonitor) {
+			long snapshotGeneration;
+			List<FileMetadata> state;
+			syncLock.lock();
+			try {
+				synchronized (this) {
+					if (channel == null || recordsSinceSnapshot < minRecords) {
+						return false;
+					}
+
+					snapshotGeneration = generation + 1;
+					FileChannel next = createJournal(snapshotGeneration);
+					for (byte[] record : pendingRecords()) {
+						writeFrame(next, record);
+					}
+					next.force(false);
+
+					channel.force(false);
+					channel.close();
+					channel = next;
+					generation = snapshotGeneration;
+					syncedSequence = writtenSequence;
+					state = new ArrayList<>(files.values());
+					recordsSinceSnapshot = 0;
+				}
+			} finally {
+				syncLock.unlock();
+			}
+
+			writeSnapshot(snapshotGeneration, state);
+			deleteGenerationsBefore(snapshotGeneration);
+			LOGGER.debug("Wrote snapshot of [{}] files to generation [{}] of the journal", state.size(),
+					snapshotGeneration);
+			return true;
+		}
+	}
+
+	synchronized int getRecordsSinceSnapshot() {
+		return recordsSinceSnapshot;
+	}
+
+	/**
+	 * @return the number of times the journal has been forced to acknowledge changes
+	 */
+	long getSyncCount() {
+		return syncCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		syncLock.lock();
+		try {
+			synchronized (this) {
+				closeChannel();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private Recovery replay() throws IOException {
+		closeChannel();
+		clearState();
+		Files.createDirectories(directory);
+
+		long snapshotGeneration = lastGeneration(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		List<Long> journals = listGenerations(JOURNAL_PREFIX, JOURNAL_SUFFIX).stream()
+				.filter(journalGeneration -> journalGeneration >= snapshotGeneration)
+				.toList();
+		if (snapshotGeneration == 0 && journals.isEmpty()) {
+			return null;
+		}
+
+		if (snapshotGeneration > 0) {
+			readSnapshot(snapshotPath(snapshotGeneration), snapshotGeneration);
+		}
+		int records = 0;
+		for (int i = 0; i < journals.size(); i++) {
+			records += replayJournal(journalPath(journals.get(i)), i == journals.size() - 1);
+		}
+
+		generation = journals.isEmpty() ? snapshotGeneration : journals.get(journals.size() - 1);
+		Path journalPath = journalPath(generation);
+		if (Files.exists(journalPath) && Files.size(journalPath) > 0) {
+			channel = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+		} else {
+			Files.deleteIfExists(journalPath);
+			channel = createJournal(generation);
+		}
+		recordsSinceSnapshot = records;
+
+		LOGGER.info("Replayed [{}] records of generation [{}] of the journal in [{}]", records, generation, directory);
+		return new Recovery(Map.copyOf(files), List.copyOf(pendingSaves.values()), Set.copyOf(pendingDeletes));
+	}
+
+	/**
+	 * Applies the records of a journal file. A torn or corrupt record at the end of the latest journal is where the
+	 * application stopped, so the journal is truncated there. Anywhere else it means the journal cannot be trusted.
+	 *
+	 * @return the number of records applied
+	 */
+	private int replayJournal(Path path, boolean latest) throws IOException {
+		long validLength = 0;
+		int records = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			try {
+				readHeader(in, JOURNAL_MAGIC, path);
+				validLength = headerLength();
+				byte[] record;
+				while ((record = readFrame(in)) != null) {
+					apply(record);
+					validLength += Integer.BYTES * 2 + record.length;
+					records++;
+				}
+				return records;
+			} catch (EOFException | CorruptRecordException e) {
+				if (!latest) {
+					throw new IOException("Journal [" + path + "] is corrupt after [" + validLength + "] bytes", e);
+				}
+			}
+		}
+
+		LOGGER.warn("Truncating incomplete record at [{}] bytes in journal [{}]", validLength, path);
+		try (FileChannel truncated = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			truncated.truncate(validLength);
+			truncated.force(true);
+		}
+		return records;
+	}
+
+	/**
+	 * @return the record, or {@code null} at the end of the journal
+	 */
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		int first = in.read();
+		if (first == -1) {
+			return null;
+		}
+		int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		if (length <= 0 || length > MAX_RECORD_LENGTH) {
+			throw new CorruptRecordException("Invalid record length [" + length + "]");
+		}
+		int checksum = in.readInt();
+		byte[] record = new byte[length];
+		in.readFully(record);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		if ((int) crc.getValue() != checksum) {
+			throw new CorruptRecordException("Record checksum does not match");
+		}
+		return record;
+	}
+
+	private long append(byte[] record) throws IOException {
+		synchronized (this) {
+			if (channel == null) {
+				throw new ClosedChannelException();
+			}
+			long position = channel.position();
+			try {
+				writeFrame(channel, record);
+			} catch (IOException e) {
+				// Do not leave a partial record for the next one to be appended after
+				channel.truncate(position);
+				throw e;
+			}
+			apply(record);
+			recordsSinceSnapshot++;
+			return ++writtenSequence;
+		}
+	}
+
+	/**
+	 * Forces the journal up to the given record. If another thread is forcing it, waits for that force and then
+	 * forces everything written in the meantime in one go, unless the earlier force already covered the record.
+	 */
+	private void sync(long sequence) throws IOException {
+		if (syncedSequence >= sequence) {
+			return;
+		}
+		syncLock.lock();
+		try {
+			if (syncedSequence >= sequence) {
+				return;
+			}
+			FileChannel current;
+			long target;
+			synchronized (this) {
+				current = channel;
+				target = writtenSequence;
+			}
+			if (current == null) {
+				throw new ClosedChannelException();
+			}
+			current.force(false);
+			syncedSequence = target;
+			syncCount++;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		switch (type) {
+			case STAGED -> {
+				String tempFile = in.readUTF();
+				pendingSaves.put(tempFile, new PendingSave(tempFile, null, true));
+			}
+			case SAVING -> {
+				String tempFile = in.readUTF();
+				PendingSave staged = pendingSaves.get(tempFile);
+				pendingSaves.put(tempFile, new PendingSave(tempFile, in.readUTF(), staged != null && staged.staged()));
+			}
+			case FINISHED -> pendingSaves.remove(in.readUTF());
+			case DELETING -> pendingDeletes.add(in.readUTF());
+			case PUT -> {
+				FileMetadata fileMetadata = readMetadata(in);
+				files.put(fileMetadata.filename(), fileMetadata);
+			}
+			case REMOVED -> {
+				String filename = in.readUTF();
+				files.remove(filename);
+				pendingDeletes.remove(filename);
+			}
+			case DELETE_CANCELLED -> pendingDeletes.remove(in.readUTF());
+			default -> throw new CorruptRecordException("Unknown record type [" + type + "]");
+		}
+	}
+
+	/**
+	 * @return the records that restore the saves and deletes still in progress, carried into a new generation
+	 */
+	private List<byte[]> pendingRecords() throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		for (PendingSave pendingSave : pendingSaves.values()) {
+			if (pendingSave.staged()) {
+				records.add(encode(STAGED, pendingSave.tempFile()));
+			}
+			if (pendingSave.filename() != null) {
+				records.add(encode(SAVING, pendingSave.tempFile(), pendingSave.filename()));
+			}
+		}
+		for (String filename : pendingDeletes) {
+			records.add(encode(DELETING, filename));
+		}
+		return records;
+	}
+
+	private FileChannel createJournal(long journalGeneration) throws IOException {
+		FileChannel created = FileChannel.open(journalPath(journalGeneration), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(headerLength())
+				.putInt(JOURNAL_MAGIC)
+				.putShort(VERSION)
+				.putLong(journalGeneration)
+				.flip();
+		while (header.hasRemaining()) {
+			created.write(header);
+		}
+		created.force(true);
+		return created;
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file that is moved into place once it is on disk, so a snapshot is either
+	 * complete or absent. The snapshot ends with a checksum of its content.
+	 */
+	private void writeSnapshot(long snapshotGeneration, Collection<FileMetadata> state) throws IOException {
+		Path snapshotPath = snapshotPath(snapshotGeneration);
+		Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + TEMP_SUFFIX);
+		CRC32 crc = new CRC32();
+		try (FileChannel snapshotChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(snapshotChannel)), crc));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeShort(VERSION);
+			out.writeLong(snapshotGeneration);
+			out.writeInt(state.size());
+			for (FileMetadata fileMetadata : state) {
+				writeMetadata(out, fileMetadata);
+			}
+			out.flush();
+
+			ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).flip();
+			while (checksum.hasRemaining()) {
+				snapshotChannel.write(checksum);
+			}
+			snapshotChannel.force(true);
+		}
+		Files.move(tempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void readSnapshot(Path path, long snapshotGeneration) throws IOException {
+		CRC32 crc = new CRC32();
+		try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path))) {
+			DataInputStream in = new DataInputStream(new CheckedInputStream(inputStream, crc));
+			if (readHeader(in, SNAPSHOT_MAGIC, path) != snapshotGeneration) {
+				throw new IOException("Snapshot [" + path + "] does not belong to generation [" + snapshotGeneration + "]");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				FileMetadata fileMetadata = readMetadata(in);
+				files.put(fileMetadata.filename(), fileMetadata);
+			}
+			int expected = (int) crc.getValue();
+			if (new DataInputStream(inputStream).readInt() != expected) {
+				throw new IOException("Snapshot [" + path + "] checksum does not match");
+			}
+		}
+	}
+
+	/**
+	 * Checks the magic number and version at the start of a journal or snapshot.
+	 *
+	 * @return the generation the file belongs to
+	 */
+	private static long readHeader(DataInputStream in, int magic, Path path) throws IOException {
+		if (in.readInt() != magic) {
+			throw new IOException("File [" + path + "] is not a journal file");
+		}
+		short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("File [" + path + "] has unsupported version [" + version + "]");
+		}
+		return in.readLong();
+	}
+
+	private static int headerLength() {
+		return Integer.BYTES + Short.BYTES + Long.BYTES;
+	}
+
+	private static void writeFrame(FileChannel target, byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES * 2 + record.length)
+				.putInt(record.length)
+				.putInt((int) crc.getValue())
+				.put(record)
+				.flip();
+		while (frame.hasRemaining()) {
+			target.write(frame);
+		}
+	}
+
+	private static byte[] encode(byte type, String... values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeMetadata(DataOutputStream out, FileMetadata fileMetadata) throws IOException {
+		out.writeUTF(fileMetadata.filename());
+		out.writeLong(fileMetadata.size());
+		out.writeLong(fileMetadata.lastModified());
+		out.writeBoolean(fileMetadata.digest() != null);
+		if (fileMetadata.digest() != null) {
+			out.writeUTF(fileMetadata.digest());
+		}
+	}
+
+	private static FileMetadata readMetadata(DataInputStream in) throws IOException {
+		String filename = in.readUTF();
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		String digest = in.readBoolean() ? in.readUTF() : null;
+		return new FileMetadata(filename, size, lastModified, digest);
+	}
+
+	private static String key(Path tempFile) {
+		return tempFile.toAbsolutePath().toString();
+	}
+
+	private void clearState() {
+		files.clear();
+		pendingSaves.clear();
+		pendingDeletes.clear();
+		writtenSequence = 0;
+		syncedSequence = 0;
+		recordsSinceSnapshot = 0;
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private void deleteGenerationsBefore(long oldestKept) throws IOException {
+		try (Stream<Path> stream = Files.list(directory)) {
+			for (Path path : stream.toList()) {
+				String name = path.getFileName().toString();
+				long fileGeneration = Math.max(parseGeneration(name, JOURNAL_PREFIX, JOURNAL_SUFFIX),
+						parseGeneration(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX));
+				if ((fileGeneration > 0 && fileGeneration < oldestKept) || name.endsWith(TEMP_SUFFIX)) {
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+	}
+
+	private long lastGeneration(String prefix, String suffix) throws IOException {
+		List<Long> generations = listGenerations(prefix, suffix);
+		return generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+	}
+
+	private List<Long> listGenerations(String prefix, String suffix) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return List.of();
+		}
+		try (Stream<Path> stream = Files.list(directory)) {
+			return stream
+					.map(path -> parseGeneration(path.getFileName().toString(), prefix, suffix))
+					.filter(fileGeneration -> fileGeneration > 0)
+					.sorted()
+					.toList();
+		}
+	}
+
+	private static long parseGeneration(String name, String prefix, String suffix) {
+		if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private Path journalPath(long journalGeneration) {
+		return directory.resolve(String.format("%s%020d%s", JOURNAL_PREFIX, journalGeneration, JOURNAL_SUFFIX));
+	}
+
+	private Path snapshotPath(long snapshotGeneration) {
+		return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX));
+	}
+
+	/**
+	 * The state restored from the journal.
+	 *
+	 * @param files the metadata of every file, by filename
+	 * @param pendingSaves the saves that had started but not finished
+	 * @param pendingDeletes the files whose delete had started but not finished
+	 */
+	record Recovery(Map<String, FileMetadata> files, List<PendingSave> pendingSaves, Set<String> pendingDeletes) {
+	}
+
+	/**
+	 * A save that had started but not finished.
+	 *
+	 * @param tempFile the absolute path of the file being published
+	 * @param filename the name it was being published under, or {@code null} if it had not got that far
+	 * @param staged whether the file was created for the save, and so is removed if the save is rolled back
+	 */
+	record PendingSave(String tempFile, String filename, boolean staged) {
+	}
+
+	private static final class CorruptRecordException extends IOException {
+
+		private CorruptRecordException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Repository;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@link ReactiveFileRepository} over the same storage directory, layout, index and digests as
+ * {@link FileLocalRepository}, which it delegates to for everything but the content.
+ * <p>
+ * Uploads are written to a temporary file through an {@code AsynchronousFileChannel} and digested as the buffers pass
+ * through, then published with the same atomic rename. The remaining operations only touch file metadata, and run on
+ * the bounded elastic scheduler as the JDK has no non-blocking API for them.
+ * <p>
+ * When compression is enabled the upload is handed to the blocking compressing path instead, on the same scheduler,
+ * so files are stored the same way whichever stack saved them.
+ */
+@Repository
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "local", matchIfMissing = true)
+public class ReactiveFileLocalRepository implements ReactiveFileRepository {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveFileLocalRepository.class);
+
+	/**
+	 * Number of buffers requested ahead when an upload is read as a stream for the compressing path.
+	 */
+	private static final int STREAM_DEMAND = 16;
+
+	private final FileLocalRepository fileLocalRepository;
+	private final Scheduler scheduler = Schedulers.boundedElastic();
+
+	public ReactiveFileLocalRepository(FileLocalRepository fileLocalRepository) {
+		this.fileLocalRepository = fileLocalRepository;
+	}
+
+	@Override
+	public Mono<Set<String>> listFilenames() {
+		return Mono.fromCallable(fileLocalRepository::listFilenames).subscribeOn(scheduler);
+	}
+
+	@Override
+	public Mono<Boolean> saveFileToStorage(String filename, Flux<DataBuffer> content) {
+		if (fileLocalRepository.isCompressionEnabled()) {
+			return Mono.fromCallable(() -> {
+				try (InputStream inputStream = DataBufferUtils.subscriberInputStream(content, STREAM_DEMAND)) {
+					return fileLocalRepository.saveFileToStorage(filename, inputStream);
+				}
+			}).subscribeOn(scheduler);
+		}
+
+		return Mono.fromCallable(fileLocalRepository::createTempFile)
+				.subscribeOn(scheduler)
+				.flatMap(tempPath -> writeTempFile(filename, tempPath, content));
+	}
+
+	private Mono<Boolean> writeTempFile(String filename, Path tempPath, Flux<DataBuffer> content) {
+		MessageDigest messageDigest = FileLocalRepository.newMessageDigest();
+		Flux<DataBuffer> digested = content.doOnNext(buffer -> {
+			try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+				iterator.forEachRemaining(messageDigest::update);
+			}
+		});
+
+		return DataBufferUtils.write(digested, tempPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+				.then(Mono.fromCallable(() -> fileLocalRepository.saveFileToStorage(filename, tempPath,
+						HexFormat.of().formatHex(messageDigest.digest()))).subscribeOn(scheduler))
+				.doFinally(signal -> {
+					if (signal != SignalType.ON_COMPLETE) {
+						deleteTempFile(tempPath);
+					}
+				});
+	}
+
+	private void deleteTempFile(Path tempPath) {
+		try {
+			fileLocalRepository.discardTempFile(tempPath);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to remove temporary file [{}] of an interrupted upload", tempPath, e);
+		}
+	}
+
+	@Override
+	public Mono<Boolean> deleteFileFromStorage(String filename) {
+		return Mono.fromCallable(() -> fileLocalRepository.deleteFileFromStorage(filename)).subscribeOn(scheduler);
+	}
+
+	@Override
+	public Mono<Resource> getFileFromStorage(String filename) {
+		return Mono.fromCallable(() -> fileLocalRepository.getFileFromStorage(filename)).subscribeOn(scheduler);
+	}
+
+	@Override
+	public Mono<FileMetadata> getFileMetadata(String filename) {
+		return Mono.fromCallable(() -> fileLocalRepository.getFileMetadata(filename)).subscribeOn(scheduler);
+	}
+
+	@Override
+	public Mono<Boolean> fileExists(String filename) {
+		return Mono.fromCallable(() -> fileLocalRepository.fileExists(filename)).subscribeOn(scheduler);
+	}
+}
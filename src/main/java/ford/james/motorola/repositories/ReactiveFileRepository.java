@@ -0,0 +1,39 @@
+package ford.james.motorola.repositories;
+
+import java.util.Set;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of {@link FileRepository} used by the reactive stack. Content is written from a stream of
+ * buffers with backpressure, so a slow client never holds a thread, and stored files are returned as a
+ * {@code Resource} that is read in buffers by the caller.
+ */
+public interface ReactiveFileRepository {
+
+	Mono<Set<String>> listFilenames();
+
+	/**
+	 * Saves the buffers under the given filename. The buffers are released once they have been written.
+	 */
+	Mono<Boolean> saveFileToStorage(String filename, Flux<DataBuffer> content);
+
+	Mono<Boolean> deleteFileFromStorage(String filename);
+
+	/**
+	 * @return the stored file, which is not read until the caller reads it
+	 */
+	Mono<Resource> getFileFromStorage(String filename);
+
+	/**
+	 * @return the size, last modified time and content digest of the file, or a
+	 * {@link java.nio.file.NoSuchFileException} error if the file does not exist
+	 */
+	Mono<FileMetadata> getFileMetadata(String filename);
+
+	Mono<Boolean> fileExists(String filename);
+}
@@ -0,0 +1,29 @@
+package ford.james.motorola.repositories;
+
+/**
+ * The state of one file on a replica, exchanged between replicas to find the files that differ.
+ *
+ * @param filename the name the file is stored under
+ * @param size the size of the file in bytes, or {@code 0} if it was deleted
+ * @param lastModified when the file was last saved or, if it was deleted, when it was deleted, in milliseconds since
+ * the epoch
+ * @param digest the hex encoded SHA-256 digest of the content, or {@code null} if it was deleted or is not known
+ * @param deleted whether the entry is a tombstone rather than a stored file
+ */
+public record ReplicaEntry(String filename, long size, long lastModified, String digest, boolean deleted) {
+
+	static ReplicaEntry stored(FileMetadata metadata) {
+		return new ReplicaEntry(metadata.filename(), metadata.size(), metadata.lastModified(), metadata.digest(), false);
+	}
+
+	static ReplicaEntry tombstone(String filename, long deletedAt) {
+		return new ReplicaEntry(filename, 0, deletedAt, null, true);
+	}
+
+	/**
+	 * @return what identifies the content of the file, the size standing in for the digest when it is not known
+	 */
+	String fingerprint() {
+		return digest != null ? digest : "size:" + size;
+	}
+}
@@ -0,0 +1,261 @@
+package ford.james.motorola.repositories;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Client for the replica API of another instance, which works on the files stored by that instance alone.
+ * <p>
+ * Keeps count of the requests in flight to the instance and the load it reported in its last response, so reads can
+ * be sent to the least loaded replica.
+ */
+class ReplicaPeer {
+
+	private static final TypeReference<List<String>> HASHES = new TypeReference<>() {
+	};
+	private static final TypeReference<List<ReplicaEntry>> ENTRIES = new TypeReference<>() {
+	};
+
+	private final URI baseUri;
+	private final HttpClient httpClient;
+	private final String authorization;
+	private final Duration requestTimeout;
+	private final Duration lookupTimeout;
+	private final ObjectMapper objectMapper;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int reportedLoad;
+
+	ReplicaPeer(String baseUrl, HttpClient httpClient, String authorization, Duration requestTimeout,
+			Duration lookupTimeout, ObjectMapper objectMapper) {
+		this.baseUri = URI.create(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/").resolve("replica/");
+		this.httpClient = httpClient;
+		this.authorization = authorization;
+		this.requestTimeout = requestTimeout;
+		this.lookupTimeout = lookupTimeout;
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * Sends the content of a file to be stored. Content requests have no timeout, as they take as long as the file
+	 * takes to transfer.
+	 *
+	 * @param content opens the content, which may be called again if the request is retried
+	 */
+	CompletableFuture<Void> save(String filename, long timestamp, long length, Supplier<InputStream> content) {
+		HttpRequest.BodyPublisher body = length > 0
+				? HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(content), length)
+				: HttpRequest.BodyPublishers.noBody();
+		HttpRequest request = newRequest(fileUri(filename))
+				.header(FileReplicatedRepository.TIMESTAMP_HEADER, Long.toString(timestamp))
+				.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE)
+				.PUT(body)
+				.build();
+		return sendAsync(request, HttpResponse.BodyHandlers.discarding())
+				.thenAccept(response -> checkStatus(response, filename));
+	}
+
+	CompletableFuture<Void> delete(String filename, long deletedAt) {
+		HttpRequest request = newRequest(fileUri(filename))
+				.timeout(requestTimeout)
+				.header(FileReplicatedRepository.TIMESTAMP_HEADER, Long.toString(deletedAt))
+				.DELETE()
+				.build();
+		return sendAsync(request, HttpResponse.BodyHandlers.discarding())
+				.thenAccept(response -> checkStatus(response, filename));
+	}
+
+	/**
+	 * Looks up a file for a read, which is given only the lookup timeout so that an unreachable peer holds up the
+	 * read briefly rather than for the whole request timeout.
+	 *
+	 * @return the stored file or tombstone of the file, or {@code null} if the replica knows nothing of it
+	 */
+	CompletableFuture<ReplicaEntry> getEntry(String filename) {
+		HttpRequest request = newRequest(baseUri.resolve("files/" + encode(filename) + "/metadata"))
+				.timeout(lookupTimeout)
+				.GET()
+				.build();
+		return sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+			if (response.statusCode() == HttpStatus.NOT_FOUND.value()) {
+				return null;
+			}
+			checkStatus(response, filename);
+			try {
+				return objectMapper.readValue(response.body(), ReplicaEntry.class);
+			} catch (IOException e) {
+				throw new ReplicaRequestException(e);
+			}
+		});
+	}
+
+	/**
+	 * Opens the content of a file stored by the replica. The request counts as in flight until the stream is closed.
+	 *
+	 * @throws NoSuchFileException if the replica does not store the file
+	 */
+	InputStream open(String filename) throws IOException {
+		HttpRequest request = newRequest(fileUri(filename)).GET().build();
+		HttpResponse<InputStream> response;
+		inFlight.incrementAndGet();
+		try {
+			response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+			recordLoad(response);
+			if (response.statusCode() != HttpStatus.OK.value()) {
+				response.body().close();
+				checkStatus(response, filename);
+			}
+		} catch (InterruptedException e) {
+			inFlight.decrementAndGet();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while opening [" + filename + "] on [" + baseUri + "]");
+		} catch (IOException | RuntimeException e) {
+			inFlight.decrementAndGet();
+			throw unwrap(e);
+		}
+
+		AtomicBoolean closed = new AtomicBoolean();
+		return new FilterInputStream(response.body()) {
+			@Override
+			public void close() throws IOException {
+				if (closed.compareAndSet(false, true)) {
+					inFlight.decrementAndGet();
+				}
+				super.close();
+			}
+		};
+	}
+
+	/**
+	 * @return the hash of the stored files in each bucket
+	 */
+	List<String> getBucketHashes() throws IOException {
+		return readJson(get(baseUri.resolve("buckets")), HASHES);
+	}
+
+	/**
+	 * @return the stored files and tombstones in the bucket
+	 */
+	List<ReplicaEntry> getBucket(int bucket) throws IOException {
+		return readJson(get(baseUri.resolve("buckets/" + bucket)), ENTRIES);
+	}
+
+	/**
+	 * @return the load the replica last reported plus the requests this instance has in flight to it
+	 */
+	int getLoad() {
+		return reportedLoad + inFlight.get();
+	}
+
+	@Override
+	public String toString() {
+		return baseUri.toString();
+	}
+
+	private byte[] get(URI uri) throws IOException {
+		HttpRequest request = newRequest(uri).timeout(requestTimeout).GET().build();
+		try {
+			HttpResponse<byte[]> response = sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).get();
+			checkStatus(response, uri.getPath());
+			return response.body();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting [" + uri + "]");
+		} catch (Exception e) {
+			throw unwrap(e);
+		}
+	}
+
+	private <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+			HttpResponse.BodyHandler<T> bodyHandler) {
+		inFlight.incrementAndGet();
+		return httpClient.sendAsync(request, bodyHandler)
+				.whenComplete((response, e) -> {
+					inFlight.decrementAndGet();
+					if (response != null) {
+						recordLoad(response);
+					}
+				});
+	}
+
+	private HttpRequest.Builder newRequest(URI uri) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+		if (authorization != null) {
+			builder.header(HttpHeaders.AUTHORIZATION, authorization);
+		}
+		return builder;
+	}
+
+	private void recordLoad(HttpResponse<?> response) {
+		response.headers()
+				.firstValue(FileReplicatedRepository.LOAD_HEADER)
+				.ifPresent(load -> reportedLoad = Integer.parseInt(load));
+	}
+
+	private void checkStatus(HttpResponse<?> response, String name) {
+		int status = response.statusCode();
+		if (status == HttpStatus.NOT_FOUND.value()) {
+			throw new ReplicaRequestException(new NoSuchFileException(name));
+		}
+		if (status < 200 || status >= 300) {
+			throw new ReplicaRequestException(new IOException(
+					"Replica [" + baseUri + "] answered [" + status + "] to " + response.request().method() + " ["
+							+ name + "]"));
+		}
+	}
+
+	private URI fileUri(String filename) {
+		return baseUri.resolve("files/" + encode(filename));
+	}
+
+	private <T> T readJson(byte[] body, TypeReference<T> type) throws IOException {
+		return objectMapper.readValue(body, type);
+	}
+
+	private static String encode(String filename) {
+		return UriUtils.encodePathSegment(filename, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Recovers the {@link IOException} from a failed request, which is wrapped when it completes a future.
+	 */
+	static IOException unwrap(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException ioException) {
+				return ioException;
+			}
+		}
+		return new IOException(e.getMessage(), e);
+	}
+
+	/**
+	 * Carries a failed response through a future, from which it is unwrapped by {@link #unwrap(Throwable)}.
+	 */
+	private static class ReplicaRequestException extends RuntimeException {
+
+		private ReplicaRequestException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+}
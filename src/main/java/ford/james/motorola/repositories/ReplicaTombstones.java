@@ -0,0 +1,222 @@
+package ford.james.motorola.repositories;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of when each file was deleted, so anti-entropy can tell a file that was deleted on one replica apart
+ * from a file that has not reached it yet.
+ * <p>
+ * Each tombstone is forced to disk before the delete returns. Threads waiting to force the log share a single force, so
+ * concurrent deletes are batched into as few forces as the disk allows. Tombstones older than the retention are dropped
+ * when the log is compacted, which happens on startup and whenever most of the log is made up of dropped entries.
+ * <p>
+ * Lookups read a concurrent map and take no lock, so the reads and anti-entropy runs that check a tombstone never wait
+ * for a delete to reach the disk or for the log to be compacted.
+ */
+class ReplicaTombstones implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaTombstones.class);
+
+	private static final String SEPARATOR = "\t";
+	private static final int MIN_COMPACTION_ENTRIES = 1024;
+
+	private final Path path;
+	private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+
+	/**
+	 * Guards the channel and the counters while entries are written.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Held while forcing the log, so threads that arrive during a force wait for it and then find their tombstones
+	 * were forced by the next one. Acquired before {@link #lock}.
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+
+	private FileChannel channel;
+	private int loggedCount;
+	private long writtenSequence;
+	private volatile long syncedSequence;
+
+	ReplicaTombstones(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Replays the log, dropping the tombstones from before the cutoff, and rewrites it with the rest.
+	 */
+	void open(long cutoff) throws IOException {
+		syncLock.lock();
+		try {
+			lock.lock();
+			try {
+				replay(cutoff);
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private void replay(long cutoff) throws IOException {
+		if (Files.exists(path)) {
+			try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split(SEPARATOR, 2);
+					if (fields.length == 2) {
+						tombstones.merge(fields[1], Long.parseLong(fields[0]), Math::max);
+					} else {
+						LOGGER.warn("Ignoring incomplete entry [{}] in tombstone log [{}]", line, path);
+					}
+				}
+			}
+		}
+		compact(cutoff);
+	}
+
+	/**
+	 * Records that the file was deleted at the given time, unless a later delete is already recorded.
+	 */
+	void add(String filename, long deletedAt) throws IOException {
+		long sequence;
+		lock.lock();
+		try {
+			Long existing = tombstones.get(filename);
+			if (existing != null && existing >= deletedAt) {
+				return;
+			}
+			tombstones.put(filename, deletedAt);
+			write(channel, deletedAt + SEPARATOR + filename);
+			loggedCount++;
+			sequence = ++writtenSequence;
+		} finally {
+			lock.unlock();
+		}
+		sync(sequence);
+	}
+
+	/**
+	 * @return when the file was last deleted, or {@code null} if no delete is recorded
+	 */
+	Long get(String filename) {
+		return tombstones.get(filename);
+	}
+
+	Map<String, Long> snapshot() {
+		return Map.copyOf(tombstones);
+	}
+
+	int size() {
+		return tombstones.size();
+	}
+
+	/**
+	 * Drops the tombstones from before the cutoff, rewriting the log once it is mostly made up of dropped entries.
+	 */
+	void prune(long cutoff) throws IOException {
+		syncLock.lock();
+		try {
+			lock.lock();
+			try {
+				tombstones.values().removeIf(deletedAt -> deletedAt < cutoff);
+				if (loggedCount > MIN_COMPACTION_ENTRIES && loggedCount > tombstones.size() * 2) {
+					compact(cutoff);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		syncLock.lock();
+		try {
+			lock.lock();
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Forces the log up to the given entry. If another thread is forcing it, waits for that force and then forces
+	 * everything written in the meantime in one go, unless the earlier force already covered the entry.
+	 */
+	private void sync(long sequence) throws IOException {
+		if (syncedSequence >= sequence) {
+			return;
+		}
+		syncLock.lock();
+		try {
+			if (syncedSequence >= sequence) {
+				return;
+			}
+			long target;
+			lock.lock();
+			try {
+				target = writtenSequence;
+			} finally {
+				lock.unlock();
+			}
+			channel.force(false);
+			syncedSequence = target;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private void compact(long cutoff) throws IOException {
+		tombstones.values().removeIf(deletedAt -> deletedAt < cutoff);
+
+		Path parent = path.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path compacted = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+		try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+			for (Map.Entry<String, Long> entry : tombstones.entrySet()) {
+				write(compactedChannel, entry.getValue() + SEPARATOR + entry.getKey());
+			}
+			compactedChannel.force(true);
+		}
+		Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		if (channel != null) {
+			channel.close();
+		}
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		loggedCount = tombstones.size();
+		syncedSequence = writtenSequence;
+	}
+
+	private static void write(FileChannel channel, String entry) throws IOException {
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(entry + "\n");
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,458 @@
+package ford.james.motorola.repositories;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import ford.james.motorola.FileStorageProperties;
+
+/**
+ * Client for the subset of the S3 REST API the {@link FileS3Repository} uses, signing every request with AWS
+ * Signature Version 4. Content is streamed in both directions and never buffered by the client, uploads are signed
+ * with an unsigned payload so their content does not have to be read twice.
+ */
+class S3Client {
+
+	static final String DIGEST_HEADER = "x-amz-meta-sha256";
+
+	private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+	private static final String EMPTY_PAYLOAD_HASH = sha256Hex(new byte[0]);
+	private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+	private static final DateTimeFormatter DATE_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd");
+	private static final DocumentBuilderFactory XML_FACTORY = newXmlFactory();
+
+	private final HttpClient httpClient;
+	private final URI endpoint;
+	private final String bucket;
+	private final String region;
+	private final String accessKey;
+	private final String secretKey;
+	private final boolean pathStyleAccess;
+	private final Duration requestTimeout;
+
+	S3Client(FileStorageProperties.S3 s3, HttpClient httpClient) {
+		String endpoint = s3.getEndpoint();
+		this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+		this.bucket = s3.getBucket();
+		this.region = s3.getRegion();
+		this.accessKey = s3.getAccessKey();
+		this.secretKey = s3.getSecretKey();
+		this.pathStyleAccess = s3.isPathStyleAccess();
+		this.requestTimeout = s3.getRequestTimeout();
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * @return the object, or {@code null} if the bucket has no object under the key
+	 */
+	S3Object headObject(String key) throws IOException {
+		HttpRequest request = newRequest("HEAD", key, Map.of(), Map.of(), EMPTY_PAYLOAD_HASH)
+				.timeout(requestTimeout)
+				.method("HEAD", HttpRequest.BodyPublishers.noBody())
+				.build();
+		HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() == 404) {
+			return null;
+		}
+		checkStatus(response, key);
+		HttpHeaders headers = response.headers();
+		return new S3Object(key, headers.firstValueAsLong("Content-Length").orElse(0),
+				parseLastModified(headers.firstValue("Last-Modified").orElse(null)),
+				headers.firstValue("ETag").orElse(null), headers.firstValue(DIGEST_HEADER).orElse(null));
+	}
+
+	/**
+	 * Opens {@code count} bytes of the object starting at {@code position}, which are streamed as they are read.
+	 *
+	 * @param eTag the entity tag of the version of the object to read, the read fails if the object was replaced
+	 * @throws NoSuchFileException if the bucket has no object under the key
+	 */
+	InputStream getObject(String key, String eTag, long position, long count) throws IOException {
+		HttpRequest.Builder builder = newRequest("GET", key, Map.of(), Map.of(), EMPTY_PAYLOAD_HASH).GET();
+		if (eTag != null) {
+			builder.header("If-Match", eTag);
+		}
+		if (count > 0) {
+			builder.header("Range", "bytes=" + position + "-" + (position + count - 1));
+		}
+		HttpResponse<InputStream> response = send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+		int status = response.statusCode();
+		if (status != 200 && status != 206) {
+			byte[] body;
+			try (InputStream inputStream = response.body()) {
+				body = inputStream.readAllBytes();
+			}
+			if (status == 412) {
+				throw new IOException("The object [" + key + "] was replaced while it was being read");
+			}
+			checkStatus(status, body, "GET", key);
+		}
+		return response.body();
+	}
+
+	/**
+	 * Stores the content as the object in a single request.
+	 *
+	 * @param digest the SHA-256 digest of the content, stored with the object, or {@code null} if not known
+	 */
+	void putObject(String key, HttpRequest.BodyPublisher content, String digest) throws IOException {
+		Map<String, String> amzHeaders = digest != null ? Map.of(DIGEST_HEADER, digest) : Map.of();
+		HttpRequest request = newRequest("PUT", key, Map.of(), amzHeaders, UNSIGNED_PAYLOAD)
+				.header("Content-Type", "application/octet-stream")
+				.PUT(content)
+				.build();
+		checkStatus(send(request, HttpResponse.BodyHandlers.ofByteArray()), key);
+	}
+
+	void deleteObject(String key) throws IOException {
+		HttpRequest request = newRequest("DELETE", key, Map.of(), Map.of(), EMPTY_PAYLOAD_HASH)
+				.timeout(requestTimeout)
+				.DELETE()
+				.build();
+		HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() != 404) {
+			checkStatus(response, key);
+		}
+	}
+
+	/**
+	 * @return the id of the new upload
+	 */
+	String createMultipartUpload(String key) throws IOException {
+		HttpRequest request = newRequest("POST", key, Map.of("uploads", ""), Map.of(), EMPTY_PAYLOAD_HASH)
+				.timeout(requestTimeout)
+				.header("Content-Type", "application/octet-stream")
+				.POST(HttpRequest.BodyPublishers.noBody())
+				.build();
+		HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+		checkStatus(response, key);
+		return readText(parseXml(response.body()).getDocumentElement(), "UploadId");
+	}
+
+	/**
+	 * Uploads a part without blocking. Part requests have no timeout, as they take as long as the part takes to
+	 * transfer.
+	 *
+	 * @return the entity tag of the part, which is needed to complete the upload
+	 */
+	CompletableFuture<String> uploadPart(String key, String uploadId, int partNumber,
+			HttpRequest.BodyPublisher content) {
+		HttpRequest request = newRequest("PUT", key,
+				Map.of("partNumber", Integer.toString(partNumber), "uploadId", uploadId), Map.of(), UNSIGNED_PAYLOAD)
+				.PUT(content)
+				.build();
+		return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+			try {
+				checkStatus(response, key);
+			} catch (IOException e) {
+				throw new S3RequestException(e);
+			}
+			return response.headers()
+					.firstValue("ETag")
+					.orElseThrow(() -> new S3RequestException(
+							new IOException("No ETag was returned for part [" + partNumber + "] of [" + key + "]")));
+		});
+	}
+
+	/**
+	 * Completes the upload, which replaces any object under the key with the parts in order at once.
+	 */
+	void completeMultipartUpload(String key, String uploadId, List<String> partETags) throws IOException {
+		StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+		for (int i = 0; i < partETags.size(); i++) {
+			xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+					.append(escapeXml(partETags.get(i))).append("</ETag></Part>");
+		}
+		byte[] body = xml.append("</CompleteMultipartUpload>").toString().getBytes(StandardCharsets.UTF_8);
+
+		HttpRequest request = newRequest("POST", key, Map.of("uploadId", uploadId), Map.of(), sha256Hex(body))
+				.timeout(requestTimeout)
+				.header("Content-Type", "application/xml")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body))
+				.build();
+		HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+		checkStatus(response, key);
+		// S3 reports a failure to assemble the parts in the body of a successful response
+		Element result = parseXml(response.body()).getDocumentElement();
+		if ("Error".equals(result.getTagName())) {
+			throw new IOException("Cannot complete the upload of [" + key + "]: " + readText(result, "Code") + " "
+					+ readText(result, "Message"));
+		}
+	}
+
+	void abortMultipartUpload(String key, String uploadId) throws IOException {
+		HttpRequest request = newRequest("DELETE", key, Map.of("uploadId", uploadId), Map.of(), EMPTY_PAYLOAD_HASH)
+				.timeout(requestTimeout)
+				.DELETE()
+				.build();
+		HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() != 404) {
+			checkStatus(response, key);
+		}
+	}
+
+	/**
+	 * Lists one page of the keys under the prefix, leaving out those with a further {@code /} after it.
+	 *
+	 * @param continuationToken the token returned with the previous page, or {@code null} for the first page
+	 */
+	ListPage listObjects(String prefix, String continuationToken, int maxKeys) throws IOException {
+		SortedMap<String, String> query = new TreeMap<>(Map.of("list-type", "2", "prefix", prefix, "delimiter", "/",
+				"max-keys", Integer.toString(maxKeys)));
+		if (continuationToken != null) {
+			query.put("continuation-token", continuationToken);
+		}
+		HttpRequest request = newRequest("GET", null, query, Map.of(), EMPTY_PAYLOAD_HASH)
+				.timeout(requestTimeout)
+				.GET()
+				.build();
+		HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+		checkStatus(response, prefix);
+
+		Element result = parseXml(response.body()).getDocumentElement();
+		List<String> keys = new ArrayList<>();
+		NodeList contents = result.getElementsByTagName("Contents");
+		for (int i = 0; i < contents.getLength(); i++) {
+			keys.add(readText((Element) contents.item(i), "Key"));
+		}
+		String nextToken = "true".equals(readText(result, "IsTruncated"))
+				? readText(result, "NextContinuationToken")
+				: null;
+		return new ListPage(keys, nextToken);
+	}
+
+	/**
+	 * Builds a request for the object, or the bucket when the key is {@code null}, signed with the headers that
+	 * must be sent with it.
+	 */
+	private HttpRequest.Builder newRequest(String method, String key, Map<String, String> query,
+			Map<String, String> amzHeaders, String payloadHash) {
+		String path = pathStyleAccess ? endpoint.getRawPath() + "/" + encode(bucket, false) + "/"
+				: endpoint.getRawPath() + "/";
+		if (key != null) {
+			path += encode(key, true);
+		}
+		String host = pathStyleAccess ? endpoint.getHost() : bucket + "." + endpoint.getHost();
+		if (endpoint.getPort() != -1) {
+			host += ":" + endpoint.getPort();
+		}
+		String queryString = new TreeMap<>(query).entrySet()
+				.stream()
+				.map(entry -> encode(entry.getKey(), false) + "=" + encode(entry.getValue(), false))
+				.collect(Collectors.joining("&"));
+		URI uri = URI.create(endpoint.getScheme() + "://" + host + path + (queryString.isEmpty() ? "" : "?" + queryString));
+
+		ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		String amzDate = AMZ_DATE.format(now);
+		String dateStamp = DATE_STAMP.format(now);
+
+		SortedMap<String, String> signedHeaders = new TreeMap<>(amzHeaders);
+		signedHeaders.put("host", host);
+		signedHeaders.put("x-amz-content-sha256", payloadHash);
+		signedHeaders.put("x-amz-date", amzDate);
+		String signedHeaderNames = String.join(";", signedHeaders.keySet());
+		String canonicalRequest = method + "\n" + path + "\n" + queryString + "\n"
+				+ signedHeaders.entrySet()
+						.stream()
+						.map(entry -> entry.getKey() + ":" + entry.getValue().trim() + "\n")
+						.collect(Collectors.joining())
+				+ "\n" + signedHeaderNames + "\n" + payloadHash;
+
+		String scope = dateStamp + "/" + region + "/s3/aws4_request";
+		String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+				+ sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+		byte[] signingKey = hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp),
+				region), "s3"), "aws4_request");
+		String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+				.header("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders="
+						+ signedHeaderNames + ", Signature=" + signature);
+		signedHeaders.forEach((name, value) -> {
+			if (!name.equals("host")) {
+				builder.header(name, value);
+			}
+		});
+		return builder;
+	}
+
+	private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+			throws IOException {
+		try {
+			return httpClient.send(request, bodyHandler);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting [" + request.uri() + "]");
+		}
+	}
+
+	private static void checkStatus(HttpResponse<byte[]> response, String name) throws IOException {
+		checkStatus(response.statusCode(), response.body(), response.request().method(), name);
+	}
+
+	private static void checkStatus(int status, byte[] body, String method, String name) throws IOException {
+		if (status == 404) {
+			throw new NoSuchFileException(name);
+		}
+		if (status < 200 || status >= 300) {
+			String error = "";
+			if (body != null && body.length > 0) {
+				try {
+					Element root = parseXml(body).getDocumentElement();
+					error = ": " + readText(root, "Code") + " " + readText(root, "Message");
+				} catch (IOException e) {
+					// Not an S3 error document, the status is reported alone
+				}
+			}
+			throw new IOException("S3 answered [" + status + "] to " + method + " [" + name + "]" + error);
+		}
+	}
+
+	private static long parseLastModified(String lastModified) {
+		if (lastModified == null) {
+			return 0;
+		}
+		try {
+			return ZonedDateTime.parse(lastModified, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	private static Document parseXml(byte[] body) throws IOException {
+		try {
+			DocumentBuilder documentBuilder = XML_FACTORY.newDocumentBuilder();
+			return documentBuilder.parse(new ByteArrayInputStream(body));
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Cannot parse the response of S3", e);
+		}
+	}
+
+	private static String readText(Element element, String tagName) {
+		NodeList nodes = element.getElementsByTagName(tagName);
+		return nodes.getLength() > 0 ? nodes.item(0).getTextContent() : null;
+	}
+
+	private static DocumentBuilderFactory newXmlFactory() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		try {
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+		factory.setExpandEntityReferences(false);
+		return factory;
+	}
+
+	private static String escapeXml(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Percent encodes everything but the unreserved characters, as the signature requires.
+	 */
+	static String encode(String value, boolean keepSlashes) {
+		StringBuilder encoded = new StringBuilder();
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+			if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+					|| c == '.' || c == '~' || c == '/' && keepSlashes) {
+				encoded.append(c);
+			} else {
+				encoded.append('%').append(HexFormat.of().withUpperCase().toHexDigits(b));
+			}
+		}
+		return encoded.toString();
+	}
+
+	private static byte[] hmac(byte[] key, String data) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String sha256Hex(byte[] data) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Recovers the {@link IOException} from a failed request, which is wrapped when it completes a future.
+	 */
+	static IOException unwrap(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException ioException) {
+				return ioException;
+			}
+		}
+		return new IOException(e.getMessage(), e);
+	}
+
+	/**
+	 * The metadata of a stored object.
+	 *
+	 * @param digest the SHA-256 digest stored with the object, or {@code null} if it was uploaded in parts
+	 */
+	record S3Object(String key, long size, long lastModified, String eTag, String digest) {
+	}
+
+	/**
+	 * @param nextContinuationToken the token to list the next page with, or {@code null} if this is the last page
+	 */
+	record ListPage(List<String> keys, String nextContinuationToken) {
+	}
+
+	/**
+	 * Carries a failed request through a future, from which the {@link IOException} is recovered by the caller.
+	 */
+	private static class S3RequestException extends RuntimeException {
+
+		private S3RequestException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package ford.james.motorola.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.springframework.core.io.AbstractResource;
+
+/**
+ * A file stored as an object in S3. Nothing is fetched until the content is read, and then only the requested range is
+ * streamed from the bucket, so a download never holds the object in memory. Every read is pinned to the version of
+ * the object the resource was created for, and fails if the object has been replaced since.
+ */
+public class S3ObjectResource extends AbstractResource {
+
+	private final String filename;
+	private final S3Client s3Client;
+	private final S3Client.S3Object object;
+
+	S3ObjectResource(String filename, S3Client s3Client, S3Client.S3Object object) {
+		this.filename = filename;
+		this.s3Client = s3Client;
+		this.object = object;
+	}
+
+	/**
+	 * @param position the offset of the first byte
+	 * @param count the number of bytes, which is reduced to what remains of the object
+	 * @return a stream of the bytes, fetched from the bucket as they are read
+	 */
+	public InputStream getInputStream(long position, long count) throws IOException {
+		long length = Math.max(0, Math.min(count, object.size() - position));
+		if (length == 0) {
+			return InputStream.nullInputStream();
+		}
+		return s3Client.getObject(object.key(), object.eTag(), position, length);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getInputStream(0, object.size());
+	}
+
+	@Override
+	public boolean exists() {
+		return true;
+	}
+
+	@Override
+	public long contentLength() {
+		return object.size();
+	}
+
+	@Override
+	public long lastModified() {
+		return object.lastModified();
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public String getDescription() {
+		return "S3 object [" + object.key() + "]";
+	}
+}
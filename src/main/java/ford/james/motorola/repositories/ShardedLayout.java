@@ -0,0 +1,69 @@
+package ford.james.motorola.repositories;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Fans files out into nested subdirectories named after a prefix of the hash of their filename, so that no single
+ * directory holds more than a fraction of the stored files. With a depth of 2 and a width of 2, {@code report.pdf} is
+ * stored as {@code <base>/3f/a9/report.pdf}.
+ * <p>
+ * The hash is a 64-bit FNV-1a of the UTF-8 bytes of the filename. It is stable across JVMs and releases, unlike
+ * {@link String#hashCode()}, so the layout on disk stays valid when the application is upgraded.
+ */
+public final class ShardedLayout {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int HASH_HEX_LENGTH = 16;
+
+	private final Path basePath;
+	private final int depth;
+	private final int width;
+
+	public ShardedLayout(Path basePath, int depth, int width) {
+		if (depth < 1 || width < 1 || depth * width > HASH_HEX_LENGTH) {
+			throw new IllegalArgumentException("Shard depth [" + depth + "] and width [" + width
+					+ "] must be positive and use at most " + HASH_HEX_LENGTH + " hex digits");
+		}
+		this.basePath = basePath;
+		this.depth = depth;
+		this.width = width;
+	}
+
+	/**
+	 * @return the path the file is stored at
+	 */
+	public Path resolve(String filename) {
+		String hash = hash(filename);
+		Path path = basePath;
+		for (int level = 0; level < depth; level++) {
+			path = path.resolve(hash.substring(level * width, (level + 1) * width));
+		}
+		return path.resolve(filename);
+	}
+
+	/**
+	 * @return the number of levels of shard directories below the base path
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the number of directory levels below the base path that contain files, including the files themselves
+	 */
+	public int getMaxDepth() {
+		return depth + 1;
+	}
+
+	static String hash(String filename) {
+		long hash = FNV_OFFSET_BASIS;
+		for (byte b : filename.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		String hex = Long.toHexString(hash);
+		return "0".repeat(HASH_HEX_LENGTH - hex.length()) + hex;
+	}
+}
@@ -0,0 +1,317 @@
+package ford.james.motorola.services;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.AdmissionRejectedException;
+import ford.james.motorola.functions.LockFunction;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Limits how many requests may work on files at once, in total and for each file. A request over either limit waits in
+ * a bounded queue of its file, and once the queue of the file or the total number of waiting requests is full it is
+ * rejected straight away with an {@link AdmissionRejectedException} instead of tying up a thread until its lock times
+ * out. The rejection carries an estimate of when a retry is likely to be admitted, computed from the number of
+ * requests ahead and the average time a request is admitted for.
+ * <p>
+ * Admission is checked before the lock of the file is requested, so a waiting request holds a queued future rather
+ * than a place in the lock queue. Like {@link AsyncReadWriteLock}, futures are always completed outside of the
+ * monitor.
+ */
+@Component
+public class AdmissionManager implements MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionManager.class);
+
+	/**
+	 * Weight of the latest hold time in the moving average used for the retry estimate.
+	 */
+	private static final double HOLD_TIME_WEIGHT = 0.1;
+
+	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+	private final Map<String, FileAdmission> files = new HashMap<>();
+	private int active;
+	private double averageHoldNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+	public AdmissionManager(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
+		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+	}
+
+	public boolean isEnabled() {
+		return fileStorageProperties.getAdmission().isEnabled();
+	}
+
+	/**
+	 * Runs the function once the request for the file is admitted, waiting in the queue of the file if needed.
+	 *
+	 * @throws AdmissionRejectedException if the queue is full or the request was not admitted within the request
+	 * timeout
+	 */
+	public <R> R executeAdmitted(String filename, LockFunction<R> function) throws Exception {
+		if (!isEnabled()) {
+			return function.apply();
+		}
+
+		Permit permit = await(filename);
+		try {
+			return function.apply();
+		} finally {
+			release(permit);
+		}
+	}
+
+	/**
+	 * Subscribes to the publisher supplied by the function once the request for the file is admitted. Waiting does not
+	 * block a thread.
+	 */
+	public <R> Mono<R> executeAdmittedAsync(String filename, Supplier<Mono<R>> function) {
+		if (!isEnabled()) {
+			return Mono.defer(function);
+		}
+		return Mono.usingWhen(awaitAsync(filename), permit -> function.get(),
+				permit -> Mono.fromRunnable(() -> release(permit)));
+	}
+
+	private Permit await(String filename) throws Exception {
+		CompletableFuture<Permit> admitted = admit(filename);
+		try {
+			return admitted.get(fileStorageProperties.getRequestTimeout(), TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			abandon(admitted);
+			throw timedOut(filename);
+		} catch (InterruptedException e) {
+			abandon(admitted);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception cause) {
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	private Mono<Permit> awaitAsync(String filename) {
+		return Mono.defer(() -> {
+			CompletableFuture<Permit> admitted = admit(filename);
+			if (admitted.isDone()) {
+				return Mono.fromFuture(admitted);
+			}
+			return Mono.fromFuture(admitted, true)
+					.timeout(Duration.ofSeconds(fileStorageProperties.getRequestTimeout()),
+							Mono.error(() -> timedOut(filename)))
+					.doFinally(signal -> {
+						if (signal != SignalType.ON_COMPLETE) {
+							abandon(admitted);
+						}
+					});
+		});
+	}
+
+	/**
+	 * @return a future that completes with a permit once the request is admitted, which is already complete if it was
+	 * admitted or rejected straight away
+	 */
+	CompletableFuture<Permit> admit(String filename) {
+		FileStorageProperties.Admission limits = fileStorageProperties.getAdmission();
+		synchronized (this) {
+			FileAdmission file = files.computeIfAbsent(filename, key -> new FileAdmission());
+			if (file.queued == 0 && active < limits.getMaxConcurrent() && file.active < limits.getMaxConcurrentPerFile()) {
+				return CompletableFuture.completedFuture(grant(filename, file));
+			}
+
+			if (file.queued >= limits.getMaxQueuedPerFile()) {
+				AdmissionRejectedException rejection = reject(filename, false,
+						retryAfter(file.queued, limits.getMaxConcurrentPerFile()));
+				removeIfIdle(filename, file);
+				return CompletableFuture.failedFuture(rejection);
+			}
+			if (waiters.size() >= limits.getMaxQueued()) {
+				AdmissionRejectedException rejection = reject(filename, true,
+						retryAfter(waiters.size(), limits.getMaxConcurrent()));
+				removeIfIdle(filename, file);
+				return CompletableFuture.failedFuture(rejection);
+			}
+
+			Waiter waiter = new Waiter(filename, new CompletableFuture<>());
+			file.queued++;
+			waiters.addLast(waiter);
+			return waiter.future();
+		}
+	}
+
+	void release(Permit permit) {
+		long heldNanos = System.nanoTime() - permit.admittedAt();
+		List<Waiter> granted = new ArrayList<>();
+		List<Permit> permits = new ArrayList<>();
+		synchronized (this) {
+			averageHoldNanos += HOLD_TIME_WEIGHT * (heldNanos - averageHoldNanos);
+			active--;
+			FileAdmission file = files.get(permit.filename());
+			file.active--;
+			grantWaiters(granted, permits);
+			removeIfIdle(permit.filename(), file);
+		}
+		for (int i = 0; i < granted.size(); i++) {
+			granted.get(i).future().complete(permits.get(i));
+		}
+	}
+
+	/**
+	 * Gives up waiting to be admitted. If the request was admitted in the meantime its permit is released as soon as
+	 * it is handed out.
+	 */
+	void abandon(CompletableFuture<Permit> future) {
+		synchronized (this) {
+			Iterator<Waiter> iterator = waiters.iterator();
+			while (iterator.hasNext()) {
+				Waiter waiter = iterator.next();
+				if (waiter.future() == future) {
+					iterator.remove();
+					FileAdmission file = files.get(waiter.filename());
+					file.queued--;
+					removeIfIdle(waiter.filename(), file);
+					return;
+				}
+			}
+		}
+		// Granted, its future may still be about to be completed by the releasing thread
+		future.thenAccept(this::release);
+	}
+
+	/**
+	 * Admits waiters in arrival order while there is room. A waiter whose file is at its limit stays queued without
+	 * holding back waiters for other files.
+	 */
+	private void grantWaiters(List<Waiter> granted, List<Permit> permits) {
+		FileStorageProperties.Admission limits = fileStorageProperties.getAdmission();
+		Iterator<Waiter> iterator = waiters.iterator();
+		while (active < limits.getMaxConcurrent() && iterator.hasNext()) {
+			Waiter waiter = iterator.next();
+			FileAdmission file = files.get(waiter.filename());
+			if (file.active < limits.getMaxConcurrentPerFile()) {
+				iterator.remove();
+				file.queued--;
+				granted.add(waiter);
+				permits.add(grant(waiter.filename(), file));
+			}
+		}
+	}
+
+	private Permit grant(String filename, FileAdmission file) {
+		active++;
+		file.active++;
+		return new Permit(filename, System.nanoTime());
+	}
+
+	private void removeIfIdle(String filename, FileAdmission file) {
+		if (file.active == 0 && file.queued == 0) {
+			files.remove(filename);
+		}
+	}
+
+	/**
+	 * Estimates how long it will take for the requests ahead to be served, given how many may be served at once.
+	 */
+	private Duration retryAfter(int ahead, int concurrency) {
+		double nanos = (ahead + 1) * averageHoldNanos / Math.max(1, concurrency);
+		long seconds = (long) Math.ceil(nanos / TimeUnit.SECONDS.toNanos(1));
+		return Duration.ofSeconds(Math.max(1, Math.min(seconds, Math.max(1, fileStorageProperties.getRequestTimeout()))));
+	}
+
+	private AdmissionRejectedException reject(String filename, boolean global, Duration retryAfter) {
+		fileMetrics.recordAdmissionRejection(global);
+		LOGGER.debug("Rejected request for [{}] as the {} queue is full, retry after [{}]", filename,
+				global ? "global" : "file", retryAfter);
+		String message = global
+				? String.format("Too many requests are waiting, cannot process the file [%s]", filename)
+				: String.format("Too many requests are waiting for the file [%s]", filename);
+		return new AdmissionRejectedException(message, retryAfter);
+	}
+
+	private AdmissionRejectedException timedOut(String filename) {
+		long requestTimeout = fileStorageProperties.getRequestTimeout();
+		LOGGER.warn("Request for file [{}] was not admitted within the window of [{}] seconds", filename, requestTimeout);
+		FileStorageProperties.Admission limits = fileStorageProperties.getAdmission();
+		Duration retryAfter;
+		synchronized (this) {
+			retryAfter = retryAfter(waiters.size(), limits.getMaxConcurrent());
+		}
+		fileMetrics.recordAdmissionRejection(true);
+		return new AdmissionRejectedException(
+				String.format("Request for the file [%s] was not admitted in time", filename), retryAfter);
+	}
+
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	public synchronized int getQueuedCount() {
+		return waiters.size();
+	}
+
+	/**
+	 * @return the length of the longest queue of a single file
+	 */
+	public synchronized int getMaxFileQueueDepth() {
+		return files.values().stream().mapToInt(file -> file.queued).max().orElse(0);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		if (!isEnabled()) {
+			return;
+		}
+		Gauge.builder("file.admission.active", this, AdmissionManager::getActiveCount)
+				.description("Requests currently admitted")
+				.register(registry);
+		Gauge.builder("file.admission.queued", this, AdmissionManager::getQueuedCount)
+				.description("Requests waiting to be admitted")
+				.register(registry);
+		Gauge.builder("file.admission.queue.max", this, AdmissionManager::getMaxFileQueueDepth)
+				.description("Requests waiting to be admitted for the busiest file")
+				.register(registry);
+	}
+
+	/**
+	 * The admitted and waiting requests for a file. Only read and written under the monitor.
+	 */
+	private static final class FileAdmission {
+
+		private int active;
+		private int queued;
+	}
+
+	private record Waiter(String filename, CompletableFuture<Permit> future) {
+	}
+
+	/**
+	 * An admitted request, released exactly once by whoever was admitted.
+	 */
+	record Permit(String filename, long admittedAt) {
+	}
+}
@@ -0,0 +1,213 @@
+package ford.james.motorola.services;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.functions.LockFunction;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Lock manager of the reactive stack. Locks are {@link AsyncReadWriteLock}s, so a request waiting for a file holds
+ * a queued future rather than a thread, and the wait is bounded by a timer instead of a timed {@code tryLock}.
+ * <p>
+ * The blocking {@link LockManager} methods wait on the same locks, so the parts of the application that still run on
+ * worker threads, such as upload sessions and the shard migration, exclude the reactive requests for the same file.
+ * Keys are reference counted in the same way as in {@link LockManagerImpl}.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class AsyncLockManagerImpl implements LockManager, ReactiveLockManager, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncLockManagerImpl.class);
+
+	private final ConcurrentMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+	private final AtomicInteger holdCount = new AtomicInteger();
+	private final AtomicInteger waitCount = new AtomicInteger();
+
+	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+
+	public AsyncLockManagerImpl(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
+		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+	}
+
+	@Override
+	public <R> Mono<R> executeWithLockAsync(String key, boolean isWrite, Supplier<Mono<R>> function) {
+		return Mono.usingWhen(acquireAsync(key, isWrite), permit -> function.get(),
+				permit -> Mono.fromRunnable(() -> unlock(permit)));
+	}
+
+	@Override
+	public <R> R executeWithLock(String key, boolean isWrite, LockFunction<R> function) throws Exception {
+		Permit permit = acquire(key, isWrite);
+		try {
+			return function.apply();
+		} finally {
+			unlock(permit);
+		}
+	}
+
+	private Mono<Permit> acquireAsync(String key, boolean isWrite) {
+		return Mono.defer(() -> {
+			LockEntry entry = retain(key);
+			long waitStart = System.nanoTime();
+			CompletableFuture<Void> granted = entry.lock.acquire(isWrite);
+			if (granted.isDone()) {
+				return Mono.just(hold(key, entry, isWrite, waitStart));
+			}
+
+			LOGGER.debug("Awaiting for lock on [{}] to be released", key);
+			waitCount.incrementAndGet();
+			return Mono.fromFuture(granted, true)
+					.timeout(Duration.ofSeconds(fileStorageProperties.getRequestTimeout()))
+					.onErrorMap(TimeoutException.class, e -> lockTimeout(key, isWrite))
+					.doFinally(signal -> {
+						waitCount.decrementAndGet();
+						if (signal != SignalType.ON_COMPLETE) {
+							abandon(key, entry, isWrite, granted);
+						}
+					})
+					.then(Mono.fromSupplier(() -> hold(key, entry, isWrite, waitStart)));
+		});
+	}
+
+	private Permit acquire(String key, boolean isWrite) throws InterruptedException, LockTimeoutException {
+		LockEntry entry = retain(key);
+		long waitStart = System.nanoTime();
+		CompletableFuture<Void> granted = entry.lock.acquire(isWrite);
+		if (granted.isDone()) {
+			return hold(key, entry, isWrite, waitStart);
+		}
+
+		LOGGER.debug("Awaiting for lock on [{}] to be released", key);
+		waitCount.incrementAndGet();
+		try {
+			granted.get(fileStorageProperties.getRequestTimeout(), TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			abandon(key, entry, isWrite, granted);
+			throw lockTimeout(key, isWrite);
+		} catch (InterruptedException e) {
+			abandon(key, entry, isWrite, granted);
+			throw e;
+		} catch (ExecutionException e) {
+			abandon(key, entry, isWrite, granted);
+			throw new IllegalStateException("Lock for file [" + key + "] failed", e.getCause());
+		} finally {
+			waitCount.decrementAndGet();
+		}
+		return hold(key, entry, isWrite, waitStart);
+	}
+
+	private Permit hold(String key, LockEntry entry, boolean isWrite, long waitStart) {
+		long holdStart = System.nanoTime();
+		fileMetrics.recordLockWait(isWrite, holdStart - waitStart);
+		holdCount.incrementAndGet();
+		LOGGER.debug("Obtained lock on [{}]", key);
+		return new Permit(key, entry, isWrite, holdStart);
+	}
+
+	private void unlock(Permit permit) {
+		holdCount.decrementAndGet();
+		LOGGER.debug("Releasing lock on [{}]", permit.key());
+		permit.entry().lock.release(permit.isWrite());
+		release(permit.key());
+		fileMetrics.recordLockHold(permit.isWrite(), System.nanoTime() - permit.holdStart());
+	}
+
+	/**
+	 * Stops waiting for a lock that timed out or was cancelled. The lock may have been granted just before, in which
+	 * case it is released straight away.
+	 */
+	private void abandon(String key, LockEntry entry, boolean isWrite, CompletableFuture<Void> granted) {
+		if (!entry.lock.abandon(granted)) {
+			entry.lock.release(isWrite);
+		}
+		release(key);
+	}
+
+	private LockTimeoutException lockTimeout(String key, boolean isWrite) {
+		long requestTimeout = fileStorageProperties.getRequestTimeout();
+		LOGGER.warn("Lock for file [{}] was not released within the window of [{}] seconds", key, requestTimeout);
+
+		fileMetrics.recordLockTimeout(isWrite);
+		String message = isWrite ? String.format("Cannot modify the file [%s] as it is in use", key)
+				: String.format("Cannot get the file [%s] as it is being modified", key);
+		return new LockTimeoutException(message);
+	}
+
+	private LockEntry retain(String key) {
+		return locks.compute(key, (k, entry) -> {
+			LockEntry retained = entry != null ? entry : new LockEntry();
+			retained.references++;
+			return retained;
+		});
+	}
+
+	private void release(String key) {
+		locks.computeIfPresent(key, (k, entry) -> --entry.references == 0 ? null : entry);
+	}
+
+	@Override
+	public int getHoldCount() {
+		return holdCount.get();
+	}
+
+	@Override
+	public int getWaitCount() {
+		return waitCount.get();
+	}
+
+	@Override
+	public int getLockCount() {
+		return locks.size();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("file.lock.holders", this, AsyncLockManagerImpl::getHoldCount)
+				.description("Callers currently holding a file lock")
+				.register(registry);
+		Gauge.builder("file.lock.waiters", this, AsyncLockManagerImpl::getWaitCount)
+				.description("Callers currently waiting for a file lock")
+				.register(registry);
+		Gauge.builder("file.locks", this, AsyncLockManagerImpl::getLockCount)
+				.description("Files that currently have a lock allocated")
+				.register(registry);
+	}
+
+	/**
+	 * A lock together with the number of callers holding or waiting on it. The reference count is only read and
+	 * written inside the atomic compute operations of the map.
+	 */
+	private static final class LockEntry {
+
+		private final AsyncReadWriteLock lock = new AsyncReadWriteLock();
+		private int references;
+	}
+
+	/**
+	 * A held lock, released exactly once by whoever acquired it.
+	 */
+	private record Permit(String key, LockEntry entry, boolean isWrite, long holdStart) {
+	}
+}
@@ -0,0 +1,97 @@
+package ford.james.motorola.services;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A fair read/write lock that hands out permits through futures instead of parking the calling thread, so an event
+ * loop can wait for a lock without blocking. Any number of readers may hold the lock at once, while a writer excludes
+ * every other holder.
+ * <p>
+ * Waiters are granted strictly in arrival order, so a waiting writer stops later readers from overtaking it. Futures
+ * are always completed outside of the monitor, as completing one runs the continuation of the waiter.
+ */
+class AsyncReadWriteLock {
+
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+	private int readers;
+	private boolean writer;
+
+	/**
+	 * @return a future that completes once the lock is held, which is already complete if the lock was free
+	 */
+	CompletableFuture<Void> acquire(boolean isWrite) {
+		synchronized (this) {
+			if (waiters.isEmpty() && canGrant(isWrite)) {
+				grant(isWrite);
+				return CompletableFuture.completedFuture(null);
+			}
+			Waiter waiter = new Waiter(isWrite, new CompletableFuture<>());
+			waiters.addLast(waiter);
+			return waiter.future();
+		}
+	}
+
+	void release(boolean isWrite) {
+		List<Waiter> granted;
+		synchronized (this) {
+			if (isWrite) {
+				writer = false;
+			} else {
+				readers--;
+			}
+			granted = grantWaiters();
+		}
+		complete(granted);
+	}
+
+	/**
+	 * Gives up waiting for the lock. If the lock was granted in the meantime the caller holds it and must release it.
+	 *
+	 * @return whether the waiter was still waiting, {@code false} if it had already been granted the lock
+	 */
+	boolean abandon(CompletableFuture<Void> future) {
+		List<Waiter> granted;
+		synchronized (this) {
+			if (!waiters.removeIf(waiter -> waiter.future() == future)) {
+				return false;
+			}
+			// A writer at the head of the queue may have been holding back readers behind it
+			granted = grantWaiters();
+		}
+		complete(granted);
+		return true;
+	}
+
+	private List<Waiter> grantWaiters() {
+		List<Waiter> granted = new ArrayList<>();
+		while (!waiters.isEmpty() && canGrant(waiters.peekFirst().isWrite())) {
+			Waiter waiter = waiters.pollFirst();
+			grant(waiter.isWrite());
+			granted.add(waiter);
+		}
+		return granted;
+	}
+
+	private boolean canGrant(boolean isWrite) {
+		return isWrite ? !writer && readers == 0 : !writer;
+	}
+
+	private void grant(boolean isWrite) {
+		if (isWrite) {
+			writer = true;
+		} else {
+			readers++;
+		}
+	}
+
+	private static void complete(List<Waiter> granted) {
+		granted.forEach(waiter -> waiter.future().complete(null));
+	}
+
+	private record Waiter(boolean isWrite, CompletableFuture<Void> future) {
+	}
+}
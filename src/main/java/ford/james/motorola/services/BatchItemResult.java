@@ -0,0 +1,22 @@
+package ford.james.motorola.services;
+
+/**
+ * The outcome of a single item of a batch operation.
+ *
+ * @param filename the name of the file the item was for
+ * @param error the exception the item failed with, or {@code null} if it succeeded
+ */
+public record BatchItemResult(String filename, Exception error) {
+
+	public static BatchItemResult success(String filename) {
+		return new BatchItemResult(filename, null);
+	}
+
+	public static BatchItemResult failure(String filename, Exception error) {
+		return new BatchItemResult(filename, error);
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+}
@@ -0,0 +1,17 @@
+package ford.james.motorola.services;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * Runs many file operations as one request. Items are processed in parallel and each item gets its own result, so one
+ * failing item does not fail the rest of the batch.
+ */
+public interface FileBatchService {
+
+	List<BatchItemResult> saveFiles(Collection<MultipartFile> files) throws Exception;
+
+	List<BatchItemResult> deleteFiles(Collection<String> filenames) throws Exception;
+}
@@ -0,0 +1,133 @@
+package ford.james.motorola.services;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.functions.LockFunction;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * {@link FileBatchService} that hands each item to the {@link FileService} on a shared executor. The number of items
+ * running at once across all batches is bounded by {@code storage.file.batch.parallelism}.
+ * <p>
+ * Items are sorted by filename and submitted in that order, so overlapping batches always go for the same files in
+ * the same order. Each item holds only the lock of its own file, and never waits on another lock while holding it,
+ * so batches cannot deadlock each other.
+ */
+@Service
+public class FileBatchServiceImpl implements FileBatchService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileBatchServiceImpl.class);
+
+	private final FileService fileService;
+	private final FileStorageProperties fileStorageProperties;
+	private final ExecutorService executorService;
+	private final Semaphore permits;
+
+	public FileBatchServiceImpl(FileService fileService, FileStorageProperties fileStorageProperties,
+			Environment environment) {
+		this.fileService = fileService;
+		this.fileStorageProperties = fileStorageProperties;
+
+		int parallelism = fileStorageProperties.getBatch().getParallelism();
+		this.permits = new Semaphore(parallelism);
+		this.executorService = Threading.VIRTUAL.isActive(environment)
+				? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("file-batch-", 0).factory())
+				: Executors.newFixedThreadPool(parallelism, Thread.ofPlatform().name("file-batch-", 0).factory());
+	}
+
+	@PreDestroy
+	public void close() {
+		executorService.shutdown();
+	}
+
+	@Override
+	public List<BatchItemResult> saveFiles(Collection<MultipartFile> files) throws Exception {
+		return execute(files, MultipartFile::getOriginalFilename, file -> () -> {
+			fileService.saveFile(file);
+			return true;
+		});
+	}
+
+	@Override
+	public List<BatchItemResult> deleteFiles(Collection<String> filenames) throws Exception {
+		return execute(filenames, Function.identity(), filename -> () -> {
+			fileService.deleteFile(filename);
+			return true;
+		});
+	}
+
+	private <T> List<BatchItemResult> execute(Collection<T> items, Function<T, String> filenameFunction,
+			Function<T, LockFunction<Boolean>> operation) throws Exception {
+
+		int maxItems = fileStorageProperties.getBatch().getMaxItems();
+		if (items.size() > maxItems) {
+			throw new IllegalArgumentException(
+					String.format("A batch can contain at most %d items but %d were given", maxItems, items.size()));
+		}
+
+		List<T> sorted = new ArrayList<>(items);
+		sorted.sort(Comparator.comparing(filenameFunction));
+
+		Map<String, Future<BatchItemResult>> futures = new LinkedHashMap<>();
+		List<BatchItemResult> results = new ArrayList<>();
+		for (T item : sorted) {
+			String filename = filenameFunction.apply(item);
+			if (futures.containsKey(filename)) {
+				results.add(BatchItemResult.failure(filename,
+						new FileAlreadyExistsException("The file [" + filename + "] appears more than once in the batch")));
+				continue;
+			}
+			permits.acquire();
+			try {
+				futures.put(filename, executorService.submit(() -> runItem(filename, operation.apply(item))));
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		for (Map.Entry<String, Future<BatchItemResult>> future : futures.entrySet()) {
+			try {
+				results.add(future.getValue().get());
+			} catch (ExecutionException e) {
+				Exception cause = e.getCause() instanceof Exception exception ? exception : e;
+				results.add(BatchItemResult.failure(future.getKey(), cause));
+			}
+		}
+
+		results.sort(Comparator.comparing(BatchItemResult::filename));
+		return results;
+	}
+
+	private BatchItemResult runItem(String filename, LockFunction<Boolean> function) {
+		try {
+			function.apply();
+			return BatchItemResult.success(filename);
+		} catch (Exception e) {
+			LOGGER.warn("Batch item for file [{}] failed", filename, e);
+			return BatchItemResult.failure(filename, e);
+		} finally {
+			permits.release();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package ford.james.motorola.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.repositories.FileMetadata;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Optional in-memory cache of small files, bounded by the total number of bytes held. Eviction uses Caffeine's
+ * W-TinyLFU policy, so only files that are downloaded frequently stay cached. Callers must read and populate the
+ * cache under the read lock of the file and invalidate it under the write lock, so a stale entry can never be
+ * loaded after a file has been modified. The metadata of a file can be cached with its content, so a cached file is
+ * served without asking the repository anything.
+ * <p>
+ * The cache cannot be enabled together with process locks, as the instances sharing a storage directory would each
+ * keep serving their cached copy of a file another instance has since modified.
+ */
+@Component
+public class FileCache implements MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileCache.class);
+
+	private final Cache<String, CachedResource> cache;
+	private final long maxFileSize;
+
+	public FileCache(FileStorageProperties fileStorageProperties) {
+		FileStorageProperties.Cache cacheProperties = fileStorageProperties.getCache();
+		if (cacheProperties.isEnabled() && fileStorageProperties.getProcessLock().isEnabled()) {
+			throw new IllegalStateException("storage.file.cache.enabled cannot be used with "
+					+ "storage.file.process-lock.enabled, as files modified by other instances would be served stale");
+		}
+		this.maxFileSize = cacheProperties.getMaxFileSize().toBytes();
+		this.cache = cacheProperties.isEnabled()
+				? Caffeine.newBuilder()
+						.maximumWeight(cacheProperties.getMaxSize().toBytes())
+						.<String, CachedResource>weigher((filename, resource) -> resource.weight())
+						.recordStats()
+						.build()
+				: null;
+	}
+
+	public boolean isEnabled() {
+		return cache != null;
+	}
+
+	/**
+	 * @return the cached content of the file, or {@code null} if it is not cached
+	 */
+	public Resource get(String filename) {
+		return isEnabled() ? cache.getIfPresent(filename) : null;
+	}
+
+	/**
+	 * @return the metadata cached with the content of the file, or {@code null} if the file is not cached or was cached
+	 * without its metadata
+	 */
+	public FileMetadata getMetadata(String filename) {
+		CachedResource cachedResource = isEnabled() ? cache.getIfPresent(filename) : null;
+		return cachedResource != null ? cachedResource.getMetadata() : null;
+	}
+
+	/**
+	 * Caches the content of the resource if it is small enough and returns the resource that should be used to read
+	 * the file, which is the cached copy when the file was cached.
+	 */
+	public Resource load(String filename, Resource resource) throws IOException {
+		return load(filename, resource, null);
+	}
+
+	/**
+	 * Caches the content of the resource together with the metadata of the file, which must have been read under the
+	 * same lock as the resource.
+	 *
+	 * @param metadata the metadata of the file, or {@code null} if it is not known
+	 */
+	public Resource load(String filename, Resource resource, FileMetadata metadata) throws IOException {
+		if (!isEnabled()) {
+			return resource;
+		}
+
+		long contentLength = resource.contentLength();
+		if (contentLength > maxFileSize) {
+			return resource;
+		}
+
+		byte[] content;
+		try (InputStream inputStream = resource.getInputStream()) {
+			content = inputStream.readNBytes((int) contentLength);
+		}
+
+		CachedResource cachedResource = new CachedResource(content, getLastModified(resource), metadata);
+		cache.put(filename, cachedResource);
+		LOGGER.debug("Cached file [{}] of [{}] bytes", filename, content.length);
+		return cachedResource;
+	}
+
+	public void invalidate(String filename) {
+		if (isEnabled()) {
+			cache.invalidate(filename);
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		if (isEnabled()) {
+			CaffeineCacheMetrics.monitor(registry, cache, "files");
+		}
+	}
+
+	private long getLastModified(Resource resource) {
+		try {
+			return resource.lastModified();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The cached bytes of a file together with the last modified time of the file they were read from, and the
+	 * metadata of the file when it was known.
+	 */
+	static class CachedResource extends ByteArrayResource {
+
+		private final long lastModified;
+		private final FileMetadata metadata;
+
+		CachedResource(byte[] byteArray, long lastModified, FileMetadata metadata) {
+			super(byteArray);
+			this.lastModified = lastModified;
+			this.metadata = metadata;
+		}
+
+		@Override
+		public long lastModified() throws IOException {
+			if (lastModified < 0) {
+				return super.lastModified();
+			}
+			return lastModified;
+		}
+
+		FileMetadata getMetadata() {
+			return metadata;
+		}
+
+		int weight() {
+			return getByteArray().length;
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package ford.james.motorola.services;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * {@link ProcessLockProvider} that locks one byte of a shared lock file per key with {@link FileLock}, which the
+ * operating system releases when the process holding it exits, so a crashed instance never leaves a key locked.
+ * <p>
+ * A file lock belongs to the process, so the callers in this process that hold a key at once share one file lock:
+ * only the first reader locks the file and only the last one to finish releases it. A lock no longer in use is kept
+ * for a short while before it is released, so a key that is requested again straight away is locked without any
+ * system call.
+ * <p>
+ * The file is locked and released by a single thread that is never interrupted, as interrupting a thread while it
+ * uses a {@link FileChannel} closes the channel and so releases every lock taken through it. Callers wait for that
+ * thread instead, and a lock another process holds is polled for until the caller gives up. Callers wait on a
+ * {@link Condition} of the region rather than its monitor, so a virtual thread waiting for a region is unmounted
+ * from its carrier.
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage.file.process-lock", name = "enabled", havingValue = "true")
+public class FileProcessLockProvider implements ProcessLockProvider, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileProcessLockProvider.class);
+
+	private static final long MIN_POLL_MILLIS = 1;
+	private static final long MAX_POLL_MILLIS = 50;
+
+	private final ConcurrentMap<Long, Region> regions = new ConcurrentHashMap<>();
+	private final AtomicInteger fileLockCount = new AtomicInteger();
+	private final AtomicLong lockedCount = new AtomicLong();
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	private final FileStorageProperties fileStorageProperties;
+
+	private FileChannel channel;
+	private ScheduledExecutorService lockExecutor;
+
+	public FileProcessLockProvider(FileStorageProperties fileStorageProperties) {
+		this.fileStorageProperties = fileStorageProperties;
+	}
+
+	@PostConstruct
+	public void open() throws IOException {
+		Path lockPath = getLockPath();
+		Files.createDirectories(lockPath.getParent());
+		channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		lockExecutor = Executors.newSingleThreadScheduledExecutor(
+				Thread.ofPlatform().name("process-lock").daemon().factory());
+
+		long retainMillis = getRetainFor().toMillis();
+		if (retainMillis > 0) {
+			lockExecutor.scheduleWithFixedDelay(this::releaseIdle, retainMillis, retainMillis, TimeUnit.MILLISECONDS);
+		}
+		LOGGER.info("Locking files across processes with [{}]", lockPath);
+	}
+
+	/**
+	 * Closes the lock file, which releases every lock this process still holds.
+	 */
+	@PreDestroy
+	public void close() throws IOException, InterruptedException {
+		lockExecutor.shutdownNow();
+		lockExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		channel.close();
+	}
+
+	@Override
+	public ProcessLock lock(String key, boolean isWrite, Duration timeout)
+			throws IOException, InterruptedException, LockTimeoutException {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		Region region = retain(positionOf(key));
+		try {
+			acquire(region, key, isWrite, deadline);
+		} catch (Exception e) {
+			release(region.position);
+			throw e;
+		}
+
+		AtomicBoolean closed = new AtomicBoolean();
+		return () -> {
+			if (closed.compareAndSet(false, true)) {
+				unlock(region);
+			}
+		};
+	}
+
+	/**
+	 * @return the number of file locks this process holds, including those kept after their last use
+	 */
+	public int getFileLockCount() {
+		return fileLockCount.get();
+	}
+
+	/**
+	 * @return the number of locks that were obtained by locking the file
+	 */
+	public long getLockedCount() {
+		return lockedCount.get();
+	}
+
+	/**
+	 * @return the number of locks that were obtained from a file lock this process already held
+	 */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("file.process.locks", this, FileProcessLockProvider::getFileLockCount)
+				.description("File locks currently held by this process on behalf of its callers")
+				.register(registry);
+		FunctionCounter.builder("file.process.lock.acquisitions", lockedCount, AtomicLong::get)
+				.description("Process locks obtained")
+				.tag("outcome", "locked")
+				.register(registry);
+		FunctionCounter.builder("file.process.lock.acquisitions", reusedCount, AtomicLong::get)
+				.description("Process locks obtained")
+				.tag("outcome", "reused")
+				.register(registry);
+	}
+
+	/**
+	 * Joins the callers in this process that hold the region, if its file lock is of a mode that covers the request
+	 * and they do not conflict with it, or otherwise waits for them to finish and locks the file itself. Callers for
+	 * the same key never conflict here, as they already exclude each other, so waiting only happens when two keys
+	 * share a region.
+	 */
+	private void acquire(Region region, String key, boolean isWrite, long deadline)
+			throws IOException, InterruptedException, LockTimeoutException {
+		region.guard.lock();
+		try {
+			while (true) {
+				if (!region.acquiring) {
+					if (region.lock != null && (region.exclusive || !isWrite)
+							&& (region.holders == 0 || !isWrite && !region.writing)) {
+						if (region.holders++ == 0) {
+							region.writing = isWrite;
+						}
+						reusedCount.incrementAndGet();
+						return;
+					}
+					if (region.holders == 0) {
+						break;
+					}
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new LockTimeoutException(String.format("The lock on [%s] is in use", key));
+				}
+				region.released.awaitNanos(remaining);
+			}
+
+			// A lock kept after its last use is of the wrong mode, so it is swapped for one of the right mode
+			if (region.lock != null) {
+				releaseLater(region.lock);
+				region.lock = null;
+				fileLockCount.decrementAndGet();
+			}
+			region.acquiring = true;
+		} finally {
+			region.guard.unlock();
+		}
+
+		FileLock lock = null;
+		try {
+			lock = lockFile(region.position, key, isWrite, deadline);
+		} finally {
+			region.guard.lock();
+			try {
+				region.acquiring = false;
+				if (lock != null) {
+					region.lock = lock;
+					region.exclusive = isWrite;
+					region.writing = isWrite;
+					region.holders = 1;
+					fileLockCount.incrementAndGet();
+				}
+				region.released.signalAll();
+			} finally {
+				region.guard.unlock();
+			}
+		}
+		lockedCount.incrementAndGet();
+	}
+
+	private void unlock(Region region) {
+		region.guard.lock();
+		try {
+			if (--region.holders == 0) {
+				if (getRetainFor().isZero()) {
+					releaseLater(region.lock);
+					region.lock = null;
+					fileLockCount.decrementAndGet();
+				} else {
+					region.idleSince = System.nanoTime();
+				}
+			}
+			region.released.signalAll();
+		} finally {
+			region.guard.unlock();
+		}
+		release(region.position);
+	}
+
+	/**
+	 * Has the lock thread lock the file, polling while another process holds it, and waits for it until the deadline.
+	 */
+	private FileLock lockFile(long position, String key, boolean isWrite, long deadline)
+			throws IOException, InterruptedException, LockTimeoutException {
+		CompletableFuture<FileLock> result = new CompletableFuture<>();
+		lockExecutor.execute(() -> tryLockFile(position, !isWrite, result, MIN_POLL_MILLIS));
+		try {
+			return result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			if (result.cancel(false)) {
+				LOGGER.debug("Lock on [{}] is held by another process", key);
+				throw new LockTimeoutException(String.format("The lock on [%s] is held by another process", key));
+			}
+			// Locked just as the wait ran out
+			return result.join();
+		} catch (InterruptedException e) {
+			if (!result.cancel(false)) {
+				result.thenAccept(this::releaseLater);
+			}
+			throw e;
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ioException ? ioException
+					: new IOException("Cannot lock [" + key + "]", e.getCause());
+		}
+	}
+
+	/**
+	 * Runs on the lock thread. Tries again after a growing delay while another process holds the lock, until the
+	 * caller stops waiting for it.
+	 */
+	private void tryLockFile(long position, boolean shared, CompletableFuture<FileLock> result, long delayMillis) {
+		if (result.isDone()) {
+			return;
+		}
+
+		FileLock lock;
+		try {
+			lock = channel.tryLock(position, 1, shared);
+		} catch (IOException | RuntimeException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+
+		if (lock == null) {
+			long nextDelayMillis = Math.min(delayMillis * 2, MAX_POLL_MILLIS);
+			lockExecutor.schedule(() -> tryLockFile(position, shared, result, nextDelayMillis), delayMillis,
+					TimeUnit.MILLISECONDS);
+		} else if (!result.complete(lock)) {
+			releaseQuietly(lock);
+		}
+	}
+
+	/**
+	 * Runs on the lock thread. Releases the locks that no caller has used for longer than they are kept for.
+	 */
+	private void releaseIdle() {
+		long idleNanos = getRetainFor().toNanos();
+		long now = System.nanoTime();
+		for (Long position : regions.keySet()) {
+			regions.computeIfPresent(position, (k, region) -> {
+				region.guard.lock();
+				try {
+					if (region.lock == null || region.holders > 0 || now - region.idleSince < idleNanos) {
+						return region;
+					}
+					releaseQuietly(region.lock);
+					region.lock = null;
+					fileLockCount.decrementAndGet();
+					return region.references == 0 ? null : region;
+				} finally {
+					region.guard.unlock();
+				}
+			});
+		}
+	}
+
+	private void releaseLater(FileLock lock) {
+		try {
+			lockExecutor.execute(() -> releaseQuietly(lock));
+		} catch (RejectedExecutionException e) {
+			// Shutting down, closing the channel releases the lock
+		}
+	}
+
+	private void releaseQuietly(FileLock lock) {
+		try {
+			lock.release();
+		} catch (IOException e) {
+			LOGGER.warn("Cannot release the lock on position [{}] of the lock file", lock.position(), e);
+		}
+	}
+
+	private Region retain(long position) {
+		return regions.compute(position, (k, region) -> {
+			Region retained = region != null ? region : new Region(k);
+			retained.references++;
+			return retained;
+		});
+	}
+
+	/**
+	 * Removes the region once no caller holds or waits on it, unless its file lock is being kept.
+	 */
+	private void release(long position) {
+		regions.computeIfPresent(position, (k, region) -> {
+			region.guard.lock();
+			try {
+				return --region.references == 0 && region.lock == null ? null : region;
+			} finally {
+				region.guard.unlock();
+			}
+		});
+	}
+
+	private Duration getRetainFor() {
+		return fileStorageProperties.getProcessLock().getRetainFor();
+	}
+
+	private Path getLockPath() {
+		String file = fileStorageProperties.getProcessLock().getFile();
+		if (file != null && !file.isBlank()) {
+			return Paths.get(file).toAbsolutePath();
+		}
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation()).toAbsolutePath();
+		return basePath.resolveSibling(basePath.getFileName() + ".lock");
+	}
+
+	/**
+	 * @return the byte of the lock file that is locked for the key, which every process maps the key to alike
+	 */
+	static long positionOf(String key) {
+		return Integer.toUnsignedLong(key.hashCode());
+	}
+
+	/**
+	 * The byte of the lock file for one or more keys, with the file lock this process holds on it and the callers
+	 * holding that lock. Everything but the reference count is guarded by {@link #guard}, the reference count is only
+	 * written inside the atomic compute operations of the map.
+	 */
+	private static final class Region {
+
+		private final long position;
+		private final ReentrantLock guard = new ReentrantLock();
+
+		/**
+		 * Signalled whenever a caller stops holding or acquiring the file lock of the region.
+		 */
+		private final Condition released = guard.newCondition();
+		private int references;
+		private FileLock lock;
+		private boolean exclusive;
+		private boolean acquiring;
+		private int holders;
+		private boolean writing;
+		private long idleSince;
+
+		private Region(long position) {
+			this.position = position;
+		}
+	}
+}
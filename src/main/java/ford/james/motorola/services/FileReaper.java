@@ -0,0 +1,251 @@
+package ford.james.motorola.services;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.repositories.FileRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Deletes files in the background. A delete only records a tombstone for the file, which hides it from the file
+ * services straight away, and the reaper later removes the data from the repository under the write lock of the file.
+ * The reaper works through the tombstones in the order they were made and is limited to a number of bytes per second,
+ * so reclaiming large files does not starve requests of disk bandwidth.
+ * <p>
+ * Tombstones are recorded in a {@link TombstoneJournal}, so files that were deleted but not yet reclaimed stay deleted
+ * across a restart. Callers must make and remove tombstones under the write lock of the file.
+ */
+@Component
+public class FileReaper implements MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileReaper.class);
+
+	private final FileRepository fileRepository;
+	private final LockManager lockManager;
+	private final FileStorageProperties fileStorageProperties;
+
+	private final Map<String, Tombstone> tombstones = new ConcurrentHashMap<>();
+	private final Queue<Tombstone> pending = new ConcurrentLinkedQueue<>();
+
+	private TombstoneJournal journal;
+
+	/**
+	 * Bytes that may still be reclaimed before the budget is refilled. Goes negative when a file larger than the
+	 * budget is reclaimed, which delays the next one. Only used by the reaping thread.
+	 */
+	private double budget;
+	private long lastRefill = System.nanoTime();
+
+	public FileReaper(FileRepository fileRepository, LockManager lockManager,
+			FileStorageProperties fileStorageProperties) {
+		this.fileRepository = fileRepository;
+		this.lockManager = lockManager;
+		this.fileStorageProperties = fileStorageProperties;
+		this.budget = getBytesPerSecond();
+	}
+
+	/**
+	 * Restores the tombstones that were not reclaimed before the application last stopped.
+	 */
+	@PostConstruct
+	public void recover() throws IOException {
+		if (!isEnabled()) {
+			return;
+		}
+
+		journal = new TombstoneJournal(getJournalPath());
+		journal.open().forEach((filename, size) -> {
+			Tombstone tombstone = new Tombstone(filename, size);
+			tombstones.put(filename, tombstone);
+			pending.add(tombstone);
+		});
+		if (!tombstones.isEmpty()) {
+			LOGGER.info("Recovered [{}] deleted files that are still to be reclaimed", tombstones.size());
+		}
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	public boolean isEnabled() {
+		return fileStorageProperties.getReaper().isEnabled();
+	}
+
+	public boolean isDeleted(String filename) {
+		return !tombstones.isEmpty() && tombstones.containsKey(filename);
+	}
+
+	/**
+	 * @return the filenames without those that have been deleted but not yet reclaimed
+	 */
+	public Set<String> filterDeleted(Set<String> filenames) {
+		if (tombstones.isEmpty()) {
+			return filenames;
+		}
+		return filenames.stream()
+				.filter(filename -> !tombstones.containsKey(filename))
+				.collect(Collectors.toSet());
+	}
+
+	/**
+	 * Marks the file as deleted and queues its data to be reclaimed. The tombstone is on disk before this returns. The
+	 * caller must hold the write lock of the file.
+	 *
+	 * @param size the size of the file, which is charged against the budget of the reaper
+	 */
+	public void delete(String filename, long size) throws IOException {
+		journal.appendDeleted(filename, size);
+		Tombstone tombstone = new Tombstone(filename, size);
+		tombstones.put(filename, tombstone);
+		pending.add(tombstone);
+		LOGGER.debug("Marked file [{}] as deleted", filename);
+	}
+
+	/**
+	 * Reclaims the data of a deleted file straight away, so a new file can be saved under its name. The caller must
+	 * hold the write lock of the file.
+	 */
+	public void purge(String filename) throws IOException {
+		Tombstone tombstone = tombstones.get(filename);
+		if (tombstone != null) {
+			reclaim(tombstone);
+		}
+	}
+
+	/**
+	 * Reclaims deleted files in the order they were deleted for as long as the budget allows. A file that is larger
+	 * than what is left of the budget waits until the budget is full, and is then reclaimed even if it is larger than
+	 * the whole budget. A file whose lock could not be obtained in time is left alone for the rest of the run and
+	 * queued again once the run is over.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.reaper.interval:PT1S}",
+			initialDelayString = "${storage.file.reaper.interval:PT1S}")
+	public synchronized void reap() {
+		if (!isEnabled()) {
+			return;
+		}
+
+		long bytesPerSecond = getBytesPerSecond();
+		long now = System.nanoTime();
+		budget = Math.min(bytesPerSecond, budget + (now - lastRefill) / 1_000_000_000.0 * bytesPerSecond);
+		lastRefill = now;
+
+		int reaped = 0;
+		List<Tombstone> busy = new ArrayList<>();
+		Tombstone tombstone;
+		while (budget > 0 && (tombstone = pending.peek()) != null) {
+			if (tombstone.size() > budget && budget < bytesPerSecond) {
+				break;
+			}
+			pending.poll();
+			if (tombstones.get(tombstone.filename()) != tombstone) {
+				// Already purged by a save of the same name
+				continue;
+			}
+
+			Tombstone reaping = tombstone;
+			try {
+				if (lockManager.executeWithLock(reaping.filename(), true,
+						() -> tombstones.get(reaping.filename()) == reaping && reclaim(reaping))) {
+					budget -= reaping.size();
+					reaped++;
+				}
+			} catch (LockTimeoutException e) {
+				LOGGER.debug("File [{}] is in use, it will be reclaimed by a later run", reaping.filename());
+				busy.add(reaping);
+			} catch (Exception e) {
+				LOGGER.warn("Unable to reclaim deleted file [{}], it will be retried", reaping.filename(), e);
+				pending.add(reaping);
+				break;
+			}
+		}
+		pending.addAll(busy);
+
+		if (reaped > 0) {
+			LOGGER.debug("Reclaimed [{}] deleted files, [{}] remain", reaped, tombstones.size());
+			try {
+				journal.truncateIfReaped();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to truncate the tombstone journal", e);
+			}
+		}
+	}
+
+	private boolean reclaim(Tombstone tombstone) throws IOException {
+		try {
+			fileRepository.deleteFileFromStorage(tombstone.filename());
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			LOGGER.debug("Deleted file [{}] was already removed", tombstone.filename());
+		}
+		tombstones.remove(tombstone.filename());
+		journal.appendReaped(tombstone.filename());
+		return true;
+	}
+
+	public int getTombstoneCount() {
+		return tombstones.size();
+	}
+
+	public long getPendingBytes() {
+		return tombstones.values().stream().mapToLong(Tombstone::size).sum();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		if (!isEnabled()) {
+			return;
+		}
+		Gauge.builder("file.reaper.pending", this, FileReaper::getTombstoneCount)
+				.description("Deleted files whose data has not been reclaimed yet")
+				.register(registry);
+		Gauge.builder("file.reaper.pending.bytes", this, FileReaper::getPendingBytes)
+				.description("Bytes of deleted files that have not been reclaimed yet")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+
+	private long getBytesPerSecond() {
+		return fileStorageProperties.getReaper().getBytesPerSecond().toBytes();
+	}
+
+	private Path getJournalPath() {
+		String journal = fileStorageProperties.getReaper().getJournal();
+		if (journal != null && !journal.isBlank()) {
+			return Paths.get(journal);
+		}
+		Path basePath = Paths.get(fileStorageProperties.getBaseLocation()).toAbsolutePath();
+		return basePath.resolveSibling(basePath.getFileName() + ".tombstones");
+	}
+
+	/**
+	 * A deleted file whose data has not been reclaimed yet.
+	 */
+	private record Tombstone(String filename, long size) {
+	}
+}
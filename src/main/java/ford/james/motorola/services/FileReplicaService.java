@@ -0,0 +1,84 @@
+package ford.james.motorola.services;
+
+import java.io.InputStream;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.functions.LockFunction;
+import ford.james.motorola.functions.ResourceConsumer;
+import ford.james.motorola.repositories.FileReplicatedRepository;
+import ford.james.motorola.repositories.ReplicaEntry;
+
+/**
+ * Applies the changes other replicas send to the {@link FileReplicatedRepository}, and the repairs made by
+ * anti-entropy, under the write lock of the file, and serves the copies of this instance to the other replicas under
+ * the read lock. Like the saves and deletes of the file services, every change invalidates the cached copy of the
+ * file, and no change is made while a read is streaming or mapping the file.
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "replicated")
+public class FileReplicaService {
+
+	private final FileReplicatedRepository fileReplicatedRepository;
+	private final LockManager lockManager;
+	private final FileCache fileCache;
+
+	public FileReplicaService(FileReplicatedRepository fileReplicatedRepository, LockManager lockManager,
+			FileCache fileCache) {
+		this.fileReplicatedRepository = fileReplicatedRepository;
+		this.lockManager = lockManager;
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * @see FileReplicatedRepository#applySave(String, long, InputStream)
+	 */
+	public boolean applySave(String filename, long timestamp, InputStream inputStream) throws Exception {
+		return executeWithLock(filename, true,
+				() -> fileReplicatedRepository.applySave(filename, timestamp, inputStream));
+	}
+
+	/**
+	 * @see FileReplicatedRepository#applyDelete(String, long)
+	 */
+	public void applyDelete(String filename, long deletedAt) throws Exception {
+		executeWithLock(filename, true, () -> {
+			fileReplicatedRepository.applyDelete(filename, deletedAt);
+			return null;
+		});
+	}
+
+	/**
+	 * Passes the file stored on this instance to the consumer while the read lock for the file is held.
+	 */
+	public void readReplica(String filename, ResourceConsumer consumer) throws Exception {
+		executeWithLock(filename, false, () -> {
+			consumer.accept(fileReplicatedRepository.getReplicaResource(filename));
+			return null;
+		});
+	}
+
+	/**
+	 * @see FileReplicatedRepository#getReplicaEntry(String)
+	 */
+	public ReplicaEntry getReplicaEntry(String filename) throws Exception {
+		return executeWithLock(filename, false, () -> fileReplicatedRepository.getReplicaEntry(filename));
+	}
+
+	@Scheduled(fixedDelayString = "${storage.file.replication.anti-entropy-interval:PT1M}",
+			initialDelayString = "${storage.file.replication.anti-entropy-interval:PT1M}")
+	public synchronized void repair() {
+		fileReplicatedRepository.repair(this::executeWithLock);
+	}
+
+	private <R> R executeWithLock(String filename, boolean isWrite, LockFunction<R> function) throws Exception {
+		return lockManager.executeWithLock(filename, isWrite, () -> {
+			if (isWrite) {
+				fileCache.invalidate(filename);
+			}
+			return function.apply();
+		});
+	}
+}
@@ -1,6 +1,8 @@
 package ford.james.motorola.services;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Set;
 
 import org.springframework.core.io.Resource;
@@ -8,6 +10,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.functions.FileReadFunction;
 
 public interface FileService {
 
@@ -15,7 +18,22 @@ public interface FileService {
 
 	void saveFile(MultipartFile file) throws Exception;
 
-	Resource getFile(String filename) throws Exception;
+	void saveFile(String filename, InputStream inputStream) throws Exception;
+
+	/**
+	 * Saves a complete file that has been staged on the local disk, taking the write lock for the file only while it
+	 * is published. The SHA-256 digest of the file is computed by the caller, before the lock is taken.
+	 */
+	void saveFile(String filename, Path stagedFile, String digest) throws Exception;
+
+	/**
+	 * Looks up the metadata of the file and passes it to the function while the read lock for the file is held. The
+	 * content is only located if the function asks for it.
+	 *
+	 * @param filename the name of the file to read
+	 * @param function the callback that decides from the metadata whether to read the content
+	 */
+	void readFile(String filename, FileReadFunction function) throws Exception;
 
 	void deleteFile(String filename) throws Exception;
 }
@@ -2,16 +2,11 @@ package ford.james.motorola.services;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Path;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,113 +14,168 @@ import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import ford.james.motorola.FileStorageProperties;
-import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.repositories.FileMetadata;
 import ford.james.motorola.repositories.FileRepository;
+import ford.james.motorola.functions.FileReadFunction;
 import ford.james.motorola.functions.LockFunction;
-import ford.james.motorola.utils.LockUtils;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.CountingInputStream;
 
 @Service
 public class FileServiceImpl implements FileService {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileServiceImpl.class);
 
-	private final Map<String, ReadWriteLock> filenameLock;
-
 	private final FileRepository fileRepository;
-	private final FileStorageProperties fileStorageProperties;
-
-	public FileServiceImpl(FileRepository fileRepository, FileStorageProperties fileStorageProperties) {
+	private final LockManager lockManager;
+	private final FileCache fileCache;
+	private final FileReaper fileReaper;
+	private final AdmissionManager admissionManager;
+	private final FileMetrics fileMetrics;
+
+	public FileServiceImpl(FileRepository fileRepository, LockManager lockManager, FileCache fileCache,
+			FileReaper fileReaper, AdmissionManager admissionManager, FileMetrics fileMetrics) {
 		this.fileRepository = fileRepository;
-		this.fileStorageProperties = fileStorageProperties;
-		filenameLock = new ConcurrentHashMap<>();
+		this.lockManager = lockManager;
+		this.fileCache = fileCache;
+		this.fileReaper = fileReaper;
+		this.admissionManager = admissionManager;
+		this.fileMetrics = fileMetrics;
 	}
 
 	@Override
 	public Set<String> listFilenames() throws IOException {
-		return fileRepository.listFilenames();
+		return fileReaper.filterDeleted(fileMetrics.recordRepositoryOperation("list", fileRepository::listFilenames));
 	}
 
 	@Override
 	public void saveFile(MultipartFile file) throws Exception {
+		saveFile(file.getOriginalFilename(), () -> {
+			boolean saved = fileRepository.saveFileToStorage(file);
+			fileMetrics.recordBytesWritten(file.getSize());
+			return saved;
+		});
+	}
+
+	@Override
+	public void saveFile(String filename, InputStream inputStream) throws Exception {
+		saveFile(filename, () -> {
+			CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+			boolean saved = fileRepository.saveFileToStorage(filename, countingInputStream);
+			fileMetrics.recordBytesWritten(countingInputStream.getCount());
+			return saved;
+		});
+	}
+
+	@Override
+	public void saveFile(String filename, Path stagedFile, String digest) throws Exception {
+		saveFile(filename, () -> fileRepository.saveFileToStorage(filename, stagedFile, digest));
+	}
+
+	/**
+	 * Saves the file under the write lock. If a file of the same name was deleted but has not been reclaimed yet, its
+	 * data is reclaimed first so it cannot be found in place of the new file.
+	 */
+	private void saveFile(String filename, LockFunction<Boolean> saveFunction) throws Exception {
+
+		executeWithLock(filename, true, () -> {
 
-		executeWithLock(file.getOriginalFilename(), true, () -> {
+			fileCache.invalidate(filename);
+
+			if (fileReaper.isDeleted(filename)) {
+				fileReaper.purge(filename);
+			}
 
-			if (fileRepository.fileExists(file.getOriginalFilename()) ) {
-				LOGGER.error("Cannot save file [{}] as it already exists ", file.getOriginalFilename());
-				throw new FileAlreadyExistsException("The file with name [" + file.getOriginalFilename() + "] already exists");
+			if (fileExists(filename) ) {
+				LOGGER.error("Cannot save file [{}] as it already exists ", filename);
+				throw new FileAlreadyExistsException("The file with name [" + filename + "] already exists");
 			}
-			return fileRepository.saveFileToStorage(file);
+			return fileMetrics.recordRepositoryOperation("save", saveFunction::apply);
 		});
 	}
 
+	/**
+	 * Answers from the cache when the file is cached with its metadata, so a cached file costs no repository lookups.
+	 * Otherwise the metadata lookup alone tells whether the file exists, so a repository that finds files elsewhere,
+	 * such as on the peers of a replicated repository, only does so for reads.
+	 */
 	@Override
-	public Resource getFile(String filename) throws Exception {
-		LockFunction<Resource> lockFunction = () -> {
+	public void readFile(String filename, FileReadFunction function) throws Exception {
+		LockFunction<Boolean> lockFunction = () -> {
 
-			if (!fileRepository.fileExists(filename) ) {
-				LOGGER.error("Cannot delete file [{}] as it does not exist ", filename);
+			FileMetadata cachedMetadata = fileCache.getMetadata(filename);
+			if (cachedMetadata != null) {
+				function.apply(cachedMetadata, () -> {
+					Resource cachedResource = fileCache.get(filename);
+					return cachedResource != null ? cachedResource : loadResource(filename, cachedMetadata);
+				});
+				return true;
+			}
+
+			if (fileReaper.isDeleted(filename)) {
+				LOGGER.error("Cannot read file [{}] as it does not exist ", filename);
 				throw new FileNotFoundException("The file with name [" + filename + "] does not exist");
 			}
 
-			return fileRepository.getFileFromStorage(filename);
+			FileMetadata metadata;
+			try {
+				metadata = fileMetrics.recordRepositoryOperation("metadata",
+						() -> fileRepository.getFileMetadata(filename));
+			} catch (NoSuchFileException e) {
+				LOGGER.error("Cannot read file [{}] as it does not exist ", filename);
+				throw new FileNotFoundException("The file with name [" + filename + "] does not exist");
+			}
+			function.apply(metadata, () -> {
+				Resource cachedResource = fileCache.get(filename);
+				return cachedResource != null ? cachedResource : loadResource(filename, metadata);
+			});
+			return true;
 		};
 
-		return executeWithLock(filename, false, lockFunction);
+		executeWithLock(filename, false, lockFunction);
 	}
 
+	private Resource loadResource(String filename, FileMetadata metadata) throws IOException {
+		return fileCache.load(filename,
+				fileMetrics.recordRepositoryOperation("get", () -> fileRepository.getFileFromStorage(filename)), metadata);
+	}
+
+	/**
+	 * Deletes the file under the write lock. When the reaper is enabled the file is only marked as deleted, which
+	 * takes the same time whatever its size, and its data is reclaimed in the background.
+	 */
 	@Override
 	public void deleteFile(String filename) throws Exception {
 
 		LockFunction<Boolean> lockFunction = () -> {
 
-			if (!fileRepository.fileExists(filename) ) {
+			fileCache.invalidate(filename);
+
+			if (!fileExists(filename) ) {
 				LOGGER.error("Cannot delete file [{}] as it does not exist ", filename);
 				throw new FileNotFoundException("The file with name [" + filename + "] does not exist");
 			}
-			return fileRepository.deleteFileFromStorage(filename);
+			if (fileReaper.isEnabled()) {
+				FileMetadata metadata = fileMetrics.recordRepositoryOperation("metadata",
+						() -> fileRepository.getFileMetadata(filename));
+				fileReaper.delete(filename, metadata.size());
+				return true;
+			}
+			return fileMetrics.recordRepositoryOperation("delete", () -> fileRepository.deleteFileFromStorage(filename));
 		};
 
 		executeWithLock(filename, true, lockFunction);
 	}
 
-	private <R> R executeWithLock(String filename, boolean isWrite, LockFunction<R> function) throws Exception {
-		ReadWriteLock lock = filenameLock.get(filename);
-		Lock specificLock;
-
-		if (lock != null) {
-			LOGGER.debug("Awaiting for lock on file [{}] to be released",  filename);
-
-			specificLock = LockUtils.getLock(lock, isWrite);
-
-			if (!specificLock.tryLock(fileStorageProperties.getRequestTimeout(), TimeUnit.SECONDS)) {
-				LOGGER.warn("Lock for file [{}] was not released within the window of [{}] seconds", filename, fileStorageProperties.getRequestTimeout());
-
-				String message = isWrite ? String.format("Cannot modify the file [%s] as it is in use", filename)
-						: String.format("Cannot get the file [%s] as it is being modified", filename);
-
-				throw new LockTimeoutException(message);
-			}
-			LOGGER.debug("Obtained lock while deleting file [{}]", filename);
-		} else {
-			LOGGER.debug("Creating a lock as none existed for file [{}]", filename);
-			lock = new  ReentrantReadWriteLock(true);
-			specificLock = LockUtils.getLock(lock, isWrite);
+	private boolean fileExists(String filename) {
+		if (fileReaper.isDeleted(filename)) {
+			return false;
 		}
+		return fileMetrics.recordRepositoryOperation("exists", () -> fileRepository.fileExists(filename));
+	}
 
-		specificLock.lock();
-		filenameLock.putIfAbsent(filename, lock);
-
-		try {
-			return function.apply();
-		} finally {
-			LOGGER.debug("Releasing lock on file [{}", filename);
-			try {
-				specificLock.unlock();
-			} catch (IllegalMonitorStateException e) {
-				LOGGER.warn("Error while releasing lock for [filename: {}, isWrite: {}]", filename, isWrite, e);
-			}
-			filenameLock.remove(filename);
-		}
+	private <R> R executeWithLock(String filename, boolean isWrite, LockFunction<R> function) throws Exception {
+		return admissionManager.executeAdmitted(filename,
+				() -> lockManager.executeWithLock(filename, isWrite, function));
 	}
 }
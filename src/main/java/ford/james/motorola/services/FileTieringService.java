@@ -0,0 +1,83 @@
+package ford.james.motorola.services;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.repositories.FileTieredRepository;
+
+/**
+ * Moves files between the tiers of the {@link FileTieredRepository} in the background. Each run first promotes the
+ * cold files that are read often again, and then demotes the hot files that are no longer read, moving at most
+ * {@code storage.file.tiering.max-migrations-per-run} files each way. Each file is moved under its write lock, so no
+ * download is reading it and no upload or delete is changing it at the time.
+ * <p>
+ * Files whose lock could not be obtained in time are skipped and picked up by the next run.
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage.file", name = "repository", havingValue = "tiered")
+public class FileTieringService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileTieringService.class);
+
+	private final FileTieredRepository fileTieredRepository;
+	private final LockManager lockManager;
+	private final FileStorageProperties fileStorageProperties;
+
+	public FileTieringService(FileTieredRepository fileTieredRepository, LockManager lockManager,
+			FileStorageProperties fileStorageProperties) {
+		this.fileTieredRepository = fileTieredRepository;
+		this.lockManager = lockManager;
+		this.fileStorageProperties = fileStorageProperties;
+	}
+
+	@Scheduled(fixedDelayString = "${storage.file.tiering.migration-interval:PT10M}",
+			initialDelayString = "${storage.file.tiering.migration-interval:PT10M}")
+	public synchronized void migrate() {
+		int limit = fileStorageProperties.getTiering().getMaxMigrationsPerRun();
+		try {
+			int promoted = migrate(fileTieredRepository.findPromotionCandidates(limit), "promote",
+					fileTieredRepository::promote);
+			int demoted = migrate(fileTieredRepository.findDemotionCandidates(limit), "demote",
+					fileTieredRepository::demote);
+			if (promoted > 0 || demoted > 0) {
+				LOGGER.info("Promoted [{}] files to the hot tier and demoted [{}] files to the cold tier", promoted,
+						demoted);
+			}
+		} catch (IOException e) {
+			LOGGER.error("Unable to find the files to move between the tiers", e);
+		}
+	}
+
+	/**
+	 * @return the number of files moved
+	 */
+	private int migrate(List<String> filenames, String direction, TierMove tierMove) {
+		int moved = 0;
+		for (String filename : filenames) {
+			try {
+				if (lockManager.executeWithLock(filename, true, () -> tierMove.move(filename))) {
+					moved++;
+				}
+			} catch (LockTimeoutException e) {
+				LOGGER.debug("File [{}] is in use, it will be moved by the next run", filename);
+			} catch (Exception e) {
+				LOGGER.warn("Unable to {} file [{}]", direction, filename, e);
+			}
+		}
+		return moved;
+	}
+
+	@FunctionalInterface
+	private interface TierMove {
+
+		boolean move(String filename) throws IOException;
+	}
+}
@@ -0,0 +1,36 @@
+package ford.james.motorola.services;
+
+import ford.james.motorola.functions.LockFunction;
+
+/**
+ * Provides read/write mutual exclusion on named keys, such as filenames.
+ */
+public interface LockManager {
+
+	/**
+	 * Runs the function while holding the read or write lock for the key. Any number of readers may hold the lock at
+	 * once, while a writer excludes every other holder.
+	 *
+	 * @param key the key to lock on
+	 * @param isWrite whether the write lock is required
+	 * @param function the function to run while the lock is held
+	 * @return the result of the function
+	 * @throws ford.james.motorola.exceptions.LockTimeoutException if the lock could not be obtained in time
+	 */
+	<R> R executeWithLock(String key, boolean isWrite, LockFunction<R> function) throws Exception;
+
+	/**
+	 * @return the number of callers currently holding a lock
+	 */
+	int getHoldCount();
+
+	/**
+	 * @return the number of callers currently waiting for a lock
+	 */
+	int getWaitCount();
+
+	/**
+	 * @return the number of keys that currently have a lock allocated
+	 */
+	int getLockCount();
+}
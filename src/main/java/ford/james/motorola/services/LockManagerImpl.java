@@ -0,0 +1,202 @@
+package ford.james.motorola.services;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.functions.LockFunction;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.LockUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * {@link LockManager} that keeps one reference counted lock per key. A caller takes a reference before waiting on
+ * the lock and gives it back once it has unlocked, and the lock is only removed once no caller holds or waits on it,
+ * so every caller for a key always shares the same lock.
+ * <p>
+ * When a {@link ProcessLockProvider} is configured, a caller that obtained the lock then takes the lock of the key
+ * for the process, so instances sharing the storage directory exclude each other too. Callers in this process are
+ * ordered by the in-memory lock alone, and the provider lets those holding a key at once share its process lock.
+ * <p>
+ * Used by the servlet stack. The reactive stack uses {@link AsyncLockManagerImpl} instead, which never blocks a
+ * thread while waiting for a lock.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class LockManagerImpl implements LockManager, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LockManagerImpl.class);
+
+	private final ConcurrentMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+	private final AtomicInteger holdCount = new AtomicInteger();
+	private final AtomicInteger waitCount = new AtomicInteger();
+
+	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+	private final ProcessLockProvider processLockProvider;
+
+	public LockManagerImpl(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics) {
+		this(fileStorageProperties, fileMetrics, null);
+	}
+
+	@Autowired
+	public LockManagerImpl(FileStorageProperties fileStorageProperties, FileMetrics fileMetrics,
+			@Nullable ProcessLockProvider processLockProvider) {
+		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+		this.processLockProvider = processLockProvider;
+	}
+
+	@Override
+	public <R> R executeWithLock(String key, boolean isWrite, LockFunction<R> function) throws Exception {
+		LockEntry entry = retain(key);
+		Lock specificLock = LockUtils.getLock(entry.lock, isWrite);
+
+		long waitStart = System.nanoTime();
+		ProcessLockProvider.ProcessLock processLock;
+		try {
+			acquire(key, isWrite, specificLock);
+			try {
+				processLock = acquireProcessLock(key, isWrite, waitStart);
+			} catch (Exception e) {
+				specificLock.unlock();
+				throw e;
+			}
+		} catch (Exception e) {
+			release(key);
+			throw e;
+		}
+		long holdStart = System.nanoTime();
+		fileMetrics.recordLockWait(isWrite, holdStart - waitStart);
+
+		holdCount.incrementAndGet();
+		try {
+			return function.apply();
+		} finally {
+			holdCount.decrementAndGet();
+			LOGGER.debug("Releasing lock on [{}]", key);
+			if (processLock != null) {
+				processLock.close();
+			}
+			specificLock.unlock();
+			release(key);
+			fileMetrics.recordLockHold(isWrite, System.nanoTime() - holdStart);
+		}
+	}
+
+	private void acquire(String key, boolean isWrite, Lock specificLock) throws InterruptedException, LockTimeoutException {
+		if (specificLock.tryLock()) {
+			return;
+		}
+
+		LOGGER.debug("Awaiting for lock on [{}] to be released", key);
+		long requestTimeout = fileStorageProperties.getRequestTimeout();
+
+		waitCount.incrementAndGet();
+		try {
+			if (!specificLock.tryLock(requestTimeout, TimeUnit.SECONDS)) {
+				throw timeout(key, isWrite);
+			}
+		} finally {
+			waitCount.decrementAndGet();
+		}
+		LOGGER.debug("Obtained lock on [{}]", key);
+	}
+
+	/**
+	 * Takes the lock of the key for the process with what is left of the request timeout, once the in-memory lock is
+	 * held.
+	 *
+	 * @return the process lock, or {@code null} if locks are not shared with other processes
+	 */
+	private ProcessLockProvider.ProcessLock acquireProcessLock(String key, boolean isWrite, long waitStart)
+			throws Exception {
+		if (processLockProvider == null) {
+			return null;
+		}
+
+		long remaining = TimeUnit.SECONDS.toNanos(fileStorageProperties.getRequestTimeout())
+				- (System.nanoTime() - waitStart);
+		try {
+			return processLockProvider.lock(key, isWrite, Duration.ofNanos(Math.max(0, remaining)));
+		} catch (LockTimeoutException e) {
+			throw timeout(key, isWrite);
+		}
+	}
+
+	private LockTimeoutException timeout(String key, boolean isWrite) {
+		LOGGER.warn("Lock for file [{}] was not released within the window of [{}] seconds", key,
+				fileStorageProperties.getRequestTimeout());
+
+		fileMetrics.recordLockTimeout(isWrite);
+		String message = isWrite ? String.format("Cannot modify the file [%s] as it is in use", key)
+				: String.format("Cannot get the file [%s] as it is being modified", key);
+
+		return new LockTimeoutException(message);
+	}
+
+	private LockEntry retain(String key) {
+		return locks.compute(key, (k, entry) -> {
+			LockEntry retained = entry != null ? entry : new LockEntry();
+			retained.references++;
+			return retained;
+		});
+	}
+
+	private void release(String key) {
+		locks.computeIfPresent(key, (k, entry) -> --entry.references == 0 ? null : entry);
+	}
+
+	@Override
+	public int getHoldCount() {
+		return holdCount.get();
+	}
+
+	@Override
+	public int getWaitCount() {
+		return waitCount.get();
+	}
+
+	@Override
+	public int getLockCount() {
+		return locks.size();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("file.lock.holders", this, LockManagerImpl::getHoldCount)
+				.description("Callers currently holding a file lock")
+				.register(registry);
+		Gauge.builder("file.lock.waiters", this, LockManagerImpl::getWaitCount)
+				.description("Callers currently waiting for a file lock")
+				.register(registry);
+		Gauge.builder("file.locks", this, LockManagerImpl::getLockCount)
+				.description("Files that currently have a lock allocated")
+				.register(registry);
+	}
+
+	/**
+	 * A lock together with the number of callers holding or waiting on it. The reference count is only read and
+	 * written inside the atomic compute operations of the map.
+	 */
+	private static final class LockEntry {
+
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+		private int references;
+	}
+}
@@ -0,0 +1,36 @@
+package ford.james.motorola.services;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import ford.james.motorola.exceptions.LockTimeoutException;
+
+/**
+ * Provides read/write mutual exclusion on named keys between processes, such as several instances of the application
+ * sharing one storage directory. A lock is held on behalf of the whole process, so callers in the same process must
+ * already exclude each other on the key, as {@link LockManagerImpl} does before taking it.
+ */
+public interface ProcessLockProvider {
+
+	/**
+	 * Takes the read or write lock for the key on behalf of this process. Any number of processes may hold the read
+	 * lock at once, while a process holding the write lock excludes every other.
+	 *
+	 * @param key the key to lock on
+	 * @param isWrite whether the write lock is required
+	 * @param timeout how long to wait for another process to release the lock
+	 * @return the lock, which is released when closed
+	 * @throws LockTimeoutException if the lock could not be obtained in time
+	 */
+	ProcessLock lock(String key, boolean isWrite, Duration timeout)
+			throws IOException, InterruptedException, LockTimeoutException;
+
+	/**
+	 * A lock held by this process.
+	 */
+	interface ProcessLock extends AutoCloseable {
+
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,18 @@
+package ford.james.motorola.services;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.http.codec.multipart.FilePart;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of {@link FileBatchService}, with the same per-item results.
+ */
+public interface ReactiveFileBatchService {
+
+	Mono<List<BatchItemResult>> saveFiles(Collection<FilePart> files);
+
+	Mono<List<BatchItemResult>> deleteFiles(Collection<String> filenames);
+}
@@ -0,0 +1,99 @@
+package ford.james.motorola.services;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.FileStorageProperties;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link ReactiveFileBatchService} that subscribes to at most {@code storage.file.batch.parallelism} items of a batch
+ * at once. Items are sorted by filename and started in that order, and each item holds only the lock of its own
+ * file, so overlapping batches cannot deadlock each other.
+ * <p>
+ * Unlike {@link FileBatchServiceImpl} the bound applies to each batch rather than across all batches, as a waiting
+ * item does not hold a thread.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileBatchServiceImpl implements ReactiveFileBatchService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveFileBatchServiceImpl.class);
+
+	private final ReactiveFileService fileService;
+	private final FileStorageProperties fileStorageProperties;
+
+	public ReactiveFileBatchServiceImpl(ReactiveFileService fileService, FileStorageProperties fileStorageProperties) {
+		this.fileService = fileService;
+		this.fileStorageProperties = fileStorageProperties;
+	}
+
+	@Override
+	public Mono<List<BatchItemResult>> saveFiles(Collection<FilePart> files) {
+		return execute(files, FilePart::filename, file -> fileService.saveFile(file.filename(), file.content()));
+	}
+
+	@Override
+	public Mono<List<BatchItemResult>> deleteFiles(Collection<String> filenames) {
+		return execute(filenames, Function.identity(), fileService::deleteFile);
+	}
+
+	private <T> Mono<List<BatchItemResult>> execute(Collection<T> items, Function<T, String> filenameFunction,
+			Function<T, Mono<Void>> operation) {
+
+		int maxItems = fileStorageProperties.getBatch().getMaxItems();
+		if (items.size() > maxItems) {
+			return Mono.error(new IllegalArgumentException(
+					String.format("A batch can contain at most %d items but %d were given", maxItems, items.size())));
+		}
+
+		List<T> sorted = new ArrayList<>(items);
+		sorted.sort(Comparator.comparing(filenameFunction));
+
+		Set<String> filenames = new HashSet<>();
+		List<T> unique = new ArrayList<>();
+		List<BatchItemResult> duplicates = new ArrayList<>();
+		for (T item : sorted) {
+			String filename = filenameFunction.apply(item);
+			if (filenames.add(filename)) {
+				unique.add(item);
+			} else {
+				duplicates.add(BatchItemResult.failure(filename,
+						new FileAlreadyExistsException("The file [" + filename + "] appears more than once in the batch")));
+			}
+		}
+
+		return Flux.fromIterable(unique)
+				.flatMap(item -> runItem(filenameFunction.apply(item), operation.apply(item)),
+						fileStorageProperties.getBatch().getParallelism())
+				.collectList()
+				.map(results -> {
+					List<BatchItemResult> allResults = new ArrayList<>(results);
+					allResults.addAll(duplicates);
+					allResults.sort(Comparator.comparing(BatchItemResult::filename));
+					return allResults;
+				});
+	}
+
+	private Mono<BatchItemResult> runItem(String filename, Mono<Void> operation) {
+		return operation
+				.thenReturn(BatchItemResult.success(filename))
+				.onErrorResume(Exception.class, e -> {
+					LOGGER.warn("Batch item for file [{}] failed", filename, e);
+					return Mono.just(BatchItemResult.failure(filename, e));
+				});
+	}
+}
@@ -0,0 +1,36 @@
+package ford.james.motorola.services;
+
+import java.util.Set;
+
+import org.springframework.core.io.buffer.DataBuffer;
+
+import ford.james.motorola.functions.ReactiveFileReadFunction;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of {@link FileService} used by the reactive stack, with the same locking and error
+ * semantics. Locks are waited for without blocking a thread and are held until the returned publisher terminates.
+ */
+public interface ReactiveFileService {
+
+	Mono<Set<String>> listFilenames();
+
+	/**
+	 * Saves the buffers under the given filename while the write lock for the file is held.
+	 *
+	 * @return an empty publisher, or a {@link java.nio.file.FileAlreadyExistsException} error if the file exists
+	 */
+	Mono<Void> saveFile(String filename, Flux<DataBuffer> content);
+
+	/**
+	 * Looks up the metadata of the file and passes it to the function while the read lock for the file is held. The
+	 * content is only located if the function subscribes to it.
+	 *
+	 * @return the publisher returned by the function, or a {@link java.io.FileNotFoundException} error if the file
+	 * does not exist
+	 */
+	Mono<Void> readFile(String filename, ReactiveFileReadFunction function);
+
+	Mono<Void> deleteFile(String filename);
+}
@@ -0,0 +1,160 @@
+package ford.james.motorola.services;
+
+import java.io.FileNotFoundException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.functions.ReactiveFileReadFunction;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.FileMetadata;
+import ford.james.motorola.repositories.ReactiveFileRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@link ReactiveFileService} that shares the {@link FileCache} with the blocking {@link FileService}. Both use the
+ * same locks, so the cache is only ever populated under the read lock and invalidated under the write lock. Deletes
+ * go through the same {@link FileReaper} and requests are admitted by the same {@link AdmissionManager}.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileServiceImpl implements ReactiveFileService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveFileServiceImpl.class);
+
+	private final ReactiveFileRepository fileRepository;
+	private final ReactiveLockManager lockManager;
+	private final FileCache fileCache;
+	private final FileReaper fileReaper;
+	private final AdmissionManager admissionManager;
+	private final FileMetrics fileMetrics;
+
+	public ReactiveFileServiceImpl(ReactiveFileRepository fileRepository, ReactiveLockManager lockManager,
+			FileCache fileCache, FileReaper fileReaper, AdmissionManager admissionManager, FileMetrics fileMetrics) {
+		this.fileRepository = fileRepository;
+		this.lockManager = lockManager;
+		this.fileCache = fileCache;
+		this.fileReaper = fileReaper;
+		this.admissionManager = admissionManager;
+		this.fileMetrics = fileMetrics;
+	}
+
+	@Override
+	public Mono<Set<String>> listFilenames() {
+		return fileMetrics.recordRepositoryOperation("list", fileRepository.listFilenames())
+				.map(fileReaper::filterDeleted);
+	}
+
+	@Override
+	public Mono<Void> saveFile(String filename, Flux<DataBuffer> content) {
+		return executeWithLockAsync(filename, true, () -> {
+
+			fileCache.invalidate(filename);
+
+			Mono<Void> purge = fileReaper.isDeleted(filename)
+					? Mono.<Void>fromCallable(() -> {
+						fileReaper.purge(filename);
+						return null;
+					}).subscribeOn(Schedulers.boundedElastic())
+					: Mono.empty();
+
+			return purge.then(fileExists(filename)).flatMap(exists -> {
+				if (exists) {
+					LOGGER.error("Cannot save file [{}] as it already exists ", filename);
+					return Mono.error(new FileAlreadyExistsException("The file with name [" + filename + "] already exists"));
+				}
+				Flux<DataBuffer> counted = content
+						.doOnNext(buffer -> fileMetrics.recordBytesWritten(buffer.readableByteCount()));
+				return fileMetrics.recordRepositoryOperation("save", fileRepository.saveFileToStorage(filename, counted));
+			});
+		}).then();
+	}
+
+	/**
+	 * Answers from the cache when the file is cached with its metadata, so a cached file costs no repository lookups.
+	 */
+	@Override
+	public Mono<Void> readFile(String filename, ReactiveFileReadFunction function) {
+		return executeWithLockAsync(filename, false, () -> {
+			FileMetadata cachedMetadata = fileCache.getMetadata(filename);
+			if (cachedMetadata != null) {
+				return function.apply(cachedMetadata, loadResource(filename, cachedMetadata));
+			}
+
+			return fileExists(filename).flatMap(exists -> {
+				if (!exists) {
+					LOGGER.error("Cannot read file [{}] as it does not exist ", filename);
+					return Mono.error(new FileNotFoundException("The file with name [" + filename + "] does not exist"));
+				}
+
+				return fileMetrics.recordRepositoryOperation("metadata", fileRepository.getFileMetadata(filename))
+						.flatMap(metadata -> function.apply(metadata, loadResource(filename, metadata)));
+			});
+		});
+	}
+
+	/**
+	 * Serves the file from the cache if it is cached. Otherwise the file is located and, if the cache is enabled, may
+	 * be read into the cache, which is done off the event loop.
+	 */
+	private Mono<Resource> loadResource(String filename, FileMetadata metadata) {
+		return Mono.defer(() -> {
+			Resource cachedResource = fileCache.get(filename);
+			if (cachedResource != null) {
+				return Mono.just(cachedResource);
+			}
+
+			Mono<Resource> resource = fileMetrics.recordRepositoryOperation("get",
+					fileRepository.getFileFromStorage(filename));
+			if (!fileCache.isEnabled()) {
+				return resource;
+			}
+			return resource.flatMap(stored -> Mono.fromCallable(() -> fileCache.load(filename, stored, metadata))
+					.subscribeOn(Schedulers.boundedElastic()));
+		});
+	}
+
+	@Override
+	public Mono<Void> deleteFile(String filename) {
+		return executeWithLockAsync(filename, true, () -> {
+
+			fileCache.invalidate(filename);
+
+			return fileExists(filename).flatMap(exists -> {
+				if (!exists) {
+					LOGGER.error("Cannot delete file [{}] as it does not exist ", filename);
+					return Mono.error(new FileNotFoundException("The file with name [" + filename + "] does not exist"));
+				}
+				if (fileReaper.isEnabled()) {
+					return fileMetrics.recordRepositoryOperation("metadata", fileRepository.getFileMetadata(filename))
+							.flatMap(metadata -> Mono.fromCallable(() -> {
+								fileReaper.delete(filename, metadata.size());
+								return true;
+							}).subscribeOn(Schedulers.boundedElastic()));
+				}
+				return fileMetrics.recordRepositoryOperation("delete", fileRepository.deleteFileFromStorage(filename));
+			});
+		}).then();
+	}
+
+	private Mono<Boolean> fileExists(String filename) {
+		if (fileReaper.isDeleted(filename)) {
+			return Mono.just(false);
+		}
+		return fileMetrics.recordRepositoryOperation("exists", fileRepository.fileExists(filename));
+	}
+
+	private <R> Mono<R> executeWithLockAsync(String filename, boolean isWrite, Supplier<Mono<R>> function) {
+		return admissionManager.executeAdmittedAsync(filename,
+				() -> lockManager.executeWithLockAsync(filename, isWrite, function));
+	}
+}
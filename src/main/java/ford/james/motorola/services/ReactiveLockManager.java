@@ -0,0 +1,23 @@
+package ford.james.motorola.services;
+
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Provides read/write mutual exclusion on named keys without blocking the calling thread, for use on an event loop.
+ */
+public interface ReactiveLockManager {
+
+	/**
+	 * Subscribes to the publisher supplied by the function once the read or write lock for the key is held, and
+	 * releases the lock when the publisher terminates or is cancelled. Waiting for the lock does not block a thread.
+	 *
+	 * @param key the key to lock on
+	 * @param isWrite whether the write lock is required
+	 * @param function supplies the work to run while the lock is held
+	 * @return the result of the work, or a {@link ford.james.motorola.exceptions.LockTimeoutException} error if the
+	 * lock could not be obtained in time
+	 */
+	<R> Mono<R> executeWithLockAsync(String key, boolean isWrite, Supplier<Mono<R>> function);
+}
@@ -0,0 +1,103 @@
+package ford.james.motorola.services;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.repositories.FileLocalRepository;
+
+/**
+ * Moves the files of an existing flat storage directory into the sharded layout while the application keeps serving
+ * requests. Each file is moved under its write lock, so no download is reading it and no upload or delete is changing
+ * it at the time. Until a file has been moved, the repository keeps finding it in the flat layout.
+ * <p>
+ * Files whose lock could not be obtained in time are skipped and picked up by the next run.
+ */
+@Service
+@ConditionalOnProperty(prefix = "storage.file.sharding", name = "enabled", havingValue = "true")
+public class ShardMigrationService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardMigrationService.class);
+
+	private final ObjectProvider<FileLocalRepository> fileLocalRepositoryProvider;
+	private final LockManager lockManager;
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private volatile ShardMigrationStatus status = new ShardMigrationStatus(ShardMigrationStatus.State.IDLE, 0, 0, 0, 0);
+
+	public ShardMigrationService(ObjectProvider<FileLocalRepository> fileLocalRepositoryProvider,
+			LockManager lockManager) {
+		this.fileLocalRepositoryProvider = fileLocalRepositoryProvider;
+		this.lockManager = lockManager;
+	}
+
+	/**
+	 * Starts migrating in the background, unless a migration is already running.
+	 *
+	 * @return whether a migration was started
+	 */
+	public boolean start() {
+		FileLocalRepository fileLocalRepository = fileLocalRepositoryProvider.getIfAvailable();
+		if (fileLocalRepository == null) {
+			throw new IllegalStateException("Shard migration requires the local repository");
+		}
+		if (!running.compareAndSet(false, true)) {
+			return false;
+		}
+
+		Thread.ofPlatform().daemon().name("shard-migration").start(() -> {
+			try {
+				migrate(fileLocalRepository);
+			} finally {
+				running.set(false);
+			}
+		});
+		return true;
+	}
+
+	public ShardMigrationStatus getStatus() {
+		return status;
+	}
+
+	void migrate(FileLocalRepository fileLocalRepository) {
+		int migrated = 0;
+		int skipped = 0;
+		int failed = 0;
+		try {
+			List<String> filenames = fileLocalRepository.findFlatFilenames();
+			LOGGER.info("Migrating [{}] files into the sharded layout", filenames.size());
+			status = new ShardMigrationStatus(ShardMigrationStatus.State.RUNNING, filenames.size(), 0, 0, 0);
+
+			for (String filename : filenames) {
+				try {
+					if (lockManager.executeWithLock(filename, true, () -> fileLocalRepository.migrateFile(filename))) {
+						migrated++;
+					}
+				} catch (LockTimeoutException e) {
+					LOGGER.warn("File [{}] is busy, it will be migrated by the next run", filename);
+					skipped++;
+				} catch (Exception e) {
+					LOGGER.error("Unable to migrate file [{}]", filename, e);
+					failed++;
+				}
+				status = new ShardMigrationStatus(ShardMigrationStatus.State.RUNNING, filenames.size(), migrated,
+						skipped, failed);
+			}
+
+			boolean flatFilesRemaining = fileLocalRepository.detectFlatFiles();
+			status = new ShardMigrationStatus(flatFilesRemaining ? ShardMigrationStatus.State.INCOMPLETE
+					: ShardMigrationStatus.State.COMPLETED, filenames.size(), migrated, skipped, failed);
+			LOGGER.info("Shard migration finished, migrated [{}] skipped [{}] failed [{}]", migrated, skipped, failed);
+		} catch (Exception e) {
+			LOGGER.error("Shard migration failed", e);
+			status = new ShardMigrationStatus(ShardMigrationStatus.State.FAILED, status.total(), migrated, skipped,
+					failed);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package ford.james.motorola.services;
+
+/**
+ * Progress of the latest migration of flat files into the sharded layout.
+ */
+public record ShardMigrationStatus(State state, int total, int migrated, int skipped, int failed) {
+
+	public enum State {
+		IDLE, RUNNING, COMPLETED, INCOMPLETE, FAILED
+	}
+}
@@ -0,0 +1,201 @@
+package ford.james.motorola.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of the files that have been deleted but not yet reclaimed, so a file whose delete was acknowledged
+ * does not reappear if the application stops before the reaper has removed its data.
+ * <p>
+ * Each tombstone is forced to disk before the delete returns. Threads waiting to force the journal share a single
+ * force, so concurrent deletes are batched into as few forces as the disk allows. Removals are not forced, as replaying
+ * a tombstone whose data is already gone only makes the reaper try to delete it again.
+ * <p>
+ * Uses {@link ReentrantLock}s rather than monitors, so a delete waiting for a force does not pin a virtual thread to
+ * its carrier.
+ */
+class TombstoneJournal implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TombstoneJournal.class);
+
+	private static final String DELETED = "D";
+	private static final String REAPED = "R";
+	private static final String SEPARATOR = "\t";
+
+	private final Path path;
+
+	/**
+	 * Guards the channel and the counters while entries are written.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Held while forcing the journal, so threads that arrive during a force wait for it and then find their tombstones
+	 * were forced by the next one. Acquired before {@link #lock}.
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+
+	private FileChannel channel;
+	private int outstandingCount;
+	private long writtenSequence;
+	private volatile long syncedSequence;
+
+	TombstoneJournal(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Replays the journal and rewrites it with only the outstanding tombstones.
+	 *
+	 * @return the size of each outstanding tombstoned file by filename, in the order they were deleted
+	 */
+	Map<String, Long> open() throws IOException {
+		lock.lock();
+		try {
+			return replay();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Map<String, Long> replay() throws IOException {
+		Map<String, Long> outstanding = new LinkedHashMap<>();
+		if (Files.exists(path)) {
+			try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split(SEPARATOR, 3);
+					if (fields.length == 3 && DELETED.equals(fields[0])) {
+						outstanding.put(fields[2], Long.parseLong(fields[1]));
+					} else if (fields.length == 2 && REAPED.equals(fields[0])) {
+						outstanding.remove(fields[1]);
+					} else {
+						LOGGER.warn("Ignoring incomplete entry [{}] in tombstone journal [{}]", line, path);
+					}
+				}
+			}
+		}
+
+		Path parent = path.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path compacted = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+		try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+			for (Map.Entry<String, Long> entry : outstanding.entrySet()) {
+				write(compactedChannel, DELETED + SEPARATOR + entry.getValue() + SEPARATOR + entry.getKey());
+			}
+			compactedChannel.force(true);
+		}
+		Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		outstandingCount = outstanding.size();
+		return outstanding;
+	}
+
+	void appendDeleted(String filename, long size) throws IOException {
+		long sequence;
+		lock.lock();
+		try {
+			write(channel, DELETED + SEPARATOR + size + SEPARATOR + filename);
+			outstandingCount++;
+			sequence = ++writtenSequence;
+		} finally {
+			lock.unlock();
+		}
+		sync(sequence);
+	}
+
+	void appendReaped(String filename) throws IOException {
+		lock.lock();
+		try {
+			write(channel, REAPED + SEPARATOR + filename);
+			outstandingCount--;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Empties the journal once nothing in it is outstanding, so it does not grow without bound.
+	 */
+	void truncateIfReaped() throws IOException {
+		syncLock.lock();
+		try {
+			lock.lock();
+			try {
+				if (outstandingCount == 0 && channel.size() > 0) {
+					channel.truncate(0);
+					channel.force(true);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		syncLock.lock();
+		try {
+			lock.lock();
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Forces the journal up to the given entry. If another thread is forcing it, waits for that force and then forces
+	 * everything written in the meantime in one go, unless the earlier force already covered the entry.
+	 */
+	private void sync(long sequence) throws IOException {
+		if (syncedSequence >= sequence) {
+			return;
+		}
+		syncLock.lock();
+		try {
+			if (syncedSequence >= sequence) {
+				return;
+			}
+			long target;
+			lock.lock();
+			try {
+				target = writtenSequence;
+			} finally {
+				lock.unlock();
+			}
+			channel.force(false);
+			syncedSequence = target;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private static void write(FileChannel channel, String entry) throws IOException {
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(entry + "\n");
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
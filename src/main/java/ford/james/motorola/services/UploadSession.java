@@ -0,0 +1,187 @@
+package ford.james.motorola.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * State of a single upload session. The content is written into a staged file that is extended to the full size of
+ * the upload, and every chunk is written at its own offset, so chunks can arrive in any order and in parallel. The
+ * staged file is sparse, so its disk space is only taken as the chunks arrive.
+ * <p>
+ * Chunk writes hold the read lock of the session and finishing the session takes the write lock, so a session is
+ * never committed, aborted or expired while a chunk is still being written into it.
+ */
+class UploadSession {
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final String id;
+	private final String filename;
+	private final long size;
+	private final long chunkSize;
+	private final int chunkCount;
+	private final Path stagedFile;
+	private final FileChannel channel;
+	private final Set<Integer> receivedChunks = ConcurrentHashMap.newKeySet();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private volatile Instant lastActivity;
+	private boolean closed;
+
+	private UploadSession(String id, String filename, long size, long chunkSize, int chunkCount, Path stagedFile,
+			FileChannel channel) {
+		this.id = id;
+		this.filename = filename;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunkCount = chunkCount;
+		this.stagedFile = stagedFile;
+		this.channel = channel;
+		this.lastActivity = Instant.now();
+	}
+
+	/**
+	 * Creates the staged file and extends it to the full size of the upload.
+	 */
+	static UploadSession create(String id, String filename, long size, long chunkSize, Path stagedFile)
+			throws IOException {
+		int chunkCount = Math.toIntExact((size + chunkSize - 1) / chunkSize);
+		FileChannel channel = FileChannel.open(stagedFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			if (size > 0) {
+				channel.write(ByteBuffer.allocate(1), size - 1);
+			}
+		} catch (IOException e) {
+			channel.close();
+			Files.deleteIfExists(stagedFile);
+			throw e;
+		}
+		return new UploadSession(id, filename, size, chunkSize, chunkCount, stagedFile, channel);
+	}
+
+	String getId() {
+		return id;
+	}
+
+	String getFilename() {
+		return filename;
+	}
+
+	int getChunkCount() {
+		return chunkCount;
+	}
+
+	Path getStagedFile() {
+		return stagedFile;
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	ReadWriteLock getLock() {
+		return lock;
+	}
+
+	long getChunkPosition(int index) {
+		return index * chunkSize;
+	}
+
+	long getChunkLength(int index) {
+		return Math.min(chunkSize, size - getChunkPosition(index));
+	}
+
+	void markReceived(int index) {
+		receivedChunks.add(index);
+		lastActivity = Instant.now();
+	}
+
+	/**
+	 * @return the number of bytes of the chunks that have not been received yet
+	 */
+	long getRemainingBytes() {
+		long remainingBytes = 0;
+		for (int index : getMissingChunks()) {
+			remainingBytes += getChunkLength(index);
+		}
+		return remainingBytes;
+	}
+
+	List<Integer> getMissingChunks() {
+		List<Integer> missingChunks = new ArrayList<>();
+		for (int index = 0; index < chunkCount; index++) {
+			if (!receivedChunks.contains(index)) {
+				missingChunks.add(index);
+			}
+		}
+		return missingChunks;
+	}
+
+	/**
+	 * Reads the staged file back and returns its SHA-256 digest as a hex string. Chunks arrive in any order, so the
+	 * digest can only be computed once all of them have been written. Must be called while holding the write lock of
+	 * the session.
+	 */
+	String digest(byte[] buffer) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+		}
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+		long position = 0;
+		int read;
+		while ((read = channel.read(byteBuffer, position)) != -1) {
+			messageDigest.update(buffer, 0, read);
+			position += read;
+			byteBuffer.clear();
+		}
+		return HexFormat.of().formatHex(messageDigest.digest());
+	}
+
+	boolean isExpired(Instant now, Duration expiry) {
+		return lastActivity.plus(expiry).isBefore(now);
+	}
+
+	/**
+	 * Must be called while holding a lock of the session.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes the channel and removes the staged file, if it has not been moved into storage. Must be called while
+	 * holding the write lock of the session.
+	 */
+	void close() throws IOException {
+		closed = true;
+		try {
+			channel.close();
+		} finally {
+			Files.deleteIfExists(stagedFile);
+		}
+	}
+
+	UploadSessionStatus toStatus(Duration expiry) {
+		return new UploadSessionStatus(id, filename, size, chunkSize, chunkCount, getMissingChunks(),
+				lastActivity.plus(expiry));
+	}
+}
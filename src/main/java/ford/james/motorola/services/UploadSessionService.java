@@ -0,0 +1,41 @@
+package ford.james.motorola.services;
+
+import java.io.InputStream;
+
+/**
+ * Resumable uploads of large files in numbered chunks. Chunks may be sent in parallel, in any order and retried any
+ * number of times, and the file is only saved once every chunk has been received and the session is committed.
+ */
+public interface UploadSessionService {
+
+	/**
+	 * Starts a session for a file of a known size, split into chunks of the given size.
+	 */
+	UploadSessionStatus createSession(String filename, long size, long chunkSize) throws Exception;
+
+	/**
+	 * @throws java.io.FileNotFoundException if the session does not exist or has expired
+	 */
+	UploadSessionStatus getSession(String sessionId) throws Exception;
+
+	/**
+	 * Writes the content of the stream as the chunk with the given number, replacing any earlier copy of the chunk.
+	 *
+	 * @throws IllegalArgumentException if the chunk number is out of range or the stream is not exactly the length of
+	 * the chunk
+	 */
+	void writeChunk(String sessionId, int index, InputStream inputStream) throws Exception;
+
+	/**
+	 * Saves the file and ends the session.
+	 *
+	 * @throws ford.james.motorola.exceptions.IncompleteUploadException if chunks are still missing
+	 * @throws java.nio.file.FileAlreadyExistsException if a file with the same name has been saved in the meantime
+	 */
+	void commit(String sessionId) throws Exception;
+
+	/**
+	 * Ends the session without saving the file.
+	 */
+	void abort(String sessionId) throws Exception;
+}
@@ -0,0 +1,311 @@
+package ford.james.motorola.services;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.IncompleteUploadException;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.BufferPool;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * {@link UploadSessionService} that keeps the sessions in memory and stages their content in the storage directory,
+ * so a committed file can be moved into place rather than copied. Staged files use the temporary file prefix of the
+ * repositories, so they are never listed as stored files.
+ * <p>
+ * The write lock of the file is only taken by the commit, through {@link FileService#saveFile(String, Path, String)},
+ * after the digest of the staged file has been computed. Chunks are written without it, so a long upload never blocks
+ * other requests for the file. Sessions do not survive a
+ * restart, and any staged files left behind are removed on startup.
+ */
+@Service
+public class UploadSessionServiceImpl implements UploadSessionService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(UploadSessionServiceImpl.class);
+
+	static final String STAGED_FILE_PREFIX = ".upload-session-";
+	private static final String STAGED_FILE_SUFFIX = ".part";
+
+	private final FileService fileService;
+	private final FileStorageProperties fileStorageProperties;
+	private final FileMetrics fileMetrics;
+	private final BufferPool bufferPool;
+	private final ConcurrentMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+	public UploadSessionServiceImpl(FileService fileService, FileStorageProperties fileStorageProperties,
+			FileMetrics fileMetrics) {
+		this.fileService = fileService;
+		this.fileStorageProperties = fileStorageProperties;
+		this.fileMetrics = fileMetrics;
+		this.bufferPool = new BufferPool(fileStorageProperties.getUploadBufferSize(),
+				fileStorageProperties.getUploadBufferPoolSize());
+	}
+
+	/**
+	 * Removes the staged files of sessions that were open when the application last stopped.
+	 */
+	@PostConstruct
+	public void removeAbandonedFiles() throws IOException {
+		Path stagingPath = getStagingPath();
+		if (!Files.isDirectory(stagingPath)) {
+			return;
+		}
+
+		try (Stream<Path> files = Files.list(stagingPath)) {
+			List<Path> stagedFiles = files
+					.filter(file -> file.getFileName().toString().startsWith(STAGED_FILE_PREFIX))
+					.toList();
+			for (Path file : stagedFiles) {
+				LOGGER.info("Removing staged file [{}] of an upload session from a previous run", file);
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		for (String sessionId : List.copyOf(sessions.keySet())) {
+			UploadSession session = sessions.remove(sessionId);
+			if (session == null) {
+				continue;
+			}
+			try {
+				session.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to remove the staged file of upload session [{}]", sessionId, e);
+			}
+		}
+	}
+
+	@Override
+	public UploadSessionStatus createSession(String filename, long size, long chunkSize) throws Exception {
+		FileStorageProperties.UploadSession properties = fileStorageProperties.getUploadSession();
+		if (size < 0) {
+			throw new IllegalArgumentException("The size of the file must not be negative");
+		}
+		if (chunkSize <= 0 || chunkSize > properties.getMaxChunkSize().toBytes()) {
+			throw new IllegalArgumentException("The chunk size must be between 1 and "
+					+ properties.getMaxChunkSize().toBytes() + " bytes");
+		}
+		if ((size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The chunk size is too small for a file of " + size + " bytes");
+		}
+		if (sessions.size() >= properties.getMaxSessions()) {
+			throw new IllegalArgumentException("Too many upload sessions are open, try again later");
+		}
+		checkFreeSpace(size);
+
+		String sessionId = UUID.randomUUID().toString();
+		Path stagedFile = getStagingPath().resolve(STAGED_FILE_PREFIX + sessionId + STAGED_FILE_SUFFIX);
+		UploadSession session = UploadSession.create(sessionId, filename, size, chunkSize, stagedFile);
+		sessions.put(sessionId, session);
+
+		LOGGER.info("Started upload session [{}] for file [{}] of [{}] bytes in [{}] chunks", sessionId, filename, size,
+				session.getChunkCount());
+		return session.toStatus(properties.getExpiry());
+	}
+
+	@Override
+	public UploadSessionStatus getSession(String sessionId) throws Exception {
+		return findSession(sessionId).toStatus(fileStorageProperties.getUploadSession().getExpiry());
+	}
+
+	/**
+	 * Copies the stream into the staged file at the offset of the chunk with positional writes, which do not move the
+	 * position of the shared channel, so any number of chunks can be written at once.
+	 */
+	@Override
+	public void writeChunk(String sessionId, int index, InputStream inputStream) throws Exception {
+		UploadSession session = findSession(sessionId);
+		if (index < 0 || index >= session.getChunkCount()) {
+			throw new IllegalArgumentException("Chunk [" + index + "] is out of range for upload session ["
+					+ sessionId + "] of [" + session.getChunkCount() + "] chunks");
+		}
+
+		long position = session.getChunkPosition(index);
+		long length = session.getChunkLength(index);
+		long written = 0;
+
+		Lock lock = session.getLock().readLock();
+		lock.lock();
+		byte[] buffer = bufferPool.acquire();
+		try {
+			if (session.isClosed()) {
+				throw new FileNotFoundException("Upload session [" + sessionId + "] does not exist");
+			}
+
+			int read;
+			while (written < length
+					&& (read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length - written))) != -1) {
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+				while (byteBuffer.hasRemaining()) {
+					written += session.getChannel().write(byteBuffer, position + written);
+				}
+			}
+			if (written != length || inputStream.read() != -1) {
+				throw new IllegalArgumentException("Chunk [" + index + "] of upload session [" + sessionId
+						+ "] must be exactly [" + length + "] bytes");
+			}
+			session.markReceived(index);
+		} finally {
+			bufferPool.release(buffer);
+			lock.unlock();
+			fileMetrics.recordBytesWritten(written);
+		}
+	}
+
+	/**
+	 * Flushes the staged file to disk, computes its digest and saves it. If the save fails, for example because a file
+	 * with the same name has been saved in the meantime, the session stays open so the client can decide what to do
+	 * with it.
+	 */
+	@Override
+	public void commit(String sessionId) throws Exception {
+		UploadSession session = findSession(sessionId);
+		Lock lock = lockForClose(session);
+		try {
+			if (session.isClosed()) {
+				throw new FileNotFoundException("Upload session [" + sessionId + "] does not exist");
+			}
+
+			List<Integer> missingChunks = session.getMissingChunks();
+			if (!missingChunks.isEmpty()) {
+				throw new IncompleteUploadException("Upload session [" + sessionId + "] is missing ["
+						+ missingChunks.size() + "] chunks, starting with chunk [" + missingChunks.get(0) + "]");
+			}
+
+			session.getChannel().force(true);
+			String digest = digest(session);
+			fileService.saveFile(session.getFilename(), session.getStagedFile(), digest);
+			closeSession(session);
+			LOGGER.info("Committed upload session [{}] as file [{}]", sessionId, session.getFilename());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void abort(String sessionId) throws Exception {
+		UploadSession session = findSession(sessionId);
+		Lock lock = lockForClose(session);
+		try {
+			if (!session.isClosed()) {
+				closeSession(session);
+				LOGGER.info("Aborted upload session [{}]", sessionId);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the sessions that have not received a chunk within the expiry time. Sessions that are busy are left
+	 * for the next run.
+	 */
+	@Scheduled(fixedDelayString = "${storage.file.upload-session.cleanup-interval:PT1M}")
+	public void expireSessions() {
+		Duration expiry = fileStorageProperties.getUploadSession().getExpiry();
+		Instant now = Instant.now();
+		for (UploadSession session : sessions.values()) {
+			if (!session.isExpired(now, expiry)) {
+				continue;
+			}
+
+			Lock lock = session.getLock().writeLock();
+			if (!lock.tryLock()) {
+				continue;
+			}
+			try {
+				if (!session.isClosed()) {
+					closeSession(session);
+					LOGGER.info("Expired upload session [{}] for file [{}]", session.getId(), session.getFilename());
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Unable to remove the staged file of upload session [{}]", session.getId(), e);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Staged files are sparse, so the space for a new session is checked against the space that is still free once
+	 * the chunks of the open sessions have arrived. Sessions are not reserved against other writers, so a session can
+	 * still run out of space, but an upload that could never fit is refused before any chunk is sent.
+	 */
+	private void checkFreeSpace(long size) throws IOException {
+		long requiredBytes = size;
+		for (UploadSession session : sessions.values()) {
+			requiredBytes += session.getRemainingBytes();
+		}
+		long usableSpace = Files.getFileStore(getStagingPath()).getUsableSpace();
+		if (requiredBytes > usableSpace) {
+			throw new IllegalArgumentException("Not enough free space for a file of " + size + " bytes, only "
+					+ usableSpace + " bytes are available");
+		}
+	}
+
+	private String digest(UploadSession session) throws IOException {
+		byte[] buffer = bufferPool.acquire();
+		try {
+			return session.digest(buffer);
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	private UploadSession findSession(String sessionId) throws FileNotFoundException {
+		UploadSession session = sessions.get(sessionId);
+		if (session == null) {
+			throw new FileNotFoundException("Upload session [" + sessionId + "] does not exist");
+		}
+		return session;
+	}
+
+	/**
+	 * Waits for the chunks that are being written to finish, for no longer than the request timeout.
+	 */
+	private Lock lockForClose(UploadSession session) throws InterruptedException, LockTimeoutException {
+		Lock lock = session.getLock().writeLock();
+		if (!lock.tryLock(fileStorageProperties.getRequestTimeout(), TimeUnit.SECONDS)) {
+			throw new LockTimeoutException("Timed out waiting for the chunks of upload session [" + session.getId()
+					+ "] to finish");
+		}
+		return lock;
+	}
+
+	private void closeSession(UploadSession session) throws IOException {
+		sessions.remove(session.getId());
+		session.close();
+	}
+
+	private Path getStagingPath() {
+		return Paths.get(fileStorageProperties.getBaseLocation());
+	}
+}
@@ -0,0 +1,20 @@
+package ford.james.motorola.services;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * The state of an upload session as reported to the client, which can resume an interrupted upload by sending the
+ * missing chunks.
+ *
+ * @param sessionId the id to send the chunks of the upload to
+ * @param filename the name the file is saved under on commit
+ * @param size the total size of the file in bytes
+ * @param chunkSize the size of every chunk in bytes, apart from the last one which may be shorter
+ * @param chunkCount the number of chunks, numbered from zero
+ * @param missingChunks the numbers of the chunks that have not been received yet
+ * @param expiresAt when the session expires unless another chunk is received
+ */
+public record UploadSessionStatus(String sessionId, String filename, long size, long chunkSize, int chunkCount,
+		List<Integer> missingChunks, Instant expiresAt) {
+}
@@ -0,0 +1,38 @@
+package ford.james.motorola.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte arrays so that streaming copies can reuse their buffers instead of allocating
+ * a new one for every request. When the pool is empty a new buffer is allocated, and buffers returned to a full pool
+ * are left for the garbage collector.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final BlockingQueue<byte[]> buffers;
+
+	public BufferPool(int bufferSize, int maxPooledBuffers) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be positive but was " + bufferSize);
+		}
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooledBuffers));
+	}
+
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[bufferSize];
+	}
+
+	public void release(byte[] buffer) {
+		if (buffer != null && buffer.length == bufferSize) {
+			buffers.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
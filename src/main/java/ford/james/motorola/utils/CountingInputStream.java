@@ -0,0 +1,46 @@
+package ford.james.motorola.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through the wrapped stream.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	private long count;
+
+	public CountingInputStream(InputStream inputStream) {
+		super(inputStream);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = super.read();
+		if (read != -1) {
+			count++;
+		}
+		return read;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0) {
+			count += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count += skipped;
+		return skipped;
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
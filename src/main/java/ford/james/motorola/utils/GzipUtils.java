@@ -0,0 +1,145 @@
+package ford.james.motorola.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes and inspects the gzip files that compressed content is stored in. The files are plain RFC 1952 gzip, so they
+ * can be sent to clients as they are with {@code Content-Encoding: gzip}, but the header carries an extra field with
+ * the full uncompressed length. The gzip trailer only stores the length modulo 2<sup>32</sup>, and reading the extra
+ * field avoids inflating the file just to find out how long it is.
+ */
+public final class GzipUtils {
+
+	private static final int FLAG_EXTRA = 0x04;
+	private static final int OS_UNKNOWN = 0xff;
+	private static final byte SUBFIELD_ID1 = 'M';
+	private static final byte SUBFIELD_ID2 = 'L';
+	private static final int LENGTH_OFFSET = 16;
+
+	/**
+	 * Length of the header written by {@link #compress}, including the extra field.
+	 */
+	public static final int HEADER_LENGTH = LENGTH_OFFSET + Long.BYTES;
+
+	private GzipUtils() {
+	}
+
+	/**
+	 * Compresses the bytes already read into the buffer followed by the rest of the stream into the target file. The
+	 * buffer is reused to read the stream.
+	 *
+	 * @return the uncompressed length of the content
+	 */
+	public static long compress(Path target, byte[] buffer, int bufferedLength, InputStream inputStream, int level)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		Deflater deflater = new Deflater(level, true);
+		long length = 0;
+		try (OutputStream outputStream = Files.newOutputStream(target, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			outputStream.write(header());
+
+			DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, deflater, 8192);
+			int read = bufferedLength;
+			while (read != -1) {
+				deflaterOutputStream.write(buffer, 0, read);
+				crc.update(buffer, 0, read);
+				length += read;
+				read = inputStream.read(buffer);
+			}
+			deflaterOutputStream.finish();
+
+			outputStream.write(ByteBuffer.allocate(2 * Integer.BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN)
+					.putInt((int) crc.getValue())
+					.putInt((int) length)
+					.array());
+		} finally {
+			deflater.end();
+		}
+
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+			ByteBuffer lengthBuffer = ByteBuffer.allocate(Long.BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN)
+					.putLong(length)
+					.flip();
+			while (lengthBuffer.hasRemaining()) {
+				channel.write(lengthBuffer, LENGTH_OFFSET + lengthBuffer.position());
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Reads the uncompressed length from the header of a file written by {@link #compress}.
+	 *
+	 * @throws IOException if the file was not written by {@link #compress}
+	 */
+	public static long readUncompressedLength(Path path) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int read;
+		try (InputStream inputStream = Files.newInputStream(path)) {
+			read = inputStream.readNBytes(header, 0, HEADER_LENGTH);
+		}
+
+		if (read < HEADER_LENGTH || !Arrays.equals(header, 0, LENGTH_OFFSET, header(), 0, LENGTH_OFFSET)) {
+			throw new IOException("File [" + path + "] is not a compressed file written by this application");
+		}
+		return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getLong(LENGTH_OFFSET);
+	}
+
+	/**
+	 * Deflates a sample of the content at the fastest level to estimate how well the whole content compresses.
+	 *
+	 * @return the compressed size of the sample divided by its original size
+	 */
+	public static double estimateRatio(byte[] sample, int length) {
+		if (length == 0) {
+			return 1;
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] output = new byte[8192];
+			long compressed = 0;
+			while (!deflater.finished()) {
+				compressed += deflater.deflate(output);
+			}
+			return (double) compressed / length;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] header() {
+		return ByteBuffer.allocate(HEADER_LENGTH)
+				.order(ByteOrder.LITTLE_ENDIAN)
+				.put((byte) 0x1f)
+				.put((byte) 0x8b)
+				.put((byte) Deflater.DEFLATED)
+				.put((byte) FLAG_EXTRA)
+				.putInt(0)
+				.put((byte) 0)
+				.put((byte) OS_UNKNOWN)
+				.putShort((short) (4 + Long.BYTES))
+				.put(SUBFIELD_ID1)
+				.put(SUBFIELD_ID2)
+				.putShort((short) Long.BYTES)
+				.putLong(0)
+				.array();
+	}
+}
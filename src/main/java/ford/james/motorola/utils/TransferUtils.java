@@ -0,0 +1,123 @@
+package ford.james.motorola.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.StreamUtils;
+
+import ford.james.motorola.repositories.MappedResource;
+import ford.james.motorola.repositories.S3ObjectResource;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+public class TransferUtils {
+
+	/**
+	 * Writes {@code count} bytes of the resource starting at {@code position} to the output stream without reading
+	 * the whole resource into memory. File backed resources are copied through a {@code FileChannel} so the JDK can
+	 * use its direct transfer path, memory mapped resources are written straight from the mapping, S3 objects fetch
+	 * only the range, and anything else falls back to a buffered stream copy.
+	 *
+	 * @param resource the resource to read from
+	 * @param position the offset of the first byte to write
+	 * @param count the number of bytes to write
+	 * @param outputStream the stream to write the bytes to
+	 * @return the number of bytes written
+	 */
+	public static long transfer(Resource resource, long position, long count, OutputStream outputStream)
+			throws IOException {
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		if (resource instanceof MappedResource mappedResource) {
+			ByteBuffer slice = mappedResource.slice(position, count);
+			WritableByteChannel target = Channels.newChannel(outputStream);
+			long transferred = 0;
+			while (slice.hasRemaining()) {
+				transferred += target.write(slice);
+			}
+			return transferred;
+		}
+
+		if (resource instanceof S3ObjectResource objectResource) {
+			try (InputStream inputStream = objectResource.getInputStream(position, count)) {
+				return inputStream.transferTo(outputStream);
+			}
+		}
+
+		if (!resource.isFile()) {
+			try (InputStream inputStream = resource.getInputStream()) {
+				return StreamUtils.copyRange(inputStream, outputStream, position, position + count - 1);
+			}
+		}
+
+		try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+			WritableByteChannel target = Channels.newChannel(outputStream);
+			long transferred = 0;
+			while (transferred < count) {
+				long written = channel.transferTo(position + transferred, count - transferred, target);
+				if (written <= 0) {
+					break;
+				}
+				transferred += written;
+			}
+			return transferred;
+		}
+	}
+
+	/**
+	 * Reads {@code count} bytes of the resource starting at {@code position} as a stream of buffers, which are only
+	 * read as fast as they are requested. File backed resources are read through an {@code AsynchronousFileChannel},
+	 * memory mapped resources are wrapped without copying, and anything else is read from its input stream on the
+	 * bounded elastic scheduler.
+	 *
+	 * @param resource the resource to read from
+	 * @param position the offset of the first byte to read
+	 * @param count the number of bytes to read
+	 * @param bufferFactory the factory to allocate the buffers from
+	 * @param bufferSize the size of each buffer
+	 * @return the buffers, which must be released by the subscriber
+	 */
+	public static Flux<DataBuffer> read(Resource resource, long position, long count, DataBufferFactory bufferFactory,
+			int bufferSize) {
+
+		if (count <= 0) {
+			return Flux.empty();
+		}
+
+		if (resource instanceof MappedResource mappedResource) {
+			ByteBuffer slice = mappedResource.slice(position, count);
+			int length = slice.remaining();
+			return Flux.range(0, (length + bufferSize - 1) / bufferSize)
+					.map(index -> bufferFactory.wrap(
+							slice.slice(index * bufferSize, Math.min(bufferSize, length - index * bufferSize))));
+		}
+
+		Flux<DataBuffer> content;
+		if (resource.isFile()) {
+			content = DataBufferUtils.readAsynchronousFileChannel(
+					() -> AsynchronousFileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ), position,
+					bufferFactory, bufferSize);
+		} else {
+			content = DataBufferUtils.readInputStream(() -> {
+				InputStream inputStream = resource.getInputStream();
+				inputStream.skipNBytes(position);
+				return inputStream;
+			}, bufferFactory, bufferSize).subscribeOn(Schedulers.boundedElastic());
+		}
+		return DataBufferUtils.takeUntilByteCount(content, count);
+	}
+}
@@ -1,40 +1,77 @@
 package ford.james.motorola.controllers;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.web.multipart.MultipartFile;
 
 import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.functions.FileReadFunction;
+import ford.james.motorola.functions.RepositoryOperation;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.CompressedResource;
+import ford.james.motorola.repositories.FileMetadata;
+import ford.james.motorola.services.BatchItemResult;
+import ford.james.motorola.services.FileBatchService;
 import ford.james.motorola.services.FileService;
+import ford.james.motorola.services.UploadSessionService;
+import ford.james.motorola.utils.GzipUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 public class FileControllerTest {
 
+	private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
 	@Mock
 	private FileService fileService;
+	@Mock
+	private FileBatchService fileBatchService;
+	@Mock
+	private UploadSessionService uploadSessionService;
+	@Spy
+	private FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
 	@InjectMocks
 	private FileController fileController;
 
+	@TempDir
+	private Path tempDirectory;
+
 	private AutoCloseable closeable;
 
 	@BeforeEach
@@ -58,6 +95,19 @@ public class FileControllerTest {
 		assertEquals(2, filenames.size());
 	}
 
+	@Test
+	void testCreateUploadSession() throws Exception {
+		fileController.createUploadSession(new CreateUploadSessionRequest("large.bin", 10, 4));
+		verify(uploadSessionService).createSession("large.bin", 10, 4);
+	}
+
+	@Test
+	void testCreateUploadSessionInvalidName() throws Exception {
+		assertThrows(IllegalArgumentException.class,
+				() -> fileController.createUploadSession(new CreateUploadSessionRequest("InvalidN&M£.bin", 10, 4)));
+		verify(uploadSessionService, never()).createSession(any(), anyLong(), anyLong());
+	}
+
 	@Test
 	void testRemoveFileSuccess() throws Exception {
 		fileController.removeFile("AcceptedName1.csv");
@@ -88,27 +138,234 @@ public class FileControllerTest {
 		verify(fileService, never()).saveFile(any());
 	}
 
+	@Test
+	void testUploadFileStreamSuccess() throws Exception {
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContent("file".getBytes());
+
+		fileController.uploadFileStream("val1dFil3nam3", request);
+		verify(fileService).saveFile(eq("val1dFil3nam3"), any(InputStream.class));
+	}
+
+	@Test
+	void testUploadFileStreamInvalidName() throws Exception {
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContent("file".getBytes());
+
+		assertThrows(IllegalArgumentException.class, () -> fileController.uploadFileStream("inval1d/nam3", request));
+		verify(fileService, never()).saveFile(any(), any(InputStream.class));
+	}
+
+	@Test
+	void testUploadFilesReportsEachItem() throws Exception {
+
+		MultipartFile valid = new MockMultipartFile("files", "valid.txt", null, "file".getBytes());
+		MultipartFile existing = new MockMultipartFile("files", "existing.txt", null, "file".getBytes());
+		MultipartFile invalid = new MockMultipartFile("files", "inval!d.txt", null, "file".getBytes());
+
+		when(fileBatchService.saveFiles(List.of(valid, existing))).thenReturn(List.of(
+				BatchItemResult.failure("existing.txt", new FileAlreadyExistsException("existing.txt")),
+				BatchItemResult.success("valid.txt")));
+
+		List<BatchItemResponse> responses = fileController.uploadFiles(List.of(valid, existing, invalid));
+
+		assertEquals(List.of(
+				new BatchItemResponse("existing.txt", HttpStatus.CONFLICT.value(), "existing.txt"),
+				new BatchItemResponse("inval!d.txt", HttpStatus.BAD_REQUEST.value(), "Filename of inval!d.txt was not a valid name"),
+				new BatchItemResponse("valid.txt", HttpStatus.OK.value(), null)), responses);
+	}
+
+	@Test
+	void testRemoveFilesReportsEachItem() throws Exception {
+
+		when(fileBatchService.deleteFiles(List.of("a.txt"))).thenReturn(List.of(BatchItemResult.success("a.txt")));
+
+		List<BatchItemResponse> responses = fileController.removeFiles(List.of("a.txt", "b/.txt"));
+
+		assertEquals(2, responses.size());
+		assertEquals(HttpStatus.OK.value(), responses.get(0).status());
+		assertEquals(HttpStatus.BAD_REQUEST.value(), responses.get(1).status());
+	}
+
 	@Test
 	void testGetFileSuccess() throws Exception {
 
 		Resource resource = new ByteArrayResource("file".getBytes());
-		when(fileService.getFile(any())).thenReturn(resource);
+		mockReadFile("testFile.jpeg", resource);
 
-		ResponseEntity<Resource> response = fileController.getFile("testFile.jpeg");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", new HttpHeaders(), response);
 
 		assertAll(() -> {
-			assertEquals(HttpStatus.OK, response.getStatusCode());
-			assertEquals(MediaType.APPLICATION_OCTET_STREAM, response.getHeaders().getContentType());
-			assertEquals(4, response.getHeaders().getContentLength());
-			assertEquals(resource, response.getBody());
+			assertEquals(HttpStatus.OK.value(), response.getStatus());
+			assertEquals(MediaType.APPLICATION_OCTET_STREAM_VALUE, response.getContentType());
+			assertEquals(4, response.getContentLengthLong());
+			assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+			assertEquals("\"digest\"", response.getHeader(HttpHeaders.ETAG));
+			assertEquals(LAST_MODIFIED, response.getDateHeader(HttpHeaders.LAST_MODIFIED));
+			assertEquals("file", response.getContentAsString());
 		});
 
-		verify(fileService).getFile("testFile.jpeg");
+		verify(fileService).readFile(eq("testFile.jpeg"), any(FileReadFunction.class));
+		verify(fileMetrics).recordRepositoryOperation(eq("read"), any(RepositoryOperation.class));
+		verify(fileMetrics).recordBytesRead(4);
+	}
+
+	@Test
+	void testGetFileSingleRange() throws Exception {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.set(HttpHeaders.RANGE, "bytes=1-2");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", requestHeaders, response);
+
+		assertAll(() -> {
+			assertEquals(HttpStatus.PARTIAL_CONTENT.value(), response.getStatus());
+			assertEquals("bytes 1-2/4", response.getHeader(HttpHeaders.CONTENT_RANGE));
+			assertEquals(2, response.getContentLengthLong());
+			assertEquals("il", response.getContentAsString());
+		});
+	}
+
+	@Test
+	void testGetFileNotModifiedForMatchingETag() throws Exception {
+
+		Resource resource = mock(Resource.class);
+		mockReadFile(new FileMetadata("testFile.jpeg", 4, LAST_MODIFIED, "digest"), resource);
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.set(HttpHeaders.IF_NONE_MATCH, "\"other\", W/\"digest\"");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", requestHeaders, response);
+
+		assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+		assertEquals("\"digest\"", response.getHeader(HttpHeaders.ETAG));
+		assertEquals(0, response.getContentAsByteArray().length);
+		verifyNoInteractions(resource);
+	}
+
+	@Test
+	void testGetFileNotModifiedSince() throws Exception {
+
+		Resource resource = mock(Resource.class);
+		mockReadFile(new FileMetadata("testFile.jpeg", 4, LAST_MODIFIED, "digest"), resource);
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.setIfModifiedSince(LAST_MODIFIED + 500);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", requestHeaders, response);
+
+		assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+		verifyNoInteractions(resource);
+	}
+
+	@Test
+	void testGetFileModifiedSinceETag() throws Exception {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.setIfNoneMatch("\"stale\"");
+		requestHeaders.setIfModifiedSince(LAST_MODIFIED);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", requestHeaders, response);
+
+		assertEquals(HttpStatus.OK.value(), response.getStatus());
+		assertEquals("file", response.getContentAsString());
+	}
+
+	@Test
+	void testGetFileRangeWithMatchingIfRangeETag() throws Exception {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.set(HttpHeaders.RANGE, "bytes=1-2");
+		requestHeaders.set(HttpHeaders.IF_RANGE, "\"digest\"");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", requestHeaders, response);
+
+		assertEquals(HttpStatus.PARTIAL_CONTENT.value(), response.getStatus());
+		assertEquals("il", response.getContentAsString());
+	}
+
+	@Test
+	void testGetFileRangeNotSatisfiable() throws Exception {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.set(HttpHeaders.RANGE, "bytes=10-20");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.jpeg", requestHeaders, response);
+
+		assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value(), response.getStatus());
+		assertEquals("bytes */4", response.getHeader(HttpHeaders.CONTENT_RANGE));
+	}
+
+	@Test
+	void testGetCompressedFileIsPassedThrough() throws Exception {
+
+		Path compressedPath = tempDirectory.resolve("compressed");
+		byte[] content = "line of text\n".repeat(100).getBytes();
+		GzipUtils.compress(compressedPath, content.clone(), content.length, InputStream.nullInputStream(), 6);
+		mockReadFile("testFile.csv", new CompressedResource("testFile.csv", compressedPath, content.length));
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.set(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.csv", requestHeaders, response);
+
+		assertAll(() -> {
+			assertEquals(HttpStatus.OK.value(), response.getStatus());
+			assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+			assertEquals("\"digest-gzip\"", response.getHeader(HttpHeaders.ETAG));
+			assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeader(HttpHeaders.VARY));
+			assertEquals(Files.size(compressedPath), response.getContentLengthLong());
+			assertArrayEquals(Files.readAllBytes(compressedPath), response.getContentAsByteArray());
+		});
+	}
+
+	@Test
+	void testGetCompressedFileIsInflatedWithoutGzip() throws Exception {
+
+		Path compressedPath = tempDirectory.resolve("compressed");
+		byte[] content = "line of text\n".repeat(100).getBytes();
+		GzipUtils.compress(compressedPath, content.clone(), content.length, InputStream.nullInputStream(), 6);
+		mockReadFile("testFile.csv", new CompressedResource("testFile.csv", compressedPath, content.length));
+
+		HttpHeaders requestHeaders = new HttpHeaders();
+		requestHeaders.set(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileController.getFile("testFile.csv", requestHeaders, response);
+
+		assertAll(() -> {
+			assertEquals(HttpStatus.OK.value(), response.getStatus());
+			assertNull(response.getHeader(HttpHeaders.CONTENT_ENCODING));
+			assertEquals(content.length, response.getContentLengthLong());
+			assertArrayEquals(content, response.getContentAsByteArray());
+		});
 	}
 
 	@Test
 	void testGetFileInvalidName() throws Exception {
-		assertThrows(IllegalArgumentException.class, () -> fileController.getFile("InvalidN&M£.csv"));
-		verify(fileService, never()).getFile(any());
+		assertThrows(IllegalArgumentException.class,
+				() -> fileController.getFile("InvalidN&M£.csv", new HttpHeaders(), new MockHttpServletResponse()));
+		verify(fileService, never()).readFile(any(), any(FileReadFunction.class));
+	}
+
+	private void mockReadFile(String filename, Resource resource) throws Exception {
+		mockReadFile(new FileMetadata(filename, resource.contentLength(), LAST_MODIFIED, "digest"), resource);
+	}
+
+	private void mockReadFile(FileMetadata metadata, Resource resource) throws Exception {
+		doAnswer(invocation -> {
+			invocation.<FileReadFunction>getArgument(1).apply(metadata, () -> resource);
+			return null;
+		}).when(fileService).readFile(eq(metadata.filename()), any(FileReadFunction.class));
 	}
 }
@@ -3,16 +3,25 @@ package ford.james.motorola.controllers;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -21,16 +30,26 @@ import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.mock.web.MockMultipartFile;
 
 import ford.james.motorola.FileStorageProperties;
 import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.functions.ResourceConsumer;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.FileMetadata;
 import ford.james.motorola.repositories.FileRepository;
+import ford.james.motorola.services.AdmissionManager;
+import ford.james.motorola.services.FileCache;
+import ford.james.motorola.services.FileReaper;
 import ford.james.motorola.services.FileServiceImpl;
+import ford.james.motorola.services.LockManagerImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 public class FileServiceImplTest {
 
@@ -42,7 +61,8 @@ public class FileServiceImplTest {
 	private FileStorageProperties  fileStorageProperties;
 	@Mock
 	private Resource resource;
-	@InjectMocks
+	@TempDir
+	private Path journalDirectory;
 	private FileServiceImpl fileServiceImpl;
 
 	private final ExecutorService executorService = Executors.newFixedThreadPool(2);
@@ -52,6 +72,11 @@ public class FileServiceImplTest {
 	void before() {
 		closeable = MockitoAnnotations.openMocks(this);
 		when(fileStorageProperties.getRequestTimeout()).thenReturn(REQUEST_TIMEOUT);
+		FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
+		LockManagerImpl lockManager = new LockManagerImpl(fileStorageProperties, fileMetrics);
+		fileServiceImpl = new FileServiceImpl(fileRepository, lockManager, new FileCache(new FileStorageProperties()),
+				new FileReaper(fileRepository, lockManager, new FileStorageProperties()),
+				new AdmissionManager(new FileStorageProperties(), fileMetrics), fileMetrics);
 	}
 
 	@AfterEach
@@ -67,33 +92,53 @@ public class FileServiceImplTest {
 
 	@Test
 	void testGetFileSuccess() throws Exception {
-		when(fileRepository.fileExists("filename")).thenReturn(true);
 		when(fileRepository.getFileFromStorage("filename")).thenReturn(resource);
 
-		assertEquals(resource, fileServiceImpl.getFile("filename"));
+		readContent(fileServiceImpl, "filename", file -> assertEquals(resource, file));
 
-		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
+		verify(fileRepository, never()).fileExists("filename");
 		verify(fileRepository).getFileFromStorage("filename");
 	}
 
 	@Test
 	void testGetFileDoesNotExist() throws Exception {
-		when(fileRepository.fileExists("filename")).thenReturn(false);
+		when(fileRepository.getFileMetadata("filename")).thenThrow(new NoSuchFileException("filename"));
 
-		assertThrows(FileNotFoundException.class, () -> fileServiceImpl.getFile("filename"));
+		assertThrows(FileNotFoundException.class, () -> readContent(fileServiceImpl, "filename", file -> {}));
 
-		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
 		verify(fileRepository, never()).getFileFromStorage("filename");
 	}
 
+	@Test
+	void testReadFileMetadataWithoutContent() throws Exception {
+		FileMetadata metadata = new FileMetadata("filename", 1, 2, "digest");
+		when(fileRepository.getFileMetadata("filename")).thenReturn(metadata);
+
+		fileServiceImpl.readFile("filename", (fileMetadata, file) -> assertEquals(metadata, fileMetadata));
+
+		verify(fileRepository).getFileMetadata("filename");
+		verify(fileRepository, never()).getFileFromStorage("filename");
+	}
+
+	@Test
+	void testReadFileMetadataAndContent() throws Exception {
+		when(fileRepository.getFileMetadata("filename")).thenReturn(new FileMetadata("filename", 1, 2, "digest"));
+		when(fileRepository.getFileFromStorage("filename")).thenReturn(resource);
+
+		fileServiceImpl.readFile("filename", (fileMetadata, file) -> assertEquals(resource, file.apply()));
+
+		verify(fileRepository).getFileFromStorage("filename");
+	}
+
 	@Test
 	void testGetFileExceptionWhileGettingFile() throws Exception {
-		when(fileRepository.fileExists("filename")).thenReturn(true);
 		when(fileRepository.getFileFromStorage("filename")).thenThrow(IOException.class);
 
-		assertThrows(IOException.class, () -> fileServiceImpl.getFile("filename"));
+		assertThrows(IOException.class, () -> readContent(fileServiceImpl, "filename", file -> {}));
 
-		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
 		verify(fileRepository).getFileFromStorage("filename");
 	}
 
@@ -168,6 +213,33 @@ public class FileServiceImplTest {
 		verify(fileRepository).saveFileToStorage(mockMultipartFile);
 	}
 
+	@Test
+	void testSaveFileStreamSuccess() throws Exception {
+
+		InputStream inputStream = new ByteArrayInputStream("A".getBytes());
+
+		when(fileRepository.fileExists("originalName")).thenReturn(false);
+		when(fileRepository.saveFileToStorage("originalName", inputStream)).thenReturn(true);
+
+		fileServiceImpl.saveFile("originalName", inputStream);
+
+		verify(fileRepository).fileExists("originalName");
+		verify(fileRepository).saveFileToStorage("originalName", inputStream);
+	}
+
+	@Test
+	void testSaveFileStreamAlreadyExist() throws Exception {
+
+		InputStream inputStream = new ByteArrayInputStream("A".getBytes());
+
+		when(fileRepository.fileExists("originalName")).thenReturn(true);
+
+		assertThrows(FileAlreadyExistsException.class, () -> fileServiceImpl.saveFile("originalName", inputStream));
+
+		verify(fileRepository).fileExists("originalName");
+		verify(fileRepository, never()).saveFileToStorage("originalName", inputStream);
+	}
+
 	@Test
 	void testGetFileLockExpiresWhileDeletingSameFile() throws Exception {
 
@@ -181,7 +253,7 @@ public class FileServiceImplTest {
 			fileServiceImpl.deleteFile("filename");
 			return null;
 		});
-		executorService.submit(() -> assertThrows(LockTimeoutException.class, () -> fileServiceImpl.getFile("filename")));
+		executorService.submit(() -> assertThrows(LockTimeoutException.class, () -> readContent(fileServiceImpl, "filename", file -> {})));
 		executorService.shutdown();
 		executorService.awaitTermination(20, TimeUnit.SECONDS);
 		verify(fileRepository).fileExists("filename");
@@ -192,7 +264,6 @@ public class FileServiceImplTest {
 	@Test
 	void testGetFileDoesNotLockWhenDeletingOtherFile() throws Exception {
 
-		when(fileRepository.fileExists("filename")).thenReturn(true);
 		when(fileRepository.fileExists("other")).thenReturn(true);
 		when(fileRepository.getFileFromStorage("filename")).thenReturn(resource);
 		when(fileRepository.deleteFileFromStorage("other")).then(invocation -> {
@@ -206,7 +277,7 @@ public class FileServiceImplTest {
 		});
 		executorService.submit(() -> {
 			try {
-				assertEquals(resource, fileServiceImpl.getFile("filename"));
+				readContent(fileServiceImpl, "filename", file -> assertEquals(resource, file));
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			}
@@ -214,7 +285,7 @@ public class FileServiceImplTest {
 		executorService.shutdown();
 		executorService.awaitTermination(20, TimeUnit.SECONDS);
 
-		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
 		verify(fileRepository).fileExists("other");
 		verify(fileRepository).deleteFileFromStorage("other");
 		verify(fileRepository).getFileFromStorage("filename");
@@ -223,7 +294,8 @@ public class FileServiceImplTest {
 	@Test
 	void testGetFileFindsNoFileWhenDeleteCompletesInTime() throws Exception {
 
-		when(fileRepository.fileExists("filename")).thenReturn(true).thenReturn(false);
+		when(fileRepository.fileExists("filename")).thenReturn(true);
+		when(fileRepository.getFileMetadata("filename")).thenThrow(new NoSuchFileException("filename"));
 		when(fileRepository.getFileFromStorage("filename")).thenReturn(resource);
 		when(fileRepository.deleteFileFromStorage("filename")).then(invocation -> {
 			Thread.sleep(500);
@@ -234,11 +306,12 @@ public class FileServiceImplTest {
 			fileServiceImpl.deleteFile("filename");
 			return null;
 		});
-		executorService.submit(() -> assertThrows(FileNotFoundException.class, () -> fileServiceImpl.getFile("filename")));
+		executorService.submit(() -> assertThrows(FileNotFoundException.class, () -> readContent(fileServiceImpl, "filename", file -> {})));
 		executorService.shutdown();
 		executorService.awaitTermination(20, TimeUnit.SECONDS);
 
-		verify(fileRepository, times(2)).fileExists("filename");
+		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
 		verify(fileRepository).deleteFileFromStorage("filename");
 		verify(fileRepository, never()).getFileFromStorage("filename");
 	}
@@ -246,19 +319,18 @@ public class FileServiceImplTest {
 	@Test
 	void testGetFileDoesNotBlockOtherGetFile() throws Exception {
 
-		when(fileRepository.fileExists("filename")).thenReturn(true);
 		when(fileRepository.getFileFromStorage("filename")).then(invocation -> {
 			Thread.sleep(2000);
 			return resource;
 		}).thenReturn(resource);
 
 		executorService.submit(() -> {
-			assertEquals(resource, fileServiceImpl.getFile("filename"));
+			readContent(fileServiceImpl, "filename", file -> assertEquals(resource, file));
 			return null;
 		});
 		executorService.submit(() -> {
 			try {
-				assertEquals(resource, fileServiceImpl.getFile("filename"));
+				readContent(fileServiceImpl, "filename", file -> assertEquals(resource, file));
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			}
@@ -266,7 +338,7 @@ public class FileServiceImplTest {
 		executorService.shutdown();
 		executorService.awaitTermination(20, TimeUnit.SECONDS);
 
-		verify(fileRepository, times(2)).fileExists("filename");
+		verify(fileRepository, times(2)).getFileMetadata("filename");
 		verify(fileRepository, times(2)).getFileFromStorage("filename");
 	}
 
@@ -280,13 +352,13 @@ public class FileServiceImplTest {
 		});
 
 		executorService.submit(() -> {
-			fileServiceImpl.getFile("filename");
+			readContent(fileServiceImpl, "filename", file -> {});
 			return null;
 		});
 		executorService.submit(() ->assertThrows(LockTimeoutException.class, () -> fileServiceImpl.deleteFile("filename")));
 		executorService.shutdown();
 		executorService.awaitTermination(20, TimeUnit.SECONDS);
-		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
 		verify(fileRepository).getFileFromStorage("filename");
 		verify(fileRepository, never()).deleteFileFromStorage("filename");
 	}
@@ -301,7 +373,7 @@ public class FileServiceImplTest {
 		});
 
 		executorService.submit(() -> {
-			fileServiceImpl.getFile("filename");
+			readContent(fileServiceImpl, "filename", file -> {});
 			return null;
 		});
 		executorService.submit(() -> {
@@ -313,8 +385,153 @@ public class FileServiceImplTest {
 		});
 		executorService.shutdown();
 		executorService.awaitTermination(20, TimeUnit.SECONDS);
-		verify(fileRepository, times(2)).fileExists("filename");
+		verify(fileRepository).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
 		verify(fileRepository).getFileFromStorage("filename");
 		verify(fileRepository).deleteFileFromStorage("filename");
 	}
+
+	@Test
+	void testDeleteFileLockExpiresWhileReadingFileIsStillConsumed() throws Exception {
+
+		when(fileRepository.getFileFromStorage("filename")).thenReturn(resource);
+
+		executorService.submit(() -> {
+			readContent(fileServiceImpl, "filename", file -> Thread.sleep(2000));
+			return null;
+		});
+		Thread.sleep(200);
+		executorService.submit(() -> assertThrows(LockTimeoutException.class, () -> fileServiceImpl.deleteFile("filename")));
+		executorService.shutdown();
+		executorService.awaitTermination(20, TimeUnit.SECONDS);
+		verify(fileRepository).getFileFromStorage("filename");
+		verify(fileRepository, never()).deleteFileFromStorage("filename");
+	}
+
+	@Test
+	void testReadFileServedFromCacheUntilDeleted() throws Exception {
+
+		FileStorageProperties cacheProperties = new FileStorageProperties();
+		cacheProperties.getCache().setEnabled(true);
+		FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
+		LockManagerImpl lockManager = new LockManagerImpl(fileStorageProperties, fileMetrics);
+		FileServiceImpl cachingService = new FileServiceImpl(fileRepository, lockManager, new FileCache(cacheProperties),
+				new FileReaper(fileRepository, lockManager, cacheProperties),
+				new AdmissionManager(cacheProperties, fileMetrics), fileMetrics);
+
+		when(fileRepository.fileExists("filename")).thenReturn(true);
+		when(fileRepository.getFileMetadata("filename")).thenReturn(new FileMetadata("filename", 1, 0, "digest"))
+				.thenThrow(new NoSuchFileException("filename"));
+		when(fileRepository.getFileFromStorage("filename")).thenReturn(new ByteArrayResource("A".getBytes()));
+		when(fileRepository.deleteFileFromStorage("filename")).thenReturn(true);
+
+		readContent(cachingService, "filename", file -> assertEquals("A", file.getContentAsString(StandardCharsets.UTF_8)));
+		readContent(cachingService, "filename", file -> assertEquals("A", file.getContentAsString(StandardCharsets.UTF_8)));
+		verify(fileRepository).getFileFromStorage("filename");
+
+		cachingService.deleteFile("filename");
+
+		assertThrows(FileNotFoundException.class, () -> readContent(cachingService, "filename", file -> {}));
+		verify(fileRepository).fileExists("filename");
+		verify(fileRepository, times(2)).getFileMetadata("filename");
+	}
+
+	@Test
+	void testCachedFileIsServedWithoutRepositoryLookups() throws Exception {
+
+		FileStorageProperties cacheProperties = new FileStorageProperties();
+		cacheProperties.getCache().setEnabled(true);
+		FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
+		LockManagerImpl lockManager = new LockManagerImpl(fileStorageProperties, fileMetrics);
+		FileServiceImpl cachingService = new FileServiceImpl(fileRepository, lockManager, new FileCache(cacheProperties),
+				new FileReaper(fileRepository, lockManager, cacheProperties),
+				new AdmissionManager(cacheProperties, fileMetrics), fileMetrics);
+		FileMetadata metadata = new FileMetadata("filename", 1, 0, "digest");
+
+		when(fileRepository.getFileMetadata("filename")).thenReturn(metadata);
+		when(fileRepository.getFileFromStorage("filename")).thenReturn(new ByteArrayResource("A".getBytes()));
+
+		for (int i = 0; i < 2; i++) {
+			cachingService.readFile("filename", (fileMetadata, resource) -> {
+				assertEquals(metadata, fileMetadata);
+				assertEquals("A", resource.apply().getContentAsString(StandardCharsets.UTF_8));
+			});
+		}
+
+		verify(fileRepository, never()).fileExists("filename");
+		verify(fileRepository).getFileMetadata("filename");
+		verify(fileRepository).getFileFromStorage("filename");
+	}
+
+	@Test
+	void testDeleteWithReaperHidesFileUntilReclaimed() throws Exception {
+
+		LockManagerImpl lockManager = new LockManagerImpl(fileStorageProperties, new FileMetrics(new SimpleMeterRegistry()));
+		FileReaper fileReaper = createFileReaper(lockManager);
+		FileServiceImpl reapingService = createReapingService(lockManager, fileReaper);
+
+		when(fileRepository.fileExists("filename")).thenReturn(true);
+		when(fileRepository.getFileMetadata("filename")).thenReturn(new FileMetadata("filename", 10, 0));
+		when(fileRepository.listFilenames()).thenReturn(Set.of("filename", "other"));
+
+		reapingService.deleteFile("filename");
+
+		verify(fileRepository, never()).deleteFileFromStorage("filename");
+		assertEquals(Set.of("other"), reapingService.listFilenames());
+		assertThrows(FileNotFoundException.class, () -> readContent(reapingService, "filename", file -> {}));
+		assertThrows(FileNotFoundException.class, () -> reapingService.deleteFile("filename"));
+
+		fileReaper.reap();
+
+		verify(fileRepository).deleteFileFromStorage("filename");
+		assertEquals(0, fileReaper.getTombstoneCount());
+		fileReaper.close();
+	}
+
+	@Test
+	void testSaveOverDeletedFileReclaimsItFirst() throws Exception {
+
+		LockManagerImpl lockManager = new LockManagerImpl(fileStorageProperties, new FileMetrics(new SimpleMeterRegistry()));
+		FileReaper fileReaper = createFileReaper(lockManager);
+		FileServiceImpl reapingService = createReapingService(lockManager, fileReaper);
+
+		when(fileRepository.fileExists("filename")).thenReturn(true).thenReturn(false);
+		when(fileRepository.getFileMetadata("filename")).thenReturn(new FileMetadata("filename", 10, 0));
+		InputStream inputStream = new ByteArrayInputStream("new".getBytes());
+
+		reapingService.deleteFile("filename");
+		reapingService.saveFile("filename", inputStream);
+
+		InOrder inOrder = inOrder(fileRepository);
+		inOrder.verify(fileRepository).deleteFileFromStorage("filename");
+		inOrder.verify(fileRepository).saveFileToStorage(eq("filename"), any(InputStream.class));
+		assertEquals(0, fileReaper.getTombstoneCount());
+
+		fileReaper.reap();
+		verify(fileRepository, times(1)).deleteFileFromStorage("filename");
+		fileReaper.close();
+	}
+
+	/**
+	 * Reads the content of the file through the metadata read, the only read path of the service.
+	 */
+	private static void readContent(FileServiceImpl service, String filename, ResourceConsumer consumer)
+			throws Exception {
+		service.readFile(filename, (metadata, resource) -> consumer.accept(resource.apply()));
+	}
+
+	private FileReaper createFileReaper(LockManagerImpl lockManager) throws IOException {
+		FileStorageProperties reaperProperties = new FileStorageProperties();
+		reaperProperties.getReaper().setEnabled(true);
+		reaperProperties.getReaper().setJournal(journalDirectory.resolve("tombstones").toString());
+		FileReaper fileReaper = new FileReaper(fileRepository, lockManager, reaperProperties);
+		fileReaper.recover();
+		return fileReaper;
+	}
+
+	private FileServiceImpl createReapingService(LockManagerImpl lockManager, FileReaper fileReaper) {
+		FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
+		return new FileServiceImpl(fileRepository, lockManager, new FileCache(new FileStorageProperties()), fileReaper,
+				new AdmissionManager(new FileStorageProperties(), fileMetrics), fileMetrics);
+	}
 }
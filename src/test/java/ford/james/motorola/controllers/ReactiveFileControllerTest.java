@@ -0,0 +1,198 @@
+package ford.james.motorola.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.functions.ReactiveFileReadFunction;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.FileMetadata;
+import ford.james.motorola.services.BatchItemResult;
+import ford.james.motorola.services.ReactiveFileBatchService;
+import ford.james.motorola.services.ReactiveFileService;
+import ford.james.motorola.services.UploadSessionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+public class ReactiveFileControllerTest {
+
+	private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+	@Mock
+	private ReactiveFileService fileService;
+	@Mock
+	private ReactiveFileBatchService fileBatchService;
+	@Mock
+	private UploadSessionService uploadSessionService;
+	@Spy
+	private FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
+
+	private ReactiveFileController fileController;
+	private AutoCloseable closeable;
+
+	@BeforeEach
+	void before() {
+		closeable = MockitoAnnotations.openMocks(this);
+		fileController = new ReactiveFileController(fileService, fileBatchService, uploadSessionService,
+				new FileStorageProperties(), fileMetrics);
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		closeable.close();
+	}
+
+	@Test
+	void testGetFileSuccess() {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		MockServerHttpResponse response = new MockServerHttpResponse();
+		fileController.getFile("testFile.jpeg", MockServerHttpRequest.get("/files/download/testFile.jpeg").build(),
+				response).block();
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(MediaType.APPLICATION_OCTET_STREAM, response.getHeaders().getContentType());
+		assertEquals(4, response.getHeaders().getContentLength());
+		assertEquals("bytes", response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+		assertEquals("\"digest\"", response.getHeaders().getFirst(HttpHeaders.ETAG));
+		assertEquals(LAST_MODIFIED, response.getHeaders().getLastModified());
+		assertEquals("file", response.getBodyAsString().block());
+		verify(fileMetrics).transferStarted();
+		verify(fileMetrics).transferFinished();
+	}
+
+	@Test
+	void testGetFileSingleRange() {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		MockServerHttpResponse response = new MockServerHttpResponse();
+		fileController.getFile("testFile.jpeg", MockServerHttpRequest.get("/files/download/testFile.jpeg")
+				.header(HttpHeaders.RANGE, "bytes=1-2").build(), response).block();
+
+		assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+		assertEquals("bytes 1-2/4", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+		assertEquals(2, response.getHeaders().getContentLength());
+		assertEquals("il", response.getBodyAsString().block());
+	}
+
+	@Test
+	void testGetFileMultipleRanges() {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("0123456789".getBytes()));
+
+		MockServerHttpResponse response = new MockServerHttpResponse();
+		fileController.getFile("testFile.jpeg", MockServerHttpRequest.get("/files/download/testFile.jpeg")
+				.header(HttpHeaders.RANGE, "bytes=0-1,8-9").build(), response).block();
+
+		assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+		assertTrue(response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE).startsWith("multipart/byteranges"));
+		String body = response.getBodyAsString().block();
+		assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01"));
+		assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89"));
+	}
+
+	@Test
+	void testGetFileRangeNotSatisfiable() {
+
+		mockReadFile("testFile.jpeg", new ByteArrayResource("file".getBytes()));
+
+		MockServerHttpResponse response = new MockServerHttpResponse();
+		fileController.getFile("testFile.jpeg", MockServerHttpRequest.get("/files/download/testFile.jpeg")
+				.header(HttpHeaders.RANGE, "bytes=10-20").build(), response).block();
+
+		assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusCode());
+		assertEquals("bytes */4", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+	}
+
+	@Test
+	void testGetFileNotModifiedForMatchingETag() {
+
+		Resource resource = mock(Resource.class);
+		mockReadFile("testFile.jpeg", resource);
+
+		MockServerHttpResponse response = new MockServerHttpResponse();
+		fileController.getFile("testFile.jpeg", MockServerHttpRequest.get("/files/download/testFile.jpeg")
+				.header(HttpHeaders.IF_NONE_MATCH, "W/\"digest\"").build(), response).block();
+
+		assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+		assertEquals("\"digest\"", response.getHeaders().getFirst(HttpHeaders.ETAG));
+		verifyNoInteractions(resource);
+	}
+
+	@Test
+	void testGetFileInvalidName() {
+		assertThrows(IllegalArgumentException.class, () -> fileController.getFile("inval1d/nam3",
+				MockServerHttpRequest.get("/files/download/x").build(), new MockServerHttpResponse()));
+		verify(fileService, never()).readFile(any(), any());
+	}
+
+	@Test
+	void testUploadFileStreamSuccess() {
+
+		when(fileService.saveFile(eq("val1dFil3nam3"), any())).thenReturn(Mono.empty());
+
+		fileController.uploadFileStream("val1dFil3nam3", MockServerHttpRequest.put("/files/val1dFil3nam3")
+				.body("file")).block();
+
+		verify(fileService).saveFile(eq("val1dFil3nam3"), any());
+		verify(fileMetrics).transferFinished();
+	}
+
+	@Test
+	void testRemoveFilesReportsEachItem() {
+
+		when(fileBatchService.deleteFiles(List.of("a.txt", "b.txt"))).thenReturn(Mono.just(List.of(
+				BatchItemResult.success("a.txt"),
+				BatchItemResult.failure("b.txt", new FileAlreadyExistsException("b.txt")))));
+
+		List<BatchItemResponse> responses = fileController.removeFiles(List.of("a.txt", "b.txt", "c/.txt")).block();
+
+		assertEquals(List.of(
+				new BatchItemResponse("a.txt", HttpStatus.OK.value(), null),
+				new BatchItemResponse("b.txt", HttpStatus.CONFLICT.value(), "b.txt"),
+				new BatchItemResponse("c/.txt", HttpStatus.BAD_REQUEST.value(), "Filename of c/.txt was not a valid name")),
+				responses);
+	}
+
+	@Test
+	void testListFiles() {
+		when(fileService.listFilenames()).thenReturn(Mono.just(Set.of("a.txt")));
+		assertEquals(Set.of("a.txt"), fileController.listFiles().block());
+	}
+
+	private void mockReadFile(String filename, Resource resource) {
+		FileMetadata metadata = new FileMetadata(filename, 4, LAST_MODIFIED, "digest");
+		when(fileService.readFile(eq(filename), any(ReactiveFileReadFunction.class))).thenAnswer(invocation -> {
+			ReactiveFileReadFunction function = invocation.getArgument(1);
+			return Mono.defer(() -> function.apply(metadata, Mono.just(resource)));
+		});
+	}
+}
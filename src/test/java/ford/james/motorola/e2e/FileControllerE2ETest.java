@@ -6,6 +6,8 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -18,6 +20,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
@@ -40,6 +43,13 @@ public class FileControllerE2ETest {
 				.andExpect(jsonPath("$.length()").value(2));
 	}
 
+	@Test
+	void testMetricsAreExposed() throws Exception {
+		mockMvc.perform(get("/actuator/metrics"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.names").isArray());
+	}
+
 	@Test
 	void testDeleteFileSuccess() throws Exception {
 
@@ -113,6 +123,30 @@ public class FileControllerE2ETest {
 		Files.delete(filePath);
 	}
 
+	@Test
+	void testUploadFileStreamSuccess() throws Exception {
+
+		byte[] fileBytes = Files.readAllBytes(Path.of("src/test/resources/testFiles/testImage.jpg"));
+
+		mockMvc.perform(put("/files/streamedImage.jpg")
+						.contentType(MediaType.APPLICATION_OCTET_STREAM)
+						.content(fileBytes))
+				.andExpect(status().isOk());
+
+		Path filePath = Path.of("src/test/resources/uploadFiles/streamedImage.jpg");
+		assertEquals(fileBytes.length, Files.readAllBytes(filePath).length);
+		Files.delete(filePath);
+	}
+
+	@Test
+	void testUploadFileStreamAlreadyExists() throws Exception {
+
+		mockMvc.perform(put("/files/fileA.txt")
+						.contentType(MediaType.APPLICATION_OCTET_STREAM)
+						.content("Just a file".getBytes()))
+				.andExpect(status().isConflict());
+	}
+
 	@Test
 	void testUploadFileInvalidFileName() throws Exception {
 
@@ -138,6 +172,31 @@ public class FileControllerE2ETest {
 				.andExpect(status().isConflict());
 	}
 
+	@Test
+	void testBatchUploadAndDelete() throws Exception {
+
+		mockMvc.perform(multipart("/files/batch/upload")
+						.file(new MockMultipartFile("files", "batchA.txt", MediaType.TEXT_PLAIN_VALUE, "A".getBytes()))
+						.file(new MockMultipartFile("files", "fileA.txt", MediaType.TEXT_PLAIN_VALUE, "A".getBytes())))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[0].filename").value("batchA.txt"))
+				.andExpect(jsonPath("$[0].status").value(200))
+				.andExpect(jsonPath("$[1].filename").value("fileA.txt"))
+				.andExpect(jsonPath("$[1].status").value(409));
+
+		assertTrue(Files.exists(Path.of("src/test/resources/uploadFiles/batchA.txt")));
+
+		mockMvc.perform(post("/files/batch/delete")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("[\"batchA.txt\", \"missing.txt\", \"inval&d.txt\"]"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[0].status").value(200))
+				.andExpect(jsonPath("$[1].status").value(400))
+				.andExpect(jsonPath("$[2].status").value(404));
+
+		assertFalse(Files.exists(Path.of("src/test/resources/uploadFiles/batchA.txt")));
+	}
+
 	@Test
 	void testDownloadFileSuccessTextFile() throws Exception {
 
@@ -162,6 +221,30 @@ public class FileControllerE2ETest {
 		assertEquals(fileBytes.length, response.getResponse().getContentLength());
 	}
 
+	@Test
+	void testDownloadFileRange() throws Exception {
+
+		MvcResult response = mockMvc.perform(get("/files/download/fileA.txt")
+						.header(HttpHeaders.RANGE, "bytes=0-3"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 0-3/29"))
+				.andReturn();
+
+		assertEquals("Just", response.getResponse().getContentAsString());
+	}
+
+	@Test
+	void testDownloadFileRangeIgnoredWhenIfRangeDoesNotMatch() throws Exception {
+
+		MvcResult response = mockMvc.perform(get("/files/download/fileA.txt")
+						.header(HttpHeaders.RANGE, "bytes=0-3")
+						.header(HttpHeaders.IF_RANGE, "Thu, 01 Jan 1970 00:00:00 GMT"))
+				.andExpect(status().isOk())
+				.andReturn();
+
+		assertEquals("Just a random small text file", response.getResponse().getContentAsString());
+	}
+
 	@Test
 	void testDownloadFileNoFileExists() throws Exception {
 		mockMvc.perform(get("/files/download/imageNotThere.jpg"))
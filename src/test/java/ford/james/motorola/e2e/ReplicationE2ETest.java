@@ -0,0 +1,177 @@
+package ford.james.motorola.e2e;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import ford.james.motorola.MotorolaApplication;
+import ford.james.motorola.repositories.FileReplicatedRepository;
+import ford.james.motorola.services.FileReplicaService;
+
+/**
+ * Runs three instances of the application on localhost, each on its own port and storage directory and each with
+ * the other two as its peers, and checks that files saved or deleted through one reach the others.
+ */
+public class ReplicationE2ETest {
+
+	private static final int INSTANCES = 3;
+	private static final String USERNAME = "replica";
+	private static final String PASSWORD = "replica";
+
+	@TempDir
+	private Path storageDirectory;
+
+	private final List<Integer> ports = new ArrayList<>();
+	private final List<ConfigurableApplicationContext> instances = new ArrayList<>();
+	private HttpClient httpClient;
+
+	@BeforeEach
+	void before() throws Exception {
+		for (int i = 0; i < INSTANCES; i++) {
+			ports.add(findFreePort());
+		}
+		for (int i = 0; i < INSTANCES; i++) {
+			instances.add(start(i));
+		}
+		httpClient = HttpClient.newHttpClient();
+	}
+
+	@AfterEach
+	void after() {
+		instances.stream()
+				.filter(instance -> instance != null && instance.isActive())
+				.forEach(ConfigurableApplicationContext::close);
+	}
+
+	@Test
+	void testSaveIsStoredByEveryInstance() throws Exception {
+		assertEquals(200, upload(0, "replicated.txt", "replicated content"));
+
+		for (int i = 0; i < INSTANCES; i++) {
+			assertEquals("replicated content", Files.readString(storagePath(i).resolve("replicated.txt")));
+		}
+		HttpResponse<String> response = download(2, "replicated.txt");
+		assertEquals(200, response.statusCode());
+		assertEquals("replicated content", response.body());
+	}
+
+	@Test
+	void testDeleteIsAppliedByEveryInstance() throws Exception {
+		upload(1, "deleted.txt", "deleted content");
+
+		assertEquals(200, delete(2, "deleted.txt"));
+
+		for (int i = 0; i < INSTANCES; i++) {
+			assertFalse(Files.exists(storagePath(i).resolve("deleted.txt")));
+		}
+		assertEquals(404, download(0, "deleted.txt").statusCode());
+	}
+
+	@Test
+	void testAntiEntropyRepairsInstanceThatWasDown() throws Exception {
+		upload(0, "deleted.txt", "deleted content");
+		instances.get(2).close();
+
+		assertEquals(200, upload(0, "missed.txt", "missed content"));
+		assertEquals(200, delete(1, "deleted.txt"));
+		assertTrue(Files.exists(storagePath(2).resolve("deleted.txt")));
+
+		instances.set(2, start(2));
+		instances.get(2).getBean(FileReplicaService.class).repair();
+
+		assertEquals("missed content", Files.readString(storagePath(2).resolve("missed.txt")));
+		assertFalse(Files.exists(storagePath(2).resolve("deleted.txt")));
+		assertTrue(instances.get(2).getBean(FileReplicatedRepository.class).getRepairCount() >= 2);
+	}
+
+	@Test
+	void testSaveIsUndoneWhenQuorumIsNotReached() throws Exception {
+		instances.get(1).close();
+		instances.get(2).close();
+
+		assertEquals(503, upload(0, "unreplicated.txt", "unreplicated content"));
+
+		assertFalse(Files.exists(storagePath(0).resolve("unreplicated.txt")));
+	}
+
+	private ConfigurableApplicationContext start(int instance) {
+		String peers = IntStream.range(0, INSTANCES)
+				.filter(peer -> peer != instance)
+				.mapToObj(peer -> "http://localhost:" + ports.get(peer))
+				.collect(Collectors.joining(","));
+		return new SpringApplicationBuilder(MotorolaApplication.class)
+				.properties(
+						"server.port=" + ports.get(instance),
+						"spring.security.user.name=" + USERNAME,
+						"spring.security.user.password=" + PASSWORD,
+						"storage.file.base-location=" + storagePath(instance),
+						"storage.file.repository=replicated",
+						"storage.file.index.watch-enabled=false",
+						"storage.file.replication.peers=" + peers,
+						"storage.file.replication.write-quorum=2",
+						"storage.file.replication.username=" + USERNAME,
+						"storage.file.replication.password=" + PASSWORD,
+						// Repairs are run by the tests
+						"storage.file.replication.anti-entropy-interval=PT1H")
+				.run();
+	}
+
+	private int upload(int instance, String filename, String content) throws Exception {
+		HttpRequest request = newRequest(instance, "files/" + filename)
+				.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE)
+				.PUT(HttpRequest.BodyPublishers.ofString(content))
+				.build();
+		return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	private HttpResponse<String> download(int instance, String filename) throws Exception {
+		HttpRequest request = newRequest(instance, "files/download/" + filename).GET().build();
+		return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private int delete(int instance, String filename) throws Exception {
+		HttpRequest request = newRequest(instance, "files/delete/" + filename).DELETE().build();
+		return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	private HttpRequest.Builder newRequest(int instance, String path) {
+		String credentials = Base64.getEncoder()
+				.encodeToString((USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+		return HttpRequest.newBuilder(URI.create("http://localhost:" + ports.get(instance) + "/" + path))
+				.header(HttpHeaders.AUTHORIZATION, "Basic " + credentials);
+	}
+
+	private Path storagePath(int instance) {
+		return storageDirectory.resolve("instance" + instance);
+	}
+
+	private static int findFreePort() throws IOException {
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			return serverSocket.getLocalPort();
+		}
+	}
+}
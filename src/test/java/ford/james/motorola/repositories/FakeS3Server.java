@@ -0,0 +1,348 @@
+package ford.james.motorola.repositories;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for an S3 compatible bucket, serving the requests {@link S3Client} makes from memory. Requests
+ * must carry a Signature Version 4 authorization for the expected access key, but the signature itself is not checked.
+ */
+class FakeS3Server implements AutoCloseable {
+
+	static final String BUCKET = "files";
+	static final String ACCESS_KEY = "access";
+	static final String SECRET_KEY = "secret";
+
+	private static final Pattern PART = Pattern.compile(
+			"<Part><PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag></Part>");
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+	private final AtomicInteger partsInFlight = new AtomicInteger();
+	private final AtomicInteger maxPartsInFlight = new AtomicInteger();
+	private final AtomicInteger abortedUploads = new AtomicInteger();
+	private final AtomicInteger listRequests = new AtomicInteger();
+	private final AtomicInteger headRequests = new AtomicInteger();
+
+	private volatile long partDelayMillis;
+	private volatile int failingPart = -1;
+	private volatile String lastRange;
+
+	FakeS3Server() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	String getEndpoint() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Stores an object as another writer would.
+	 */
+	void putObject(String key, byte[] content) {
+		objects.put(key, new StoredObject(content, null));
+	}
+
+	byte[] getObject(String key) {
+		StoredObject object = objects.get(key);
+		return object != null ? object.content() : null;
+	}
+
+	int getPendingUploadCount() {
+		return uploads.size();
+	}
+
+	int getMaxPartsInFlight() {
+		return maxPartsInFlight.get();
+	}
+
+	int getAbortedUploadCount() {
+		return abortedUploads.get();
+	}
+
+	int getListRequestCount() {
+		return listRequests.get();
+	}
+
+	int getHeadRequestCount() {
+		return headRequests.get();
+	}
+
+	String getLastRange() {
+		return lastRange;
+	}
+
+	/**
+	 * Holds every part for the given time before storing it, so parts sent at once overlap.
+	 */
+	void setPartDelayMillis(long partDelayMillis) {
+		this.partDelayMillis = partDelayMillis;
+	}
+
+	/**
+	 * Answers uploads of the part with the given number with an error.
+	 */
+	void setFailingPart(int failingPart) {
+		this.failingPart = failingPart;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			if (authorization == null
+					|| !authorization.startsWith("AWS4-HMAC-SHA256 Credential=" + ACCESS_KEY + "/")
+					|| exchange.getRequestHeaders().getFirst("x-amz-date") == null) {
+				sendError(exchange, 403, "AccessDenied");
+				return;
+			}
+
+			String path = exchange.getRequestURI().getRawPath();
+			String bucketPath = "/" + BUCKET + "/";
+			if (!path.startsWith(bucketPath)) {
+				sendError(exchange, 404, "NoSuchBucket");
+				return;
+			}
+			String key = URLDecoder.decode(path.substring(bucketPath.length()), StandardCharsets.UTF_8);
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			byte[] body = exchange.getRequestBody().readAllBytes();
+
+			switch (exchange.getRequestMethod()) {
+				case "GET" -> {
+					if (key.isEmpty()) {
+						list(exchange, query);
+					} else {
+						get(exchange, key);
+					}
+				}
+				case "HEAD" -> head(exchange, key);
+				case "PUT" -> {
+					if (query.containsKey("uploadId")) {
+						uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")), body);
+					} else {
+						objects.put(key, new StoredObject(body,
+								exchange.getRequestHeaders().getFirst(S3Client.DIGEST_HEADER)));
+						send(exchange, 200, new byte[0]);
+					}
+				}
+				case "POST" -> {
+					if (query.containsKey("uploads")) {
+						String uploadId = UUID.randomUUID().toString();
+						uploads.put(uploadId, new ConcurrentHashMap<>());
+						sendXml(exchange, "<InitiateMultipartUploadResult><Bucket>" + BUCKET + "</Bucket><Key>" + key
+								+ "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+					} else {
+						complete(exchange, key, query.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+					}
+				}
+				case "DELETE" -> {
+					if (query.containsKey("uploadId")) {
+						uploads.remove(query.get("uploadId"));
+						abortedUploads.incrementAndGet();
+					} else {
+						objects.remove(key);
+					}
+					exchange.sendResponseHeaders(204, -1);
+				}
+				default -> sendError(exchange, 405, "MethodNotAllowed");
+			}
+		}
+	}
+
+	private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+		listRequests.incrementAndGet();
+		String prefix = query.getOrDefault("prefix", "");
+		int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+		String after = query.get("continuation-token");
+
+		List<String> keys = (after != null ? objects.tailMap(after, false) : objects).keySet()
+				.stream()
+				.filter(key -> key.startsWith(prefix) && key.indexOf('/', prefix.length()) == -1)
+				.limit(maxKeys + 1L)
+				.toList();
+		boolean truncated = keys.size() > maxKeys;
+		keys = truncated ? keys.subList(0, maxKeys) : keys;
+
+		StringBuilder xml = new StringBuilder("<ListBucketResult><Name>" + BUCKET + "</Name><IsTruncated>"
+				+ truncated + "</IsTruncated>");
+		keys.forEach(key -> xml.append("<Contents><Key>").append(key).append("</Key><Size>")
+				.append(objects.get(key).content().length).append("</Size></Contents>"));
+		if (truncated) {
+			xml.append("<NextContinuationToken>").append(keys.get(keys.size() - 1)).append("</NextContinuationToken>");
+		}
+		sendXml(exchange, xml.append("</ListBucketResult>").toString());
+	}
+
+	private void head(HttpExchange exchange, String key) throws IOException {
+		headRequests.incrementAndGet();
+		StoredObject object = objects.get(key);
+		if (object == null) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		addObjectHeaders(exchange, object);
+		exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.content().length));
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void get(HttpExchange exchange, String key) throws IOException {
+		StoredObject object = objects.get(key);
+		if (object == null) {
+			sendError(exchange, 404, "NoSuchKey");
+			return;
+		}
+		String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+		if (ifMatch != null && !ifMatch.equals(object.eTag())) {
+			sendError(exchange, 412, "PreconditionFailed");
+			return;
+		}
+
+		addObjectHeaders(exchange, object);
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		lastRange = range;
+		if (range == null) {
+			send(exchange, 200, object.content());
+			return;
+		}
+		String[] bounds = range.substring("bytes=".length()).split("-");
+		int start = Integer.parseInt(bounds[0]);
+		int end = Math.min(Integer.parseInt(bounds[1]), object.content().length - 1);
+		send(exchange, 206, Arrays.copyOfRange(object.content(), start, end + 1));
+	}
+
+	private void uploadPart(HttpExchange exchange, String uploadId, int partNumber, byte[] body) throws IOException {
+		int inFlight = partsInFlight.incrementAndGet();
+		maxPartsInFlight.accumulateAndGet(inFlight, Math::max);
+		try {
+			Thread.sleep(partDelayMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			partsInFlight.decrementAndGet();
+		}
+
+		Map<Integer, byte[]> parts = uploads.get(uploadId);
+		if (parts == null) {
+			sendError(exchange, 404, "NoSuchUpload");
+			return;
+		}
+		if (partNumber == failingPart) {
+			sendError(exchange, 500, "InternalError");
+			return;
+		}
+		parts.put(partNumber, body);
+		exchange.getResponseHeaders().set("ETag", partETag(uploadId, partNumber));
+		send(exchange, 200, new byte[0]);
+	}
+
+	private void complete(HttpExchange exchange, String key, String uploadId, String body) throws IOException {
+		Map<Integer, byte[]> parts = uploads.remove(uploadId);
+		if (parts == null) {
+			sendError(exchange, 404, "NoSuchUpload");
+			return;
+		}
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		Matcher matcher = PART.matcher(body);
+		int expectedPartNumber = 1;
+		while (matcher.find()) {
+			int partNumber = Integer.parseInt(matcher.group(1));
+			String eTag = matcher.group(2).replace("&quot;", "\"");
+			if (partNumber != expectedPartNumber++ || !parts.containsKey(partNumber)
+					|| !eTag.equals(partETag(uploadId, partNumber))) {
+				sendXml(exchange, "<Error><Code>InvalidPart</Code><Message>Part " + partNumber
+						+ " is invalid</Message></Error>");
+				return;
+			}
+			content.write(parts.get(partNumber));
+		}
+		objects.put(key, new StoredObject(content.toByteArray(), null));
+		sendXml(exchange, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+	}
+
+	private static void addObjectHeaders(HttpExchange exchange, StoredObject object) {
+		exchange.getResponseHeaders().set("ETag", object.eTag());
+		exchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+				.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(object.lastModified()), ZoneOffset.UTC)));
+		if (object.digest() != null) {
+			exchange.getResponseHeaders().set(S3Client.DIGEST_HEADER, object.digest());
+		}
+	}
+
+	private static String partETag(String uploadId, int partNumber) {
+		return "\"" + uploadId + "-" + partNumber + "\"";
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return query;
+		}
+		for (String parameter : rawQuery.split("&")) {
+			int separator = parameter.indexOf('=');
+			String name = separator == -1 ? parameter : parameter.substring(0, separator);
+			String value = separator == -1 ? "" : parameter.substring(separator + 1);
+			query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	private static void sendXml(HttpExchange exchange, String xml) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		send(exchange, 200, xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		send(exchange, status, ("<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>")
+				.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/**
+	 * @param digest the digest sent with the object, or {@code null} if there was none
+	 */
+	private record StoredObject(byte[] content, String digest, String eTag, long lastModified) {
+
+		private StoredObject(byte[] content, String digest) {
+			this(content, digest, "\"" + UUID.randomUUID() + "\"", System.currentTimeMillis() / 1000 * 1000);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+
+public class FileContentAddressableRepositoryTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	private FileStorageProperties fileStorageProperties;
+	private FileContentAddressableRepository repository;
+
+	@BeforeEach
+	void before() throws Exception {
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getContentAddressable().setMemoryThreshold(DataSize.ofBytes(16));
+		repository = createRepository();
+	}
+
+	@Test
+	void testDuplicateContentIsStoredOnce() throws Exception {
+		save("first.txt", "same content");
+		save("second.txt", "same content");
+
+		assertEquals(Set.of("first.txt", "second.txt"), repository.listFilenames());
+		assertEquals(1, countBlobs());
+		assertEquals("same content", read("second.txt"));
+	}
+
+	@Test
+	void testLargeContentSpooledToDisk() throws Exception {
+		String content = "content that is larger than the memory threshold";
+		save("first.txt", content);
+		save("second.txt", content);
+
+		assertEquals(1, countBlobs());
+		assertEquals(content, read("first.txt"));
+		try (Stream<Path> temporaryFiles = Files.list(storageDirectory.resolve("tmp"))) {
+			assertEquals(0, temporaryFiles.count());
+		}
+	}
+
+	@Test
+	void testBlobCollectedOnceUnreferenced() throws Exception {
+		save("first.txt", "same content");
+		save("second.txt", "same content");
+
+		repository.deleteFileFromStorage("first.txt");
+		repository.collectGarbage();
+		assertEquals(1, countBlobs());
+		assertEquals("same content", read("second.txt"));
+
+		repository.deleteFileFromStorage("second.txt");
+		repository.collectGarbage();
+		assertEquals(0, countBlobs());
+		assertFalse(repository.fileExists("second.txt"));
+		assertThrows(NoSuchFileException.class, () -> repository.getFileFromStorage("second.txt"));
+	}
+
+	@Test
+	void testMappingRestoredOnRestart() throws Exception {
+		save("first.txt", "same content");
+		save("second.txt", "other content");
+		repository.deleteFileFromStorage("second.txt");
+
+		FileContentAddressableRepository restarted = createRepository();
+		restarted.collectGarbage();
+
+		assertEquals(Set.of("first.txt"), restarted.listFilenames());
+		assertTrue(restarted.fileExists("first.txt"));
+		assertEquals(1, countBlobs());
+	}
+
+	private FileContentAddressableRepository createRepository() throws Exception {
+		FileContentAddressableRepository created = new FileContentAddressableRepository(fileStorageProperties);
+		created.initialise();
+		return created;
+	}
+
+	private void save(String filename, String content) throws Exception {
+		repository.saveFileToStorage(filename, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private String read(String filename) throws Exception {
+		return repository.getFileFromStorage(filename).getContentAsString(StandardCharsets.UTF_8);
+	}
+
+	private long countBlobs() throws Exception {
+		try (Stream<Path> files = Files.walk(storageDirectory.resolve("blobs"))) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+}
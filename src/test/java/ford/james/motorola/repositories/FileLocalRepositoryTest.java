@@ -0,0 +1,482 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.TransferUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileLocalRepositoryTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	@TempDir
+	private Path journalDirectory;
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private final FileMetrics fileMetrics = new FileMetrics(meterRegistry);
+
+	private FileLocalRepository fileLocalRepository;
+
+	@BeforeEach
+	void before() throws Exception {
+		Files.writeString(storageDirectory.resolve("existing.txt"), "existing");
+		Files.createDirectory(storageDirectory.resolve("directory"));
+
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+
+		fileLocalRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		fileLocalRepository.initialiseIndex();
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		fileLocalRepository.close();
+	}
+
+	@Test
+	void testListFilenamesFromIndex() throws Exception {
+		assertEquals(Set.of("existing.txt"), fileLocalRepository.listFilenames());
+	}
+
+	@Test
+	void testSaveStreamIsIndexedAndPublished() throws Exception {
+		fileLocalRepository.saveFileToStorage("saved.txt", new ByteArrayInputStream("content".getBytes()));
+
+		assertTrue(fileLocalRepository.fileExists("saved.txt"));
+		assertEquals(Set.of("existing.txt", "saved.txt"), fileLocalRepository.listFilenames());
+		assertEquals("content", Files.readString(storageDirectory.resolve("saved.txt")));
+		try (var files = Files.list(storageDirectory)) {
+			assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith(FileLocalRepository.TEMP_FILE_PREFIX)));
+		}
+	}
+
+	@Test
+	void testDeleteRemovesFromIndex() throws Exception {
+		fileLocalRepository.deleteFileFromStorage("existing.txt");
+
+		assertFalse(fileLocalRepository.fileExists("existing.txt"));
+		assertTrue(fileLocalRepository.listFilenames().isEmpty());
+	}
+
+	@Test
+	void testFileAddedOutOfBandIsFoundOnLookup() throws Exception {
+		Files.writeString(storageDirectory.resolve("outOfBand.txt"), "content");
+
+		assertTrue(fileLocalRepository.fileExists("outOfBand.txt"));
+		assertTrue(fileLocalRepository.listFilenames().contains("outOfBand.txt"));
+	}
+
+	@Test
+	void testReconcileFixesDrift() throws Exception {
+		Files.writeString(storageDirectory.resolve("outOfBand.txt"), "content");
+		Files.delete(storageDirectory.resolve("existing.txt"));
+
+		fileLocalRepository.reconcileIndex();
+
+		assertEquals(Set.of("outOfBand.txt"), fileLocalRepository.listFilenames());
+	}
+
+	@Test
+	void testSavedFileMetadataHasDigest() throws Exception {
+		fileLocalRepository.saveFileToStorage("saved.txt", new ByteArrayInputStream("content".getBytes()));
+
+		FileMetadata metadata = fileLocalRepository.getFileMetadata("saved.txt");
+
+		assertEquals("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73", metadata.digest());
+		assertEquals(7, metadata.size());
+		assertEquals(Files.getLastModifiedTime(storageDirectory.resolve("saved.txt")).toMillis(), metadata.lastModified());
+	}
+
+	@Test
+	void testSavedMultipartFileIsHashedWhileCopied() throws Exception {
+		fileLocalRepository.saveFileToStorage(new MockMultipartFile("file", "uploaded.txt", null, "content".getBytes()));
+
+		FileMetadata metadata = fileLocalRepository.getFileMetadata("uploaded.txt");
+
+		assertEquals("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73", metadata.digest());
+		assertEquals("content", Files.readString(storageDirectory.resolve("uploaded.txt")));
+	}
+
+	@Test
+	void testDigestSurvivesRestart() throws Exception {
+		fileLocalRepository.saveFileToStorage("saved.txt", new ByteArrayInputStream("content".getBytes()));
+		fileLocalRepository.close();
+
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileLocalRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		fileLocalRepository.initialiseIndex();
+
+		assertEquals("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73",
+				fileLocalRepository.getFileMetadata("saved.txt").digest());
+		assertNull(fileLocalRepository.getFileMetadata("existing.txt").digest());
+		assertThrows(NoSuchFileException.class, () -> fileLocalRepository.getFileMetadata("missing.txt"));
+	}
+
+	@Test
+	void testMissingDigestIsIndexed() throws Exception {
+		Path path = storageDirectory.resolve("existing.txt");
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+		assumeTrue(view != null
+				&& Files.getFileStore(path).supportsFileAttributeView(UserDefinedFileAttributeView.class));
+
+		assertNull(fileLocalRepository.getFileMetadata("existing.txt").digest());
+
+		// Only the attributes change, so the file is the same version and the absence of a digest is still indexed
+		view.write(FileLocalRepository.DIGEST_ATTRIBUTE, StandardCharsets.US_ASCII.encode("digest"));
+		assertNull(fileLocalRepository.getFileMetadata("existing.txt").digest());
+
+		Files.writeString(path, "modified content");
+		fileLocalRepository.reconcileIndex();
+		assertEquals("digest", fileLocalRepository.getFileMetadata("existing.txt").digest());
+	}
+
+	@Test
+	void testGetFileDeletedOutOfBand() throws Exception {
+		Files.delete(storageDirectory.resolve("existing.txt"));
+
+		assertThrows(NoSuchFileException.class, () -> fileLocalRepository.getFileFromStorage("existing.txt"));
+		assertFalse(fileLocalRepository.listFilenames().contains("existing.txt"));
+	}
+
+	@Test
+	void testShardedSaveIsStoredInShard() throws Exception {
+		FileLocalRepository shardedRepository = createShardedRepository();
+		try {
+			shardedRepository.saveFileToStorage("saved.txt", new ByteArrayInputStream("content".getBytes()));
+
+			Path shardedPath = new ShardedLayout(storageDirectory, 2, 2).resolve("saved.txt");
+			assertEquals(storageDirectory, shardedPath.getParent().getParent().getParent());
+			assertEquals("content", Files.readString(shardedPath));
+			assertFalse(Files.exists(storageDirectory.resolve("saved.txt")));
+			assertEquals(Set.of("existing.txt", "saved.txt"), shardedRepository.listFilenames());
+		} finally {
+			shardedRepository.close();
+		}
+	}
+
+	@Test
+	void testShardedRepositoryFindsUnmigratedFiles() throws Exception {
+		FileLocalRepository shardedRepository = createShardedRepository();
+		try {
+			assertTrue(shardedRepository.fileExists("existing.txt"));
+			assertEquals("existing", shardedRepository.getFileFromStorage("existing.txt").getContentAsString(
+					StandardCharsets.UTF_8));
+
+			assertTrue(shardedRepository.migrateFile("existing.txt"));
+			assertFalse(shardedRepository.migrateFile("existing.txt"));
+			assertFalse(shardedRepository.detectFlatFiles());
+
+			assertFalse(Files.exists(storageDirectory.resolve("existing.txt")));
+			assertTrue(shardedRepository.fileExists("existing.txt"));
+			assertEquals(Set.of("existing.txt"), shardedRepository.listFilenames());
+			shardedRepository.deleteFileFromStorage("existing.txt");
+			assertFalse(shardedRepository.fileExists("existing.txt"));
+		} finally {
+			shardedRepository.close();
+		}
+	}
+
+	@Test
+	void testShardedReconcileScansShards() throws Exception {
+		FileLocalRepository shardedRepository = createShardedRepository();
+		try {
+			Path shardedPath = new ShardedLayout(storageDirectory, 2, 2).resolve("outOfBand.txt");
+			Files.createDirectories(shardedPath.getParent());
+			Files.writeString(shardedPath, "content");
+
+			shardedRepository.reconcileIndex();
+
+			assertEquals(Set.of("existing.txt", "outOfBand.txt"), shardedRepository.listFilenames());
+		} finally {
+			shardedRepository.close();
+		}
+	}
+
+	@Test
+	void testShardedLayoutIsStable() {
+		assertEquals("cbf29ce484222325", ShardedLayout.hash(""));
+		assertEquals("af63dc4c8601ec8c", ShardedLayout.hash("a"));
+		assertThrows(IllegalArgumentException.class, () -> new ShardedLayout(storageDirectory, 4, 5));
+	}
+
+	@Test
+	void testCompressibleFileIsStoredCompressed() throws Exception {
+		FileLocalRepository compressingRepository = createCompressingRepository();
+		try {
+			String content = "timestamp,level,message\n".repeat(1000);
+			compressingRepository.saveFileToStorage("log.csv", new ByteArrayInputStream(content.getBytes()));
+
+			Path compressedPath = storageDirectory.resolve("log.csv" + FileLocalRepository.COMPRESSED_FILE_SUFFIX);
+			assertTrue(Files.exists(compressedPath));
+			assertFalse(Files.exists(storageDirectory.resolve("log.csv")));
+			assertTrue(Files.size(compressedPath) < content.length() / 5);
+			try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(compressedPath))) {
+				assertEquals(content, new String(inputStream.readAllBytes()));
+			}
+
+			Resource resource = compressingRepository.getFileFromStorage("log.csv");
+			assertInstanceOf(CompressedResource.class, resource);
+			assertEquals(content.length(), resource.contentLength());
+			assertEquals(content, resource.getContentAsString(StandardCharsets.UTF_8));
+			assertEquals(Set.of("existing.txt", "log.csv"), compressingRepository.listFilenames());
+			assertEquals(1, meterRegistry.get("file.compression.ratio").summary().count());
+
+			compressingRepository.deleteFileFromStorage("log.csv");
+			assertFalse(Files.exists(compressedPath));
+			assertFalse(compressingRepository.fileExists("log.csv"));
+		} finally {
+			compressingRepository.close();
+		}
+	}
+
+	@Test
+	void testIncompressibleFileIsStoredAsIs() throws Exception {
+		FileLocalRepository compressingRepository = createCompressingRepository();
+		try {
+			byte[] random = new byte[8192];
+			new Random(1).nextBytes(random);
+			compressingRepository.saveFileToStorage("random.bin", new ByteArrayInputStream(random));
+			compressingRepository.saveFileToStorage("small.txt", new ByteArrayInputStream("small".getBytes()));
+			compressingRepository.saveFileToStorage("archive.zip",
+					new ByteArrayInputStream("text".repeat(1000).getBytes()));
+
+			assertTrue(Files.exists(storageDirectory.resolve("random.bin")));
+			assertTrue(Files.exists(storageDirectory.resolve("small.txt")));
+			assertTrue(Files.exists(storageDirectory.resolve("archive.zip")));
+			assertEquals(0, meterRegistry.get("file.compression.ratio").summary().count());
+		} finally {
+			compressingRepository.close();
+		}
+	}
+
+	@Test
+	void testLargeFileIsServedFromMapping() throws Exception {
+		FileLocalRepository mappingRepository = createMappingRepository();
+		try {
+			Files.writeString(storageDirectory.resolve("index.dat"), "0123456789".repeat(100));
+
+			Resource resource = mappingRepository.getFileFromStorage("index.dat");
+			assertInstanceOf(MappedResource.class, resource);
+			assertEquals(1000, resource.contentLength());
+
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			assertEquals(4, TransferUtils.transfer(resource, 503, 4, outputStream));
+			assertEquals("3456", outputStream.toString(StandardCharsets.UTF_8));
+			assertEquals("0123456789".repeat(100), resource.getContentAsString(StandardCharsets.UTF_8));
+
+			assertInstanceOf(FileSystemResource.class, mappingRepository.getFileFromStorage("existing.txt"));
+		} finally {
+			mappingRepository.close();
+		}
+	}
+
+	@Test
+	void testMappingIsReleasedOnDeleteAndOverwrite() throws Exception {
+		FileLocalRepository mappingRepository = createMappingRepository();
+		try {
+			Files.writeString(storageDirectory.resolve("index.dat"), "a".repeat(1000));
+			assertEquals("a".repeat(1000), mappingRepository.getFileFromStorage("index.dat")
+					.getContentAsString(StandardCharsets.UTF_8));
+
+			mappingRepository.deleteFileFromStorage("index.dat");
+			assertFalse(Files.exists(storageDirectory.resolve("index.dat")));
+
+			mappingRepository.saveFileToStorage("index.dat", new ByteArrayInputStream("b".repeat(1000).getBytes()));
+			assertEquals("b".repeat(1000), mappingRepository.getFileFromStorage("index.dat")
+					.getContentAsString(StandardCharsets.UTF_8));
+
+			mappingRepository.saveFileToStorage("index.dat", new ByteArrayInputStream("c".repeat(2000).getBytes()));
+			Resource resource = mappingRepository.getFileFromStorage("index.dat");
+			assertEquals(2000, resource.contentLength());
+			assertEquals("c".repeat(2000), resource.getContentAsString(StandardCharsets.UTF_8));
+		} finally {
+			mappingRepository.close();
+		}
+	}
+
+	@Test
+	void testFileChangedOutOfBandIsMappedAgain() throws Exception {
+		FileLocalRepository mappingRepository = createMappingRepository();
+		try {
+			Path path = storageDirectory.resolve("index.dat");
+			Files.writeString(path, "a".repeat(1000));
+			mappingRepository.getFileFromStorage("index.dat");
+
+			Files.writeString(path, "b".repeat(1500));
+
+			Resource resource = mappingRepository.getFileFromStorage("index.dat");
+			assertEquals(1500, resource.contentLength());
+			assertEquals("b".repeat(1500), resource.getContentAsString(StandardCharsets.UTF_8));
+		} finally {
+			mappingRepository.close();
+		}
+	}
+
+	@Test
+	void testMappingPoolIsBoundedBySize() throws Exception {
+		FileStorageProperties.Mmap mmapProperties = new FileStorageProperties.Mmap();
+		mmapProperties.setMinFileSize(DataSize.ofBytes(100));
+		mmapProperties.setMaxMappedSize(DataSize.ofBytes(2500));
+		MappedFilePool mappedFilePool = new MappedFilePool(mmapProperties);
+
+		for (int i = 0; i < 5; i++) {
+			Path path = storageDirectory.resolve("file" + i);
+			Files.writeString(path, "x".repeat(1000));
+			assertTrue(mappedFilePool.get("file" + i, path,
+					Files.readAttributes(path, BasicFileAttributes.class)) != null);
+		}
+		Path large = storageDirectory.resolve("large");
+		Files.writeString(large, "x".repeat(3000));
+
+		assertTrue(mappedFilePool.getMappedSize() <= 2500);
+		assertTrue(mappedFilePool.size() <= 2);
+		assertNull(mappedFilePool.get("large", large, Files.readAttributes(large, BasicFileAttributes.class)));
+		assertNull(mappedFilePool.get("existing.txt", storageDirectory.resolve("existing.txt"),
+				Files.readAttributes(storageDirectory.resolve("existing.txt"), BasicFileAttributes.class)));
+	}
+
+	@Test
+	void testIndexIsRestoredFromJournal() throws Exception {
+		FileLocalRepository journalingRepository = createJournalingRepository();
+		journalingRepository.saveFileToStorage("saved.txt", new ByteArrayInputStream("content".getBytes()));
+		journalingRepository.deleteFileFromStorage("existing.txt");
+		journalingRepository.close();
+		Files.writeString(storageDirectory.resolve("stopped.txt"), "added while stopped");
+
+		journalingRepository = createJournalingRepository();
+		try {
+			assertTrue(journalingRepository.listFilenames().contains("saved.txt"));
+			assertFalse(journalingRepository.listFilenames().contains("existing.txt"));
+			assertEquals(7, journalingRepository.getFileMetadata("saved.txt").size());
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!journalingRepository.listFilenames().contains("stopped.txt") && System.nanoTime() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(Set.of("saved.txt", "stopped.txt"), journalingRepository.listFilenames());
+		} finally {
+			journalingRepository.close();
+		}
+	}
+
+	@Test
+	void testInterruptedSaveIsRolledBackOnRestart() throws Exception {
+		FileLocalRepository journalingRepository = createJournalingRepository();
+		Path tempPath = journalingRepository.createTempFile();
+		Files.writeString(tempPath, "partial");
+		journalingRepository.close();
+
+		journalingRepository = createJournalingRepository();
+		try {
+			assertFalse(Files.exists(tempPath));
+			assertEquals(Set.of("existing.txt"), journalingRepository.listFilenames());
+		} finally {
+			journalingRepository.close();
+		}
+	}
+
+	@Test
+	void testWatcherFindsFilesInNewShardDirectories() throws Exception {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getSharding().setEnabled(true);
+		FileLocalRepository watchingRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		watchingRepository.initialiseIndex();
+		try {
+			Path shardedPath = new ShardedLayout(storageDirectory, 2, 2).resolve("watched.txt");
+			Files.createDirectories(shardedPath.getParent());
+			Files.writeString(shardedPath, "content");
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!watchingRepository.listFilenames().contains("watched.txt") && System.nanoTime() < deadline) {
+				Thread.sleep(50);
+			}
+			assertTrue(watchingRepository.listFilenames().contains("watched.txt"));
+		} finally {
+			watchingRepository.close();
+		}
+	}
+
+	private FileLocalRepository createJournalingRepository() throws Exception {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getJournal().setEnabled(true);
+		fileStorageProperties.getJournal().setDirectory(journalDirectory.toString());
+
+		FileLocalRepository journalingRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		journalingRepository.initialiseIndex();
+		return journalingRepository;
+	}
+
+	private FileLocalRepository createMappingRepository() throws Exception {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getMmap().setEnabled(true);
+		fileStorageProperties.getMmap().setMinFileSize(DataSize.ofBytes(100));
+
+		FileLocalRepository mappingRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		mappingRepository.initialiseIndex();
+		return mappingRepository;
+	}
+
+	private FileLocalRepository createCompressingRepository() throws Exception {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getCompression().setEnabled(true);
+
+		FileLocalRepository compressingRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		compressingRepository.initialiseIndex();
+		return compressingRepository;
+	}
+
+	private FileLocalRepository createShardedRepository() throws Exception {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getSharding().setEnabled(true);
+
+		FileLocalRepository shardedRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		shardedRepository.initialiseIndex();
+		return shardedRepository;
+	}
+}
@@ -0,0 +1,209 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FilePackRepositoryTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	@TempDir
+	private Path packDirectory;
+
+	private FileStorageProperties fileStorageProperties;
+	private FilePackRepository repository;
+
+	@BeforeEach
+	void before() throws Exception {
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getPack().setDirectory(packDirectory.toString());
+		fileStorageProperties.getPack().setMaxFileSize(DataSize.ofBytes(32));
+		fileStorageProperties.getPack().setSegmentSize(DataSize.ofBytes(256));
+		repository = createRepository();
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		repository.close();
+	}
+
+	@Test
+	void testSmallFilesArePackedAndLargeFilesStoredAsFiles() throws Exception {
+		save("small.txt", "small content");
+		save("large.txt", "content that is larger than the pack threshold");
+
+		assertEquals(Set.of("small.txt", "large.txt"), repository.listFilenames());
+		assertEquals("small content", read("small.txt"));
+		assertEquals("content that is larger than the pack threshold", read("large.txt"));
+		assertFalse(Files.exists(storageDirectory.resolve("small.txt")));
+		assertTrue(Files.exists(storageDirectory.resolve("large.txt")));
+		assertEquals(1, repository.getPackedFileCount());
+
+		FileMetadata metadata = repository.getFileMetadata("small.txt");
+		assertEquals(13, metadata.size());
+		assertEquals(64, metadata.digest().length());
+	}
+
+	@Test
+	void testDeleteAppendsTombstone() throws Exception {
+		save("small.txt", "small content");
+
+		assertTrue(repository.deleteFileFromStorage("small.txt"));
+
+		assertFalse(repository.fileExists("small.txt"));
+		assertThrows(NoSuchFileException.class, () -> repository.getFileFromStorage("small.txt"));
+		assertThrows(NoSuchFileException.class, () -> repository.deleteFileFromStorage("small.txt"));
+		assertTrue(repository.getGarbageBytes() > 0);
+	}
+
+	@Test
+	void testFilesAreRestoredFromIndexAndSegments() throws Exception {
+		save("first.txt", "first");
+		save("second.txt", "second");
+		repository.close();
+		repository = createRepository();
+
+		// Appended after the index was written, so only found by scanning the end of the segment
+		save("third.txt", "third");
+		repository.deleteFileFromStorage("first.txt");
+		closeWithoutIndex();
+		repository = createRepository();
+
+		assertEquals(Set.of("second.txt", "third.txt"), repository.listFilenames());
+		assertEquals("third", read("third.txt"));
+	}
+
+	@Test
+	void testFilesAreRestoredBySegmentsWithoutIndex() throws Exception {
+		save("first.txt", "first");
+		save("second.txt", "second");
+		repository.deleteFileFromStorage("first.txt");
+		repository.close();
+		Files.delete(packDirectory.resolve("index.dat"));
+
+		repository = createRepository();
+
+		assertEquals(Set.of("second.txt"), repository.listFilenames());
+		assertEquals("second", read("second.txt"));
+	}
+
+	@Test
+	void testTornRecordIsTruncated() throws Exception {
+		save("first.txt", "first");
+		repository.close();
+		Files.delete(packDirectory.resolve("index.dat"));
+		Path segment = listSegments().get(0);
+		long length = Files.size(segment);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 1, 0 }));
+		}
+
+		repository = createRepository();
+
+		assertEquals(Set.of("first.txt"), repository.listFilenames());
+		assertEquals(length, Files.size(segment));
+	}
+
+	@Test
+	void testCompactionKeepsLiveFilesAndRemovesSegments() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			save("file" + i + ".txt", "content of file " + i);
+		}
+		for (int i = 0; i < 9; i++) {
+			repository.deleteFileFromStorage("file" + i + ".txt");
+		}
+		int segments = repository.getSegmentCount();
+
+		repository.compact();
+
+		assertTrue(repository.getSegmentCount() < segments);
+		assertEquals(Set.of("file9.txt"), repository.listFilenames());
+		assertEquals("content of file 9", read("file9.txt"));
+
+		repository.close();
+		repository = createRepository();
+		assertEquals(Set.of("file9.txt"), repository.listFilenames());
+		assertEquals("content of file 9", read("file9.txt"));
+	}
+
+	@Test
+	void testOverwriteMovesFileBetweenStores() throws Exception {
+		save("moving.txt", "small content");
+		save("moving.txt", "content that is larger than the pack threshold");
+
+		assertEquals(0, repository.getPackedFileCount());
+		assertEquals("content that is larger than the pack threshold", read("moving.txt"));
+
+		save("moving.txt", "small again");
+		assertFalse(Files.exists(storageDirectory.resolve("moving.txt")));
+		assertEquals("small again", read("moving.txt"));
+	}
+
+	@Test
+	void testReconcileFindsLargeFilesAddedOutOfBand() throws Exception {
+		Files.writeString(storageDirectory.resolve("copied.txt"), "content that is larger than the pack threshold");
+		assertFalse(repository.listFilenames().contains("copied.txt"));
+
+		repository.reconcileIndex();
+
+		assertTrue(repository.listFilenames().contains("copied.txt"));
+	}
+
+	private FilePackRepository createRepository() throws Exception {
+		FilePackRepository packRepository = new FilePackRepository(fileStorageProperties,
+				new FileMetrics(new SimpleMeterRegistry()));
+		packRepository.initialise();
+		return packRepository;
+	}
+
+	/**
+	 * Closes the repository and puts back the index it had before, as if the application stopped without writing it.
+	 */
+	private void closeWithoutIndex() throws Exception {
+		Path index = packDirectory.resolve("index.dat");
+		byte[] staleIndex = Files.readAllBytes(index);
+		repository.close();
+		Files.write(index, staleIndex);
+	}
+
+	private List<Path> listSegments() throws Exception {
+		try (Stream<Path> files = Files.list(packDirectory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".pack")).sorted().toList();
+		}
+	}
+
+	private void save(String filename, String content) throws Exception {
+		repository.saveFileToStorage(filename, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private String read(String filename) throws Exception {
+		return repository.getFileFromStorage(filename).getContentAsString(StandardCharsets.UTF_8);
+	}
+}
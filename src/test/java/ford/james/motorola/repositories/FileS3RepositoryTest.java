@@ -0,0 +1,235 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.utils.TransferUtils;
+
+public class FileS3RepositoryTest {
+
+	private static final String PREFIX = "stored/";
+
+	@TempDir
+	private Path stagingDirectory;
+
+	private FakeS3Server server;
+	private FileStorageProperties fileStorageProperties;
+	private FileS3Repository repository;
+
+	@BeforeEach
+	void before() throws Exception {
+		server = new FakeS3Server();
+		fileStorageProperties = new FileStorageProperties();
+		FileStorageProperties.S3 s3 = fileStorageProperties.getS3();
+		s3.setEndpoint(server.getEndpoint());
+		s3.setBucket(FakeS3Server.BUCKET);
+		s3.setAccessKey(FakeS3Server.ACCESS_KEY);
+		s3.setSecretKey(FakeS3Server.SECRET_KEY);
+		s3.setPrefix(PREFIX);
+		s3.setPartSize(DataSize.ofBytes(1024));
+		s3.setUploadConcurrency(3);
+		s3.setListPageSize(2);
+		repository = new FileS3Repository(fileStorageProperties, 1024, FileS3Repository.MAX_PARTS);
+	}
+
+	@AfterEach
+	void after() {
+		server.close();
+	}
+
+	@Test
+	void testSmallFileIsUploadedWithDigest() throws Exception {
+		byte[] content = "small content".getBytes(StandardCharsets.UTF_8);
+
+		repository.saveFileToStorage("small.txt", new ByteArrayInputStream(content));
+
+		assertArrayEquals(content, server.getObject(PREFIX + "small.txt"));
+		FileMetadata metadata = repository.getFileMetadata("small.txt");
+		assertEquals(content.length, metadata.size());
+		assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content)), metadata.digest());
+		assertEquals(0, repository.getMultipartUploadCount());
+	}
+
+	@Test
+	void testLargeFileIsUploadedInConcurrentParts() throws Exception {
+		byte[] content = randomBytes(10 * 1024 + 100);
+		server.setPartDelayMillis(100);
+
+		repository.saveFileToStorage("large.bin", new ByteArrayInputStream(content));
+
+		assertArrayEquals(content, server.getObject(PREFIX + "large.bin"));
+		assertEquals(1, repository.getMultipartUploadCount());
+		assertTrue(server.getMaxPartsInFlight() > 1);
+		assertTrue(server.getMaxPartsInFlight() <= 3);
+		assertEquals(0, repository.getPartsInFlight());
+		assertNull(repository.getFileMetadata("large.bin").digest());
+	}
+
+	@Test
+	void testConcurrentUploadsShareTheBufferedParts() throws Exception {
+		fileStorageProperties.getS3().setMaxBufferedParts(2);
+		repository = new FileS3Repository(fileStorageProperties, 1024, FileS3Repository.MAX_PARTS);
+		byte[] first = randomBytes(6 * 1024 + 100);
+		byte[] second = randomBytes(6 * 1024 + 200);
+		server.setPartDelayMillis(50);
+
+		ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			Future<Boolean> firstUpload = executorService.submit(
+					() -> repository.saveFileToStorage("first.bin", new ByteArrayInputStream(first)));
+			Future<Boolean> secondUpload = executorService.submit(
+					() -> repository.saveFileToStorage("second.bin", new ByteArrayInputStream(second)));
+			firstUpload.get();
+			secondUpload.get();
+		} finally {
+			executorService.shutdown();
+		}
+
+		assertArrayEquals(first, server.getObject(PREFIX + "first.bin"));
+		assertArrayEquals(second, server.getObject(PREFIX + "second.bin"));
+		assertEquals(2, repository.getMultipartUploadCount());
+		assertTrue(server.getMaxPartsInFlight() <= 2);
+	}
+
+	@Test
+	void testFailedPartAbortsUploadAndKeepsPreviousVersion() throws Exception {
+		byte[] previous = "previous".getBytes(StandardCharsets.UTF_8);
+		repository.saveFileToStorage("large.bin", new ByteArrayInputStream(previous));
+		server.setFailingPart(2);
+
+		assertThrows(IOException.class,
+				() -> repository.saveFileToStorage("large.bin", new ByteArrayInputStream(randomBytes(5 * 1024))));
+
+		assertArrayEquals(previous, server.getObject(PREFIX + "large.bin"));
+		assertEquals(1, server.getAbortedUploadCount());
+		assertEquals(0, server.getPendingUploadCount());
+		assertEquals(1, repository.getAbortedUploadCount());
+	}
+
+	@Test
+	void testPartSizeBelowMinimumIsRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new FileS3Repository(fileStorageProperties));
+	}
+
+	@Test
+	void testFileLargerThanMaxPartsIsRejected() throws Exception {
+		FileS3Repository limitedRepository = new FileS3Repository(fileStorageProperties, 1024, 3);
+
+		assertThrows(IllegalArgumentException.class, () -> limitedRepository.saveFileToStorage("large.bin",
+				new ByteArrayInputStream(randomBytes(3 * 1024 + 1))));
+		assertEquals(1, server.getAbortedUploadCount());
+		assertEquals(0, server.getPendingUploadCount());
+
+		Path stagedFile = stagingDirectory.resolve("staged.bin");
+		Files.write(stagedFile, randomBytes(3 * 1024 + 1));
+		assertThrows(IllegalArgumentException.class,
+				() -> limitedRepository.saveFileToStorage("staged.bin", stagedFile));
+		assertEquals(1, limitedRepository.getMultipartUploadCount());
+		assertFalse(repository.fileExists("large.bin"));
+		assertFalse(repository.fileExists("staged.bin"));
+
+		limitedRepository.saveFileToStorage("limit.bin", new ByteArrayInputStream(randomBytes(3 * 1024)));
+		assertEquals(3 * 1024, repository.getFileMetadata("limit.bin").size());
+	}
+
+	@Test
+	void testRangeIsStreamedFromBucket() throws Exception {
+		repository.saveFileToStorage("range.txt", new ByteArrayInputStream("0123456789".getBytes(StandardCharsets.UTF_8)));
+		Resource resource = repository.getFileFromStorage("range.txt");
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+		assertEquals(10, resource.contentLength());
+		assertEquals(3, TransferUtils.transfer(resource, 2, 3, outputStream));
+
+		assertEquals("234", outputStream.toString(StandardCharsets.UTF_8));
+		assertEquals("bytes=2-4", server.getLastRange());
+	}
+
+	@Test
+	void testReadFailsOnceObjectIsReplaced() throws Exception {
+		repository.saveFileToStorage("replaced.txt", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		Resource resource = repository.getFileFromStorage("replaced.txt");
+
+		server.putObject(PREFIX + "replaced.txt", new byte[] { 4, 5, 6 });
+
+		assertThrows(IOException.class, () -> TransferUtils.transfer(resource, 0, 3, new ByteArrayOutputStream()));
+	}
+
+	@Test
+	void testListingIsReadPageByPage() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			server.putObject(PREFIX + "file" + i + ".txt", new byte[] { 1 });
+		}
+		server.putObject(PREFIX + "nested/file.txt", new byte[] { 1 });
+		server.putObject("other.txt", new byte[] { 1 });
+
+		assertEquals(Set.of("file0.txt", "file1.txt", "file2.txt", "file3.txt", "file4.txt"),
+				repository.listFilenames());
+		assertEquals(3, server.getListRequestCount());
+	}
+
+	@Test
+	void testCachedListingAndMetadataFollowOwnChanges() throws Exception {
+		fileStorageProperties.getS3().setCacheTtl(Duration.ofMinutes(1));
+		repository = new FileS3Repository(fileStorageProperties, 1024, FileS3Repository.MAX_PARTS);
+		server.putObject(PREFIX + "a.txt", new byte[] { 1 });
+
+		assertEquals(Set.of("a.txt"), repository.listFilenames());
+		repository.saveFileToStorage("b.txt", new ByteArrayInputStream(new byte[] { 2 }));
+		repository.deleteFileFromStorage("a.txt");
+
+		assertEquals(Set.of("b.txt"), repository.listFilenames());
+		assertEquals(1, server.getListRequestCount());
+
+		repository.getFileMetadata("b.txt");
+		repository.getFileFromStorage("b.txt");
+		assertTrue(repository.fileExists("b.txt"));
+		assertEquals(1, server.getHeadRequestCount());
+	}
+
+	@Test
+	void testDeletedFileIsGone() throws Exception {
+		repository.saveFileToStorage("deleted.txt", new ByteArrayInputStream(new byte[] { 1 }));
+
+		assertTrue(repository.fileExists("deleted.txt"));
+		repository.deleteFileFromStorage("deleted.txt");
+
+		assertFalse(repository.fileExists("deleted.txt"));
+		assertNull(server.getObject(PREFIX + "deleted.txt"));
+		assertThrows(NoSuchFileException.class, () -> repository.getFileFromStorage("deleted.txt"));
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,194 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileTieredRepositoryTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	@TempDir
+	private Path coldDirectory;
+
+	private FileStorageProperties fileStorageProperties;
+	private FileTieredRepository repository;
+
+	@BeforeEach
+	void before() throws Exception {
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getTiering().setColdLocation(coldDirectory.toString());
+		fileStorageProperties.getTiering().setMinHotAge(Duration.ZERO);
+		fileStorageProperties.getTiering().setSketchWidth(1024);
+		repository = createRepository();
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		repository.close();
+	}
+
+	@Test
+	void testUnreadFileIsDemotedAndStillRead() throws Exception {
+		save("unread.txt", "unread content");
+		save("read.txt", "read content");
+		FileMetadata metadata = repository.getFileMetadata("unread.txt");
+		repository.ageReadCounts();
+		read("read.txt");
+
+		assertEquals(List.of("unread.txt"), repository.findDemotionCandidates(10));
+		assertTrue(repository.demote("unread.txt"));
+
+		assertTrue(Files.exists(coldDirectory.resolve("unread.txt")));
+		assertFalse(Files.exists(storageDirectory.resolve("unread.txt")));
+		assertEquals(Set.of("unread.txt", "read.txt"), repository.listFilenames());
+		assertTrue(repository.fileExists("unread.txt"));
+		assertEquals("unread content", read("unread.txt"));
+		assertEquals(metadata, repository.getFileMetadata("unread.txt"));
+		assertEquals(1, repository.getDemotionCount());
+	}
+
+	@Test
+	void testNothingIsDemotedUntilReadsHaveBeenCountedForAnInterval() throws Exception {
+		save("unread.txt", "unread content");
+
+		assertTrue(repository.findDemotionCandidates(10).isEmpty());
+	}
+
+	@Test
+	void testRecentlySavedFileIsNotDemoted() throws Exception {
+		fileStorageProperties.getTiering().setMinHotAge(Duration.ofDays(1));
+		save("recent.txt", "recent content");
+		repository.ageReadCounts();
+
+		assertTrue(repository.findDemotionCandidates(10).isEmpty());
+		assertFalse(repository.demote("recent.txt"));
+	}
+
+	@Test
+	void testFrequentlyReadColdFileIsPromoted() throws Exception {
+		save("popular.txt", "popular content");
+		repository.ageReadCounts();
+		assertTrue(repository.demote("popular.txt"));
+
+		for (int i = 0; i < fileStorageProperties.getTiering().getPromoteThreshold(); i++) {
+			read("popular.txt");
+		}
+
+		assertEquals(List.of("popular.txt"), repository.findPromotionCandidates(10));
+		assertTrue(repository.promote("popular.txt"));
+		assertTrue(Files.exists(storageDirectory.resolve("popular.txt")));
+		assertEquals(0, repository.getColdFileCount());
+		assertEquals("popular content", read("popular.txt"));
+		assertFalse(repository.demote("popular.txt"));
+	}
+
+	@Test
+	void testSaveReplacesColdCopy() throws Exception {
+		save("replaced.txt", "old content");
+		repository.ageReadCounts();
+		repository.demote("replaced.txt");
+
+		save("replaced.txt", "new content");
+
+		assertEquals(0, repository.getColdFileCount());
+		assertEquals("new content", read("replaced.txt"));
+	}
+
+	@Test
+	void testDeleteRemovesColdFile() throws Exception {
+		save("deleted.txt", "deleted content");
+		repository.ageReadCounts();
+		repository.demote("deleted.txt");
+
+		assertTrue(repository.deleteFileFromStorage("deleted.txt"));
+
+		assertFalse(repository.fileExists("deleted.txt"));
+		assertThrows(NoSuchFileException.class, () -> repository.deleteFileFromStorage("deleted.txt"));
+	}
+
+	@Test
+	void testColdFilesAreCompressed() throws Exception {
+		repository.close();
+		fileStorageProperties.getTiering().setColdCompressed(true);
+		fileStorageProperties.getCompression().setMinSize(DataSize.ofBytes(0));
+		repository = createRepository();
+		String content = "compressible content ".repeat(100);
+		save("compressed.txt", content);
+		String digest = repository.getFileMetadata("compressed.txt").digest();
+		repository.ageReadCounts();
+
+		assertTrue(repository.demote("compressed.txt"));
+
+		assertTrue(Files.exists(coldDirectory.resolve("compressed.txt" + FileLocalRepository.COMPRESSED_FILE_SUFFIX)));
+		assertEquals(content, read("compressed.txt"));
+		assertEquals(digest, repository.getFileMetadata("compressed.txt").digest());
+	}
+
+	@Test
+	void testReconcileFindsFilesAddedToEitherTierOutOfBand() throws Exception {
+		Files.writeString(storageDirectory.resolve("hot.txt"), "hot content");
+		Files.writeString(coldDirectory.resolve("cold.txt"), "cold content");
+		assertEquals(Set.of(), repository.listFilenames());
+
+		repository.reconcileIndex();
+
+		assertEquals(Set.of("hot.txt", "cold.txt"), repository.listFilenames());
+	}
+
+	@Test
+	void testSketchCountsAreHalvedAndSaturate() {
+		AccessFrequencySketch sketch = new AccessFrequencySketch(100);
+		for (int i = 0; i < 6; i++) {
+			sketch.increment("counted.txt");
+		}
+
+		assertEquals(128, sketch.getWidth());
+		assertEquals(6, sketch.frequency("counted.txt"));
+		sketch.age();
+		assertEquals(3, sketch.frequency("counted.txt"));
+
+		for (int i = 0; i < 20; i++) {
+			sketch.increment("counted.txt");
+		}
+		assertEquals(AccessFrequencySketch.MAX_COUNT, sketch.frequency("counted.txt"));
+	}
+
+	private FileTieredRepository createRepository() throws Exception {
+		FileTieredRepository tieredRepository = new FileTieredRepository(fileStorageProperties,
+				new FileMetrics(new SimpleMeterRegistry()));
+		tieredRepository.initialise();
+		return tieredRepository;
+	}
+
+	private void save(String filename, String content) throws Exception {
+		repository.saveFileToStorage(filename, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private String read(String filename) throws Exception {
+		return repository.getFileFromStorage(filename).getContentAsString(StandardCharsets.UTF_8);
+	}
+}
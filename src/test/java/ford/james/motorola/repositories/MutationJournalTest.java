@@ -0,0 +1,148 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MutationJournalTest {
+
+	@TempDir
+	private Path journalDirectory;
+
+	private MutationJournal mutationJournal;
+
+	@BeforeEach
+	void before() throws Exception {
+		mutationJournal = new MutationJournal(journalDirectory);
+		assertNull(mutationJournal.open());
+		mutationJournal.reset(List.of(new FileMetadata("existing.txt", 8, 1000)));
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		mutationJournal.close();
+	}
+
+	@Test
+	void testReplayRestoresFiles() throws Exception {
+		mutationJournal.put(new FileMetadata("a.txt", 1, 2000, "digest"));
+		mutationJournal.put(new FileMetadata("b.txt", 2, 3000));
+		mutationJournal.removed("existing.txt");
+
+		MutationJournal.Recovery recovery = reopen();
+
+		assertEquals(Map.of("a.txt", new FileMetadata("a.txt", 1, 2000, "digest"),
+				"b.txt", new FileMetadata("b.txt", 2, 3000)), recovery.files());
+		assertTrue(recovery.pendingSaves().isEmpty());
+		assertTrue(recovery.pendingDeletes().isEmpty());
+	}
+
+	@Test
+	void testUnchangedMetadataIsNotRecordedAgain() throws Exception {
+		mutationJournal.put(new FileMetadata("existing.txt", 8, 1000));
+		mutationJournal.removed("missing.txt");
+
+		assertEquals(0, mutationJournal.getRecordsSinceSnapshot());
+	}
+
+	@Test
+	void testTornRecordIsTruncated() throws Exception {
+		mutationJournal.put(new FileMetadata("a.txt", 1, 2000));
+		mutationJournal.close();
+		Path journal = findFiles("journal-").get(0);
+		long length = Files.size(journal);
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2 }));
+		}
+
+		MutationJournal.Recovery recovery = reopen();
+		assertEquals(Set.of("existing.txt", "a.txt"), recovery.files().keySet());
+		assertEquals(length, Files.size(journal));
+
+		mutationJournal.put(new FileMetadata("b.txt", 2, 3000));
+		assertEquals(Set.of("existing.txt", "a.txt", "b.txt"), reopen().files().keySet());
+	}
+
+	@Test
+	void testInterruptedSavesAndDeletesAreRecovered() throws Exception {
+		Path staged = journalDirectory.resolve("staged.part");
+		Path publishing = journalDirectory.resolve("publishing.part");
+		Path finished = journalDirectory.resolve("finished.part");
+		mutationJournal.staged(staged);
+		mutationJournal.staged(publishing);
+		mutationJournal.saving(publishing, "b.txt");
+		mutationJournal.staged(finished);
+		mutationJournal.saving(finished, "c.txt");
+		mutationJournal.saved(finished);
+		mutationJournal.deleting("existing.txt");
+
+		MutationJournal.Recovery recovery = reopen();
+
+		assertEquals(List.of(new MutationJournal.PendingSave(staged.toAbsolutePath().toString(), null, true),
+				new MutationJournal.PendingSave(publishing.toAbsolutePath().toString(), "b.txt", true)),
+				recovery.pendingSaves());
+		assertEquals(Set.of("existing.txt"), recovery.pendingDeletes());
+	}
+
+	@Test
+	void testSnapshotStartsNewGenerationAndCarriesPendingChanges() throws Exception {
+		Path staged = journalDirectory.resolve("staged.part");
+		mutationJournal.put(new FileMetadata("a.txt", 1, 2000));
+		mutationJournal.staged(staged);
+		mutationJournal.deleting("existing.txt");
+
+		assertFalse(mutationJournal.snapshotIfDue(100));
+		assertTrue(mutationJournal.snapshotIfDue(3));
+
+		assertEquals(1, findFiles("snapshot-").size());
+		assertEquals(1, findFiles("journal-").size());
+		assertEquals(0, mutationJournal.getRecordsSinceSnapshot());
+
+		MutationJournal.Recovery recovery = reopen();
+		assertEquals(Set.of("existing.txt", "a.txt"), recovery.files().keySet());
+		assertEquals(1, recovery.pendingSaves().size());
+		assertEquals(Set.of("existing.txt"), recovery.pendingDeletes());
+	}
+
+	@Test
+	void testUnsupportedVersionIsRejected() throws Exception {
+		mutationJournal.close();
+		Path journal = findFiles("journal-").get(0);
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(Short.BYTES).putShort((short) (MutationJournal.VERSION + 1)).flip(),
+					Integer.BYTES);
+		}
+
+		assertThrows(IOException.class, () -> new MutationJournal(journalDirectory).open());
+	}
+
+	private MutationJournal.Recovery reopen() throws IOException {
+		mutationJournal.close();
+		mutationJournal = new MutationJournal(journalDirectory);
+		return mutationJournal.open();
+	}
+
+	private List<Path> findFiles(String prefix) throws IOException {
+		try (Stream<Path> files = Files.list(journalDirectory)) {
+			return files.filter(file -> file.getFileName().toString().startsWith(prefix)).toList();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package ford.james.motorola.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.utils.TransferUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+
+public class ReactiveFileLocalRepositoryTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	private final DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+
+	private FileStorageProperties fileStorageProperties;
+	private FileLocalRepository fileLocalRepository;
+	private ReactiveFileLocalRepository reactiveFileLocalRepository;
+
+	@BeforeEach
+	void before() throws Exception {
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+
+		fileLocalRepository = new FileLocalRepository(fileStorageProperties, new FileMetrics(new SimpleMeterRegistry()));
+		fileLocalRepository.initialiseIndex();
+		reactiveFileLocalRepository = new ReactiveFileLocalRepository(fileLocalRepository);
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		fileLocalRepository.close();
+	}
+
+	@Test
+	void testSaveBuffersIsIndexedWithDigest() throws Exception {
+		reactiveFileLocalRepository.saveFileToStorage("saved.txt", toBuffers("first ", "second ", "third")).block();
+
+		assertEquals("first second third", Files.readString(storageDirectory.resolve("saved.txt")));
+		assertEquals(Set.of("saved.txt"), reactiveFileLocalRepository.listFilenames().block());
+		assertEquals(true, reactiveFileLocalRepository.fileExists("saved.txt").block());
+
+		FileMetadata metadata = reactiveFileLocalRepository.getFileMetadata("saved.txt").block();
+		assertEquals(18, metadata.size());
+		assertEquals(sha256("first second third"), metadata.digest());
+		assertNoTempFiles();
+	}
+
+	@Test
+	void testFailedSaveRemovesTempFile() throws Exception {
+		Flux<DataBuffer> failing = toBuffers("partial").concatWith(Flux.error(new IllegalStateException("disconnected")));
+
+		assertThrows(IllegalStateException.class,
+				() -> reactiveFileLocalRepository.saveFileToStorage("failed.txt", failing).block());
+
+		assertEquals(false, reactiveFileLocalRepository.fileExists("failed.txt").block());
+		assertNoTempFiles();
+	}
+
+	@Test
+	void testSaveBuffersWithCompression() throws Exception {
+		fileStorageProperties.getCompression().setEnabled(true);
+		String content = "compressible ".repeat(1000);
+
+		reactiveFileLocalRepository.saveFileToStorage("compressed.txt", toBuffers(content)).block();
+
+		Resource resource = reactiveFileLocalRepository.getFileFromStorage("compressed.txt").block();
+		assertInstanceOf(CompressedResource.class, resource);
+		assertEquals(content, read(resource, 0, resource.contentLength()));
+		assertEquals(sha256(content), reactiveFileLocalRepository.getFileMetadata("compressed.txt").block().digest());
+	}
+
+	@Test
+	void testReadRangeOfStoredFile() throws Exception {
+		Files.writeString(storageDirectory.resolve("existing.txt"), "0123456789");
+
+		Resource resource = reactiveFileLocalRepository.getFileFromStorage("existing.txt").block();
+
+		assertEquals("3456", read(resource, 3, 4));
+		assertEquals("0123456789", read(resource, 0, 10));
+	}
+
+	@Test
+	void testDelete() throws Exception {
+		Files.writeString(storageDirectory.resolve("existing.txt"), "existing");
+
+		reactiveFileLocalRepository.deleteFileFromStorage("existing.txt").block();
+
+		assertEquals(false, reactiveFileLocalRepository.fileExists("existing.txt").block());
+	}
+
+	private Flux<DataBuffer> toBuffers(String... values) {
+		return Flux.fromArray(values).map(value -> bufferFactory.wrap(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private String read(Resource resource, long position, long count) {
+		DataBuffer joined = DataBufferUtils.join(TransferUtils.read(resource, position, count, bufferFactory, 4)).block();
+		try {
+			return joined.toString(StandardCharsets.UTF_8);
+		} finally {
+			DataBufferUtils.release(joined);
+		}
+	}
+
+	private void assertNoTempFiles() throws Exception {
+		try (var files = Files.list(storageDirectory)) {
+			assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith(FileLocalRepository.TEMP_FILE_PREFIX)));
+		}
+	}
+
+	private static String sha256(String content) throws Exception {
+		return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,127 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.AdmissionRejectedException;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class AdmissionManagerTest {
+
+	private SimpleMeterRegistry meterRegistry;
+	private FileStorageProperties fileStorageProperties;
+	private AdmissionManager admissionManager;
+
+	@BeforeEach
+	void before() {
+		meterRegistry = new SimpleMeterRegistry();
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setRequestTimeout(1);
+		FileStorageProperties.Admission admission = fileStorageProperties.getAdmission();
+		admission.setEnabled(true);
+		admission.setMaxConcurrent(2);
+		admission.setMaxQueued(2);
+		admission.setMaxConcurrentPerFile(1);
+		admission.setMaxQueuedPerFile(1);
+		admissionManager = new AdmissionManager(fileStorageProperties, new FileMetrics(meterRegistry));
+	}
+
+	@Test
+	void testAdmittedStraightAwayWhenBelowLimits() {
+		CompletableFuture<AdmissionManager.Permit> first = admissionManager.admit("a.txt");
+		CompletableFuture<AdmissionManager.Permit> second = admissionManager.admit("b.txt");
+
+		assertTrue(first.isDone());
+		assertTrue(second.isDone());
+		assertEquals(2, admissionManager.getActiveCount());
+		assertEquals(0, admissionManager.getQueuedCount());
+	}
+
+	@Test
+	void testRejectedWhenQueueOfFileIsFull() {
+		admissionManager.admit("a.txt");
+		CompletableFuture<AdmissionManager.Permit> queued = admissionManager.admit("a.txt");
+		CompletableFuture<AdmissionManager.Permit> rejected = admissionManager.admit("a.txt");
+
+		assertFalse(queued.isDone());
+		AdmissionRejectedException e = assertRejected(rejected);
+		assertTrue(e.getRetryAfter().compareTo(Duration.ofSeconds(1)) >= 0);
+		assertEquals(1, admissionManager.getMaxFileQueueDepth());
+		assertEquals(1, meterRegistry.get("file.admission.rejections").tag("scope", "file").counter().count());
+	}
+
+	@Test
+	void testRejectedWhenGlobalQueueIsFull() {
+		admissionManager.admit("a.txt");
+		admissionManager.admit("b.txt");
+		admissionManager.admit("c.txt");
+		admissionManager.admit("d.txt");
+
+		assertRejected(admissionManager.admit("e.txt"));
+		assertEquals(2, admissionManager.getQueuedCount());
+		assertEquals(1, meterRegistry.get("file.admission.rejections").tag("scope", "global").counter().count());
+	}
+
+	@Test
+	void testReleaseAdmitsWaitersInOrderSkippingBusyFiles() {
+		AdmissionManager.Permit a = admissionManager.admit("a.txt").join();
+		admissionManager.admit("b.txt").join();
+		CompletableFuture<AdmissionManager.Permit> waitingOnB = admissionManager.admit("b.txt");
+		CompletableFuture<AdmissionManager.Permit> waitingOnC = admissionManager.admit("c.txt");
+
+		admissionManager.release(a);
+
+		assertFalse(waitingOnB.isDone());
+		assertTrue(waitingOnC.isDone());
+		assertEquals(1, admissionManager.getQueuedCount());
+	}
+
+	@Test
+	void testAbandonedWaiterLeavesQueue() {
+		AdmissionManager.Permit a = admissionManager.admit("a.txt").join();
+		CompletableFuture<AdmissionManager.Permit> waiting = admissionManager.admit("a.txt");
+
+		admissionManager.abandon(waiting);
+		admissionManager.release(a);
+
+		assertFalse(waiting.isDone());
+		assertEquals(0, admissionManager.getActiveCount());
+		assertEquals(0, admissionManager.getQueuedCount());
+	}
+
+	@Test
+	void testRejectedWhenNotAdmittedWithinRequestTimeout() {
+		admissionManager.admit("a.txt");
+
+		assertThrows(AdmissionRejectedException.class, () -> admissionManager.executeAdmitted("a.txt", () -> true));
+		assertEquals(0, admissionManager.getQueuedCount());
+	}
+
+	@Test
+	void testExecuteAdmittedAsyncReleasesPermit() {
+		StepVerifier.create(admissionManager.executeAdmittedAsync("a.txt", () -> Mono.just(true)))
+				.expectNext(true)
+				.verifyComplete();
+
+		assertEquals(0, admissionManager.getActiveCount());
+	}
+
+	private static AdmissionRejectedException assertRejected(CompletableFuture<AdmissionManager.Permit> future) {
+		CompletionException e = assertThrows(CompletionException.class, future::join);
+		return assertInstanceOf(AdmissionRejectedException.class, e.getCause());
+	}
+}
@@ -0,0 +1,168 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+public class AsyncLockManagerImplTest {
+
+	private final ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private AsyncLockManagerImpl lockManager;
+
+	@BeforeEach
+	void before() {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setRequestTimeout(1);
+		lockManager = new AsyncLockManagerImpl(fileStorageProperties, new FileMetrics(meterRegistry));
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		executorService.shutdownNow();
+		executorService.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void testLockRemovedWhenIdle() {
+		assertEquals("result", lockManager.executeWithLockAsync("filename", false, () -> {
+			assertEquals(1, lockManager.getLockCount());
+			assertEquals(1, lockManager.getHoldCount());
+			return Mono.just("result");
+		}).block());
+
+		assertEquals(0, lockManager.getLockCount());
+		assertEquals(0, lockManager.getHoldCount());
+		assertEquals(1, meterRegistry.get("file.lock.hold").tag("mode", "read").timer().count());
+	}
+
+	@Test
+	void testReadersShareTheLock() {
+		Sinks.Empty<Void> releaseFirst = Sinks.empty();
+		CompletableFuture<Void> first = lockManager.executeWithLockAsync("filename", false, releaseFirst::asMono).toFuture();
+
+		assertEquals(true, lockManager.executeWithLockAsync("filename", false, () -> Mono.just(true)).block());
+
+		assertFalse(first.isDone());
+		releaseFirst.tryEmitEmpty();
+		first.join();
+		assertEquals(0, lockManager.getLockCount());
+	}
+
+	@Test
+	void testWriterWaitsWithoutBlockingUntilReaderReleases() {
+		Sinks.Empty<Void> releaseReader = Sinks.empty();
+		CompletableFuture<Void> reader = lockManager.executeWithLockAsync("filename", false, releaseReader::asMono)
+				.toFuture();
+
+		CompletableFuture<String> writer = lockManager.executeWithLockAsync("filename", true, () -> Mono.just("written"))
+				.toFuture();
+		assertFalse(writer.isDone());
+		assertEquals(1, lockManager.getWaitCount());
+
+		releaseReader.tryEmitEmpty();
+		reader.join();
+		assertEquals("written", writer.join());
+		assertEquals(0, lockManager.getWaitCount());
+		assertEquals(0, lockManager.getLockCount());
+	}
+
+	@Test
+	void testWriteLockTimesOutWhileReadHeld() {
+		Sinks.Empty<Void> releaseReader = Sinks.empty();
+		CompletableFuture<Void> reader = lockManager.executeWithLockAsync("filename", false, releaseReader::asMono)
+				.toFuture();
+
+		CompletableFuture<Boolean> writer = lockManager.executeWithLockAsync("filename", true, () -> Mono.just(true))
+				.toFuture();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> writer.get(5, TimeUnit.SECONDS));
+		assertInstanceOf(LockTimeoutException.class, e.getCause());
+		assertEquals(0, lockManager.getWaitCount());
+		assertEquals(1, meterRegistry.get("file.lock.timeouts").tag("mode", "write").counter().count());
+
+		// The abandoned writer must not hold back later readers
+		assertEquals(true, lockManager.executeWithLockAsync("filename", false, () -> Mono.just(true)).block());
+
+		releaseReader.tryEmitEmpty();
+		reader.join();
+		assertEquals(0, lockManager.getLockCount());
+	}
+
+	@Test
+	void testCancelledWaiterGivesUpItsPlace() {
+		Sinks.Empty<Void> releaseWriter = Sinks.empty();
+		CompletableFuture<Void> writer = lockManager.executeWithLockAsync("filename", true, releaseWriter::asMono)
+				.toFuture();
+
+		Disposable waiting = lockManager.executeWithLockAsync("filename", true, () -> Mono.just(true)).subscribe();
+		assertEquals(1, lockManager.getWaitCount());
+		waiting.dispose();
+		assertEquals(0, lockManager.getWaitCount());
+
+		releaseWriter.tryEmitEmpty();
+		writer.join();
+		assertEquals(0, lockManager.getLockCount());
+		assertEquals(0, lockManager.getHoldCount());
+	}
+
+	@Test
+	void testBlockingCallersExcludeReactiveCallers() throws Exception {
+		Sinks.Empty<Void> releaseWriter = Sinks.empty();
+		CompletableFuture<Void> writer = lockManager.executeWithLockAsync("filename", true, releaseWriter::asMono)
+				.toFuture();
+
+		Future<Boolean> reader = executorService.submit(() -> lockManager.executeWithLock("filename", false, () -> true));
+		Thread.sleep(50);
+		assertFalse(reader.isDone());
+
+		releaseWriter.tryEmitEmpty();
+		writer.join();
+		assertTrue(reader.get(5, TimeUnit.SECONDS));
+		assertEquals(0, lockManager.getLockCount());
+	}
+
+	@Test
+	void testWritersAreMutuallyExclusive() throws Exception {
+		AtomicInteger inside = new AtomicInteger();
+		AtomicInteger maxInside = new AtomicInteger();
+
+		Future<?>[] futures = new Future<?>[8];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = executorService.submit(() -> lockManager.executeWithLock("filename", true, () -> {
+				maxInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+				Thread.sleep(20);
+				return inside.decrementAndGet();
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+
+		assertEquals(1, maxInside.get());
+		assertEquals(0, lockManager.getLockCount());
+	}
+}
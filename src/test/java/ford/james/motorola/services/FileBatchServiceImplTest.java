@@ -0,0 +1,88 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.FileNotFoundException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.mock.web.MockMultipartFile;
+
+import ford.james.motorola.FileStorageProperties;
+
+public class FileBatchServiceImplTest {
+
+	@Mock
+	private FileService fileService;
+
+	private FileBatchServiceImpl fileBatchService;
+	private AutoCloseable closeable;
+
+	@BeforeEach
+	void before() {
+		closeable = MockitoAnnotations.openMocks(this);
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.getBatch().setMaxItems(3);
+		fileBatchService = new FileBatchServiceImpl(fileService, fileStorageProperties, new StandardEnvironment());
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		fileBatchService.close();
+		closeable.close();
+	}
+
+	@Test
+	void testDeleteFilesOneFailureDoesNotFailBatch() throws Exception {
+		doThrow(new FileNotFoundException("missing")).when(fileService).deleteFile("b.txt");
+
+		List<BatchItemResult> results = fileBatchService.deleteFiles(List.of("c.txt", "b.txt", "a.txt"));
+
+		assertEquals(List.of("a.txt", "b.txt", "c.txt"), results.stream().map(BatchItemResult::filename).toList());
+		assertTrue(results.get(0).isSuccess());
+		assertInstanceOf(FileNotFoundException.class, results.get(1).error());
+		assertTrue(results.get(2).isSuccess());
+		verify(fileService).deleteFile("a.txt");
+		verify(fileService).deleteFile("c.txt");
+	}
+
+	@Test
+	void testSaveFilesDuplicateNameInBatch() throws Exception {
+		MockMultipartFile first = new MockMultipartFile("files", "a.txt", null, "1".getBytes());
+		MockMultipartFile second = new MockMultipartFile("files", "a.txt", null, "2".getBytes());
+
+		List<BatchItemResult> results = fileBatchService.saveFiles(List.of(first, second));
+
+		assertEquals(2, results.size());
+		assertEquals(1, results.stream().filter(BatchItemResult::isSuccess).count());
+		assertInstanceOf(FileAlreadyExistsException.class,
+				results.stream().filter(result -> !result.isSuccess()).findFirst().orElseThrow().error());
+	}
+
+	@Test
+	void testBatchTooLarge() throws Exception {
+		assertThrows(IllegalArgumentException.class,
+				() -> fileBatchService.deleteFiles(Collections.nCopies(4, "a.txt")));
+		verify(fileService, never()).deleteFile(any());
+	}
+
+	@Test
+	void testEmptyBatch() throws Exception {
+		assertFalse(fileBatchService.deleteFiles(List.of()).iterator().hasNext());
+	}
+}
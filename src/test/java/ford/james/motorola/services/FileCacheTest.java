@@ -0,0 +1,86 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+
+public class FileCacheTest {
+
+	@TempDir
+	private Path directory;
+
+	private FileCache fileCache;
+
+	@BeforeEach
+	void before() {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.getCache().setEnabled(true);
+		fileStorageProperties.getCache().setMaxFileSize(DataSize.ofBytes(8));
+		fileCache = new FileCache(fileStorageProperties);
+	}
+
+	@Test
+	void testSmallFileIsCached() throws Exception {
+		Path path = Files.writeString(directory.resolve("small.txt"), "small");
+
+		Resource loaded = fileCache.load("small.txt", new FileSystemResource(path));
+
+		assertSame(loaded, fileCache.get("small.txt"));
+		assertArrayEquals("small".getBytes(), loaded.getContentAsByteArray());
+		assertEquals(Files.getLastModifiedTime(path).toMillis(), loaded.lastModified());
+	}
+
+	@Test
+	void testLargeFileIsNotCached() throws Exception {
+		Resource resource = new ByteArrayResource("larger than eight bytes".getBytes());
+
+		assertSame(resource, fileCache.load("large.txt", resource));
+		assertNull(fileCache.get("large.txt"));
+	}
+
+	@Test
+	void testInvalidate() throws Exception {
+		fileCache.load("small.txt", new ByteArrayResource("small".getBytes()));
+
+		fileCache.invalidate("small.txt");
+
+		assertNull(fileCache.get("small.txt"));
+	}
+
+	@Test
+	void testDisabledCache() throws Exception {
+		FileCache disabled = new FileCache(new FileStorageProperties());
+		Resource resource = new ByteArrayResource("small".getBytes());
+
+		assertFalse(disabled.isEnabled());
+		assertSame(resource, disabled.load("small.txt", resource));
+		assertNull(disabled.get("small.txt"));
+		assertTrue(fileCache.isEnabled());
+	}
+
+	@Test
+	void testCacheIsRefusedWithProcessLocks() {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.getCache().setEnabled(true);
+		fileStorageProperties.getProcessLock().setEnabled(true);
+
+		assertThrows(IllegalStateException.class, () -> new FileCache(fileStorageProperties));
+	}
+}
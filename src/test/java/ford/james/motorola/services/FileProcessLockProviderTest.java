@@ -0,0 +1,182 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileProcessLockProviderTest {
+
+	@TempDir
+	private Path lockDirectory;
+
+	private FileStorageProperties fileStorageProperties;
+	private FileProcessLockProvider lockProvider;
+	private Process otherProcess;
+
+	@BeforeEach
+	void before() throws Exception {
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setRequestTimeout(1);
+		fileStorageProperties.getProcessLock().setEnabled(true);
+		fileStorageProperties.getProcessLock().setFile(getLockPath().toString());
+		fileStorageProperties.getProcessLock().setRetainFor(Duration.ofMinutes(1));
+		lockProvider = new FileProcessLockProvider(fileStorageProperties);
+		lockProvider.open();
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		if (otherProcess != null) {
+			otherProcess.destroyForcibly().waitFor();
+		}
+		lockProvider.close();
+	}
+
+	@Test
+	void testReadersInProcessShareFileLock() throws Exception {
+		try (ProcessLockProvider.ProcessLock first = lockProvider.lock("a.txt", false, Duration.ofSeconds(1));
+				ProcessLockProvider.ProcessLock second = lockProvider.lock("a.txt", false, Duration.ofSeconds(1))) {
+			assertEquals(1, lockProvider.getFileLockCount());
+		}
+
+		assertEquals(1, lockProvider.getLockedCount());
+		assertEquals(1, lockProvider.getReusedCount());
+	}
+
+	@Test
+	void testIdleLockIsReused() throws Exception {
+		lockProvider.lock("a.txt", true, Duration.ofSeconds(1)).close();
+		lockProvider.lock("a.txt", true, Duration.ofSeconds(1)).close();
+		lockProvider.lock("a.txt", false, Duration.ofSeconds(1)).close();
+
+		assertEquals(1, lockProvider.getLockedCount());
+		assertEquals(2, lockProvider.getReusedCount());
+	}
+
+	@Test
+	void testIdleReadLockIsSwappedForWriteLock() throws Exception {
+		lockProvider.lock("a.txt", false, Duration.ofSeconds(1)).close();
+		lockProvider.lock("a.txt", true, Duration.ofSeconds(1)).close();
+
+		assertEquals(2, lockProvider.getLockedCount());
+		assertEquals(1, lockProvider.getFileLockCount());
+	}
+
+	@Test
+	void testIdleLockIsReleased() throws Exception {
+		lockProvider.close();
+		fileStorageProperties.getProcessLock().setRetainFor(Duration.ofMillis(10));
+		lockProvider = new FileProcessLockProvider(fileStorageProperties);
+		lockProvider.open();
+
+		lockProvider.lock("a.txt", true, Duration.ofSeconds(1)).close();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (lockProvider.getFileLockCount() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, lockProvider.getFileLockCount());
+	}
+
+	@Test
+	void testLockHeldByOtherProcessExcludes() throws Exception {
+		startOtherProcess("a.txt");
+
+		assertThrows(LockTimeoutException.class, () -> lockProvider.lock("a.txt", false, Duration.ofMillis(200)));
+		lockProvider.lock("b.txt", true, Duration.ofSeconds(1)).close();
+	}
+
+	@Test
+	void testLockIsObtainedOnceOtherProcessReleasesIt() throws Exception {
+		startOtherProcess("a.txt");
+		CompletableFuture<ProcessLockProvider.ProcessLock> waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return lockProvider.lock("a.txt", true, Duration.ofSeconds(10));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(200);
+		assertFalse(waiting.isDone());
+
+		otherProcess.getOutputStream().close();
+		otherProcess.waitFor(10, TimeUnit.SECONDS);
+
+		waiting.get(10, TimeUnit.SECONDS).close();
+		assertEquals(1, lockProvider.getLockedCount());
+	}
+
+	@Test
+	void testLockManagerTimesOutWhileOtherProcessHoldsLock() throws Exception {
+		LockManagerImpl lockManager = new LockManagerImpl(fileStorageProperties,
+				new FileMetrics(new SimpleMeterRegistry()), lockProvider);
+		startOtherProcess("a.txt");
+
+		LockTimeoutException e = assertThrows(LockTimeoutException.class,
+				() -> lockManager.executeWithLock("a.txt", true, () -> true));
+
+		assertEquals("Cannot modify the file [a.txt] as it is in use", e.getMessage());
+		assertEquals(0, lockManager.getLockCount());
+		assertTrue(lockManager.executeWithLock("b.txt", true, () -> true));
+	}
+
+	/**
+	 * Starts a JVM that locks the key in the lock file and holds it until its standard input is closed.
+	 */
+	private void startOtherProcess(String key) throws Exception {
+		String java = ProcessHandle.current().info().command().orElse("java");
+		otherProcess = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				LockHolder.class.getName(), getLockPath().toString(), key)
+				.redirectErrorStream(true)
+				.start();
+		BufferedReader output = new BufferedReader(
+				new InputStreamReader(otherProcess.getInputStream(), StandardCharsets.UTF_8));
+		assertEquals("locked", output.readLine());
+	}
+
+	private Path getLockPath() {
+		return lockDirectory.resolve("storage.lock");
+	}
+
+	/**
+	 * Entry point of the other process.
+	 */
+	public static class LockHolder {
+
+		public static void main(String[] args) throws Exception {
+			try (FileChannel channel = FileChannel.open(Paths.get(args[0]), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock(FileProcessLockProvider.positionOf(args[1]), 1, false);
+				System.out.println("locked");
+				System.out.flush();
+				while (System.in.read() != -1) {
+					// Held until the test closes standard input
+				}
+				lock.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileReaperTest {
+
+	@TempDir
+	private Path journalDirectory;
+
+	private final FileRepository fileRepository = mock(FileRepository.class);
+
+	private FileStorageProperties fileStorageProperties;
+	private LockManagerImpl lockManager;
+	private FileReaper fileReaper;
+
+	@BeforeEach
+	void before() throws Exception {
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setRequestTimeout(1);
+		fileStorageProperties.getReaper().setEnabled(true);
+		fileStorageProperties.getReaper().setBytesPerSecond(DataSize.ofBytes(100));
+		fileStorageProperties.getReaper().setJournal(journalDirectory.resolve("tombstones").toString());
+		lockManager = new LockManagerImpl(fileStorageProperties, new FileMetrics(new SimpleMeterRegistry()));
+		fileReaper = createFileReaper();
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		fileReaper.close();
+	}
+
+	@Test
+	void testReapIsLimitedByBudget() throws Exception {
+		fileReaper.delete("a.txt", 40);
+		fileReaper.delete("b.txt", 40);
+		fileReaper.delete("c.txt", 40);
+
+		fileReaper.reap();
+
+		verify(fileRepository).deleteFileFromStorage("a.txt");
+		verify(fileRepository).deleteFileFromStorage("b.txt");
+		verify(fileRepository, never()).deleteFileFromStorage("c.txt");
+		assertTrue(fileReaper.isDeleted("c.txt"));
+		assertEquals(Set.of("d.txt"), fileReaper.filterDeleted(Set.of("a.txt", "c.txt", "d.txt")));
+		assertEquals(40, fileReaper.getPendingBytes());
+	}
+
+	@Test
+	void testFileLargerThanBudgetIsReapedOnceBudgetIsFull() throws Exception {
+		fileReaper.delete("large.bin", 1000);
+
+		fileReaper.reap();
+
+		verify(fileRepository).deleteFileFromStorage("large.bin");
+		assertFalse(fileReaper.isDeleted("large.bin"));
+	}
+
+	@Test
+	void testTombstonesSurviveRestart() throws Exception {
+		fileReaper.delete("a.txt", 10);
+		fileReaper.delete("b.txt", 10);
+		fileReaper.purge("a.txt");
+		fileReaper.close();
+
+		fileReaper = createFileReaper();
+
+		assertFalse(fileReaper.isDeleted("a.txt"));
+		assertTrue(fileReaper.isDeleted("b.txt"));
+		assertEquals(1, fileReaper.getTombstoneCount());
+	}
+
+	@Test
+	void testJournalIsTruncatedOnceEverythingIsReaped() throws Exception {
+		when(fileRepository.deleteFileFromStorage("gone.txt")).thenThrow(new NoSuchFileException("gone.txt"));
+		fileReaper.delete("a.txt", 10);
+		fileReaper.delete("gone.txt", 10);
+
+		fileReaper.reap();
+
+		assertEquals(0, fileReaper.getTombstoneCount());
+		assertEquals(0, Files.size(journalDirectory.resolve("tombstones")));
+	}
+
+	@Test
+	void testFileInUseIsReapedLater() throws Exception {
+		fileReaper.delete("a.txt", 10);
+
+		Thread reader = Thread.ofPlatform().start(() -> {
+			try {
+				lockManager.executeWithLock("a.txt", false, () -> {
+					Thread.sleep(1500);
+					return true;
+				});
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(100);
+
+		fileReaper.reap();
+		verify(fileRepository, never()).deleteFileFromStorage("a.txt");
+		assertTrue(fileReaper.isDeleted("a.txt"));
+
+		reader.join();
+		fileReaper.reap();
+		verify(fileRepository).deleteFileFromStorage("a.txt");
+	}
+
+	private FileReaper createFileReaper() throws Exception {
+		FileReaper reaper = new FileReaper(fileRepository, lockManager, fileStorageProperties);
+		reaper.recover();
+		return reaper;
+	}
+}
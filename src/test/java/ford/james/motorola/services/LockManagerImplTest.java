@@ -0,0 +1,117 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.LockTimeoutException;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class LockManagerImplTest {
+
+	private final ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private LockManagerImpl lockManager;
+
+	@BeforeEach
+	void before() {
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setRequestTimeout(1);
+		lockManager = new LockManagerImpl(fileStorageProperties, new FileMetrics(meterRegistry));
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		executorService.shutdownNow();
+		executorService.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void testLockRemovedWhenIdle() throws Exception {
+		assertEquals("result", lockManager.executeWithLock("filename", false, () -> {
+			assertEquals(1, lockManager.getLockCount());
+			assertEquals(1, lockManager.getHoldCount());
+			return "result";
+		}));
+
+		assertEquals(0, lockManager.getLockCount());
+		assertEquals(0, lockManager.getHoldCount());
+		assertEquals(1, meterRegistry.get("file.lock.hold").tag("mode", "read").timer().count());
+		assertEquals(1, meterRegistry.get("file.lock.wait").tag("mode", "read").timer().count());
+	}
+
+	@Test
+	void testLockKeptWhileOtherReadersHoldIt() throws Exception {
+		CountDownLatch firstHolding = new CountDownLatch(1);
+		CountDownLatch releaseFirst = new CountDownLatch(1);
+
+		Future<?> first = executorService.submit(() -> lockManager.executeWithLock("filename", false, () -> {
+			firstHolding.countDown();
+			return releaseFirst.await(5, TimeUnit.SECONDS);
+		}));
+		assertTrue(firstHolding.await(5, TimeUnit.SECONDS));
+
+		lockManager.executeWithLock("filename", false, () -> true);
+
+		assertEquals(1, lockManager.getLockCount());
+		releaseFirst.countDown();
+		first.get(5, TimeUnit.SECONDS);
+		assertEquals(0, lockManager.getLockCount());
+	}
+
+	@Test
+	void testWriteLockTimesOutWhileReadHeld() throws Exception {
+		CountDownLatch readerHolding = new CountDownLatch(1);
+		CountDownLatch releaseReader = new CountDownLatch(1);
+
+		Future<?> reader = executorService.submit(() -> lockManager.executeWithLock("filename", false, () -> {
+			readerHolding.countDown();
+			return releaseReader.await(5, TimeUnit.SECONDS);
+		}));
+		assertTrue(readerHolding.await(5, TimeUnit.SECONDS));
+
+		assertThrows(LockTimeoutException.class, () -> lockManager.executeWithLock("filename", true, () -> true));
+		assertEquals(0, lockManager.getWaitCount());
+		assertEquals(1, meterRegistry.get("file.lock.timeouts").tag("mode", "write").counter().count());
+
+		releaseReader.countDown();
+		reader.get(5, TimeUnit.SECONDS);
+		assertEquals(0, lockManager.getLockCount());
+	}
+
+	@Test
+	void testWritersAreMutuallyExclusive() throws Exception {
+		AtomicInteger inside = new AtomicInteger();
+		AtomicInteger maxInside = new AtomicInteger();
+
+		Future<?>[] futures = new Future<?>[8];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = executorService.submit(() -> lockManager.executeWithLock("filename", true, () -> {
+				maxInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+				Thread.sleep(20);
+				return inside.decrementAndGet();
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+
+		assertEquals(1, maxInside.get());
+		assertEquals(0, lockManager.getLockCount());
+	}
+}
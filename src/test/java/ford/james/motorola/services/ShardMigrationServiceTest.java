@@ -0,0 +1,70 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.ObjectProvider;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.metrics.FileMetrics;
+import ford.james.motorola.repositories.FileLocalRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ShardMigrationServiceTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	private FileLocalRepository fileLocalRepository;
+
+	private ShardMigrationService shardMigrationService;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void before() throws Exception {
+		Files.writeString(storageDirectory.resolve("first.txt"), "first");
+		Files.writeString(storageDirectory.resolve("second.txt"), "second");
+
+		FileStorageProperties fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.setRequestTimeout(1);
+		fileStorageProperties.getIndex().setWatchEnabled(false);
+		fileStorageProperties.getSharding().setEnabled(true);
+
+		FileMetrics fileMetrics = new FileMetrics(new SimpleMeterRegistry());
+		fileLocalRepository = new FileLocalRepository(fileStorageProperties, fileMetrics);
+		fileLocalRepository.initialiseIndex();
+
+		shardMigrationService = new ShardMigrationService(mock(ObjectProvider.class),
+				new LockManagerImpl(fileStorageProperties, fileMetrics));
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		fileLocalRepository.close();
+	}
+
+	@Test
+	void testMigrateMovesFlatFiles() throws Exception {
+		shardMigrationService.migrate(fileLocalRepository);
+
+		assertEquals(new ShardMigrationStatus(ShardMigrationStatus.State.COMPLETED, 2, 2, 0, 0),
+				shardMigrationService.getStatus());
+		assertTrue(fileLocalRepository.findFlatFilenames().isEmpty());
+		assertFalse(fileLocalRepository.detectFlatFiles());
+		assertEquals(Set.of("first.txt", "second.txt"), fileLocalRepository.listFilenames());
+		assertEquals("second", fileLocalRepository.getFileFromStorage("second.txt").getContentAsString(
+				StandardCharsets.UTF_8));
+	}
+}
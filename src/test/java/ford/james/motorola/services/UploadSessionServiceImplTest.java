@@ -0,0 +1,191 @@
+package ford.james.motorola.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import ford.james.motorola.FileStorageProperties;
+import ford.james.motorola.exceptions.IncompleteUploadException;
+import ford.james.motorola.metrics.FileMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class UploadSessionServiceImplTest {
+
+	@TempDir
+	private Path storageDirectory;
+
+	@Mock
+	private FileService fileService;
+
+	private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+	private FileStorageProperties fileStorageProperties;
+	private UploadSessionServiceImpl uploadSessionService;
+	private AutoCloseable closeable;
+
+	@BeforeEach
+	void before() {
+		closeable = MockitoAnnotations.openMocks(this);
+		fileStorageProperties = new FileStorageProperties();
+		fileStorageProperties.setBaseLocation(storageDirectory.toString());
+		fileStorageProperties.setRequestTimeout(1);
+		uploadSessionService = new UploadSessionServiceImpl(fileService, fileStorageProperties,
+				new FileMetrics(new SimpleMeterRegistry()));
+	}
+
+	@AfterEach
+	void after() throws Exception {
+		executorService.shutdownNow();
+		executorService.awaitTermination(5, TimeUnit.SECONDS);
+		uploadSessionService.close();
+		closeable.close();
+	}
+
+	@Test
+	void testChunksWrittenInParallelAndOutOfOrderAreCommitted() throws Exception {
+		String sessionId = uploadSessionService.createSession("file.txt", 10, 4).sessionId();
+		AtomicReference<String> committedContent = new AtomicReference<>();
+		doAnswer(invocation -> {
+			committedContent.set(Files.readString(invocation.getArgument(1)));
+			return null;
+		}).when(fileService).saveFile(eq("file.txt"), any(Path.class), any(String.class));
+
+		List<Future<?>> futures = List.of(
+				executorService.submit(() -> writeChunk(sessionId, 2, "89")),
+				executorService.submit(() -> writeChunk(sessionId, 0, "0123")),
+				executorService.submit(() -> writeChunk(sessionId, 1, "4567")));
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		assertEquals(List.of(), uploadSessionService.getSession(sessionId).missingChunks());
+
+		uploadSessionService.commit(sessionId);
+
+		assertEquals("0123456789", committedContent.get());
+		verify(fileService).saveFile(eq("file.txt"), any(Path.class),
+				eq("84d89877f0d4041efb6bf91a16f0248f2fd573e6af05c19f96bedb9f882f7882"));
+		assertThrows(FileNotFoundException.class, () -> uploadSessionService.getSession(sessionId));
+		assertTrue(listStagedFiles().isEmpty());
+	}
+
+	@Test
+	void testChunkCanBeRetried() throws Exception {
+		String sessionId = uploadSessionService.createSession("file.txt", 4, 4).sessionId();
+
+		assertThrows(IllegalArgumentException.class, () -> writeChunk(sessionId, 0, "01"));
+		assertEquals(List.of(0), uploadSessionService.getSession(sessionId).missingChunks());
+
+		writeChunk(sessionId, 0, "0123");
+		assertEquals(List.of(), uploadSessionService.getSession(sessionId).missingChunks());
+	}
+
+	@Test
+	void testInvalidChunks() throws Exception {
+		String sessionId = uploadSessionService.createSession("file.txt", 10, 4).sessionId();
+
+		assertThrows(IllegalArgumentException.class, () -> writeChunk(sessionId, 3, "0"));
+		assertThrows(IllegalArgumentException.class, () -> writeChunk(sessionId, 0, "01234"));
+		assertThrows(IllegalArgumentException.class, () -> writeChunk(sessionId, 2, "8"));
+		assertThrows(FileNotFoundException.class, () -> writeChunk("missing", 0, "0123"));
+		assertThrows(IllegalArgumentException.class, () -> uploadSessionService.createSession("file.txt", 10, 0));
+	}
+
+	@Test
+	void testSessionLargerThanFreeSpaceIsRefused() throws Exception {
+		assertThrows(IllegalArgumentException.class,
+				() -> uploadSessionService.createSession("file.txt", 1L << 50, 64 * 1024 * 1024));
+
+		assertEquals(0, uploadSessionService.getSessionCount());
+		assertTrue(listStagedFiles().isEmpty());
+	}
+
+	@Test
+	void testCommitWithMissingChunks() throws Exception {
+		String sessionId = uploadSessionService.createSession("file.txt", 10, 4).sessionId();
+		writeChunk(sessionId, 0, "0123");
+
+		assertThrows(IncompleteUploadException.class, () -> uploadSessionService.commit(sessionId));
+
+		assertEquals(List.of(1, 2), uploadSessionService.getSession(sessionId).missingChunks());
+		verify(fileService, never()).saveFile(any(String.class), any(Path.class), any(String.class));
+	}
+
+	@Test
+	void testFailedCommitKeepsSession() throws Exception {
+		String sessionId = uploadSessionService.createSession("file.txt", 4, 4).sessionId();
+		writeChunk(sessionId, 0, "0123");
+		doThrow(new FileAlreadyExistsException("file.txt")).when(fileService).saveFile(eq("file.txt"), any(Path.class),
+				any(String.class));
+
+		assertThrows(FileAlreadyExistsException.class, () -> uploadSessionService.commit(sessionId));
+
+		assertEquals(List.of(), uploadSessionService.getSession(sessionId).missingChunks());
+		uploadSessionService.abort(sessionId);
+		assertThrows(FileNotFoundException.class, () -> uploadSessionService.getSession(sessionId));
+		assertTrue(listStagedFiles().isEmpty());
+	}
+
+	@Test
+	void testAbandonedSessionsExpire() throws Exception {
+		fileStorageProperties.getUploadSession().setExpiry(Duration.ZERO);
+		String sessionId = uploadSessionService.createSession("file.txt", 4, 4).sessionId();
+		assertFalse(listStagedFiles().isEmpty());
+
+		Thread.sleep(10);
+		uploadSessionService.expireSessions();
+
+		assertEquals(0, uploadSessionService.getSessionCount());
+		assertThrows(FileNotFoundException.class, () -> uploadSessionService.getSession(sessionId));
+		assertTrue(listStagedFiles().isEmpty());
+	}
+
+	@Test
+	void testStagedFilesFromPreviousRunAreRemoved() throws Exception {
+		Files.writeString(storageDirectory.resolve(UploadSessionServiceImpl.STAGED_FILE_PREFIX + "old.part"), "old");
+		Files.writeString(storageDirectory.resolve("kept.txt"), "kept");
+
+		uploadSessionService.removeAbandonedFiles();
+
+		assertTrue(listStagedFiles().isEmpty());
+		assertTrue(Files.exists(storageDirectory.resolve("kept.txt")));
+	}
+
+	private Void writeChunk(String sessionId, int index, String content) throws Exception {
+		uploadSessionService.writeChunk(sessionId, index, new ByteArrayInputStream(content.getBytes()));
+		return null;
+	}
+
+	private List<Path> listStagedFiles() throws Exception {
+		try (var files = Files.list(storageDirectory)) {
+			return files.filter(file -> file.getFileName().toString().startsWith(UploadSessionServiceImpl.STAGED_FILE_PREFIX))
+					.toList();
+		}
+	}
+}